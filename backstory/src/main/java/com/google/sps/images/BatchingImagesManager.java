@@ -0,0 +1,338 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import com.google.sps.images.data.AnnotatedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@inheritDoc}
+ *
+ * BatchingImagesManager is an ImagesManager which batches the images of concurrent callers
+ * into shared Vision requests. An image waits for at most the linger window for other images
+ * to join its batch, and a batch is sent as soon as it reaches the batch limit. Each image
+ * gets its own result, so an image which Vision couldn't annotate only fails its own caller.
+ * A caller waits for at most the timeout, so a batch which hangs fails its callers rather than
+ * holding them.
+ */
+public final class BatchingImagesManager implements ImagesManager {
+  /** the maximum number of images Vision accepts in one batchAnnotateImages request */
+  public static final int MAX_BATCH_SIZE = 16;
+  /** the system property which sets the linger window in milliseconds */
+  public static final String LINGER_MILLIS_PROPERTY = "backstory.images.batch.linger.millis";
+  /** the default time (in milliseconds) an image waits for others to join its batch */
+  public static final long DEFAULT_LINGER_MILLIS = 10;
+  /** the system property which sets the number of threads sending batches */
+  public static final String THREADS_PROPERTY = "backstory.images.batch.threads";
+  /** the default number of threads sending batches */
+  public static final int DEFAULT_THREADS = 8;
+  /** the system property which sets the time (in milliseconds) a caller waits for its images */
+  public static final String TIMEOUT_MILLIS_PROPERTY = "backstory.images.batch.timeout.millis";
+  /** the default time (in milliseconds) a caller waits, kept under App Engine's request deadline */
+  public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+  /** closes the linger window of batches (only schedules them; never sends them itself) */
+  private static final ScheduledExecutorService LINGER_TIMER =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("vision-batch-timer-%d").build());
+  /** sends batches of managers which aren't given their own executor, bounded like the others */
+  private static final Executor BATCH_EXECUTOR = Executors.newFixedThreadPool(
+      Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS),
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("vision-batch-%d").build());
+
+  /** the manager which sends each batch to Vision */
+  private final VisionImagesManager delegate;
+  /** the maximum number of images in a batch */
+  private final int maxBatchSize;
+  /** the time (in milliseconds) an image waits for others to join its batch */
+  private final long lingerMillis;
+  /** sends the batches */
+  private final Executor executor;
+  /** the time (in milliseconds) a caller waits for its images */
+  private long timeoutMillis = Long.getLong(TIMEOUT_MILLIS_PROPERTY, DEFAULT_TIMEOUT_MILLIS);
+
+  /** the images waiting to be sent (guarded by this) */
+  private List<PendingImage> pendingImages = new ArrayList<PendingImage>();
+  /** closes the linger window of the pending images (guarded by this) */
+  private ScheduledFuture<?> lingerTimeout;
+
+  /** the number of batches sent */
+  private final LongAdder batchCount = new LongAdder();
+  /** the number of images sent */
+  private final LongAdder imageCount = new LongAdder();
+
+  /**
+   * Constructs a batching manager around the given manager, with the Vision batch limit and
+   * the linger window set by the system property (or the default).
+   *
+   * @param delegate the manager to send each batch with
+   * @throws IllegalArgumentException if delegate is null or the linger window is negative
+   */
+  public BatchingImagesManager(VisionImagesManager delegate) throws IllegalArgumentException {
+    this(delegate, MAX_BATCH_SIZE, Long.getLong(LINGER_MILLIS_PROPERTY, DEFAULT_LINGER_MILLIS),
+        BATCH_EXECUTOR);
+  }
+
+  /**
+   * Constructs a batching manager around the given manager.
+   *
+   * @param delegate the manager to send each batch with
+   * @param maxBatchSize the maximum number of images in a batch
+   * @param lingerMillis the time in milliseconds an image waits for others to join its batch
+   * @param executor sends the batches
+   * @throws IllegalArgumentException if delegate or executor is null, maxBatchSize isn't
+   *     between 1 and MAX_BATCH_SIZE or lingerMillis is negative
+   */
+  public BatchingImagesManager(VisionImagesManager delegate, int maxBatchSize, long lingerMillis,
+      Executor executor) throws IllegalArgumentException {
+    if (delegate == null || executor == null) {
+      throw new IllegalArgumentException("Delegate and executor cannot be null.");
+    }
+
+    if (maxBatchSize < 1 || maxBatchSize > MAX_BATCH_SIZE) {
+      throw new IllegalArgumentException(
+          "Max batch size must be between 1 and " + MAX_BATCH_SIZE + ".");
+    }
+
+    if (lingerMillis < 0) {
+      throw new IllegalArgumentException("Linger window cannot be negative.");
+    }
+
+    this.delegate = delegate;
+    this.maxBatchSize = maxBatchSize;
+    this.lingerMillis = lingerMillis;
+    this.executor = executor;
+  }
+
+  /**
+   * Sets the time a caller waits for the annotations of its images.
+   *
+   * @param timeoutMillis the time in milliseconds to wait for every image of a call
+   * @throws IllegalArgumentException if timeoutMillis isn't positive
+   */
+  public void setTimeoutMillis(long timeoutMillis) throws IllegalArgumentException {
+    if (timeoutMillis <= 0) {
+      throw new IllegalArgumentException("Timeout must be positive.");
+    }
+
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Each image is added to the pending batch, and the call waits until every image has its
+   * result, or the timeout has passed. The first error of the images is thrown.
+   *
+   * @throws IOException if an image couldn't be annotated or the timeout passed first
+   */
+  @Override
+  public List<AnnotatedImage> createAnnotatedImagesFromImagesAsByteStrings(
+      List<ByteString> imagesAsByteStrings) throws IOException {
+    List<CompletableFuture<AnnotatedImage>> futures =
+        new ArrayList<CompletableFuture<AnnotatedImage>>();
+
+    for (ByteString imageBytes : imagesAsByteStrings) {
+      futures.add(annotate(imageBytes));
+    }
+
+    List<AnnotatedImage> annotatedImages = new ArrayList<AnnotatedImage>();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+    try {
+      for (CompletableFuture<AnnotatedImage> future : futures) {
+        annotatedImages.add(future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+      }
+    } catch (TimeoutException exception) {
+      throw new IOException(
+          "Timed out after " + timeoutMillis + " ms waiting for annotations.", exception);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for annotations.", exception);
+    } catch (ExecutionException exception) {
+      Throwable cause = exception.getCause();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+
+      throw new IOException(cause);
+    }
+
+    return annotatedImages;
+  }
+
+  /**
+   * Adds an image to the pending batch, sending the batch if it's full.
+   *
+   * @param imageBytes the image to annotate
+   * @return a future which is completed with the image's annotations or error
+   */
+  public CompletableFuture<AnnotatedImage> annotate(ByteString imageBytes) {
+    PendingImage pendingImage = new PendingImage(imageBytes);
+    List<PendingImage> fullBatch = null;
+
+    synchronized (this) {
+      pendingImages.add(pendingImage);
+
+      if (pendingImages.size() >= maxBatchSize) {
+        fullBatch = takePendingImages();
+      } else if (pendingImages.size() == 1) {
+        lingerTimeout = LINGER_TIMER.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    if (fullBatch != null) {
+      send(fullBatch);
+    }
+
+    return pendingImage.annotatedImage;
+  }
+
+  /**
+   * Returns the number of batches sent.
+   *
+   * @return the batch count
+   */
+  public long getBatchCount() {
+    return batchCount.sum();
+  }
+
+  /**
+   * Returns the number of images sent.
+   *
+   * @return the image count
+   */
+  public long getImageCount() {
+    return imageCount.sum();
+  }
+
+  /**
+   * Sends the pending images once their linger window has closed.
+   */
+  private void flush() {
+    List<PendingImage> batch;
+
+    synchronized (this) {
+      batch = takePendingImages();
+    }
+
+    if (!batch.isEmpty()) {
+      send(batch);
+    }
+  }
+
+  /**
+   * Takes the pending images to send them, and cancels their linger timeout.
+   * Must be called while synchronized on this.
+   *
+   * @return the pending images
+   */
+  private List<PendingImage> takePendingImages() {
+    List<PendingImage> batch = pendingImages;
+    pendingImages = new ArrayList<PendingImage>();
+
+    if (lingerTimeout != null) {
+      lingerTimeout.cancel(false);
+      lingerTimeout = null;
+    }
+
+    return batch;
+  }
+
+  /**
+   * Sends a batch with one Vision request on the executor, and completes the future of each
+   * image with its own result (or every future with the error of the request as a whole).
+   *
+   * @param batch the images to send
+   */
+  private void send(List<PendingImage> batch) {
+    batchCount.increment();
+    imageCount.add(batch.size());
+
+    Runnable request = () -> {
+      List<ByteString> imagesAsByteStrings = new ArrayList<ByteString>(batch.size());
+
+      for (PendingImage pendingImage : batch) {
+        imagesAsByteStrings.add(pendingImage.imageBytes);
+      }
+
+      try {
+        List<CompletableFuture<AnnotatedImage>> results =
+            delegate.annotateEach(imagesAsByteStrings);
+
+        for (int i = 0; i < batch.size(); i++) {
+          CompletableFuture<AnnotatedImage> annotatedImage = batch.get(i).annotatedImage;
+          results.get(i).whenComplete((AnnotatedImage result, Throwable throwable) -> {
+            if (throwable == null) {
+              annotatedImage.complete(result);
+            } else {
+              annotatedImage.completeExceptionally(throwable);
+            }
+          });
+        }
+      } catch (IOException | RuntimeException exception) {
+        for (PendingImage pendingImage : batch) {
+          pendingImage.annotatedImage.completeExceptionally(exception);
+        }
+      }
+    };
+
+    try {
+      executor.execute(request);
+    } catch (RuntimeException exception) {
+      for (PendingImage pendingImage : batch) {
+        pendingImage.annotatedImage.completeExceptionally(exception);
+      }
+    }
+  }
+
+  /**
+   * An image waiting to be sent, along with the future of its annotations.
+   */
+  private static final class PendingImage {
+    /** the image to annotate */
+    private final ByteString imageBytes;
+    /** completed with the image's annotations or error */
+    private final CompletableFuture<AnnotatedImage> annotatedImage =
+        new CompletableFuture<AnnotatedImage>();
+
+    /**
+     * Constructs a pending image.
+     *
+     * @param imageBytes the image to annotate
+     */
+    private PendingImage(ByteString imageBytes) {
+      this.imageBytes = imageBytes;
+    }
+  }
+}
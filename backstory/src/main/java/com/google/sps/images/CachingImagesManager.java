@@ -0,0 +1,384 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.sps.images.data.AnnotatedImage;
+import com.google.sps.images.data.ImageFingerprint;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@inheritDoc}
+ *
+ * CachingImagesManager is an ImagesManager which caches the label and landmark annotations of
+ * another ImagesManager by the fingerprint of each image.
+ *
+ * The first tier is a bounded in-process map which evicts the least recently used image once
+ * it's full. The optional second tier is Datastore, which lets warm instances share their
+ * annotations. Only the images found in neither tier are sent to the other ImagesManager, in a
+ * single batch, and the annotated images are returned in the order of the input.
+ *
+ * The images are fingerprinted before the in-memory tier is locked, so concurrent uploads don't
+ * wait on each other's hashing, and a caller which already has the fingerprints passes them in.
+ */
+public final class CachingImagesManager implements ImagesManager {
+  /** the default maximum number of images whose annotations are held in memory */
+  public static final int DEFAULT_MAX_SIZE = 1000;
+  /** the kind of the Datastore entities which hold annotations */
+  public static final String ENTITY_KIND = "image-annotations";
+
+  /** the caching manager shared by the whole process (created on first use) */
+  private static volatile CachingImagesManager sharedInstance;
+
+  /** the manager which annotates the images not found in the cache */
+  private final ImagesManager delegate;
+  /** the maximum number of images whose annotations are held in memory */
+  private final int maxSize;
+  /** the in-memory tier, in least to most recently used order */
+  private final LinkedHashMap<String, CachedAnnotations> entries;
+  /** the Datastore tier (null if there is no second tier) */
+  private DatastoreService datastoreService;
+
+  /** the number of images found in memory */
+  private final AtomicLong hitCount = new AtomicLong();
+  /** the number of images found in Datastore after missing in memory */
+  private final AtomicLong datastoreHitCount = new AtomicLong();
+  /** the number of images found in neither tier */
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Returns the caching manager shared by the whole process, which caches the annotations of
+   * the Vision API (of downscaled images, batched with those of concurrent requests) in memory
+   * and in the default Datastore.
+   *
+   * @return the process-wide CachingImagesManager
+   * @throws IOException if the Vision API client could not be created
+   */
+  public static CachingImagesManager getSharedInstance() throws IOException {
+    if (sharedInstance == null) {
+      synchronized (CachingImagesManager.class) {
+        if (sharedInstance == null) {
+          ImagesManager visionImagesManager = new DownscalingImagesManager(
+              new BatchingImagesManager(new VisionImagesManager()));
+          CachingImagesManager manager =
+              new CachingImagesManager(visionImagesManager, DEFAULT_MAX_SIZE);
+          manager.setDatastoreService(DatastoreServiceFactory.getDatastoreService());
+          sharedInstance = manager;
+        }
+      }
+    }
+
+    return sharedInstance;
+  }
+
+  /**
+   * Constructs an in-memory caching manager around the given manager.
+   *
+   * @param delegate the manager to annotate the images not found in the cache with
+   * @param maxSize the maximum number of images whose annotations are held in memory
+   * @throws IllegalArgumentException if delegate is null or maxSize is not positive
+   */
+  public CachingImagesManager(ImagesManager delegate, int maxSize)
+      throws IllegalArgumentException {
+    if (delegate == null) {
+      throw new IllegalArgumentException("Delegate cannot be null.");
+    }
+
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Max size must be greater than 0.");
+    }
+
+    this.delegate = delegate;
+    this.maxSize = maxSize;
+    this.entries = new LinkedHashMap<String, CachedAnnotations>(16, .75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedAnnotations> eldest) {
+        return size() > CachingImagesManager.this.maxSize;
+      }
+    };
+  }
+
+  /**
+   * Adds Datastore as the second tier of this cache.
+   *
+   * @param datastoreService the Datastore service to store annotations in
+   *     (null removes the second tier)
+   */
+  public void setDatastoreService(DatastoreService datastoreService) {
+    this.datastoreService = datastoreService;
+  }
+
+  @Override
+  public List<AnnotatedImage> createAnnotatedImagesFromImagesAsByteStrings(
+      List<ByteString> imagesAsByteStrings) throws IOException {
+    List<String> fingerprints = new ArrayList<String>(imagesAsByteStrings.size());
+
+    for (ByteString imageBytes : imagesAsByteStrings) {
+      fingerprints.add(ImageFingerprint.of(imageBytes));
+    }
+
+    return createAnnotatedImagesFromImagesAsByteStrings(imagesAsByteStrings, fingerprints);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IllegalArgumentException if there isn't one fingerprint for each image
+   */
+  @Override
+  public List<AnnotatedImage> createAnnotatedImagesFromImagesAsByteStrings(
+      List<ByteString> imagesAsByteStrings, List<String> fingerprints)
+      throws IOException, IllegalArgumentException {
+    if (fingerprints.size() != imagesAsByteStrings.size()) {
+      throw new IllegalArgumentException("There must be one fingerprint for each image.");
+    }
+
+    CachedAnnotations[] annotations = new CachedAnnotations[imagesAsByteStrings.size()];
+    // the first image of each fingerprint not found in memory
+    Map<String, ByteString> notInMemory = new LinkedHashMap<String, ByteString>();
+
+    synchronized (entries) {
+      for (int i = 0; i < annotations.length; i++) {
+        annotations[i] = entries.get(fingerprints.get(i));
+
+        if (annotations[i] != null) {
+          hitCount.incrementAndGet();
+        } else {
+          notInMemory.putIfAbsent(fingerprints.get(i), imagesAsByteStrings.get(i));
+        }
+      }
+    }
+
+    Map<String, CachedAnnotations> found =
+        getAllFromDatastore(new ArrayList<String>(notInMemory.keySet()));
+    datastoreHitCount.addAndGet(found.size());
+    putAllInMemory(found);
+
+    Map<String, ByteString> misses = new LinkedHashMap<String, ByteString>(notInMemory);
+    misses.keySet().removeAll(found.keySet());
+
+    if (!misses.isEmpty()) {
+      missCount.addAndGet(misses.size());
+      Map<String, CachedAnnotations> annotated = annotateMisses(misses);
+      putAllInMemory(annotated);
+      putAllInDatastore(annotated);
+      found.putAll(annotated);
+    }
+
+    List<AnnotatedImage> annotatedImages = new ArrayList<AnnotatedImage>(annotations.length);
+
+    for (int i = 0; i < annotations.length; i++) {
+      CachedAnnotations cached =
+          annotations[i] != null ? annotations[i] : found.get(fingerprints.get(i));
+      annotatedImages.add(new AnnotatedImage(
+          imagesAsByteStrings.get(i), cached.labelAnnotations, cached.landmarkAnnotations));
+    }
+
+    return annotatedImages;
+  }
+
+  /**
+   * Returns the number of images found in memory.
+   *
+   * @return the number of in-memory hits
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the number of images not found in memory but found in Datastore.
+   *
+   * @return the number of Datastore hits
+   */
+  public long getDatastoreHitCount() {
+    return datastoreHitCount.get();
+  }
+
+  /**
+   * Returns the number of images found in neither tier, which were sent to the delegate.
+   *
+   * @return the number of misses
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the number of images whose annotations are currently held in memory.
+   *
+   * @return the number of images in memory
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Annotates the images found in neither tier with a single call to the delegate.
+   *
+   * @param misses the image of each fingerprint to annotate
+   * @return a map from the fingerprints to their annotations
+   * @throws IOException if the delegate could not annotate the images
+   */
+  private Map<String, CachedAnnotations> annotateMisses(Map<String, ByteString> misses)
+      throws IOException {
+    List<AnnotatedImage> annotatedImages = delegate.createAnnotatedImagesFromImagesAsByteStrings(
+        new ArrayList<ByteString>(misses.values()));
+
+    if (annotatedImages.size() != misses.size()) {
+      throw new RuntimeException(
+          "The number of annotated images is not equal to the number of images.");
+    }
+
+    Map<String, CachedAnnotations> annotated = new HashMap<String, CachedAnnotations>();
+    int i = 0;
+
+    for (String fingerprint : misses.keySet()) {
+      AnnotatedImage annotatedImage = annotatedImages.get(i++);
+      annotated.put(fingerprint, new CachedAnnotations(annotatedImage.getLabelAnnotations(),
+          annotatedImage.getLandmarkAnnotations()));
+    }
+
+    return annotated;
+  }
+
+  /**
+   * Adds annotations to the in-memory tier.
+   *
+   * @param annotations a map from fingerprints to their annotations
+   */
+  private void putAllInMemory(Map<String, CachedAnnotations> annotations) {
+    if (annotations.isEmpty()) {
+      return;
+    }
+
+    synchronized (entries) {
+      entries.putAll(annotations);
+    }
+  }
+
+  /**
+   * Looks up the given fingerprints in Datastore with a single batch get.
+   *
+   * @param fingerprints the fingerprints to look up
+   * @return a map from the fingerprints found to their annotations
+   */
+  private Map<String, CachedAnnotations> getAllFromDatastore(List<String> fingerprints) {
+    Map<String, CachedAnnotations> found = new HashMap<String, CachedAnnotations>();
+
+    if (datastoreService == null || fingerprints.isEmpty()) {
+      return found;
+    }
+
+    List<Key> keys = new ArrayList<Key>();
+
+    for (String fingerprint : fingerprints) {
+      keys.add(KeyFactory.createKey(ENTITY_KIND, fingerprint));
+    }
+
+    Map<Key, Entity> entities;
+
+    try {
+      entities = datastoreService.get(keys);
+    } catch (RuntimeException exception) {
+      // treat a failure to read the second tier as a miss
+      System.err.println("Could not read image annotations from Datastore: " + exception);
+      return found;
+    }
+
+    for (Entity entity : entities.values()) {
+      try {
+        AnnotateImageResponse response =
+            AnnotateImageResponse.parseFrom(((Blob) entity.getProperty("annotations")).getBytes());
+        found.put(entity.getKey().getName(), new CachedAnnotations(
+            response.getLabelAnnotationsList(), response.getLandmarkAnnotationsList()));
+      } catch (InvalidProtocolBufferException | ClassCastException
+          | NullPointerException exception) {
+        // skip entities which were written in an unexpected format
+      }
+    }
+
+    return found;
+  }
+
+  /**
+   * Writes annotations to Datastore with a single batch put.
+   *
+   * @param annotations a map from fingerprints to their annotations
+   */
+  private void putAllInDatastore(Map<String, CachedAnnotations> annotations) {
+    if (datastoreService == null) {
+      return;
+    }
+
+    List<Entity> entities = new ArrayList<Entity>();
+
+    for (Map.Entry<String, CachedAnnotations> cached : annotations.entrySet()) {
+      // the annotations are stored as an AnnotateImageResponse, which is how Vision returns them
+      AnnotateImageResponse response = AnnotateImageResponse.newBuilder()
+          .addAllLabelAnnotations(cached.getValue().labelAnnotations)
+          .addAllLandmarkAnnotations(cached.getValue().landmarkAnnotations)
+          .build();
+      Entity entity = new Entity(ENTITY_KIND, cached.getKey());
+      entity.setUnindexedProperty("annotations", new Blob(response.toByteArray()));
+      entities.add(entity);
+    }
+
+    try {
+      datastoreService.put(entities);
+    } catch (RuntimeException exception) {
+      System.err.println("Could not write image annotations to Datastore: " + exception);
+    }
+  }
+
+  /**
+   * The label and landmark annotations of an image.
+   */
+  private static final class CachedAnnotations {
+    /** the labels of the image */
+    private final List<EntityAnnotation> labelAnnotations;
+    /** the landmarks of the image */
+    private final List<EntityAnnotation> landmarkAnnotations;
+
+    /**
+     * Constructs the annotations of an image.
+     *
+     * @param labelAnnotations the labels of the image
+     * @param landmarkAnnotations the landmarks of the image
+     */
+    private CachedAnnotations(
+        List<EntityAnnotation> labelAnnotations, List<EntityAnnotation> landmarkAnnotations) {
+      this.labelAnnotations = labelAnnotations;
+      this.landmarkAnnotations = landmarkAnnotations;
+    }
+  }
+}
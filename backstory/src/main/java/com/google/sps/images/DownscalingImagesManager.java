@@ -0,0 +1,251 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images;
+
+import com.google.protobuf.ByteString;
+import com.google.sps.images.data.AnnotatedImage;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * {@inheritDoc}
+ *
+ * DownscalingImagesManager is an ImagesManager which shrinks each image before another
+ * ImagesManager annotates it: images whose long edge is larger than the configured one are
+ * decoded, downsampled to that long edge and re-encoded as JPEG. Labels and landmarks don't
+ * need the full resolution of a phone photo, and the smaller image is faster to send and to
+ * annotate.
+ *
+ * Large images are decoded with source subsampling, so the full resolution image is never held
+ * in memory. An image which can't be decoded (or which would only get larger) is annotated as
+ * it was uploaded. The annotated images keep the uploaded bytes.
+ */
+public final class DownscalingImagesManager implements ImagesManager {
+  /** the system property which sets the long edge (in pixels) images are downsampled to */
+  public static final String MAX_LONG_EDGE_PROPERTY = "backstory.images.max-long-edge";
+  /** the default long edge (in pixels) images are downsampled to */
+  public static final int DEFAULT_MAX_LONG_EDGE = 1024;
+  /** the default quality of the re-encoded JPEG images (between 0 and 1) */
+  public static final float DEFAULT_JPEG_QUALITY = 0.85f;
+
+  /** the manager which annotates the downscaled images */
+  private final ImagesManager delegate;
+  /** the long edge (in pixels) images are downsampled to */
+  private final int maxLongEdge;
+  /** the quality of the re-encoded JPEG images */
+  private final float jpegQuality;
+
+  /**
+   * Constructs a downscaling manager around the given manager, which downsamples images to the
+   * long edge set by the system property (or the default).
+   *
+   * @param delegate the manager to annotate the downscaled images with
+   * @throws IllegalArgumentException if delegate is null or the configured long edge isn't
+   *     positive
+   */
+  public DownscalingImagesManager(ImagesManager delegate) throws IllegalArgumentException {
+    this(delegate, Integer.getInteger(MAX_LONG_EDGE_PROPERTY, DEFAULT_MAX_LONG_EDGE),
+        DEFAULT_JPEG_QUALITY);
+  }
+
+  /**
+   * Constructs a downscaling manager around the given manager.
+   *
+   * @param delegate the manager to annotate the downscaled images with
+   * @param maxLongEdge the long edge in pixels to downsample images to
+   * @param jpegQuality the quality of the re-encoded JPEG images, between 0 and 1
+   * @throws IllegalArgumentException if delegate is null, maxLongEdge isn't positive or
+   *     jpegQuality isn't between 0 and 1
+   */
+  public DownscalingImagesManager(ImagesManager delegate, int maxLongEdge, float jpegQuality)
+      throws IllegalArgumentException {
+    if (delegate == null) {
+      throw new IllegalArgumentException("Delegate cannot be null.");
+    }
+
+    if (maxLongEdge <= 0) {
+      throw new IllegalArgumentException("Max long edge must be greater than 0.");
+    }
+
+    if (jpegQuality < 0 || jpegQuality > 1) {
+      throw new IllegalArgumentException("JPEG quality must be between 0 and 1.");
+    }
+
+    this.delegate = delegate;
+    this.maxLongEdge = maxLongEdge;
+    this.jpegQuality = jpegQuality;
+  }
+
+  @Override
+  public List<AnnotatedImage> createAnnotatedImagesFromImagesAsByteStrings(
+      List<ByteString> imagesAsByteStrings) throws IOException {
+    List<ByteString> downscaledImages = new ArrayList<ByteString>(imagesAsByteStrings.size());
+
+    for (ByteString imageBytes : imagesAsByteStrings) {
+      downscaledImages.add(downscale(imageBytes));
+    }
+
+    List<AnnotatedImage> downscaledAnnotatedImages =
+        delegate.createAnnotatedImagesFromImagesAsByteStrings(downscaledImages);
+
+    if (downscaledAnnotatedImages.size() != imagesAsByteStrings.size()) {
+      throw new RuntimeException(
+          "The number of annotated images is not equal to the number of images.");
+    }
+
+    List<AnnotatedImage> annotatedImages = new ArrayList<AnnotatedImage>();
+
+    // the annotations belong to the uploaded image rather than its downscaled copy
+    for (int i = 0; i < imagesAsByteStrings.size(); i++) {
+      AnnotatedImage annotatedImage = downscaledAnnotatedImages.get(i);
+      annotatedImages.add(new AnnotatedImage(imagesAsByteStrings.get(i),
+          annotatedImage.getLabelAnnotations(), annotatedImage.getLandmarkAnnotations()));
+    }
+
+    return annotatedImages;
+  }
+
+  /**
+   * Downsamples an image to the long edge of this manager and re-encodes it as JPEG.
+   *
+   * @param imageBytes the uploaded image
+   * @return the downscaled JPEG image, or imageBytes if it's already small enough, can't be
+   *     decoded or wouldn't get any smaller
+   */
+  public ByteString downscale(ByteString imageBytes) {
+    ByteString downscaled;
+
+    try {
+      downscaled = decodeAndDownscale(imageBytes);
+    } catch (IOException | RuntimeException exception) {
+      System.err.println("Could not downscale image, keeping the original: " + exception);
+      return imageBytes;
+    }
+
+    return downscaled != null && downscaled.size() < imageBytes.size() ? downscaled : imageBytes;
+  }
+
+  /**
+   * Decodes an image (with source subsampling if it's much larger than the long edge),
+   * resizes it and encodes it as JPEG.
+   *
+   * @param imageBytes the uploaded image
+   * @return the downscaled JPEG image, or null if the image has no reader or is small enough
+   * @throws IOException if the image could not be decoded or encoded
+   */
+  private ByteString decodeAndDownscale(ByteString imageBytes) throws IOException {
+    // the image is read in place rather than copied into an array first
+    try (ImageInputStream input = ImageIO.createImageInputStream(imageBytes.newInput())) {
+      Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+
+      if (readers == null || !readers.hasNext()) {
+        return null;
+      }
+
+      ImageReader reader = readers.next();
+
+      try {
+        reader.setInput(input, true, true);
+        int longEdge = Math.max(reader.getWidth(0), reader.getHeight(0));
+
+        if (longEdge <= maxLongEdge) {
+          return null;
+        }
+
+        // skip whole pixels while decoding, so at most twice the long edge is ever decoded
+        ImageReadParam readParam = reader.getDefaultReadParam();
+        int subsampling = longEdge / maxLongEdge;
+
+        if (subsampling > 1) {
+          readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+
+        return encodeJpeg(resize(reader.read(0, readParam)));
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Resizes an image so its long edge is the long edge of this manager, smoothly and onto an
+   * opaque background (JPEG has no transparency).
+   *
+   * @param image the decoded image
+   * @return the resized RGB image
+   */
+  private BufferedImage resize(BufferedImage image) {
+    double scale = (double) maxLongEdge / Math.max(image.getWidth(), image.getHeight());
+    int width = Math.max(1, (int) Math.round(image.getWidth() * Math.min(scale, 1)));
+    int height = Math.max(1, (int) Math.round(image.getHeight() * Math.min(scale, 1)));
+    BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = resized.createGraphics();
+
+    try {
+      graphics.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      graphics.drawImage(image, 0, 0, width, height, Color.WHITE, null);
+    } finally {
+      graphics.dispose();
+    }
+
+    return resized;
+  }
+
+  /**
+   * Encodes an image as JPEG with the quality of this manager.
+   *
+   * @param image the image to encode
+   * @return the JPEG image
+   * @throws IOException if the image could not be encoded
+   */
+  private ByteString encodeJpeg(BufferedImage image) throws IOException {
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+
+    if (!writers.hasNext()) {
+      throw new IOException("There is no JPEG writer.");
+    }
+
+    ImageWriter writer = writers.next();
+    ByteString.Output output = ByteString.newOutput();
+
+    try (MemoryCacheImageOutputStream imageOutput = new MemoryCacheImageOutputStream(output)) {
+      ImageWriteParam writeParam = writer.getDefaultWriteParam();
+      writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      writeParam.setCompressionQuality(jpegQuality);
+      writer.setOutput(imageOutput);
+      writer.write(null, new IIOImage(image, null, null), writeParam);
+    } finally {
+      writer.dispose();
+    }
+
+    return output.toByteString();
+  }
+}
@@ -14,8 +14,11 @@
 
 package com.google.sps.images;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.sps.images.data.AnnotatedImage;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -24,17 +27,58 @@ import java.util.List;
  * ImagesManager Manages the gathering and packaging of image analytics.
  * The manager contains methods to create annotated image objects from raw image data,
  * and performing manipulations and analytics on all the images uploaded.
+ *
+ * Images are passed around as immutable ByteStrings, so the bytes read from Blobstore are the
+ * bytes sent to the image analytics and held by the annotated images, without being copied.
  */
 public interface ImagesManager {
   /**
    * Runs analytics on a list of images represented by their raw byte data and packages the images
    * along with their analytics into annotated image objects.
    *
+   * @param imagesAsByteStrings a list of ByteStrings such that each ByteString within the list
+   *     represents an image uploaded to backstory.
+   * @return a list of annotated images correspending to the original images in
+   *     imagesAsByteStrings.
+   */
+  public List<AnnotatedImage> createAnnotatedImagesFromImagesAsByteStrings(
+      List<ByteString> imagesAsByteStrings) throws IOException;
+
+  /**
+   * Runs analytics on a list of images whose fingerprints have already been computed (e.g. to
+   * look the images up elsewhere), so an implementation which needs them doesn't hash the images
+   * again. By default the fingerprints are ignored.
+   *
+   * @param imagesAsByteStrings a list of ByteStrings such that each ByteString within the list
+   *     represents an image uploaded to backstory.
+   * @param fingerprints the ImageFingerprint of each image, in the same order as the images.
+   * @return a list of annotated images correspending to the original images in
+   *     imagesAsByteStrings.
+   */
+  public default List<AnnotatedImage> createAnnotatedImagesFromImagesAsByteStrings(
+      List<ByteString> imagesAsByteStrings, List<String> fingerprints) throws IOException {
+    return createAnnotatedImagesFromImagesAsByteStrings(imagesAsByteStrings);
+  }
+
+  /**
+   * Runs analytics on a list of images represented by their raw byte data and packages the images
+   * along with their analytics into annotated image objects.
+   *
+   * The byte arrays are wrapped rather than copied, so they must not be modified afterwards.
+   *
    * @param imagesAsByteArrays a list of byte arrays such that each byte array within the list
    *     represents an image uploaded to
    * backstory.
    * @return a list of annotated images correspending to the original images in imagesAsByteArrays.
    */
-  public List<AnnotatedImage> createAnnotatedImagesFromImagesAsByteArrays(
-      List<byte[]> imagesAsByteArrays) throws IOException;
+  public default List<AnnotatedImage> createAnnotatedImagesFromImagesAsByteArrays(
+      List<byte[]> imagesAsByteArrays) throws IOException {
+    List<ByteString> imagesAsByteStrings = new ArrayList<ByteString>(imagesAsByteArrays.size());
+
+    for (byte[] imageBytes : imagesAsByteArrays) {
+      imagesAsByteStrings.add(UnsafeByteOperations.unsafeWrap(imageBytes));
+    }
+
+    return createAnnotatedImagesFromImagesAsByteStrings(imagesAsByteStrings);
+  }
 }
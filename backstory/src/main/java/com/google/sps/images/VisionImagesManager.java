@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.lang.IllegalArgumentException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * {@inheritDoc}
@@ -55,8 +56,59 @@ public final class VisionImagesManager implements ImagesManager {
   }
 
   @Override
-  public List<AnnotatedImage> createAnnotatedImagesFromImagesAsByteArrays(
-      List<byte[]> imagesAsByteArrays) throws IOException {
+  public List<AnnotatedImage> createAnnotatedImagesFromImagesAsByteStrings(
+      List<ByteString> imagesAsByteStrings) throws IOException {
+    List<AnnotateImageResponse> responses = batchAnnotate(imagesAsByteStrings);
+    List<AnnotatedImage> annotatedImages = new ArrayList<AnnotatedImage>();
+
+    // add an annotated image to list for every image received as ByteString
+    for (int i = 0; i < responses.size(); i++) {
+      annotatedImages.add(toAnnotatedImage(imagesAsByteStrings.get(i), responses.get(i)));
+    }
+
+    return annotatedImages;
+  }
+
+  /**
+   * Annotates a list of images with a single request, like
+   * createAnnotatedImagesFromImagesAsByteStrings, but keeps the result of each image separate:
+   * an image which Vision couldn't annotate doesn't fail the others.
+   *
+   * @param imagesAsByteStrings a list of ByteStrings, each of which represents an image.
+   * @return a future for each image, in the order of imagesAsByteStrings, which is already
+   *     completed with its annotated image or with the IOException for its error.
+   * @throws IOException if the request as a whole failed.
+   */
+  public List<CompletableFuture<AnnotatedImage>> annotateEach(
+      List<ByteString> imagesAsByteStrings) throws IOException {
+    List<AnnotateImageResponse> responses = batchAnnotate(imagesAsByteStrings);
+    List<CompletableFuture<AnnotatedImage>> annotatedImages =
+        new ArrayList<CompletableFuture<AnnotatedImage>>();
+
+    for (int i = 0; i < responses.size(); i++) {
+      CompletableFuture<AnnotatedImage> annotatedImage = new CompletableFuture<AnnotatedImage>();
+
+      try {
+        annotatedImage.complete(toAnnotatedImage(imagesAsByteStrings.get(i), responses.get(i)));
+      } catch (IOException | RuntimeException exception) {
+        annotatedImage.completeExceptionally(exception);
+      }
+
+      annotatedImages.add(annotatedImage);
+    }
+
+    return annotatedImages;
+  }
+
+  /**
+   * Sends a single batchAnnotateImages request for labels and landmarks of the images.
+   *
+   * @param imagesAsByteStrings a list of ByteStrings, each of which represents an image.
+   * @return the response for each image, in order.
+   * @throws RuntimeException if the number of responses isn't the number of images.
+   */
+  private List<AnnotateImageResponse> batchAnnotate(List<ByteString> imagesAsByteStrings)
+      throws RuntimeException {
     // add the features we want (labels & landmarks to list)
     List<Feature> features = new ArrayList<Feature>();
 
@@ -69,8 +121,9 @@ public final class VisionImagesManager implements ImagesManager {
     // the requests we'll send to Vision API
     List<AnnotateImageRequest> requests = new ArrayList<AnnotateImageRequest>();
 
-    for (byte[] imageBytes : imagesAsByteArrays) {
-      Image image = Image.newBuilder().setContent(ByteString.copyFrom(imageBytes)).build();
+    for (ByteString imageBytes : imagesAsByteStrings) {
+      // the request holds the image's ByteString itself, so the bytes aren't copied
+      Image image = Image.newBuilder().setContent(imageBytes).build();
       AnnotateImageRequest request =
           AnnotateImageRequest.newBuilder().addAllFeatures(features).setImage(image).build();
       requests.add(request);
@@ -80,27 +133,31 @@ public final class VisionImagesManager implements ImagesManager {
     BatchAnnotateImagesResponse batchResponse = imageAnnotatorClient.batchAnnotateImages(requests);
     List<AnnotateImageResponse> responses = batchResponse.getResponsesList();
 
-    if (!(responses.size() == imagesAsByteArrays.size())) {
+    if (!(responses.size() == imagesAsByteStrings.size())) {
       throw new RuntimeException("The number of responses is not equal to the number of requests.");
     }
 
-    List<AnnotatedImage> annotatedImages = new ArrayList<AnnotatedImage>();
-
-    // add an annotated image to list for every image received as byte array
-    for (int i = 0; i < responses.size(); i++) {
-      AnnotateImageResponse response = responses.get(i);
-
-      if (response.hasError()) {
-        throw new IOException(response.getError().getMessage());
-      }
-
-      // For full list of available annotations, see http://g.co/cloud/vision/docs
-      List<EntityAnnotation> labels = response.getLabelAnnotationsList();
-      List<EntityAnnotation> locations = response.getLandmarkAnnotationsList();
+    return responses;
+  }
 
-      annotatedImages.add(new AnnotatedImage(imagesAsByteArrays.get(i), labels, locations));
+  /**
+   * Packages an image along with its response from Vision.
+   *
+   * @param imageBytes the image.
+   * @param response the response for the image.
+   * @return the annotated image.
+   * @throws IOException if the response is an error.
+   */
+  private static AnnotatedImage toAnnotatedImage(ByteString imageBytes,
+      AnnotateImageResponse response) throws IOException {
+    if (response.hasError()) {
+      throw new IOException(response.getError().getMessage());
     }
 
-    return annotatedImages;
+    // For full list of available annotations, see http://g.co/cloud/vision/docs
+    List<EntityAnnotation> labels = response.getLabelAnnotationsList();
+    List<EntityAnnotation> locations = response.getLandmarkAnnotationsList();
+
+    return new AnnotatedImage(imageBytes, labels, locations);
   }
 }
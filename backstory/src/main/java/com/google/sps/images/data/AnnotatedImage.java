@@ -17,9 +17,10 @@ package com.google.sps.images.data;
 import com.google.cloud.vision.v1.EntityAnnotation;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import java.lang.IllegalArgumentException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -27,7 +28,7 @@ import java.util.List;
  * AnnotatedImage is an immutable type which represents an image annotated with labels and other
  * related analytics.
  *
- * The image is represented as the byte data in the rawImageData byte array, and the annotated
+ * The image is represented as the byte data in the rawImageData ByteString, and the annotated
  * analytics are represented as labelAnnotations, a list of Vision EntityAnnotation objects, which
  * each represent individual labels.
  *
@@ -41,12 +42,13 @@ import java.util.List;
  * non-null.
  *
  * Safety from Representation Exposure:
- * Representation fields are only returned as immutable representations, or (in the case of
- * rawImageData) as a defensive copy.
+ * Representation fields are only returned as immutable representations (rawImageData is an
+ * immutable ByteString, so it's returned without a copy), or as a defensive copy when the image
+ * is asked for as a byte array.
  */
 public final class AnnotatedImage {
   /** the byte representation of the image data */
-  private final byte[] rawImageData;
+  private final ByteString rawImageData;
   /** labels describing the picture */
   private final List<EntityAnnotation> labelAnnotations;
   /** the possible locations for this picture */
@@ -54,7 +56,8 @@ public final class AnnotatedImage {
 
   /**
    * Instantiates the AnnotatedImage object parameterized with a byte array of raw image data and
-   * its labels.
+   * its labels. The byte array is wrapped rather than copied, so it must not be modified
+   * afterwards.
    *
    * @param rawImageData The raw image data for the image being represented in this VisionManager
    *     object. Must be non-empty and non-null.
@@ -63,8 +66,23 @@ public final class AnnotatedImage {
    */
   public AnnotatedImage(byte[] rawImageData, List<EntityAnnotation> labelAnnotations,
       List<EntityAnnotation> landmarkAnnotations) throws IllegalArgumentException {
+    this(rawImageData == null ? null : UnsafeByteOperations.unsafeWrap(rawImageData),
+        labelAnnotations, landmarkAnnotations);
+  }
+
+  /**
+   * Instantiates the AnnotatedImage object parameterized with a ByteString of raw image data and
+   * its labels.
+   *
+   * @param rawImageData The raw image data for the image being represented in this VisionManager
+   *     object. Must be non-empty and non-null.
+   * @param labelAnnotations the preset labels to annotate the image with. Must be non-null.
+   * @param landmarkAnnotations the locations of this photo. Must be non-null.
+   */
+  public AnnotatedImage(ByteString rawImageData, List<EntityAnnotation> labelAnnotations,
+      List<EntityAnnotation> landmarkAnnotations) throws IllegalArgumentException {
     if (rawImageData == null || labelAnnotations == null
-        || landmarkAnnotations == null | rawImageData.length == 0) {
+        || landmarkAnnotations == null || rawImageData.isEmpty()) {
       throw new IllegalArgumentException(
           "Raw image data must be non-null and non-empty, label annotation data must be non-null");
     }
@@ -124,7 +142,16 @@ public final class AnnotatedImage {
    * @return byte representation of image held in this class
    */
   public byte[] getRawImageData() {
-    return Arrays.copyOf(rawImageData, rawImageData.length);
+    return rawImageData.toByteArray();
+  }
+
+  /**
+   * Return the bytes representing the image, without copying them
+   *
+   * @return immutable byte representation of image held in this class
+   */
+  public ByteString getRawImageByteString() {
+    return rawImageData;
   }
 
   /**
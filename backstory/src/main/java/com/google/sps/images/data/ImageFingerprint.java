@@ -0,0 +1,77 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images.data;
+
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Fingerprints images by their content, so the same image uploaded twice (as different blobs)
+ * has the same fingerprint.
+ */
+public final class ImageFingerprint {
+  /** Not instantiable; the fingerprint is computed by the static method. */
+  private ImageFingerprint() {}
+
+  /**
+   * Computes the fingerprint of an image.
+   *
+   * @param imageBytes the raw image data
+   * @return the lowercase hexadecimal SHA-256 digest of the image
+   * @throws IllegalArgumentException if imageBytes is null
+   */
+  public static String of(byte[] imageBytes) throws IllegalArgumentException {
+    if (imageBytes == null) {
+      throw new IllegalArgumentException("Image bytes cannot be null.");
+    }
+
+    try {
+      return BaseEncoding.base16().lowerCase().encode(
+          MessageDigest.getInstance("SHA-256").digest(imageBytes));
+    } catch (NoSuchAlgorithmException exception) {
+      // every Java platform is required to support SHA-256
+      throw new RuntimeException(exception);
+    }
+  }
+
+  /**
+   * Computes the fingerprint of an image, reading its bytes in place.
+   *
+   * @param imageBytes the raw image data
+   * @return the lowercase hexadecimal SHA-256 digest of the image
+   * @throws IllegalArgumentException if imageBytes is null
+   */
+  public static String of(ByteString imageBytes) throws IllegalArgumentException {
+    if (imageBytes == null) {
+      throw new IllegalArgumentException("Image bytes cannot be null.");
+    }
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+      for (ByteBuffer buffer : imageBytes.asReadOnlyByteBufferList()) {
+        digest.update(buffer);
+      }
+
+      return BaseEncoding.base16().lowerCase().encode(digest.digest());
+    } catch (NoSuchAlgorithmException exception) {
+      // every Java platform is required to support SHA-256
+      throw new RuntimeException(exception);
+    }
+  }
+}
@@ -14,6 +14,7 @@
 
 package com.google.sps.servlets;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
@@ -22,23 +23,26 @@ import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.protobuf.ByteString;
 import com.google.sps.APINotAvailableException;
+import com.google.sps.images.BatchingImagesManager;
+import com.google.sps.images.CachingImagesManager;
 import com.google.sps.images.ImagesManager;
-import com.google.sps.images.VisionImagesManager;
 import com.google.sps.images.data.AnnotatedImage;
 import com.google.sps.perspective.PerspectiveStoryAnalysisManager;
-import com.google.sps.perspective.StoryAnalysisManager;
 import com.google.sps.perspective.data.NoAppropriateStoryException;
-import com.google.sps.perspective.data.StoryDecision;
+import com.google.sps.servlets.data.Backstory;
 import com.google.sps.servlets.data.BackstoryDatastoreServiceFactory;
 import com.google.sps.servlets.data.BackstoryUserServiceFactory;
 import com.google.sps.servlets.data.BlobstoreManager;
 import com.google.sps.servlets.data.BlobstoreManagerFactory;
 import com.google.sps.servlets.data.EntityFactory;
+import com.google.sps.servlets.data.ImageDigestIndex;
 import com.google.sps.servlets.data.ImagesManagerFactory;
+import com.google.sps.servlets.data.LatestBackstoryCache;
+import com.google.sps.servlets.data.SpeculativeBackstoryGenerator;
 import com.google.sps.servlets.data.StoryAnalysisManagerFactory;
 import com.google.sps.servlets.data.StoryManagerFactory;
+import com.google.sps.servlets.data.UploadedBlob;
 import com.google.sps.story.PromptManager;
-import com.google.sps.story.StoryManager;
 import com.google.sps.story.StoryManagerImpl;
 import com.google.sps.story.StoryManagerURLProvider;
 import com.google.sps.story.data.StoryEndingTools;
@@ -50,6 +54,19 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -59,8 +76,14 @@ import javax.servlet.http.HttpServletResponse;
  * Backend servlet which manages the analysis of images, creation of stories, filtrations of
  * stories, and uploading the analyzed images along with its story to permanent storage.
  */
-@WebServlet("/analyze-image")
+@WebServlet(urlPatterns = "/analyze-image", asyncSupported = true)
 public class AnalyzeImageServlet extends HttpServlet {
+  /** The most images one upload may contain, so they're annotated in a single Vision batch. */
+  public static final int MAX_UPLOAD_IMAGES = BatchingImagesManager.MAX_BATCH_SIZE;
+  /** The system property which sets how many request threads an upload's pipeline runs on. */
+  public static final String UPLOAD_PARALLELISM_PROPERTY = "backstory.upload.parallelism";
+  /** The default number of request threads an upload's pipeline runs on. */
+  public static final int DEFAULT_UPLOAD_PARALLELISM = 4;
   /** Creates the UserService instance, which includes authentication functionality. */
   private BackstoryUserServiceFactory backstoryUserServiceFactory;
   /**
@@ -85,12 +108,27 @@ public class AnalyzeImageServlet extends HttpServlet {
   private final int STORY_WORD_LENGTH = 200;
   /** Temperature parameter for the story to be generated; indicates the coherence of the story */
   private final double TEMPERATURE = .7;
-  /** Determines the nubmer of times GPT2 will be called to attempt to generate text */
-  private final int MAX_GENERATION_ATTEMPS = 3;
-  /** The delimiter to be placed between words for prompt generation */
-  private final String DELIMITER = " and ";
-  /** Helper class for managing the text generation container URLs */
-  private final StoryManagerURLProvider storyManangerURLProvider;
+  /** The time (in milliseconds) an upload may take, kept under App Engine's request deadline */
+  private static final long ASYNC_TIMEOUT_MILLIS = 55000;
+  /**
+   * Supplies the ThreadFactory of each upload's pipeline on the container's thread. The App
+   * Engine APIs only work on threads created for the current request.
+   */
+  private Supplier<ThreadFactory> threadFactorySupplier =
+      ThreadManager::currentRequestThreadFactory;
+  /** Runs the analysis pipeline of each upload (null for a pool of request threads per upload). */
+  private Executor executor;
+  /** Runs the story candidates of each upload (null for the generator's own executor). */
+  private Executor candidateExecutor;
+  /** Finds prior uploads of the same image, so their annotations can be reused. */
+  private ImageDigestIndex imageDigestIndex;
+  /** Holds each user's latest upload, which is written through once an upload is stored. */
+  private LatestBackstoryCache latestBackstoryCache;
+  /** Whether a repeated upload reuses the prompt of the first upload, skipping to generation. */
+  private boolean reusePrompts = Boolean.getBoolean(ImageDigestIndex.REUSE_PROMPT_PROPERTY);
+  /** The number of request threads an upload's pipeline runs on (and images generated at once). */
+  private int uploadParallelism =
+      Integer.getInteger(UPLOAD_PARALLELISM_PROPERTY, DEFAULT_UPLOAD_PARALLELISM);
 
   /**
    * Constructor which sets the manager factories to return their online implementations
@@ -102,7 +140,6 @@ public class AnalyzeImageServlet extends HttpServlet {
    * @throws APINotAvailableException if an error occurs when connecting to the story analysis API.
    */
   public AnalyzeImageServlet() throws IOException, APINotAvailableException {
-    storyManangerURLProvider = new StoryManagerURLProvider();
     backstoryUserServiceFactory = () -> {
       return UserServiceFactory.getUserService();
     };
@@ -113,11 +150,14 @@ public class AnalyzeImageServlet extends HttpServlet {
       return new BlobstoreManager();
     };
     imagesManagerFactory = () -> {
-      return new VisionImagesManager();
+      // Images which were already annotated aren't sent to the Vision API again.
+      return CachingImagesManager.getSharedInstance();
     };
     storyManagerFactory = (String prompt, int storyLength, double temperature,
-        StoryManagerURLProvider StoryManagerURLProvider) -> {
-      return new StoryManagerImpl(prompt, storyLength, temperature, storyManangerURLProvider);
+        StoryManagerURLProvider storyManagerURLProvider) -> {
+      // Candidates aren't hedged: the generator already races them across containers, and
+      // aborts the losers once one wins.
+      return new StoryManagerImpl(prompt, storyLength, temperature, storyManagerURLProvider);
     };
     storyAnalysisManagerFactory = () -> {
       return new PerspectiveStoryAnalysisManager();
@@ -125,6 +165,8 @@ public class AnalyzeImageServlet extends HttpServlet {
     entityFactory = (String entityName) -> {
       return new Entity(entityName);
     };
+    imageDigestIndex = ImageDigestIndex.getShared();
+    latestBackstoryCache = LatestBackstoryCache.getShared();
   }
 
   /**
@@ -197,19 +239,120 @@ public class AnalyzeImageServlet extends HttpServlet {
     this.entityFactory = entityFactory;
   }
 
+  /**
+   * Sets the Executor the analysis pipeline (generation included) runs on, instead of the pool
+   * of request threads created for each upload (mainly to be used for testing).
+   *
+   * @param executor an Executor to run each upload's analysis, generation, filtration and
+   *     storage on.
+   * @throws IllegalArgumentException if executor is null.
+   */
+  public void setExecutor(Executor executor) throws IllegalArgumentException {
+    if (executor == null) {
+      throw new IllegalArgumentException("Executor cannot be null.");
+    }
+    this.executor = executor;
+  }
+
+  /**
+   * Sets where the ThreadFactory of each upload's pipeline comes from. It's called on the
+   * container's thread, so the default ThreadManager factory creates threads on which the App
+   * Engine APIs can be called.
+   *
+   * @param threadFactorySupplier supplies the ThreadFactory of an upload's pipeline.
+   * @throws IllegalArgumentException if threadFactorySupplier is null.
+   */
+  public void setThreadFactorySupplier(Supplier<ThreadFactory> threadFactorySupplier)
+      throws IllegalArgumentException {
+    if (threadFactorySupplier == null) {
+      throw new IllegalArgumentException("Thread factory supplier cannot be null.");
+    }
+    this.threadFactorySupplier = threadFactorySupplier;
+  }
+
+  /**
+   * Sets the Executor the story candidates of each upload run on.
+   *
+   * @param candidateExecutor an Executor to run each candidate's generation and filtration on,
+   *     or null for the SpeculativeBackstoryGenerator's own executor.
+   */
+  public void setCandidateExecutor(Executor candidateExecutor) {
+    this.candidateExecutor = candidateExecutor;
+  }
+
+  /**
+   * Sets the ImageDigestIndex.
+   *
+   * @param imageDigestIndex the index of prior uploads to reuse annotations from.
+   */
+  public void setImageDigestIndex(ImageDigestIndex imageDigestIndex) {
+    this.imageDigestIndex = imageDigestIndex;
+  }
+
+  /**
+   * Sets the LatestBackstoryCache.
+   *
+   * @param latestBackstoryCache the cache of each user's latest upload.
+   */
+  public void setLatestBackstoryCache(LatestBackstoryCache latestBackstoryCache) {
+    this.latestBackstoryCache = latestBackstoryCache;
+  }
+
+  /**
+   * Sets whether a repeated upload reuses the prompt of the first upload.
+   *
+   * @param reusePrompts true, to skip straight to generation for repeated uploads; false, to
+   *     create a new prompt from the first upload's annotations.
+   */
+  public void setReusePrompts(boolean reusePrompts) {
+    this.reusePrompts = reusePrompts;
+  }
+
+  /**
+   * Sets the number of request threads an upload's pipeline runs on, which is also the number of
+   * its images which have stories generated at once.
+   *
+   * @param uploadParallelism the most request threads one upload runs on.
+   * @throws IllegalArgumentException if uploadParallelism is less than 1.
+   */
+  public void setUploadParallelism(int uploadParallelism) throws IllegalArgumentException {
+    if (uploadParallelism < 1) {
+      throw new IllegalArgumentException("Upload parallelism must be at least 1.");
+    }
+    this.uploadParallelism = uploadParallelism;
+  }
+
   /**
    * {@inheritDoc}
    *
    * Expecting a post request from Blobstore containing the data fields from the image-upload
-   * form. The form in the HTML will connect to the Blobstore URL, which encodes the image and then
-   * redirects the request to this Url. After having gone through Blobstore, the request will
-   * include the image uploaded, available as a blob.
+   * form. The form in the HTML will connect to the Blobstore URL, which encodes the images and
+   * then redirects the request to this Url. After having gone through Blobstore, the request will
+   * include the images uploaded (at most MAX_UPLOAD_IMAGES), available as blobs.
    *
    * If the current user is logged out, they will automatically be logged in before they upload the
-   * image. The image is analyzed with the ImagesAnalysisManager, the result of which is fed into
-   * the PromptManager to create a prompt which is then used to generate the raw Backstory through
-   * the StoryManager. The raw Backstory then is checked by the StoryAnalysisManager for toxicity
-   * and, if it passes, is sent to permanent storage, along with the uploaded image's blob key.
+   * images. An image which was uploaded before (by its SHA-256 digest) reuses the blob and
+   * annotations of its first upload. The other images are analyzed together in one batch with the
+   * ImagesManager, the result of which is fed into the PromptManager to create a prompt for each
+   * image which is then used to generate its raw Backstory through the StoryManager. Several raw
+   * Backstories are generated at once on different containers, and each is checked by the
+   * StoryAnalysisManager for toxicity as soon as it arrives; the first one which passes is the
+   * image's Backstory. The images have their Backstories generated concurrently (at most
+   * uploadParallelism at once), and every Backstory is sent to permanent storage in one batch,
+   * along with its image's blob key. An image without an appropriate Backstory is left out, and
+   * the upload only fails if none of its images has one.
+   *
+   * Only the blob keys are read on the container's thread. The rest of the pipeline runs as
+   * CompletableFuture stages while the request is in async mode, and the request times out
+   * through its AsyncContext. Datastore, Blobstore and Memcache can't be called from other
+   * threads, so the stages run on a pool of request threads created for the upload, and on App
+   * Engine standard those count against the request just as the container's thread does: async
+   * mode doesn't let an instance serve more uploads at once. The pool is kept to at most
+   * uploadParallelism threads however many images were uploaded; every stage (reading,
+   * analysis, generation and storage) shares it. The chunks of every image are fetched on one
+   * more pool of at most BlobstoreManager.FETCH_PARALLELISM request threads, so the upload never
+   * holds more than both bounds together. Both pools are shut down once the upload is responded
+   * to.
    */
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
     // Check to see if the user is currently logged in
@@ -222,93 +365,414 @@ public class AnalyzeImageServlet extends HttpServlet {
     }
 
     // Get user identification to store alongside their backstory and image
-    String userEmail = userService.getCurrentUser().getEmail();
+    final String userEmail = userService.getCurrentUser().getEmail();
 
-    // The blobKeyString of the image will be used to serve the image back to the front-end.
-    BlobstoreManager blobstoreManager = blobstoreManagerFactory.newInstance();
-    final String blobKeyString =
-        blobstoreManager.getUploadedFileBlobKeyString(request, "image-upload");
-    // The raw byte array representing the image will be used for image analytics.
-    final byte[] bytes = blobstoreManager.getBlobBytes(request, "image-upload");
+    // The uploads are resolved once, so reading the images doesn't look them up again.
+    final BlobstoreManager blobstoreManager = blobstoreManagerFactory.newInstance();
+    final List<UploadedBlob> uploadedBlobs =
+        blobstoreManager.getUploadedBlobs(request, "image-upload");
+    // The blobKeyStrings of the images will be used to serve the images back to the front-end.
+    final List<String> blobKeyStrings = new ArrayList<>();
+    for (UploadedBlob uploadedBlob : uploadedBlobs) {
+      blobKeyStrings.add(uploadedBlob.getBlobKeyString());
+    }
 
     // Validate that an image was actually uploaded.
-    if (bytes == null || blobKeyString == null) {
+    if (blobKeyStrings.isEmpty()) {
       // Redirect back to the HTML page.
       response.sendError(400, "Please upload a valid image.");
       return;
     }
 
-    // Generate a list of AnnotatedImages, with each annotatedImage consisting of an image with
-    // labels.
-    ImagesManager imagesManager = imagesManagerFactory.newInstance();
-    List<byte[]> imagesAsByteArrays = new ArrayList<>();
-    imagesAsByteArrays.add(bytes);
-    List<AnnotatedImage> annotatedImages =
-        imagesManager.createAnnotatedImagesFromImagesAsByteArrays(imagesAsByteArrays);
-    // Currently, Backstory only supports single image uploads.
-    // which is why we only get the first annotatedImage element here from annotatedImages.
-    AnnotatedImage annotatedImage = annotatedImages.get(0);
-    List<String> descriptions = annotatedImage.getLabelDescriptions();
-    List<String> locations = annotatedImage.getLandmarkDescriptions();
+    if (blobKeyStrings.size() > MAX_UPLOAD_IMAGES) {
+      for (String blobKeyString : blobKeyStrings) {
+        blobstoreManager.delete(blobKeyString);
+      }
+      response.sendError(400, "Please upload at most " + MAX_UPLOAD_IMAGES + " images at once.");
+      return;
+    }
+
+    // The App Engine APIs only work on request threads, so the upload gets a small pool of its
+    // own, which every stage shares, and one for the chunks of every image it reads.
+    final ThreadFactory threadFactory = executor == null ? threadFactorySupplier.get() : null;
+    final ExecutorService requestExecutor = executor == null
+        ? Executors.newFixedThreadPool(
+            Math.min(uploadParallelism, uploadedBlobs.size()), threadFactory)
+        : null;
+    final ExecutorService fetchExecutor = executor == null
+        ? Executors.newFixedThreadPool(BlobstoreManager.FETCH_PARALLELISM, threadFactory)
+        : null;
+    final Executor pipelineExecutor = requestExecutor == null ? executor : requestExecutor;
+    if (fetchExecutor != null) {
+      blobstoreManager.setFetchExecutor(fetchExecutor);
+    }
+
+    // Release the container's thread while the pipeline waits on the APIs.
+    final AsyncContext asyncContext = request.startAsync(request, response);
+    asyncContext.setTimeout(ASYNC_TIMEOUT_MILLIS);
+    final AtomicBoolean responded = new AtomicBoolean();
+    asyncContext.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException {
+        if (responded.compareAndSet(false, true)) {
+          // The rest of the pipeline is abandoned, as its threads can't outlive the request.
+          if (requestExecutor != null) {
+            requestExecutor.shutdownNow();
+            fetchExecutor.shutdownNow();
+          }
+          response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+              "Sorry! Your backstory took too long to create. Please try again!");
+          asyncContext.complete();
+        }
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) {}
+
+      @Override
+      public void onError(AsyncEvent event) {}
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {}
+    });
+
+    // The images are read from Blobstore as the pool's threads allow.
+    List<CompletableFuture<ByteString>> imageReads = new ArrayList<>();
+    for (UploadedBlob uploadedBlob : uploadedBlobs) {
+      imageReads.add(CompletableFuture.supplyAsync(
+          () -> readImage(blobstoreManager, uploadedBlob), pipelineExecutor));
+    }
+
+    CompletableFuture.allOf(imageReads.toArray(new CompletableFuture<?>[0]))
+        .thenApplyAsync((Void ignored) -> {
+          // The raw bytes representing the images will be used for image analytics.
+          List<ByteString> imagesAsByteStrings = new ArrayList<>();
+          for (CompletableFuture<ByteString> imageRead : imageReads) {
+            imagesAsByteStrings.add(imageRead.join());
+          }
+          return prepareUploads(blobstoreManager, blobKeyStrings, imagesAsByteStrings);
+        }, pipelineExecutor)
+        .thenCompose((List<PreparedUpload> uploads) -> {
+          return generateBackstories(uploads, pipelineExecutor)
+              .thenAccept((String[] backstories) -> {
+                storeBackstories(userEmail, uploads, backstories);
+              });
+        })
+        .whenComplete((Void result, Throwable throwable) -> {
+          respond(response, asyncContext, responded, throwable);
+          if (requestExecutor != null) {
+            requestExecutor.shutdown();
+            fetchExecutor.shutdown();
+          }
+        });
+  }
+
+  /**
+   * Reads an uploaded image from Blobstore.
+   *
+   * @param blobstoreManager the BlobstoreManager the image was uploaded to.
+   * @param uploadedBlob the uploaded image.
+   * @return the bytes of the uploaded image.
+   * @throws CompletionException if the image could not be read.
+   */
+  private static ByteString readImage(BlobstoreManager blobstoreManager,
+      UploadedBlob uploadedBlob) throws CompletionException {
+    try {
+      return blobstoreManager.getBlobByteString(uploadedBlob);
+    } catch (IOException exception) {
+      throw new CompletionException(exception);
+    }
+  }
+
+  /**
+   * Creates the prompts for the images of an upload. An image which was uploaded before reuses
+   * the blob and annotations of its first upload (and its prompt, if prompts are reused), and its
+   * duplicate blob is deleted. The other images are analyzed together in one call to the
+   * ImagesManager and added to the image digest index.
+   *
+   * @param blobstoreManager the BlobstoreManager the images were uploaded to.
+   * @param blobKeyStrings the blob keys of the uploaded images.
+   * @param imagesAsByteStrings the uploaded images, in the same order as their blob keys.
+   * @return the blob key to store each image's Backstory with, along with its prompt (in the
+   *     same order as the images).
+   * @throws CompletionException if the images could not be analyzed.
+   */
+  private List<PreparedUpload> prepareUploads(BlobstoreManager blobstoreManager,
+      List<String> blobKeyStrings, List<ByteString> imagesAsByteStrings)
+      throws CompletionException {
+    PreparedUpload[] uploads = new PreparedUpload[blobKeyStrings.size()];
+    List<Integer> newImageIndices = new ArrayList<>();
+    List<String> newImageDigests = new ArrayList<>();
+    List<ByteString> newImages = new ArrayList<>();
+
+    for (int i = 0; i < uploads.length; i++) {
+      String blobKeyString = blobKeyStrings.get(i);
+      String digest = ImageDigestIndex.digest(imagesAsByteStrings.get(i));
+      ImageDigestIndex.Entry priorUpload = imageDigestIndex.lookup(digest);
+
+      if (priorUpload == null || priorUpload.getBlobKeyString().equals(blobKeyString)) {
+        newImageIndices.add(i);
+        newImageDigests.add(digest);
+        newImages.add(imagesAsByteStrings.get(i));
+        continue;
+      }
 
-    // From the image annotations (the analytics) the prompt can be created.
-    // FUTURE PROMPT CREATION:
-    // PromptManager promptManager = new PromptManager(descriptions, locations);
-    // String prompt = promptManager.generatePrompt();
-    // CURRENT PROMPT CREATION:
-    PromptManager promptManager = new PromptManager(descriptions);
-    String prompt = promptManager.generatePrompt(DELIMITER);
-
-    StoryManager storyManager = storyManagerFactory.newInstance(
-        prompt, STORY_WORD_LENGTH, TEMPERATURE, storyManangerURLProvider);
-    // The loop is necessary because of a memory leak in the GPT2 container which causes generation
-    // to fail.
-    // TODO: Fix the memory leak within the GPT2 container itself.
-    String rawBackstory = "";
-    int textGenerationAttemps = 0;
-    while (textGenerationAttemps < MAX_GENERATION_ATTEMPS) {
       try {
-        storyManangerURLProvider.cycleURL();
-        rawBackstory = storyManager.generateText();
-        break;
+        blobstoreManager.delete(blobKeyString);
       } catch (RuntimeException exception) {
+        // The duplicate blob is only left behind.
         System.err.println(exception);
       }
-      textGenerationAttemps++;
+
+      String prompt = reusePrompts && priorUpload.getPrompt() != null
+          ? priorUpload.getPrompt()
+          : createPrompt(
+              priorUpload.getLabelDescriptions(), priorUpload.getLandmarkDescriptions());
+      uploads[i] = new PreparedUpload(priorUpload.getBlobKeyString(), prompt);
     }
-    if (rawBackstory == "") {
-      response.sendError(
-          400, "Sorry! There was an error in your backstory generation. Please try again!");
-      return;
+
+    if (!newImages.isEmpty()) {
+      // Generate a list of AnnotatedImages, with each annotatedImage consisting of an image with
+      // labels. The images are sent together, so they share one Vision batch.
+      List<AnnotatedImage> annotatedImages;
+      try {
+        ImagesManager imagesManager = imagesManagerFactory.newInstance();
+        // The digests are the images' fingerprints, so the cache doesn't hash them again.
+        annotatedImages =
+            imagesManager.createAnnotatedImagesFromImagesAsByteStrings(newImages, newImageDigests);
+      } catch (IOException exception) {
+        throw new CompletionException(exception);
+      }
+
+      for (int j = 0; j < newImages.size(); j++) {
+        int i = newImageIndices.get(j);
+        String blobKeyString = blobKeyStrings.get(i);
+        AnnotatedImage annotatedImage = annotatedImages.get(j);
+        List<String> descriptions = annotatedImage.getLabelDescriptions();
+        List<String> locations = annotatedImage.getLandmarkDescriptions();
+
+        String prompt = createPrompt(descriptions, locations);
+        imageDigestIndex.record(newImageDigests.get(j),
+            new ImageDigestIndex.Entry(blobKeyString, descriptions, locations, prompt));
+        uploads[i] = new PreparedUpload(blobKeyString, prompt);
+      }
     }
 
-    String backstory = "";
+    return Arrays.asList(uploads);
+  }
+
+  /**
+   * Generates the Backstories of an upload's images concurrently. At most uploadParallelism
+   * images are generated for at once, each on the upload's executor; a worker which finishes an
+   * image moves on to the next one which hasn't been started, so the upload takes about as long
+   * as its slowest image.
+   *
+   * @param uploads the prepared images of the upload.
+   * @param executor the Executor the workers run on.
+   * @return a future which is completed with the Backstory of each image (null for an image
+   *     without one), or with the failure of the first image if none of them has one.
+   */
+  private CompletableFuture<String[]> generateBackstories(
+      List<PreparedUpload> uploads, Executor executor) {
+    String[] backstories = new String[uploads.size()];
+    AtomicInteger nextUpload = new AtomicInteger();
+    AtomicReference<RuntimeException> firstFailure = new AtomicReference<>();
+    AtomicBoolean anyGenerated = new AtomicBoolean();
+
+    Runnable worker = () -> {
+      int i;
+      while ((i = nextUpload.getAndIncrement()) < uploads.size()) {
+        try {
+          backstories[i] = generateBackstory(uploads.get(i).getPrompt());
+          anyGenerated.set(true);
+        } catch (RuntimeException exception) {
+          firstFailure.compareAndSet(null, exception);
+        }
+      }
+    };
+
+    CompletableFuture<?>[] workers =
+        new CompletableFuture<?>[Math.min(uploadParallelism, uploads.size())];
+    for (int w = 0; w < workers.length; w++) {
+      workers[w] = CompletableFuture.runAsync(worker, executor);
+    }
+
+    return CompletableFuture.allOf(workers).thenApply((Void ignored) -> {
+      if (!anyGenerated.get()) {
+        throw firstFailure.get();
+      }
+      return backstories;
+    });
+  }
+
+  /**
+   * Creates a prompt from an image's annotations.
+   *
+   * @param descriptions the label descriptions of the image.
+   * @param locations the landmark descriptions of the image.
+   * @return the prompt for story generation.
+   */
+  private static String createPrompt(List<String> descriptions, List<String> locations) {
+    // From the image annotations (the analytics) the prompt can be created.
+    PromptManager promptManager = new PromptManager(descriptions, locations);
+    return promptManager.generatePrompt();
+  }
+
+  /**
+   * Generates the Backstory from a prompt by racing candidates across the story generation
+   * containers, and adds an ending to the first one which passes the filtration check.
+   *
+   * @param prompt the prompt for story generation.
+   * @return the final Backstory.
+   * @throws BackstoryException if no appropriate Backstory was found or generation failed.
+   */
+  private String generateBackstory(String prompt) throws BackstoryException {
+    // Failed and rejected candidates are replaced on other containers, which also covers the
+    // memory leak in the GPT2 container which causes generation to fail.
+    // TODO: Fix the memory leak within the GPT2 container itself.
+    SpeculativeBackstoryGenerator generator = new SpeculativeBackstoryGenerator(
+        storyManagerFactory, storyAnalysisManagerFactory, candidateExecutor);
+    String backstory;
     try {
-      StoryAnalysisManager storyAnalysisManager = storyAnalysisManagerFactory.newInstance();
-      StoryDecision storyDecision = storyAnalysisManager.generateDecision(rawBackstory);
-      backstory = storyDecision.getStory();
-    } catch (NoAppropriateStoryException | APINotAvailableException exception) {
-      response.sendError(400,
+      backstory = generator.generate(prompt, STORY_WORD_LENGTH, TEMPERATURE);
+    } catch (NoAppropriateStoryException exception) {
+      throw new BackstoryException(
           "Sorry! No appropriate Backstory was found for your image. Please try again with another image.");
+    } catch (RuntimeException exception) {
+      System.err.println(exception);
+      throw new BackstoryException(
+          "Sorry! There was an error in your backstory generation. Please try again!");
     }
 
     // Adds an ending to a story which passes the filtration check.
-    Text finalBackstory = new Text(StoryEndingTools.endStory(backstory));
+    return StoryEndingTools.endStory(backstory);
+  }
 
-    // Get metadata about the backstory
+  /**
+   * Sends the Backstories of an upload to permanent storage in one batch, each along with its
+   * image's blob key. Every image of the upload is stored with the same timestamp, which is how
+   * GetBackstoryServlet finds them all.
+   *
+   * @param userEmail the email of the user who uploaded the images.
+   * @param uploads the prepared images of the upload.
+   * @param backstories the final Backstory of each image (null for an image without one).
+   */
+  private void storeBackstories(String userEmail, List<PreparedUpload> uploads,
+      String[] backstories) {
+    // Get metadata about the backstories
     final long timestamp = System.currentTimeMillis();
 
     // Add the input to datastore
-    Entity analyzedImageEntity = entityFactory.newInstance("analyzed-image");
-    analyzedImageEntity.setProperty("userEmail", userEmail);
-    analyzedImageEntity.setProperty("blobKeyString", blobKeyString);
-    analyzedImageEntity.setProperty("backstory", finalBackstory);
-    analyzedImageEntity.setProperty("timestamp", timestamp);
+    List<Entity> analyzedImageEntities = new ArrayList<>();
+    List<Backstory> storedBackstories = new ArrayList<>();
+    for (int i = 0; i < backstories.length; i++) {
+      if (backstories[i] == null) {
+        continue;
+      }
+
+      Entity analyzedImageEntity = entityFactory.newInstance("analyzed-image");
+      analyzedImageEntity.setProperty("userEmail", userEmail);
+      analyzedImageEntity.setProperty("blobKeyString", uploads.get(i).getBlobKeyString());
+      analyzedImageEntity.setProperty("backstory", new Text(backstories[i]));
+      analyzedImageEntity.setProperty("timestamp", timestamp);
+      analyzedImageEntities.add(analyzedImageEntity);
+      storedBackstories.add(
+          new Backstory(backstories[i], uploads.get(i).getBlobKeyString(), timestamp));
+    }
 
     DatastoreService datastoreService = backstoryDatastoreServiceFactory.newInstance();
-    datastoreService.put(analyzedImageEntity);
+    datastoreService.put(analyzedImageEntities);
+    // The page loads this upload next, so it's cached rather than queried for.
+    latestBackstoryCache.put(userEmail, timestamp, storedBackstories);
+  }
+
+  /**
+   * Finishes an async request once the pipeline is done, unless it has already timed out.
+   *
+   * @param response the response to the upload.
+   * @param asyncContext the request's AsyncContext.
+   * @param responded whether the request has been responded to.
+   * @param throwable the pipeline's failure, or null if the Backstory was stored.
+   */
+  private static void respond(HttpServletResponse response, AsyncContext asyncContext,
+      AtomicBoolean responded, Throwable throwable) {
+    if (!responded.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      if (throwable == null) {
+        // Redirect back to the HTML page.
+        response.sendRedirect("/index.html");
+        return;
+      }
 
-    // Redirect back to the HTML page.
-    response.sendRedirect("/index.html");
+      Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+          ? throwable.getCause()
+          : throwable;
+      if (cause instanceof BackstoryException) {
+        response.sendError(400, cause.getMessage());
+      } else {
+        System.err.println(cause);
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Server Error");
+      }
+    } catch (IOException exception) {
+      System.err.println(exception);
+    } finally {
+      asyncContext.complete();
+    }
+  }
+
+  /**
+   * The blob key a Backstory is stored with, along with the prompt it's generated from.
+   */
+  private static final class PreparedUpload {
+    /** The blob key of the image, which is a prior upload's if the image was uploaded before. */
+    private final String blobKeyString;
+    /** The prompt for story generation. */
+    private final String prompt;
+
+    /**
+     * Constructs a prepared upload.
+     *
+     * @param blobKeyString the blob key of the image.
+     * @param prompt the prompt for story generation.
+     */
+    PreparedUpload(String blobKeyString, String prompt) {
+      this.blobKeyString = blobKeyString;
+      this.prompt = prompt;
+    }
+
+    /**
+     * Returns the blob key of the image.
+     *
+     * @return the blob key in String form.
+     */
+    String getBlobKeyString() {
+      return blobKeyString;
+    }
+
+    /**
+     * Returns the prompt for story generation.
+     *
+     * @return the prompt.
+     */
+    String getPrompt() {
+      return prompt;
+    }
+  }
+
+  /**
+   * A failure of the pipeline whose message is shown to the user.
+   */
+  private static final class BackstoryException extends RuntimeException {
+    /**
+     * Constructs the exception with the message to show the user.
+     *
+     * @param message the message to show the user.
+     */
+    BackstoryException(String message) {
+      super(message);
+    }
   }
 }
@@ -0,0 +1,79 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.sps.story.data.CachingDatamuseRequestClient;
+import com.google.sps.story.data.LanguageServiceClientHolder;
+import com.google.sps.story.data.StoryTemplateStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Sets up and releases the long-lived objects shared by all requests:
+ * loads the story templates and warms the related word cache from its snapshot
+ * (if one is configured) on startup,
+ * and on shutdown writes the snapshot back and closes the clients' channels once
+ * in-flight calls have finished.
+ */
+@WebListener
+public class BackstoryContextListener implements ServletContextListener {
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    StoryTemplateStore.getDefault();
+
+    Path snapshotPath = getDatamuseSnapshotPath();
+
+    if (snapshotPath == null || !Files.exists(snapshotPath)) {
+      return;
+    }
+
+    try {
+      CachingDatamuseRequestClient.getSharedInstance().readSnapshot(snapshotPath);
+    } catch (IOException exception) {
+      // the cache only starts cold
+      System.err.println("Could not read the related word cache snapshot: " + exception);
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    Path snapshotPath = getDatamuseSnapshotPath();
+
+    if (snapshotPath != null) {
+      try {
+        CachingDatamuseRequestClient.getSharedInstance().writeSnapshot(snapshotPath);
+      } catch (IOException exception) {
+        System.err.println("Could not write the related word cache snapshot: " + exception);
+      }
+    }
+
+    LanguageServiceClientHolder.getInstance().shutdown();
+  }
+
+  /**
+   * Returns the path of the related word cache snapshot.
+   *
+   * @return the configured snapshot path, or null if snapshots are disabled
+   */
+  private Path getDatamuseSnapshotPath() {
+    String snapshotPath = System.getProperty(CachingDatamuseRequestClient.SNAPSHOT_PATH_PROPERTY);
+    return snapshotPath == null ? null : Paths.get(snapshotPath);
+  }
+}
@@ -30,6 +30,9 @@ import javax.servlet.http.HttpServletResponse;
  * parameter url ("/analyze-image" in this case). To see the intermediate blobstore URL, try:
  * System.out.println(uploadUrl)
  *
+ * With the parameter target=stream, the upload is forwarded to "/stream-backstory" instead, which
+ * sends the backstory to the browser as events once it has passed the story analysis.
+ *
  * From the response sent, to access the explicit blob keys of the encoded file, from the blob
  * object in the request, try: Map<String, List<BlobKey>> blobs =
  * blobstoreService.getUploads(request); List<BlobKey> blobKeys = blobs.get(formInputElementName);
@@ -42,7 +45,10 @@ public class BlobstoreUploadUrlServlet extends HttpServlet {
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
     BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-    String uploadUrl = blobstoreService.createUploadUrl("/analyze-image");
+    // Uploads go to the streaming backend when the page asks for it.
+    String uploadPath =
+        "stream".equals(request.getParameter("target")) ? "/stream-backstory" : "/analyze-image";
+    String uploadUrl = blobstoreService.createUploadUrl(uploadPath);
 
     response.setContentType("text/html");
     response.getWriter().println(uploadUrl);
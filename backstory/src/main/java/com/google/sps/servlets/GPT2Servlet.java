@@ -17,6 +17,7 @@ package com.google.sps.servlets;
 import au.com.origma.perspectiveapi.v1alpha1.PerspectiveAPI;
 import com.google.gson.Gson;
 import com.google.sps.story.*;
+import com.google.sps.story.data.StoryHedgingPolicy;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -36,10 +37,6 @@ import org.json.JSONObject;
 public final class GPT2Servlet extends HttpServlet {
   public static final int DEFAULT_MAX_STORY_LENGTH = 200;
   public static final Double DEFAULT_TEMPERATURE = 0.7;
-  private static StoryManagerURLProvider URLProvider;
-
-  // Maintain synchronized calls.
-  private static final Object URLProviderLock = new Object();
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -69,20 +66,13 @@ public final class GPT2Servlet extends HttpServlet {
     String generatedText;
 
     try {
-      StoryManager storyManager;
-      synchronized (URLProviderLock) {
-        if (URLProvider == null) {
-          URLProvider = new StoryManagerURLProvider();
-        }
-
-        storyManager =
-            new StoryManagerImpl(text, DEFAULT_MAX_STORY_LENGTH, DEFAULT_TEMPERATURE, URLProvider);
-      }
+      // The provider picks a container from the shared endpoint pool.
+      StoryManagerURLProvider URLProvider = new StoryManagerURLProvider();
+      StoryManagerImpl storyManager =
+          new StoryManagerImpl(text, DEFAULT_MAX_STORY_LENGTH, DEFAULT_TEMPERATURE, URLProvider);
+      storyManager.setHedgingPolicy(StoryHedgingPolicy.getShared());
 
       generatedText = storyManager.generateText();
-      synchronized (URLProviderLock) {
-        URLProvider.cycleURL();
-      }
     } catch (Exception exception) {
       System.out.println(exception);
       // Displays if internal server error.
@@ -21,24 +21,28 @@ import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
-import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
-import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.sps.servlets.data.Backstory;
 import com.google.sps.servlets.data.BackstoryDatastoreServiceFactory;
 import com.google.sps.servlets.data.BackstoryUserServiceFactory;
 import com.google.sps.servlets.data.BlobstoreManager;
 import com.google.sps.servlets.data.BlobstoreManagerFactory;
+import com.google.sps.servlets.data.LatestBackstoryCache;
+import com.google.sps.servlets.data.LatestBackstoryStore;
 import com.google.sps.servlets.data.QueryFactory;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.NullPointerException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
 import javax.servlet.annotation.WebServlet;
@@ -51,9 +55,24 @@ import javax.servlet.http.HttpServletResponse;
  * the front-end by accessing the blob key from permanent storage, and then
  * using blobstore's serve functionality. Blobstore's serve functionality only
  * supports one image per request.
+ *
+ * An image requested by its blob key (see getImageUrl) never changes, so it is sent with a strong
+ * ETag and may be cached for good; a request which already has it is answered with 304 before
+ * Datastore or Blobstore are touched. Without a blob key, the user's latest image is served and
+ * must be revalidated, as the latest image changes with each upload. That form is kept for
+ * compatibility, as GET /latest-backstory returns the stable URL of each latest image.
  */
 @WebServlet("/analyzed-images")
 public class GetAnalyzedImagesServlet extends HttpServlet {
+  /** The path of this servlet. */
+  public static final String PATH = "/analyzed-images";
+  /** The request parameter which holds the blob key of the image to serve. */
+  public static final String BLOB_KEY_PARAMETER = "blobKey";
+  /** The Cache-Control of an image served by its blob key (kept private to its user). */
+  public static final String IMMUTABLE_CACHE_CONTROL = "private, max-age=31536000, immutable";
+  /** The Cache-Control of the latest image, which may change with the next upload. */
+  public static final String REVALIDATE_CACHE_CONTROL = "private, no-cache";
+
   /** Creates the UserService instance, which includes authentication functionality. */
   private BackstoryUserServiceFactory backstoryUserServiceFactory;
   /** Creates the DatastoreService instance, which includes permanent storage functionality. */
@@ -68,6 +87,8 @@ public class GetAnalyzedImagesServlet extends HttpServlet {
    * upload functionality.
    */
   private BlobstoreManagerFactory blobstoreManagerFactory;
+  /** Holds each user's latest upload, so serving an image doesn't query Datastore. */
+  private LatestBackstoryCache latestBackstoryCache;
 
   /**
    * Initializes the servlet with online versions of the userService and datastoreService factories.
@@ -85,6 +106,16 @@ public class GetAnalyzedImagesServlet extends HttpServlet {
     blobstoreManagerFactory = () -> {
       return new BlobstoreManager();
     };
+    latestBackstoryCache = LatestBackstoryCache.getShared();
+  }
+
+  /**
+   * Sets the LatestBackstoryCache.
+   *
+   * @param latestBackstoryCache the cache of each user's latest upload.
+   */
+  public void setLatestBackstoryCache(LatestBackstoryCache latestBackstoryCache) {
+    this.latestBackstoryCache = latestBackstoryCache;
   }
 
   /**
@@ -129,6 +160,56 @@ public class GetAnalyzedImagesServlet extends HttpServlet {
     this.queryFactory = queryFactory;
   }
 
+  /**
+   * Returns the stable URL of an analyzed image, which can be cached for good.
+   *
+   * @param blobKeyString the blob key of the image, in String form.
+   * @return the URL which serves the image.
+   */
+  public static String getImageUrl(String blobKeyString) {
+    try {
+      return PATH + "?" + BLOB_KEY_PARAMETER + "=" + URLEncoder.encode(blobKeyString, "UTF-8");
+    } catch (UnsupportedEncodingException exception) {
+      // UTF-8 is always supported.
+      throw new IllegalStateException(exception);
+    }
+  }
+
+  /**
+   * Returns the strong ETag of an image. A BLOB never changes once uploaded, so its key
+   * identifies its contents.
+   *
+   * @param blobKeyString the blob key of the image, in String form.
+   * @return the quoted ETag of the image.
+   */
+  static String getETag(String blobKeyString) {
+    return "\"" + blobKeyString + "\"";
+  }
+
+  /**
+   * Checks whether an If-None-Match header matches an ETag.
+   *
+   * @param ifNoneMatch the value of the If-None-Match header (can be null).
+   * @param eTag the quoted ETag of the image.
+   * @return true, if the client already has the image; false, otherwise.
+   */
+  static boolean matchesETag(String ifNoneMatch, String eTag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      // If-None-Match uses the weak comparison, so a weak validator still matches.
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(eTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
     UserService userService = backstoryUserServiceFactory.newInstance();
@@ -142,25 +223,23 @@ public class GetAnalyzedImagesServlet extends HttpServlet {
     // Get user identification
     String userEmail = userService.getCurrentUser().getEmail();
 
-    BlobstoreManager blobstoreManager = blobstoreManagerFactory.newInstance();
-
-    // Query to find all analyzed image entities. We will filter to only return the current
-    // user's backstories.
-    Filter userBackstoriesFilter =
-        new FilterPredicate("userEmail", FilterOperator.EQUAL, userEmail);
-    Query query = queryFactory.newInstance("analyzed-image")
-                      .setFilter(userBackstoriesFilter)
-                      .addSort("timestamp", SortDirection.DESCENDING);
-    // Will limit the Query (which is sorted from newest to oldest) to only return the first
-    // result, Thus displaying the most recent story uploaded.
-    int backstoryFetchLimit = 1;
+    String requestedBlobKeyString = request.getParameter(BLOB_KEY_PARAMETER);
+    if (requestedBlobKeyString != null) {
+      serveImmutableImage(request, response, userEmail, requestedBlobKeyString);
+      return;
+    }
 
-    DatastoreService datastoreService = backstoryDatastoreServiceFactory.newInstance();
-    PreparedQuery results = datastoreService.prepare(query);
+    BlobstoreManager blobstoreManager = blobstoreManagerFactory.newInstance();
 
+    // The latest upload is read the same way as GET /latest-backstory, from the cache if it's
+    // there. The first image of the upload is served.
+    LatestBackstoryStore latestBackstoryStore =
+        new LatestBackstoryStore(backstoryDatastoreServiceFactory.newInstance(), queryFactory,
+            latestBackstoryCache, AnalyzeImageServlet.MAX_UPLOAD_IMAGES);
+    List<Backstory> latestBackstories = latestBackstoryStore.getLatestBackstories(userEmail);
     BlobKey blobKey = null;
-    for (Entity entity : results.asIterable(FetchOptions.Builder.withLimit(backstoryFetchLimit))) {
-      blobKey = new BlobKey((String) entity.getProperty("blobKeyString"));
+    if (!latestBackstories.isEmpty() && latestBackstories.get(0).getBlobKeyString() != null) {
+      blobKey = new BlobKey(latestBackstories.get(0).getBlobKeyString());
     }
 
     // Validation to make sure that empty images are not getting uploaded to permanent storage.
@@ -169,6 +248,79 @@ public class GetAnalyzedImagesServlet extends HttpServlet {
           "No image(s) were uploaded, this servlet should not have been called.");
     }
 
+    // The latest image can change, so the client revalidates it each time. If it's unchanged,
+    // the image itself isn't sent again.
+    String eTag = getETag(blobKey.getKeyString());
+    response.setHeader("ETag", eTag);
+    response.setHeader("Cache-Control", REVALIDATE_CACHE_CONTROL);
+    if (matchesETag(request.getHeader("If-None-Match"), eTag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
     blobstoreManager.serve(blobKey, response);
   }
+
+  /**
+   * Serves an image by its blob key. As the image behind a blob key never changes, a client which
+   * already has it is answered with 304 straight away; otherwise, the image is served once it has
+   * been checked to belong to the user.
+   *
+   * @param request the HTTP request for the image.
+   * @param response the HTTP response to serve the image to.
+   * @param userEmail the email of the logged in user.
+   * @param blobKeyString the blob key of the requested image, in String form.
+   */
+  private void serveImmutableImage(HttpServletRequest request, HttpServletResponse response,
+      String userEmail, String blobKeyString) throws IOException {
+    String eTag = getETag(blobKeyString);
+    response.setHeader("ETag", eTag);
+    response.setHeader("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+    if (matchesETag(request.getHeader("If-None-Match"), eTag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    // Only serve images which were uploaded by the current user. Images of their latest upload
+    // are known to be theirs without a query.
+    if (isInLatestUpload(userEmail, blobKeyString)) {
+      blobstoreManagerFactory.newInstance().serve(new BlobKey(blobKeyString), response);
+      return;
+    }
+
+    Filter userImageFilter = CompositeFilterOperator.and(
+        new FilterPredicate("userEmail", FilterOperator.EQUAL, userEmail),
+        new FilterPredicate("blobKeyString", FilterOperator.EQUAL, blobKeyString));
+    Query query = queryFactory.newInstance("analyzed-image").setFilter(userImageFilter);
+    DatastoreService datastoreService = backstoryDatastoreServiceFactory.newInstance();
+    List<Entity> results =
+        datastoreService.prepare(query).asList(FetchOptions.Builder.withLimit(1));
+    if (results.isEmpty()) {
+      response.setHeader("Cache-Control", REVALIDATE_CACHE_CONTROL);
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "There is no such image.");
+      return;
+    }
+
+    blobstoreManagerFactory.newInstance().serve(new BlobKey(blobKeyString), response);
+  }
+
+  /**
+   * Checks whether an image belongs to the user's latest upload, as far as the cache knows.
+   *
+   * @param userEmail the email of the user.
+   * @param blobKeyString the blob key of the image, in String form.
+   * @return true, if the cached latest upload has the image; false, otherwise.
+   */
+  private boolean isInLatestUpload(String userEmail, String blobKeyString) {
+    List<Backstory> latestBackstories = latestBackstoryCache.get(userEmail);
+    if (latestBackstories == null) {
+      return false;
+    }
+    for (Backstory backstory : latestBackstories) {
+      if (blobKeyString.equals(backstory.getBlobKeyString())) {
+        return true;
+      }
+    }
+    return false;
+  }
 }
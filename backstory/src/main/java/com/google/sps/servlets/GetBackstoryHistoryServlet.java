@@ -0,0 +1,272 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.Gson;
+import com.google.sps.servlets.data.BackstoryDatastoreServiceFactory;
+import com.google.sps.servlets.data.BackstoryHistoryPage;
+import com.google.sps.servlets.data.BackstorySummary;
+import com.google.sps.servlets.data.BackstoryUserServiceFactory;
+import com.google.sps.servlets.data.QueryFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet which gets the user's backstory history, one page at a time from newest to oldest.
+ * Pages are read with a projection query on timestamp and blobKeyString, so the backstory text
+ * is never loaded for the list, and the next page starts from the cursor of the last one. The
+ * text of the backstories the front-end shows is then fetched by id, in one batch get.
+ */
+@WebServlet("/backstory-history")
+public class GetBackstoryHistoryServlet extends HttpServlet {
+  /** The request parameter which holds the cursor of the page to get. */
+  public static final String CURSOR_PARAMETER = "cursor";
+  /** The request parameter which holds the number of backstories to get. */
+  public static final String LIMIT_PARAMETER = "limit";
+  /** The request parameter which holds the comma separated ids of the backstory texts to get. */
+  public static final String IDS_PARAMETER = "ids";
+  /** The number of backstories in a page, unless the request asks for another number. */
+  public static final int DEFAULT_PAGE_SIZE = 10;
+  /** The most backstories (or backstory texts) a request can get. */
+  public static final int MAX_PAGE_SIZE = 50;
+
+  /** Creates the UserService instance, which includes authentication functionality. */
+  private BackstoryUserServiceFactory backstoryUserServiceFactory;
+  /** Creates the DatastoreService instance, which includes permanent storage functionality. */
+  private BackstoryDatastoreServiceFactory backstoryDatastoreServiceFactory;
+  /**
+   * Creates the Query instance, which performs a network call to datastore to return all
+   * entities of a given type/name.
+   */
+  private QueryFactory queryFactory;
+
+  /**
+   * Initializes the servlet with online versions of the userService and datastoreService factories.
+   */
+  public GetBackstoryHistoryServlet() {
+    backstoryUserServiceFactory = () -> {
+      return UserServiceFactory.getUserService();
+    };
+    backstoryDatastoreServiceFactory = () -> {
+      return DatastoreServiceFactory.getDatastoreService();
+    };
+    queryFactory = (String queryName) -> {
+      return new Query(queryName);
+    };
+  }
+
+  /**
+   * Sets the BackstoryUserServiceFactory.
+   *
+   * @param backstoryUserServiceFactory a BackstoryUserServiceFactory object set to return a new
+   *     UserService.
+   */
+  public void setBackstoryUserServiceFactory(
+      BackstoryUserServiceFactory backstoryUserServiceFactory) {
+    this.backstoryUserServiceFactory = backstoryUserServiceFactory;
+  }
+
+  /**
+   * Sets the BackstoryDatastoreServiceFactory.
+   *
+   * @param backstoryDatastoreServiceFactory a BackstoryDatastoreServiceFactory object set to return
+   *     a new DatastoreService.
+   */
+  public void setBackstoryDatastoreServiceFactory(
+      BackstoryDatastoreServiceFactory backstoryDatastoreServiceFactory) {
+    this.backstoryDatastoreServiceFactory = backstoryDatastoreServiceFactory;
+  }
+
+  /**
+   * Sets the QueryFactory.
+   *
+   * @param queryFactory a QueryFactory object set to return a new Query.
+   */
+  public void setQueryFactory(QueryFactory queryFactory) {
+    this.queryFactory = queryFactory;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Writes a page of the user's history as JSON, or the texts of the requested backstories
+   * (as a JSON object keyed by id) if ids are given.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = backstoryUserServiceFactory.newInstance();
+    if (!userService.isUserLoggedIn()) {
+      String urlToRedirectToAfterUserLogsIn = "/backstory-history";
+      String loginUrl = userService.createLoginURL(urlToRedirectToAfterUserLogsIn);
+      response.sendRedirect(loginUrl);
+      return;
+    }
+
+    // Get user identification
+    String userEmail = userService.getCurrentUser().getEmail();
+
+    Object result;
+    try {
+      String ids = request.getParameter(IDS_PARAMETER);
+      result = ids == null
+          ? getHistoryPage(userEmail, request.getParameter(CURSOR_PARAMETER),
+              request.getParameter(LIMIT_PARAMETER))
+          : getBackstoryTexts(userEmail, ids);
+    } catch (IllegalArgumentException exception) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, exception.getMessage());
+      return;
+    }
+
+    response.setContentType("application/json;");
+    Gson gson = new Gson();
+    response.getWriter().println(gson.toJson(result));
+  }
+
+  /**
+   * Gets a page of the user's history with a projection query, so the backstory text of the
+   * entities is never read.
+   *
+   * @param userEmail the email of the user.
+   * @param cursorString the web-safe cursor of the page (null for the first page).
+   * @param limitString the number of backstories to get (null for the default page size).
+   * @return the page of the user's history.
+   * @throws IllegalArgumentException if the cursor or limit is invalid.
+   */
+  private BackstoryHistoryPage getHistoryPage(String userEmail, String cursorString,
+      String limitString) throws IllegalArgumentException {
+    int limit = limitString == null ? DEFAULT_PAGE_SIZE : parseLimit(limitString);
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit);
+    if (cursorString != null) {
+      // Throws IllegalArgumentException for cursors which weren't issued by this servlet.
+      fetchOptions.startCursor(Cursor.fromWebSafeString(cursorString));
+    }
+
+    Filter userBackstoriesFilter =
+        new FilterPredicate("userEmail", FilterOperator.EQUAL, userEmail);
+    Query query = queryFactory.newInstance("analyzed-image")
+                      .setFilter(userBackstoriesFilter)
+                      .addSort("timestamp", SortDirection.DESCENDING)
+                      .addProjection(new PropertyProjection("timestamp", Long.class))
+                      .addProjection(new PropertyProjection("blobKeyString", String.class));
+
+    DatastoreService datastoreService = backstoryDatastoreServiceFactory.newInstance();
+    QueryResultList<Entity> results =
+        datastoreService.prepare(query).asQueryResultList(fetchOptions);
+    List<BackstorySummary> backstories = new ArrayList<>();
+    for (Entity entity : results) {
+      String blobKeyString = (String) entity.getProperty("blobKeyString");
+      backstories.add(new BackstorySummary(entity.getKey().getId(),
+          (Long) entity.getProperty("timestamp"), blobKeyString,
+          GetAnalyzedImagesServlet.getImageUrl(blobKeyString)));
+    }
+
+    // A short page is the last one, so there's no need for another request.
+    Cursor nextCursor = results.size() < limit ? null : results.getCursor();
+    return new BackstoryHistoryPage(
+        backstories, nextCursor == null ? null : nextCursor.toWebSafeString());
+  }
+
+  /**
+   * Gets the texts of the user's backstories with the given ids, in one batch get. Backstories of
+   * other users (or which don't exist) are left out.
+   *
+   * @param userEmail the email of the user.
+   * @param idsString the comma separated ids of the backstories.
+   * @return the text of each of the user's backstories, keyed by id (in request order).
+   * @throws IllegalArgumentException if an id isn't a number or there are too many ids.
+   */
+  private Map<Long, String> getBackstoryTexts(String userEmail, String idsString)
+      throws IllegalArgumentException {
+    List<Long> ids = new ArrayList<>();
+    List<Key> keys = new ArrayList<>();
+    for (String id : idsString.split(",")) {
+      if (id.trim().isEmpty()) {
+        continue;
+      }
+      long parsedId;
+      try {
+        parsedId = Long.parseLong(id.trim());
+      } catch (NumberFormatException exception) {
+        throw new IllegalArgumentException("Invalid backstory id: " + id);
+      }
+      ids.add(parsedId);
+      keys.add(KeyFactory.createKey("analyzed-image", parsedId));
+    }
+
+    if (keys.size() > MAX_PAGE_SIZE) {
+      throw new IllegalArgumentException(
+          "Please ask for at most " + MAX_PAGE_SIZE + " backstories at once.");
+    }
+
+    DatastoreService datastoreService = backstoryDatastoreServiceFactory.newInstance();
+    Map<Key, Entity> entities = datastoreService.get(keys);
+    Map<Long, String> backstoryTexts = new LinkedHashMap<>();
+    for (int i = 0; i < keys.size(); i++) {
+      Entity entity = entities.get(keys.get(i));
+      // Only the user's own backstories are returned.
+      if (entity == null || !userEmail.equals(entity.getProperty("userEmail"))) {
+        continue;
+      }
+      backstoryTexts.put(ids.get(i), ((Text) entity.getProperty("backstory")).getValue());
+    }
+    return backstoryTexts;
+  }
+
+  /**
+   * Parses the number of backstories a request asks for.
+   *
+   * @param limitString the requested number of backstories.
+   * @return the number of backstories to get.
+   * @throws IllegalArgumentException if the limit isn't a number between 1 and MAX_PAGE_SIZE.
+   */
+  private static int parseLimit(String limitString) throws IllegalArgumentException {
+    int limit;
+    try {
+      limit = Integer.parseInt(limitString);
+    } catch (NumberFormatException exception) {
+      throw new IllegalArgumentException("Invalid limit: " + limitString);
+    }
+
+    if (limit < 1 || limit > MAX_PAGE_SIZE) {
+      throw new IllegalArgumentException(
+          "The limit must be between 1 and " + MAX_PAGE_SIZE + ".");
+    }
+    return limit;
+  }
+}
@@ -14,29 +14,20 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.FetchOptions;
-import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.Filter;
-import com.google.appengine.api.datastore.Query.FilterOperator;
-import com.google.appengine.api.datastore.Query.FilterPredicate;
-import com.google.appengine.api.datastore.Query.SortDirection;
-import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.sps.servlets.data.Backstory;
 import com.google.sps.servlets.data.BackstoryDatastoreServiceFactory;
 import com.google.sps.servlets.data.BackstoryUserServiceFactory;
+import com.google.sps.servlets.data.LatestBackstoryCache;
+import com.google.sps.servlets.data.LatestBackstoryStore;
 import com.google.sps.servlets.data.QueryFactory;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.ArrayList;
 import java.util.List;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -44,9 +35,12 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Servlet which gets the Backstory resource. Currently, only the most recently uploaded Backstory
- * will be gathered from permanent storage then sent back to the front-end by writing it to the
- * response.
+ * Servlet which gets the Backstory resource. The Backstories of the most recent upload (one for
+ * each of its images) will be gathered from the latest backstory cache (or permanent storage, if
+ * they aren't cached) then sent back to the front-end by writing them to the response.
+ *
+ * Kept for compatibility: GET /latest-backstory returns the same Backstories along with their
+ * image URLs, so the page doesn't need a second request.
  */
 @WebServlet("/backstory")
 public class GetBackstoryServlet extends HttpServlet {
@@ -59,6 +53,8 @@ public class GetBackstoryServlet extends HttpServlet {
    * entities of a given type/name.
    */
   private QueryFactory queryFactory;
+  /** Holds each user's latest upload, so loading the page doesn't query Datastore. */
+  private LatestBackstoryCache latestBackstoryCache;
 
   /**
    * Initializes the servlet with online versions of the userService and datastoreService factories.
@@ -73,6 +69,16 @@ public class GetBackstoryServlet extends HttpServlet {
     queryFactory = (String queryName) -> {
       return new Query(queryName);
     };
+    latestBackstoryCache = LatestBackstoryCache.getShared();
+  }
+
+  /**
+   * Sets the LatestBackstoryCache.
+   *
+   * @param latestBackstoryCache the cache of each user's latest upload.
+   */
+  public void setLatestBackstoryCache(LatestBackstoryCache latestBackstoryCache) {
+    this.latestBackstoryCache = latestBackstoryCache;
   }
 
   /**
@@ -120,26 +126,10 @@ public class GetBackstoryServlet extends HttpServlet {
     // Get user identification
     String userEmail = userService.getCurrentUser().getEmail();
 
-    // Query to find all analyzed image entities. We will filter to only return the current
-    // user's backstories.
-    // TODO: figure out what to do in the case that user emails are recycled.
-    Filter userBackstoriesFilter =
-        new FilterPredicate("userEmail", FilterOperator.EQUAL, userEmail);
-    Query query = queryFactory.newInstance("analyzed-image")
-                      .setFilter(userBackstoriesFilter)
-                      .addSort("timestamp", SortDirection.DESCENDING);
-    // Will limit the Query (which is sorted from newest to oldest) to only return the first
-    // result, Thus displaying the most recent story uploaded.
-    int backstoryFetchLimit = 1;
-
-    DatastoreService datastoreService = backstoryDatastoreServiceFactory.newInstance();
-    PreparedQuery results = datastoreService.prepare(query);
-    List<Backstory> backstories = new ArrayList<>();
-    for (Entity entity : results.asIterable(FetchOptions.Builder.withLimit(backstoryFetchLimit))) {
-      Backstory backstory =
-          new Backstory((String) ((Text) entity.getProperty("backstory")).getValue());
-      backstories.add(backstory);
-    }
+    LatestBackstoryStore latestBackstoryStore =
+        new LatestBackstoryStore(backstoryDatastoreServiceFactory.newInstance(), queryFactory,
+            latestBackstoryCache, AnalyzeImageServlet.MAX_UPLOAD_IMAGES);
+    List<Backstory> backstories = latestBackstoryStore.getLatestBackstories(userEmail);
 
     response.setContentType("application/json;");
     Gson gson = new Gson();
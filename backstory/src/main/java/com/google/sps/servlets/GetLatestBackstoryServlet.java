@@ -0,0 +1,141 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.Gson;
+import com.google.sps.servlets.data.Backstory;
+import com.google.sps.servlets.data.BackstoryDatastoreServiceFactory;
+import com.google.sps.servlets.data.BackstoryUserServiceFactory;
+import com.google.sps.servlets.data.LatestBackstory;
+import com.google.sps.servlets.data.LatestBackstoryCache;
+import com.google.sps.servlets.data.LatestBackstoryStore;
+import com.google.sps.servlets.data.QueryFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet which gets everything the page shows of the most recent upload in one request: the
+ * Backstory of each of its images, along with the image's stable (cacheable) URL and the time it
+ * was stored. They are read from the latest backstory cache, or with a single query if they
+ * aren't cached.
+ */
+@WebServlet("/latest-backstory")
+public class GetLatestBackstoryServlet extends HttpServlet {
+  /** Creates the UserService instance, which includes authentication functionality. */
+  private BackstoryUserServiceFactory backstoryUserServiceFactory;
+  /** Creates the DatastoreService instance, which includes permanent storage functionality. */
+  private BackstoryDatastoreServiceFactory backstoryDatastoreServiceFactory;
+  /**
+   * Creates the Query instance, which performs a network call to datastore to return all
+   * entities of a given type/name.
+   */
+  private QueryFactory queryFactory;
+  /** Holds each user's latest upload, so loading the page doesn't query Datastore. */
+  private LatestBackstoryCache latestBackstoryCache;
+
+  /**
+   * Initializes the servlet with online versions of the userService and datastoreService factories.
+   */
+  public GetLatestBackstoryServlet() {
+    backstoryUserServiceFactory = () -> {
+      return UserServiceFactory.getUserService();
+    };
+    backstoryDatastoreServiceFactory = () -> {
+      return DatastoreServiceFactory.getDatastoreService();
+    };
+    queryFactory = (String queryName) -> {
+      return new Query(queryName);
+    };
+    latestBackstoryCache = LatestBackstoryCache.getShared();
+  }
+
+  /**
+   * Sets the BackstoryUserServiceFactory.
+   *
+   * @param backstoryUserServiceFactory a BackstoryUserServiceFactory object set to return a new
+   *     UserService.
+   */
+  public void setBackstoryUserServiceFactory(
+      BackstoryUserServiceFactory backstoryUserServiceFactory) {
+    this.backstoryUserServiceFactory = backstoryUserServiceFactory;
+  }
+
+  /**
+   * Sets the BackstoryDatastoreServiceFactory.
+   *
+   * @param backstoryDatastoreServiceFactory a BackstoryDatastoreServiceFactory object set to return
+   *     a new DatastoreService.
+   */
+  public void setBackstoryDatastoreServiceFactory(
+      BackstoryDatastoreServiceFactory backstoryDatastoreServiceFactory) {
+    this.backstoryDatastoreServiceFactory = backstoryDatastoreServiceFactory;
+  }
+
+  /**
+   * Sets the QueryFactory.
+   *
+   * @param queryFactory a QueryFactory object set to return a new Query.
+   */
+  public void setQueryFactory(QueryFactory queryFactory) {
+    this.queryFactory = queryFactory;
+  }
+
+  /**
+   * Sets the LatestBackstoryCache.
+   *
+   * @param latestBackstoryCache the cache of each user's latest upload.
+   */
+  public void setLatestBackstoryCache(LatestBackstoryCache latestBackstoryCache) {
+    this.latestBackstoryCache = latestBackstoryCache;
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = backstoryUserServiceFactory.newInstance();
+    if (!userService.isUserLoggedIn()) {
+      String urlToRedirectToAfterUserLogsIn = "/latest-backstory";
+      String loginUrl = userService.createLoginURL(urlToRedirectToAfterUserLogsIn);
+      response.sendRedirect(loginUrl);
+      return;
+    }
+
+    // Get user identification
+    String userEmail = userService.getCurrentUser().getEmail();
+
+    LatestBackstoryStore latestBackstoryStore =
+        new LatestBackstoryStore(backstoryDatastoreServiceFactory.newInstance(), queryFactory,
+            latestBackstoryCache, AnalyzeImageServlet.MAX_UPLOAD_IMAGES);
+    List<LatestBackstory> latestBackstories = new ArrayList<>();
+    for (Backstory backstory : latestBackstoryStore.getLatestBackstories(userEmail)) {
+      String blobKeyString = backstory.getBlobKeyString();
+      latestBackstories.add(new LatestBackstory(backstory.getBackstory(), blobKeyString,
+          blobKeyString == null ? null : GetAnalyzedImagesServlet.getImageUrl(blobKeyString),
+          backstory.getTimestamp()));
+    }
+
+    response.setContentType("application/json;");
+    Gson gson = new Gson();
+    response.getWriter().println(gson.toJson(latestBackstories));
+  }
+}
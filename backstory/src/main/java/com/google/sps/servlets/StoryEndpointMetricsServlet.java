@@ -0,0 +1,155 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.Gson;
+import com.google.sps.servlets.data.BackstoryUserServiceFactory;
+import com.google.sps.servlets.data.ImageDigestIndex;
+import com.google.sps.servlets.data.SpeculationMetrics;
+import com.google.sps.story.data.StoryEndpoint;
+import com.google.sps.story.data.StoryEndpointPool;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet which publishes the latency, error and circuit breaker metrics of each story
+ * generation endpoint, along with the outcomes of speculative generation and the hit rate of
+ * the image digest index, as JSON.
+ * Only available to admins of the application.
+ */
+@WebServlet("/story-endpoint-metrics")
+public class StoryEndpointMetricsServlet extends HttpServlet {
+  /** Creates the UserService instance, which includes authentication functionality. */
+  private BackstoryUserServiceFactory backstoryUserServiceFactory;
+  /** The endpoints whose metrics are published. */
+  private StoryEndpointPool endpointPool;
+  /** The speculative generation outcomes which are published. */
+  private SpeculationMetrics speculationMetrics;
+  /** The image digest index whose hit rate is published. */
+  private ImageDigestIndex imageDigestIndex;
+
+  /**
+   * Initializes the servlet with the online userService factory, the shared endpoint pool, the
+   * shared speculation metrics and the shared image digest index.
+   */
+  public StoryEndpointMetricsServlet() {
+    backstoryUserServiceFactory = () -> {
+      return UserServiceFactory.getUserService();
+    };
+    endpointPool = StoryEndpointPool.getShared();
+    speculationMetrics = SpeculationMetrics.getShared();
+    imageDigestIndex = ImageDigestIndex.getShared();
+  }
+
+  /**
+   * Sets the BackstoryUserServiceFactory.
+   *
+   * @param backstoryUserServiceFactory a BackstoryUserServiceFactory object set to return a new
+   *     UserService.
+   */
+  public void setBackstoryUserServiceFactory(
+      BackstoryUserServiceFactory backstoryUserServiceFactory) {
+    this.backstoryUserServiceFactory = backstoryUserServiceFactory;
+  }
+
+  /**
+   * Sets the StoryEndpointPool whose metrics are published.
+   *
+   * @param endpointPool the endpoints to publish.
+   */
+  public void setEndpointPool(StoryEndpointPool endpointPool) {
+    this.endpointPool = endpointPool;
+  }
+
+  /**
+   * Sets the SpeculationMetrics which are published.
+   *
+   * @param speculationMetrics the speculative generation outcomes to publish.
+   */
+  public void setSpeculationMetrics(SpeculationMetrics speculationMetrics) {
+    this.speculationMetrics = speculationMetrics;
+  }
+
+  /**
+   * Sets the ImageDigestIndex whose hit rate is published.
+   *
+   * @param imageDigestIndex the index of prior uploads to publish.
+   */
+  public void setImageDigestIndex(ImageDigestIndex imageDigestIndex) {
+    this.imageDigestIndex = imageDigestIndex;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Writes a JSON object with an array of the metrics of each endpoint, in configuration order,
+   * the counts of speculative generation outcomes (with the wins of each candidate index), and
+   * the lookups and hits of the image digest index.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = backstoryUserServiceFactory.newInstance();
+    if (!userService.isUserLoggedIn() || !userService.isUserAdmin()) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "Only admins can view metrics.");
+      return;
+    }
+
+    List<Map<String, Object>> endpointsMetrics = new ArrayList<>();
+    for (StoryEndpoint endpoint : endpointPool.getEndpoints()) {
+      Map<String, Object> endpointMetrics = new LinkedHashMap<>();
+      endpointMetrics.put("url", endpoint.getURL());
+      endpointMetrics.put("available", endpoint.isAvailable());
+      endpointMetrics.put("outstandingRequests", endpoint.getOutstandingRequests());
+      endpointMetrics.put("requestCount", endpoint.getRequestCount());
+      endpointMetrics.put("errorCount", endpoint.getErrorCount());
+      endpointMetrics.put("errorRate", endpoint.getErrorRate());
+      endpointMetrics.put("ewmaLatencyMillis", endpoint.getEwmaLatencyMillis());
+      endpointMetrics.put("meanLatencyMillis", endpoint.getMeanLatencyMillis());
+      endpointMetrics.put("ejectionCount", endpoint.getEjectionCount());
+      endpointsMetrics.add(endpointMetrics);
+    }
+
+    Map<String, Object> speculation = new LinkedHashMap<>();
+    speculation.put("runCount", speculationMetrics.getRunCount());
+    speculation.put("winCounts", speculationMetrics.getWinCounts());
+    speculation.put("rejectionCount", speculationMetrics.getRejectionCount());
+    speculation.put("failureCount", speculationMetrics.getFailureCount());
+    speculation.put("exhaustedCount", speculationMetrics.getExhaustedCount());
+    speculation.put("timeoutCount", speculationMetrics.getTimeoutCount());
+
+    Map<String, Object> deduplication = new LinkedHashMap<>();
+    deduplication.put("lookupCount", imageDigestIndex.getLookupCount());
+    deduplication.put("hitCount", imageDigestIndex.getHitCount());
+    deduplication.put("hitRate", imageDigestIndex.getHitRate());
+    deduplication.put("errorCount", imageDigestIndex.getErrorCount());
+
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    metrics.put("endpoints", endpointsMetrics);
+    metrics.put("speculation", speculation);
+    metrics.put("deduplication", deduplication);
+
+    response.setContentType("application/json;");
+    response.getWriter().println(new Gson().toJson(metrics));
+  }
+}
@@ -0,0 +1,342 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.Gson;
+import com.google.protobuf.ByteString;
+import com.google.sps.APINotAvailableException;
+import com.google.sps.images.CachingImagesManager;
+import com.google.sps.images.ImagesManager;
+import com.google.sps.images.data.AnnotatedImage;
+import com.google.sps.perspective.PerspectiveStoryAnalysisManager;
+import com.google.sps.perspective.StoryAnalysisManager;
+import com.google.sps.perspective.data.NoAppropriateStoryException;
+import com.google.sps.servlets.data.Backstory;
+import com.google.sps.servlets.data.BackstoryDatastoreServiceFactory;
+import com.google.sps.servlets.data.BackstoryUserServiceFactory;
+import com.google.sps.servlets.data.BlobstoreManager;
+import com.google.sps.servlets.data.BlobstoreManagerFactory;
+import com.google.sps.servlets.data.EntityFactory;
+import com.google.sps.servlets.data.ImagesManagerFactory;
+import com.google.sps.servlets.data.LatestBackstoryCache;
+import com.google.sps.servlets.data.StoryAnalysisManagerFactory;
+import com.google.sps.servlets.data.StreamingStoryManagerFactory;
+import com.google.sps.story.PromptManager;
+import com.google.sps.story.StoryManagerImpl;
+import com.google.sps.story.StoryManagerURLProvider;
+import com.google.sps.story.StreamingStoryManager;
+import com.google.sps.story.data.StoryEndingTools;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Streaming version of the backstory backend. The image is uploaded through Blobstore to
+ * doPost, which remembers it in the user's session and redirects back to the home page.
+ * The page then opens an EventSource to doGet, which reports its progress as Server-Sent
+ * Events. The generated text is held back until the story has passed the story analysis, so
+ * a story which is rejected is never shown; only then is it stored and sent to the browser.
+ * App Engine standard buffers the response anyway, so this doesn't bring the story in any
+ * sooner, and the home page uploads to AnalyzeImageServlet unless asked to stream.
+ *
+ * Events (each with JSON data): "status" when work starts, then either "chunk" for each piece
+ * of the approved story followed by "done" (with the final backstory), or one of "rejected"
+ * (the story didn't pass analysis) or "error".
+ */
+@WebServlet("/stream-backstory")
+public class StreamBackstoryServlet extends HttpServlet {
+  /** The session attribute holding the key of the image waiting for its backstory. */
+  public static final String PENDING_BLOB_KEY_ATTRIBUTE = "pending-backstory-blob-key";
+
+  /** Creates the UserService instance, which includes authentication functionality. */
+  private BackstoryUserServiceFactory backstoryUserServiceFactory;
+  /** Creates the BlobstoreManager instance, which manages Backstory's BLOB functionality. */
+  private BlobstoreManagerFactory blobstoreManagerFactory;
+  /** Creates the DatastoreService instance, which includes permanent storage functionality. */
+  private BackstoryDatastoreServiceFactory backstoryDatastoreServiceFactory;
+  /** Creates the ImagesManager instance, which manages Backstory's images and their analytics. */
+  private ImagesManagerFactory imagesManagerFactory;
+  /** Creates the StreamingStoryManager instance, which streams Backstory's generated story. */
+  private StreamingStoryManagerFactory streamingStoryManagerFactory;
+  /** Creates the StoryAnalysisManager, which manages Backstory's story analysis and filtration. */
+  private StoryAnalysisManagerFactory storyAnalysisManagerFactory;
+  /** Creates the Entity instance which will be uploaded to permanent storage. */
+  private EntityFactory entityFactory;
+  /** Holds each user's latest upload, which is written through once a backstory is stored. */
+  private LatestBackstoryCache latestBackstoryCache;
+  /** World length parameter for the story to be generated */
+  private final int STORY_WORD_LENGTH = 200;
+  /** Temperature parameter for the story to be generated; indicates the coherence of the story */
+  private final double TEMPERATURE = .7;
+
+  /**
+   * Constructor which sets the manager factories to return their online implementations.
+   */
+  public StreamBackstoryServlet() {
+    backstoryUserServiceFactory = () -> {
+      return UserServiceFactory.getUserService();
+    };
+    backstoryDatastoreServiceFactory = () -> {
+      return DatastoreServiceFactory.getDatastoreService();
+    };
+    blobstoreManagerFactory = () -> {
+      return new BlobstoreManager();
+    };
+    imagesManagerFactory = () -> {
+      // Images which were already annotated aren't sent to the Vision API again.
+      return CachingImagesManager.getSharedInstance();
+    };
+    streamingStoryManagerFactory = (String prompt, int storyLength, double temperature,
+        StoryManagerURLProvider storyManagerURLProvider) -> {
+      return new StoryManagerImpl(prompt, storyLength, temperature, storyManagerURLProvider);
+    };
+    storyAnalysisManagerFactory = () -> {
+      return new PerspectiveStoryAnalysisManager();
+    };
+    entityFactory = (String entityName) -> {
+      return new Entity(entityName);
+    };
+    latestBackstoryCache = LatestBackstoryCache.getShared();
+  }
+
+  /**
+   * Sets the BackstoryUserServiceFactory.
+   *
+   * @param backstoryUserServiceFactory a BackstoryUserServiceFactory object set to return a new
+   *     UserService.
+   */
+  public void setBackstoryUserServiceFactory(
+      BackstoryUserServiceFactory backstoryUserServiceFactory) {
+    this.backstoryUserServiceFactory = backstoryUserServiceFactory;
+  }
+
+  /**
+   * Sets the BlobstoreManagerFactory.
+   *
+   * @param blobstoreManagerFactory a BlobstoreManagerFactory object set to return a new
+   *     BlobstoreManager.
+   */
+  public void setBlobstoreManagerFactory(BlobstoreManagerFactory blobstoreManagerFactory) {
+    this.blobstoreManagerFactory = blobstoreManagerFactory;
+  }
+
+  /**
+   * Sets the BackstoryDatastoreServiceFactory.
+   *
+   * @param backstoryDatastoreServiceFactory a BackstoryDatastoreServiceFactory object set to return
+   *     a new DatastoreService.
+   */
+  public void setBackstoryDatastoreServiceFactory(
+      BackstoryDatastoreServiceFactory backstoryDatastoreServiceFactory) {
+    this.backstoryDatastoreServiceFactory = backstoryDatastoreServiceFactory;
+  }
+
+  /**
+   * Sets the ImagesManagerFactory.
+   *
+   * @param imagesManagerFactory an ImagesManagerFactory object set to return a new ImagesManager.
+   */
+  public void setImagesManagerFactory(ImagesManagerFactory imagesManagerFactory) {
+    this.imagesManagerFactory = imagesManagerFactory;
+  }
+
+  /**
+   * Sets the StreamingStoryManagerFactory.
+   *
+   * @param streamingStoryManagerFactory a StreamingStoryManagerFactory object set to return a new
+   *     StreamingStoryManager.
+   */
+  public void setStreamingStoryManagerFactory(
+      StreamingStoryManagerFactory streamingStoryManagerFactory) {
+    this.streamingStoryManagerFactory = streamingStoryManagerFactory;
+  }
+
+  /**
+   * Sets the StoryAnalysisManagerFactory.
+   *
+   * @param storyAnalysisManagerFactory a StoryAnalysisManagerFactory object set to return a new
+   *     StoryAnalysisManager.
+   */
+  public void setStoryAnalysisManagerFactory(
+      StoryAnalysisManagerFactory storyAnalysisManagerFactory) {
+    this.storyAnalysisManagerFactory = storyAnalysisManagerFactory;
+  }
+
+  /**
+   * Sets the EntityFactory.
+   *
+   * @param entityFactory an EntityFactory object set to return a new Entity.
+   */
+  public void setEntityFactory(EntityFactory entityFactory) {
+    this.entityFactory = entityFactory;
+  }
+
+  /**
+   * Sets the LatestBackstoryCache.
+   *
+   * @param latestBackstoryCache the cache of each user's latest upload.
+   */
+  public void setLatestBackstoryCache(LatestBackstoryCache latestBackstoryCache) {
+    this.latestBackstoryCache = latestBackstoryCache;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Expecting the post request forwarded by Blobstore with the uploaded image. The image's
+   * key is kept in the user's session, and the user is sent back to the home page, which
+   * streams the backstory from doGet.
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = backstoryUserServiceFactory.newInstance();
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect(userService.createLoginURL("/index.html"));
+      return;
+    }
+
+    BlobstoreManager blobstoreManager = blobstoreManagerFactory.newInstance();
+    String blobKeyString = blobstoreManager.getUploadedFileBlobKeyString(request, "image-upload");
+    if (blobKeyString == null) {
+      response.sendError(400, "Please upload a valid image.");
+      return;
+    }
+
+    request.getSession().setAttribute(PENDING_BLOB_KEY_ATTRIBUTE, blobKeyString);
+    response.sendRedirect("/index.html?stream=true");
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Sends the backstory of the image waiting in the user's session as Server-Sent Events.
+   * A status event is sent straight away so the browser hears back before any analysis, but
+   * the story's chunks are only sent once it has passed the story analysis.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UserService userService = backstoryUserServiceFactory.newInstance();
+    if (!userService.isUserLoggedIn()) {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Please log in.");
+      return;
+    }
+
+    HttpSession session = request.getSession(false);
+    String blobKeyString =
+        session == null ? null : (String) session.getAttribute(PENDING_BLOB_KEY_ATTRIBUTE);
+    if (blobKeyString == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "There is no image waiting.");
+      return;
+    }
+    session.removeAttribute(PENDING_BLOB_KEY_ATTRIBUTE);
+
+    response.setContentType("text/event-stream");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    PrintWriter writer = response.getWriter();
+    sendEvent(writer, "status", "Analyzing your image...");
+
+    String rawBackstory;
+    // The chunks are held here until the story has passed the analysis.
+    List<String> chunks = new ArrayList<>();
+    try {
+      ByteString bytes =
+          blobstoreManagerFactory.newInstance().getBlobByteString(new BlobKey(blobKeyString));
+      ImagesManager imagesManager = imagesManagerFactory.newInstance();
+      List<AnnotatedImage> annotatedImages =
+          imagesManager.createAnnotatedImagesFromImagesAsByteStrings(Arrays.asList(bytes));
+      AnnotatedImage annotatedImage = annotatedImages.get(0);
+
+      PromptManager promptManager = new PromptManager(
+          annotatedImage.getLabelDescriptions(), annotatedImage.getLandmarkDescriptions());
+      String prompt = promptManager.generatePrompt();
+
+      StreamingStoryManager storyManager = streamingStoryManagerFactory.newInstance(
+          prompt, STORY_WORD_LENGTH, TEMPERATURE, new StoryManagerURLProvider());
+      sendEvent(writer, "status", "Writing your backstory...");
+      rawBackstory = storyManager.streamText(chunks::add);
+    } catch (IOException | RuntimeException exception) {
+      System.err.println(exception);
+      sendEvent(writer, "error",
+          "Sorry! There was an error in your backstory generation. Please try again!");
+      return;
+    }
+
+    // Only a story which passes the analysis is shown or committed to permanent storage.
+    String backstory;
+    try {
+      StoryAnalysisManager storyAnalysisManager = storyAnalysisManagerFactory.newInstance();
+      backstory = storyAnalysisManager.generateDecision(rawBackstory).getStory();
+    } catch (NoAppropriateStoryException | APINotAvailableException exception) {
+      sendEvent(writer, "rejected",
+          "Sorry! No appropriate Backstory was found for your image. Please try again with another image.");
+      return;
+    }
+
+    String finalBackstory = StoryEndingTools.endStory(backstory);
+
+    String userEmail = userService.getCurrentUser().getEmail();
+    long timestamp = System.currentTimeMillis();
+    Entity analyzedImageEntity = entityFactory.newInstance("analyzed-image");
+    analyzedImageEntity.setProperty("userEmail", userEmail);
+    analyzedImageEntity.setProperty("blobKeyString", blobKeyString);
+    analyzedImageEntity.setProperty("backstory", new Text(finalBackstory));
+    analyzedImageEntity.setProperty("timestamp", timestamp);
+
+    DatastoreService datastoreService = backstoryDatastoreServiceFactory.newInstance();
+    datastoreService.put(analyzedImageEntity);
+    latestBackstoryCache.put(userEmail, timestamp,
+        Arrays.asList(new Backstory(finalBackstory, blobKeyString, timestamp)));
+
+    for (String chunk : chunks) {
+      sendEvent(writer, "chunk", chunk);
+    }
+    sendEvent(writer, "done", finalBackstory);
+  }
+
+  /**
+   * Writes one Server-Sent Event and flushes it to the browser. The data is written as JSON
+   * so that it always fits on a single data line.
+   *
+   * @param writer the writer of the event stream.
+   * @param event the name of the event.
+   * @param data the text carried by the event.
+   * @throws IOException if the browser has gone away.
+   */
+  private static void sendEvent(PrintWriter writer, String event, String data)
+      throws IOException {
+    writer.write("event: " + event + "\n");
+    writer.write("data: " + new Gson().toJson(data) + "\n\n");
+    writer.flush();
+
+    if (writer.checkError()) {
+      throw new IOException("The event stream was closed.");
+    }
+  }
+}
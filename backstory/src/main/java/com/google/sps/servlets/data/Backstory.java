@@ -14,10 +14,18 @@
 
 package com.google.sps.servlets.data;
 
+import java.io.Serializable;
+
 /** Wrapper class representing a backstory */
-public final class Backstory {
+public final class Backstory implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   // Represents the generated backstory text
   private final String backstory;
+  // Represents the blob key of the image the backstory was generated for (null if unknown)
+  private final String blobKeyString;
+  // Represents the time the backstory was stored, in milliseconds (0 if unknown)
+  private final long timestamp;
 
   /**
    * Creates a Backstory wrapper object from a backstory.
@@ -25,7 +33,31 @@ public final class Backstory {
    * @param backstory the generated backstory text.
    */
   public Backstory(String backstory) {
+    this(backstory, null);
+  }
+
+  /**
+   * Creates a Backstory wrapper object from a backstory and the image it was generated for.
+   *
+   * @param backstory the generated backstory text.
+   * @param blobKeyString the blob key of the image, in String form.
+   */
+  public Backstory(String backstory, String blobKeyString) {
+    this(backstory, blobKeyString, 0);
+  }
+
+  /**
+   * Creates a Backstory wrapper object from a backstory, the image it was generated for,
+   * and the time it was stored.
+   *
+   * @param backstory the generated backstory text.
+   * @param blobKeyString the blob key of the image, in String form.
+   * @param timestamp the time the backstory was stored, in milliseconds.
+   */
+  public Backstory(String backstory, String blobKeyString, long timestamp) {
     this.backstory = backstory;
+    this.blobKeyString = blobKeyString;
+    this.timestamp = timestamp;
   }
 
   /**
@@ -36,4 +68,22 @@ public final class Backstory {
   public String getBackstory() {
     return backstory;
   }
+
+  /**
+   * Get the blob key of the image the backstory was generated for.
+   *
+   * @return the blob key in String form, or null if it isn't known.
+   */
+  public String getBlobKeyString() {
+    return blobKeyString;
+  }
+
+  /**
+   * Get the time the backstory was stored.
+   *
+   * @return the timestamp in milliseconds, or 0 if it isn't known.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
 }
@@ -0,0 +1,54 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets.data;
+
+import java.util.List;
+
+/** Wrapper class representing one page of a user's backstory history. */
+public final class BackstoryHistoryPage {
+  // Represents the backstories of the page, from newest to oldest
+  private final List<BackstorySummary> backstories;
+  // Represents the web-safe cursor of the next page (null if this is the last page)
+  private final String nextCursor;
+
+  /**
+   * Creates a BackstoryHistoryPage wrapper object.
+   *
+   * @param backstories the backstories of the page, from newest to oldest.
+   * @param nextCursor the web-safe cursor of the next page, or null if this is the last page.
+   */
+  public BackstoryHistoryPage(List<BackstorySummary> backstories, String nextCursor) {
+    this.backstories = backstories;
+    this.nextCursor = nextCursor;
+  }
+
+  /**
+   * Get the backstories of the page.
+   *
+   * @return the backstories, from newest to oldest.
+   */
+  public List<BackstorySummary> getBackstories() {
+    return backstories;
+  }
+
+  /**
+   * Get the cursor of the next page.
+   *
+   * @return the web-safe cursor of the next page, or null if this is the last page.
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets.data;
+
+/** Wrapper class representing one backstory in a user's history, without its text. */
+public final class BackstorySummary {
+  // Represents the id of the analyzed image entity, which the backstory's text is fetched by
+  private final long id;
+  // Represents the time the backstory was stored, in milliseconds
+  private final long timestamp;
+  // Represents the blob key of the image the backstory was generated for
+  private final String blobKeyString;
+  // Represents the stable URL the image is served from
+  private final String imageUrl;
+
+  /**
+   * Creates a BackstorySummary wrapper object.
+   *
+   * @param id the id of the analyzed image entity.
+   * @param timestamp the time the backstory was stored, in milliseconds.
+   * @param blobKeyString the blob key of the image, in String form.
+   * @param imageUrl the stable URL the image is served from.
+   */
+  public BackstorySummary(long id, long timestamp, String blobKeyString, String imageUrl) {
+    this.id = id;
+    this.timestamp = timestamp;
+    this.blobKeyString = blobKeyString;
+    this.imageUrl = imageUrl;
+  }
+
+  /**
+   * Get the id of the analyzed image entity.
+   *
+   * @return the id which the backstory's text is fetched by.
+   */
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * Get the time the backstory was stored.
+   *
+   * @return the timestamp in milliseconds.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Get the blob key of the image the backstory was generated for.
+   *
+   * @return the blob key in String form.
+   */
+  public String getBlobKeyString() {
+    return blobKeyString;
+  }
+
+  /**
+   * Get the URL the image is served from.
+   *
+   * @return the stable URL of the image.
+   */
+  public String getImageUrl() {
+    return imageUrl;
+  }
+}
@@ -14,18 +14,27 @@
 
 package com.google.sps.servlets.data;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.blobstore.BlobInfo;
 import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.sps.servlets.data.BlobstoreServiceConstantFields;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -33,9 +42,25 @@ import javax.servlet.http.HttpServletResponse;
  * Wrapper class for the blobstore service and all related operations.
  */
 public class BlobstoreManager {
+  /** the system property which sets the number of chunks fetched from Blobstore at once */
+  public static final String FETCH_PARALLELISM_PROPERTY = "backstory.blobstore.fetch.parallelism";
+  /** the default number of chunks fetched from Blobstore at once */
+  public static final int DEFAULT_FETCH_PARALLELISM = 16;
+  /** the most chunks which are fetched at once, as set by FETCH_PARALLELISM_PROPERTY */
+  public static final int FETCH_PARALLELISM =
+      Integer.getInteger(FETCH_PARALLELISM_PROPERTY, DEFAULT_FETCH_PARALLELISM);
+
   private BlobstoreService blobstoreService;
   private BlobstoreServiceConstantFields blobstoreServiceConstantFields;
   private BlobInfoFactory blobInfoFactory;
+  /**
+   * Supplies the ThreadFactory of each read on the reading thread. Blobstore can only be called
+   * on threads created for the current request.
+   */
+  private Supplier<ThreadFactory> threadFactorySupplier =
+      ThreadManager::currentRequestThreadFactory;
+  /** Fetches the chunks of a BLOB at once (null for a pool of request threads per read). */
+  private Executor fetchExecutor;
 
   /**
    * Creates a blobstore manager object by calling the blobstore service factory
@@ -65,6 +90,37 @@ public class BlobstoreManager {
     this.blobInfoFactory = blobInfoFactory;
   }
 
+  /**
+   * Sets where the ThreadFactory of each read's pool comes from. It's called on the thread which
+   * reads the BLOB, so the default ThreadManager factory creates threads on which Blobstore can
+   * be called as long as that thread belongs to a request.
+   *
+   * @param threadFactorySupplier supplies the ThreadFactory of a read's pool.
+   * @throws IllegalArgumentException if threadFactorySupplier is null.
+   */
+  public void setThreadFactorySupplier(Supplier<ThreadFactory> threadFactorySupplier)
+      throws IllegalArgumentException {
+    if (threadFactorySupplier == null) {
+      throw new IllegalArgumentException("Thread factory supplier cannot be null.");
+    }
+    this.threadFactorySupplier = threadFactorySupplier;
+  }
+
+  /**
+   * Sets the executor which fetches the chunks of a BLOB instead of a pool of request threads
+   * per read. A request which reads several BLOBs at once passes one bounded pool, which every
+   * read shares, so the fetch threads don't multiply with the number of BLOBs.
+   *
+   * @param fetchExecutor the executor to fetch chunks on.
+   * @throws IllegalArgumentException if fetchExecutor is null.
+   */
+  public void setFetchExecutor(Executor fetchExecutor) throws IllegalArgumentException {
+    if (fetchExecutor == null) {
+      throw new IllegalArgumentException("Fetch executor cannot be null.");
+    }
+    this.fetchExecutor = fetchExecutor;
+  }
+
   /**
    * Given a request and the form input element name get the image uploaded in the form as
    * a Blob Key in String form. This key is used to serve the picture back to the front-end.
@@ -75,64 +131,76 @@ public class BlobstoreManager {
    */
   public String getUploadedFileBlobKeyString(
       HttpServletRequest request, String formInputElementName) throws IOException {
-    // Gets the blobkey for the image uploaded in the request
-    BlobKey blobKey = getFirstBlobKeyFromUploads(request, formInputElementName);
-    // If no image was uploaded in the request, getFirstBlobKeyFromUploads will return null.
-    if (blobKey == null) {
+    UploadedBlob uploadedBlob = getUploadedBlob(request, formInputElementName);
+    // If no image was uploaded in the request, getUploadedBlob will return null.
+    if (uploadedBlob == null) {
       return null;
     }
-    String blobKeyString = blobKey.getKeyString();
-    return blobKeyString;
+    return uploadedBlob.getBlobKeyString();
   }
 
   /**
-   * Given a request and the form input element name get the image uploaded in the form as
-   * a byte array.
+   * Given a request and the form input element name get every image uploaded in the form as
+   * a Blob Key in String form. Empty files are deleted rather than returned.
    *
    * @param request the HTTP request sent from the front-end form.
    * @param formInputElementName the name of the input element in the front-end form.
-   * @return the image uploaded in the front-end input form, as a byte array.
+   * @return the images uploaded in the front-end input form, as Blob Keys in String form (in
+   *     upload order, and empty if no image was uploaded).
    */
-  public byte[] getBlobBytes(HttpServletRequest request, String formInputElementName)
-      throws IOException {
-    // Gets the blobkey for the image uploaded in the request
-    BlobKey blobKey = getFirstBlobKeyFromUploads(request, formInputElementName);
-    // If no image was uploaded in the request, getFirstBlobKeyFromUploads will return null.
-    if (blobKey == null) {
-      return null;
+  public List<String> getUploadedFileBlobKeyStrings(
+      HttpServletRequest request, String formInputElementName) throws IOException {
+    List<String> blobKeyStrings = new ArrayList<>();
+    for (UploadedBlob uploadedBlob : getUploadedBlobs(request, formInputElementName)) {
+      blobKeyStrings.add(uploadedBlob.getBlobKeyString());
+    }
+    return blobKeyStrings;
+  }
+
+  /**
+   * Given a request and the form input element name get every image uploaded in the form,
+   * along with its size. The uploads and the BlobInfo of each image are only looked up here, so
+   * the images can be read without looking them up again. Empty files are deleted rather than
+   * returned.
+   *
+   * @param request the HTTP request sent from the front-end form.
+   * @param formInputElementName the name of the input element in the front-end form.
+   * @return the images uploaded in the front-end input form (in upload order, and empty if no
+   *     image was uploaded).
+   */
+  public List<UploadedBlob> getUploadedBlobs(
+      HttpServletRequest request, String formInputElementName) throws IOException {
+    Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
+    List<BlobKey> blobKeys = blobs.get(formInputElementName);
+    List<UploadedBlob> uploadedBlobs = new ArrayList<>();
+
+    // User submitted form without selecting a file. (dev server)
+    if (blobKeys == null) {
+      return uploadedBlobs;
     }
 
-    // Generates the byte array for the uploaded image by writing the input bytes uploaded.
-    ByteArrayOutputStream outputBytes = new ByteArrayOutputStream();
-    int fetchSize = blobstoreServiceConstantFields.getMaxBlobFetchSize();
-    long currentByteIndex = 0;
-    boolean continueReading = true;
-    while (continueReading) {
-      // end index is inclusive, so we have to subtract 1 to get fetchSize bytes
-      byte[] bytesFromImage =
-          blobstoreService.fetchData(blobKey, currentByteIndex, currentByteIndex + fetchSize - 1);
-      outputBytes.write(bytesFromImage);
-
-      // if we read fewer bytes than we requested, then we reached the end
-      if (bytesFromImage.length < fetchSize) {
-        continueReading = false;
+    for (BlobKey blobKey : blobKeys) {
+      // User submitted form without selecting a file. (live server)
+      BlobInfo blobInfo = blobInfoFactory.loadBlobInfo(blobKey);
+      if (blobInfo.getSize() == 0) {
+        blobstoreService.delete(blobKey);
+        continue;
       }
-      currentByteIndex += fetchSize;
+      uploadedBlobs.add(new UploadedBlob(blobKey, blobInfo.getSize()));
     }
-    return outputBytes.toByteArray();
+    return uploadedBlobs;
   }
 
   /**
-   * Accesses the blobkey for the first image uploaded to blobstore in the current request, with a
-   * specified name.
+   * Given a request and the form input element name get the first image uploaded in the form,
+   * along with its size.
    *
-   * @param request the current HTTP request from which the image was uploaded.
-   * @param formInputElementName the input name the image was uploaded under in the HTML
-   * front-end form.
-   * @return the blobkey for the first image uploaded into this request.
+   * @param request the HTTP request sent from the front-end form.
+   * @param formInputElementName the name of the input element in the front-end form.
+   * @return the image uploaded in the front-end input form, or null if no image was uploaded.
    */
-  private BlobKey getFirstBlobKeyFromUploads(
-      HttpServletRequest request, String formInputElementName) throws IOException {
+  public UploadedBlob getUploadedBlob(HttpServletRequest request, String formInputElementName)
+      throws IOException {
     Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
     List<BlobKey> blobKeys = blobs.get(formInputElementName);
 
@@ -148,7 +216,141 @@ public class BlobstoreManager {
       blobstoreService.delete(blobKey);
       return null;
     }
-    return blobKey;
+    return new UploadedBlob(blobKey, blobInfo.getSize());
+  }
+
+  /**
+   * Given a request and the form input element name get the image uploaded in the form as
+   * a byte array.
+   *
+   * @param request the HTTP request sent from the front-end form.
+   * @param formInputElementName the name of the input element in the front-end form.
+   * @return the image uploaded in the front-end input form, as a byte array.
+   */
+  public byte[] getBlobBytes(HttpServletRequest request, String formInputElementName)
+      throws IOException {
+    UploadedBlob uploadedBlob = getUploadedBlob(request, formInputElementName);
+    // If no image was uploaded in the request, getUploadedBlob will return null.
+    if (uploadedBlob == null) {
+      return null;
+    }
+    return getBlobByteString(uploadedBlob).toByteArray();
+  }
+
+  /**
+   * Gets the contents of a BLOB which has already been uploaded as a byte array.
+   *
+   * @param blobKey the key for the BLOB to read.
+   * @return the contents of the BLOB, as a byte array.
+   */
+  public byte[] getBlobBytes(BlobKey blobKey) throws IOException {
+    return getBlobByteString(blobKey).toByteArray();
+  }
+
+  /**
+   * Gets the contents of a BLOB which has already been uploaded as an immutable ByteString. The
+   * fetched chunks are joined without being copied, so this is the only time the BLOB is held
+   * in memory.
+   *
+   * @param blobKey the key for the BLOB to read.
+   * @return the contents of the BLOB, as a ByteString.
+   */
+  public ByteString getBlobByteString(BlobKey blobKey) throws IOException {
+    BlobInfo blobInfo = blobInfoFactory.loadBlobInfo(blobKey);
+    if (blobInfo == null) {
+      throw new IOException("Could not find the BLOB " + blobKey.getKeyString() + ".");
+    }
+    return getBlobByteString(new UploadedBlob(blobKey, blobInfo.getSize()));
+  }
+
+  /**
+   * Gets the contents of an uploaded BLOB as an immutable ByteString. As its size is known, the
+   * chunk ranges are fetched at once, so a large BLOB takes about as long to read as one chunk.
+   * Unless an executor was set, they're fetched on a pool of at most FETCH_PARALLELISM_PROPERTY
+   * threads created for the current request, which is shut down once the BLOB has been read.
+   * The fetched chunks are joined without being copied.
+   *
+   * @param uploadedBlob the uploaded BLOB to read.
+   * @return the contents of the BLOB, as a ByteString.
+   * @throws IOException if a chunk could not be fetched or was shorter than expected.
+   */
+  public ByteString getBlobByteString(UploadedBlob uploadedBlob) throws IOException {
+    BlobKey blobKey = uploadedBlob.getBlobKey();
+    long size = uploadedBlob.getSize();
+    int fetchSize = blobstoreServiceConstantFields.getMaxBlobFetchSize();
+    int chunkCount = (int) ((size + fetchSize - 1) / fetchSize);
+
+    // A BLOB which fits in one chunk is fetched on this thread.
+    if (chunkCount <= 1) {
+      return size == 0 ? ByteString.EMPTY : fetchChunk(blobKey, 0, size);
+    }
+
+    // The factory is obtained here, as ThreadManager only hands it out on a request's thread.
+    final ExecutorService readExecutor = fetchExecutor == null
+        ? Executors.newFixedThreadPool(
+            Math.min(chunkCount, FETCH_PARALLELISM), threadFactorySupplier.get())
+        : null;
+    final Executor chunkExecutor = readExecutor == null ? fetchExecutor : readExecutor;
+    try {
+      List<CompletableFuture<ByteString>> chunks = new ArrayList<>(chunkCount);
+      for (int chunk = 0; chunk < chunkCount; chunk++) {
+        long start = (long) chunk * fetchSize;
+        long end = Math.min(size, start + fetchSize);
+        chunks.add(CompletableFuture.supplyAsync(() -> {
+          try {
+            return fetchChunk(blobKey, start, end);
+          } catch (IOException exception) {
+            throw new CompletionException(exception);
+          }
+        }, chunkExecutor));
+      }
+
+      ByteString outputBytes = ByteString.EMPTY;
+      for (CompletableFuture<ByteString> chunk : chunks) {
+        outputBytes = outputBytes.concat(chunk.join());
+      }
+      return outputBytes;
+    } catch (CompletionException exception) {
+      if (exception.getCause() instanceof IOException) {
+        throw (IOException) exception.getCause();
+      }
+      throw new IOException(
+          "Could not fetch " + blobKey.getKeyString() + ".", exception.getCause());
+    } finally {
+      // Every chunk has been joined unless one failed, in which case the rest aren't needed.
+      if (readExecutor != null) {
+        readExecutor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Fetches a range of a BLOB.
+   *
+   * @param blobKey the key for the BLOB to read.
+   * @param start the index of the first byte to fetch.
+   * @param end the index after the last byte to fetch.
+   * @return the fetched bytes, wrapped as a ByteString.
+   * @throws IOException if fewer bytes were fetched than were asked for.
+   */
+  private ByteString fetchChunk(BlobKey blobKey, long start, long end) throws IOException {
+    // end index is inclusive, so we have to subtract 1 to get the bytes up to end
+    byte[] bytesFromImage = blobstoreService.fetchData(blobKey, start, end - 1);
+    if (bytesFromImage.length != end - start) {
+      throw new IOException("Fetched " + bytesFromImage.length + " bytes of "
+          + blobKey.getKeyString() + " from " + start + " but expected " + (end - start) + ".");
+    }
+    // Each chunk is a new array which nothing else holds, so it's wrapped rather than copied.
+    return UnsafeByteOperations.unsafeWrap(bytesFromImage);
+  }
+
+  /**
+   * Deletes a BLOB which has already been uploaded.
+   *
+   * @param blobKeyString the key for the BLOB to delete, in String form.
+   */
+  public void delete(String blobKeyString) {
+    blobstoreService.delete(new BlobKey(blobKeyString));
   }
 
   /**
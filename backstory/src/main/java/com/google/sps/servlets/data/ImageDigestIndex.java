@@ -0,0 +1,295 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.protobuf.ByteString;
+import com.google.sps.images.data.ImageFingerprint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An index of the images which have already been analyzed, keyed by the SHA-256 digest of
+ * their bytes, so an image which is uploaded again can reuse the blob and annotations (and
+ * optionally the prompt) of its first upload instead of calling the APIs again.
+ *
+ * Each image is a Datastore entity whose key name is the digest, so a lookup is a single
+ * strongly consistent get. Failing to read or write the index is treated as a miss.
+ */
+public final class ImageDigestIndex {
+  /** the kind of the Datastore entities which hold analyzed images */
+  public static final String ENTITY_KIND = "image-digest";
+  /** the system property which makes repeated uploads reuse the prompt of the first upload */
+  public static final String REUSE_PROMPT_PROPERTY = "backstory.dedup.reuse-prompt";
+
+  /** the index shared by all requests (created on first use) */
+  private static volatile ImageDigestIndex shared;
+
+  /** the Datastore service the index is stored in */
+  private final DatastoreService datastoreService;
+  /** the number of lookups */
+  private final LongAdder lookupCount = new LongAdder();
+  /** the number of lookups which found a prior upload */
+  private final LongAdder hitCount = new LongAdder();
+  /** the number of lookups and records which failed */
+  private final LongAdder errorCount = new LongAdder();
+
+  /**
+   * Returns the index shared by all requests, which is stored in the default Datastore.
+   *
+   * @return the shared ImageDigestIndex
+   */
+  public static ImageDigestIndex getShared() {
+    if (shared == null) {
+      synchronized (ImageDigestIndex.class) {
+        if (shared == null) {
+          shared = new ImageDigestIndex(DatastoreServiceFactory.getDatastoreService());
+        }
+      }
+    }
+
+    return shared;
+  }
+
+  /**
+   * Constructs an index which is stored in the given Datastore service.
+   *
+   * @param datastoreService the Datastore service to store the index in
+   * @throws IllegalArgumentException if datastoreService is null
+   */
+  public ImageDigestIndex(DatastoreService datastoreService) throws IllegalArgumentException {
+    if (datastoreService == null) {
+      throw new IllegalArgumentException("Datastore service cannot be null.");
+    }
+
+    this.datastoreService = datastoreService;
+  }
+
+  /**
+   * Computes the digest an image is indexed by.
+   *
+   * @param bytes the image
+   * @return the lowercase hexadecimal SHA-256 digest of the image
+   * @throws IllegalArgumentException if bytes is null
+   */
+  public static String digest(byte[] bytes) throws IllegalArgumentException {
+    return ImageFingerprint.of(bytes);
+  }
+
+  /**
+   * Computes the digest an image is indexed by, reading its bytes in place.
+   *
+   * @param bytes the image
+   * @return the lowercase hexadecimal SHA-256 digest of the image
+   * @throws IllegalArgumentException if bytes is null
+   */
+  public static String digest(ByteString bytes) throws IllegalArgumentException {
+    return ImageFingerprint.of(bytes);
+  }
+
+  /**
+   * Looks up a prior upload of an image.
+   *
+   * @param digest the digest of the image
+   * @return the prior upload, or null if the image hasn't been indexed (or couldn't be read)
+   */
+  public Entry lookup(String digest) {
+    lookupCount.increment();
+    Entity entity;
+
+    try {
+      entity = datastoreService.get(KeyFactory.createKey(ENTITY_KIND, digest));
+    } catch (EntityNotFoundException exception) {
+      return null;
+    } catch (RuntimeException exception) {
+      errorCount.increment();
+      System.err.println("Could not read the image digest index: " + exception);
+      return null;
+    }
+
+    try {
+      Text prompt = (Text) entity.getProperty("prompt");
+      Entry entry = new Entry((String) entity.getProperty("blobKeyString"),
+          toStrings(entity.getProperty("labelDescriptions")),
+          toStrings(entity.getProperty("landmarkDescriptions")),
+          prompt == null ? null : prompt.getValue());
+      hitCount.increment();
+      return entry;
+    } catch (IllegalArgumentException | ClassCastException exception) {
+      // entities written in an unexpected format are misses
+      errorCount.increment();
+      return null;
+    }
+  }
+
+  /**
+   * Indexes the upload of an image, replacing any prior upload of it.
+   *
+   * @param digest the digest of the image
+   * @param entry the blob, annotations and prompt of the upload
+   */
+  public void record(String digest, Entry entry) {
+    Entity entity = new Entity(ENTITY_KIND, digest);
+    entity.setUnindexedProperty("blobKeyString", entry.getBlobKeyString());
+    entity.setUnindexedProperty("labelDescriptions", entry.getLabelDescriptions());
+    entity.setUnindexedProperty("landmarkDescriptions", entry.getLandmarkDescriptions());
+    entity.setUnindexedProperty(
+        "prompt", entry.getPrompt() == null ? null : new Text(entry.getPrompt()));
+    entity.setUnindexedProperty("timestamp", System.currentTimeMillis());
+
+    try {
+      datastoreService.put(entity);
+    } catch (RuntimeException exception) {
+      errorCount.increment();
+      System.err.println("Could not write the image digest index: " + exception);
+    }
+  }
+
+  /**
+   * Returns the number of lookups.
+   *
+   * @return the lookup count
+   */
+  public long getLookupCount() {
+    return lookupCount.sum();
+  }
+
+  /**
+   * Returns the number of lookups which found a prior upload.
+   *
+   * @return the hit count
+   */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * Returns the fraction of lookups which found a prior upload.
+   *
+   * @return the hit rate (0 if there were no lookups)
+   */
+  public double getHitRate() {
+    long lookups = lookupCount.sum();
+    return lookups == 0 ? 0 : (double) hitCount.sum() / lookups;
+  }
+
+  /**
+   * Returns the number of lookups and records which failed.
+   *
+   * @return the error count
+   */
+  public long getErrorCount() {
+    return errorCount.sum();
+  }
+
+  /**
+   * Converts a list property to a list of strings.
+   *
+   * @param property the property (null for an empty list, which Datastore doesn't store)
+   * @return the strings in the property
+   * @throws ClassCastException if the property isn't a list of strings
+   */
+  private static List<String> toStrings(Object property) throws ClassCastException {
+    if (property == null) {
+      return Collections.emptyList();
+    }
+
+    List<String> strings = new ArrayList<String>();
+
+    for (Object value : (List<?>) property) {
+      strings.add((String) value);
+    }
+
+    return strings;
+  }
+
+  /**
+   * The blob, annotations and prompt of an analyzed upload.
+   */
+  public static final class Entry {
+    /** the blob key of the uploaded image */
+    private final String blobKeyString;
+    /** the label descriptions of the image */
+    private final List<String> labelDescriptions;
+    /** the landmark descriptions of the image */
+    private final List<String> landmarkDescriptions;
+    /** the prompt created from the annotations (can be null) */
+    private final String prompt;
+
+    /**
+     * Constructs the entry of an analyzed upload.
+     *
+     * @param blobKeyString the blob key of the uploaded image
+     * @param labelDescriptions the label descriptions of the image
+     * @param landmarkDescriptions the landmark descriptions of the image
+     * @param prompt the prompt created from the annotations (can be null)
+     * @throws IllegalArgumentException if blobKeyString or a list of descriptions is null
+     */
+    public Entry(String blobKeyString, List<String> labelDescriptions,
+        List<String> landmarkDescriptions, String prompt) throws IllegalArgumentException {
+      if (blobKeyString == null || labelDescriptions == null || landmarkDescriptions == null) {
+        throw new IllegalArgumentException("Blob key and descriptions cannot be null.");
+      }
+
+      this.blobKeyString = blobKeyString;
+      this.labelDescriptions = labelDescriptions;
+      this.landmarkDescriptions = landmarkDescriptions;
+      this.prompt = prompt;
+    }
+
+    /**
+     * Returns the blob key of the uploaded image.
+     *
+     * @return the blob key in String form
+     */
+    public String getBlobKeyString() {
+      return blobKeyString;
+    }
+
+    /**
+     * Returns the label descriptions of the image.
+     *
+     * @return the label descriptions
+     */
+    public List<String> getLabelDescriptions() {
+      return labelDescriptions;
+    }
+
+    /**
+     * Returns the landmark descriptions of the image.
+     *
+     * @return the landmark descriptions
+     */
+    public List<String> getLandmarkDescriptions() {
+      return landmarkDescriptions;
+    }
+
+    /**
+     * Returns the prompt created from the annotations.
+     *
+     * @return the prompt, or null if it wasn't indexed
+     */
+    public String getPrompt() {
+      return prompt;
+    }
+  }
+}
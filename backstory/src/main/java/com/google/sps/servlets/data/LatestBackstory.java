@@ -0,0 +1,79 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets.data;
+
+/** Wrapper class representing a backstory of the latest upload along with its image. */
+public final class LatestBackstory {
+  // Represents the generated backstory text
+  private final String backstory;
+  // Represents the blob key of the image the backstory was generated for
+  private final String blobKeyString;
+  // Represents the stable URL the image is served from
+  private final String imageUrl;
+  // Represents the time the backstory was stored, in milliseconds
+  private final long timestamp;
+
+  /**
+   * Creates a LatestBackstory wrapper object.
+   *
+   * @param backstory the generated backstory text.
+   * @param blobKeyString the blob key of the image, in String form.
+   * @param imageUrl the stable URL the image is served from.
+   * @param timestamp the time the backstory was stored, in milliseconds.
+   */
+  public LatestBackstory(
+      String backstory, String blobKeyString, String imageUrl, long timestamp) {
+    this.backstory = backstory;
+    this.blobKeyString = blobKeyString;
+    this.imageUrl = imageUrl;
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Get the backstory text.
+   *
+   * @return the generated backstory text.
+   */
+  public String getBackstory() {
+    return backstory;
+  }
+
+  /**
+   * Get the blob key of the image the backstory was generated for.
+   *
+   * @return the blob key in String form.
+   */
+  public String getBlobKeyString() {
+    return blobKeyString;
+  }
+
+  /**
+   * Get the URL the image is served from.
+   *
+   * @return the stable URL of the image.
+   */
+  public String getImageUrl() {
+    return imageUrl;
+  }
+
+  /**
+   * Get the time the backstory was stored.
+   *
+   * @return the timestamp in milliseconds.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+}
@@ -0,0 +1,362 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets.data;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A cache of each user's latest upload (the Backstory of each of its images), so loading the
+ * page doesn't query Datastore for it. Uploads write their Backstories through to the cache
+ * right after storing them, and reads fill it from Datastore on a miss.
+ *
+ * The first tier is an optional bounded map in this instance, whose entries expire after a
+ * short time. An upload handled by another instance only replaces this instance's entry once it
+ * expires, so the in-process tier is off unless TTL_SECONDS_PROPERTY is set (e.g. when a single
+ * instance serves the app). The second tier is memcache, which every instance shares, so an
+ * upload is seen by the next read wherever it lands; failing to read or write it is treated as
+ * a miss. With both tiers off every read goes to Datastore.
+ */
+public final class LatestBackstoryCache {
+  /** the system property which sets the most users the in-process tier holds */
+  public static final String MAX_SIZE_PROPERTY = "backstory.latest.cache.size";
+  /** the system property which sets the time (in seconds) an in-process entry is kept */
+  public static final String TTL_SECONDS_PROPERTY = "backstory.latest.cache.ttl.seconds";
+  /** the system property which disables the memcache tier when set to false */
+  public static final String MEMCACHE_PROPERTY = "backstory.latest.cache.memcache";
+  /** the default most users the in-process tier holds */
+  public static final int DEFAULT_MAX_SIZE = 10000;
+  /** the default time (in seconds) an in-process entry is kept, which disables that tier */
+  public static final long DEFAULT_TTL_SECONDS = 0;
+  /** the prefix of the memcache keys, so they don't collide with other entries */
+  private static final String MEMCACHE_KEY_PREFIX = "latest-backstory:";
+
+  /** the cache shared by all requests (created on first use) */
+  private static volatile LatestBackstoryCache shared;
+
+  /** the most users the in-process tier holds */
+  private final int maxSize;
+  /** the time (in milliseconds) an in-process entry is kept (0 if the tier is disabled) */
+  private final long ttlMillis;
+  /** the memcache tier (null if it's disabled) */
+  private final MemcacheService memcacheService;
+  /** provides the current time in milliseconds */
+  private final LongSupplier clock;
+  /** the in-process tier, keyed by user email, in least recently used order */
+  private final LinkedHashMap<String, LocalEntry> entries;
+  /** the number of reads */
+  private final LongAdder readCount = new LongAdder();
+  /** the number of reads which found the user's latest upload */
+  private final LongAdder hitCount = new LongAdder();
+
+  /**
+   * Returns the cache shared by all requests, configured by system properties.
+   *
+   * @return the shared LatestBackstoryCache
+   */
+  public static LatestBackstoryCache getShared() {
+    if (shared == null) {
+      synchronized (LatestBackstoryCache.class) {
+        if (shared == null) {
+          shared = new LatestBackstoryCache(Integer.getInteger(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE),
+              TimeUnit.SECONDS.toMillis(Long.getLong(TTL_SECONDS_PROPERTY, DEFAULT_TTL_SECONDS)),
+              Boolean.parseBoolean(System.getProperty(MEMCACHE_PROPERTY, "true"))
+                  ? MemcacheServiceFactory.getMemcacheService()
+                  : null,
+              System::currentTimeMillis);
+        }
+      }
+    }
+
+    return shared;
+  }
+
+  /**
+   * Constructs a cache with only the in-process tier.
+   *
+   * @param maxSize the most users to hold
+   * @param ttlMillis the time (in milliseconds) an entry is kept (0 caches nothing)
+   * @throws IllegalArgumentException if maxSize isn't positive or ttlMillis is negative
+   */
+  public LatestBackstoryCache(int maxSize, long ttlMillis) throws IllegalArgumentException {
+    this(maxSize, ttlMillis, null, System::currentTimeMillis);
+  }
+
+  /**
+   * Constructs a cache with the given memcache tier and clock (mainly to be used for testing).
+   *
+   * @param maxSize the most users the in-process tier holds
+   * @param ttlMillis the time (in milliseconds) an in-process entry is kept (0 to disable the
+   *     in-process tier)
+   * @param memcacheService the memcache tier (null to disable it)
+   * @param clock provides the current time in milliseconds
+   * @throws IllegalArgumentException if maxSize isn't positive, ttlMillis is negative,
+   *     or clock is null
+   */
+  public LatestBackstoryCache(int maxSize, long ttlMillis, MemcacheService memcacheService,
+      LongSupplier clock) throws IllegalArgumentException {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Max size must be positive.");
+    }
+
+    if (ttlMillis < 0) {
+      throw new IllegalArgumentException("TTL cannot be negative.");
+    }
+
+    if (clock == null) {
+      throw new IllegalArgumentException("Clock cannot be null.");
+    }
+
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+    this.memcacheService = memcacheService;
+    this.clock = clock;
+    this.entries = new LinkedHashMap<String, LocalEntry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, LocalEntry> eldest) {
+        return size() > LatestBackstoryCache.this.maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the Backstories of a user's latest upload.
+   *
+   * @param userEmail the email of the user
+   * @return the Backstories of the latest upload (empty if the user hasn't uploaded anything),
+   *     or null if they aren't cached
+   */
+  public List<Backstory> get(String userEmail) {
+    readCount.increment();
+    long now = clock.getAsLong();
+
+    if (ttlMillis > 0) {
+      synchronized (entries) {
+        LocalEntry entry = entries.get(userEmail);
+        if (entry != null && now - entry.cachedMillis <= ttlMillis) {
+          hitCount.increment();
+          return Collections.unmodifiableList(entry.upload.backstories);
+        }
+      }
+    }
+
+    LatestUpload upload = getFromMemcache(userEmail);
+    if (upload == null) {
+      return null;
+    }
+
+    putLocal(userEmail, upload, now);
+    hitCount.increment();
+    return Collections.unmodifiableList(upload.backstories);
+  }
+
+  /**
+   * Caches the Backstories of an upload which was just stored, replacing the user's entry in
+   * both tiers (unless a later upload is already cached in this instance).
+   *
+   * @param userEmail the email of the user
+   * @param timestamp the time the upload was stored
+   * @param backstories the Backstories of the upload
+   * @throws IllegalArgumentException if userEmail or backstories is null
+   */
+  public void put(String userEmail, long timestamp, List<Backstory> backstories)
+      throws IllegalArgumentException {
+    store(userEmail, timestamp, backstories, SetPolicy.SET_ALWAYS);
+  }
+
+  /**
+   * Caches the Backstories of a user's latest upload as read from Datastore after a miss. As the
+   * query may not see an upload which was just stored, this never replaces an entry in memcache
+   * (or a later upload in this instance).
+   *
+   * @param userEmail the email of the user
+   * @param timestamp the time the upload was stored (0 if the user hasn't uploaded anything)
+   * @param backstories the Backstories of the upload (empty if the user hasn't uploaded anything)
+   * @throws IllegalArgumentException if userEmail or backstories is null
+   */
+  public void fill(String userEmail, long timestamp, List<Backstory> backstories)
+      throws IllegalArgumentException {
+    store(userEmail, timestamp, backstories, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+  }
+
+  /**
+   * Removes a user's latest upload from both tiers, so the next read goes to Datastore.
+   *
+   * @param userEmail the email of the user
+   */
+  public void invalidate(String userEmail) {
+    synchronized (entries) {
+      entries.remove(userEmail);
+    }
+
+    if (memcacheService != null) {
+      try {
+        memcacheService.delete(MEMCACHE_KEY_PREFIX + userEmail);
+      } catch (RuntimeException exception) {
+        System.err.println("Could not remove the latest backstory from memcache: " + exception);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of users held in the in-process tier.
+   *
+   * @return the number of cached users
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Returns the fraction of reads which were served from the cache.
+   *
+   * @return the hit rate, or 0 if there haven't been any reads
+   */
+  public double getHitRate() {
+    long reads = readCount.sum();
+    return reads == 0 ? 0 : (double) hitCount.sum() / reads;
+  }
+
+  /**
+   * Caches an upload in the in-process tier and then in memcache.
+   *
+   * @param userEmail the email of the user
+   * @param timestamp the time the upload was stored
+   * @param backstories the Backstories of the upload
+   * @param policy whether memcache entries are replaced
+   * @throws IllegalArgumentException if userEmail or backstories is null
+   */
+  private void store(String userEmail, long timestamp, List<Backstory> backstories,
+      SetPolicy policy) throws IllegalArgumentException {
+    if (userEmail == null) {
+      throw new IllegalArgumentException("User email cannot be null.");
+    }
+
+    if (backstories == null) {
+      throw new IllegalArgumentException("Backstories cannot be null.");
+    }
+
+    LatestUpload upload = new LatestUpload(timestamp, backstories);
+    if (!putLocal(userEmail, upload, clock.getAsLong())) {
+      return;
+    }
+
+    if (memcacheService != null) {
+      try {
+        memcacheService.put(MEMCACHE_KEY_PREFIX + userEmail, upload, null, policy);
+      } catch (RuntimeException exception) {
+        System.err.println("Could not write the latest backstory to memcache: " + exception);
+      }
+    }
+  }
+
+  /**
+   * Puts an upload in the in-process tier, unless a later upload of the user is already there
+   * (or the tier is disabled).
+   *
+   * @param userEmail the email of the user
+   * @param upload the upload to cache
+   * @param now the current time in milliseconds
+   * @return true, if the upload was cached or the tier is disabled; false, if a later one was kept
+   */
+  private boolean putLocal(String userEmail, LatestUpload upload, long now) {
+    if (ttlMillis == 0) {
+      return true;
+    }
+
+    synchronized (entries) {
+      LocalEntry entry = entries.get(userEmail);
+      if (entry != null && now - entry.cachedMillis <= ttlMillis
+          && entry.upload.timestamp > upload.timestamp) {
+        return false;
+      }
+
+      entries.put(userEmail, new LocalEntry(upload, now));
+      return true;
+    }
+  }
+
+  /**
+   * Reads a user's latest upload from the memcache tier.
+   *
+   * @param userEmail the email of the user
+   * @return the latest upload, or null if it isn't there (or memcache is disabled or failed)
+   */
+  private LatestUpload getFromMemcache(String userEmail) {
+    if (memcacheService == null) {
+      return null;
+    }
+
+    try {
+      Object value = memcacheService.get(MEMCACHE_KEY_PREFIX + userEmail);
+      return value instanceof LatestUpload ? (LatestUpload) value : null;
+    } catch (RuntimeException exception) {
+      System.err.println("Could not read the latest backstory from memcache: " + exception);
+      return null;
+    }
+  }
+
+  /** A user's latest upload, which is stored in memcache as is. */
+  private static final class LatestUpload implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** the time the upload was stored */
+    private final long timestamp;
+    /** the Backstories of the upload (an ArrayList, so it can be serialized) */
+    private final ArrayList<Backstory> backstories;
+
+    /**
+     * Constructs an upload.
+     *
+     * @param timestamp the time the upload was stored
+     * @param backstories the Backstories of the upload
+     */
+    private LatestUpload(long timestamp, List<Backstory> backstories) {
+      this.timestamp = timestamp;
+      this.backstories = new ArrayList<Backstory>(backstories);
+    }
+  }
+
+  /** An upload in the in-process tier, along with the time it was cached. */
+  private static final class LocalEntry {
+    /** the cached upload */
+    private final LatestUpload upload;
+    /** the time the upload was cached */
+    private final long cachedMillis;
+
+    /**
+     * Constructs an entry.
+     *
+     * @param upload the cached upload
+     * @param cachedMillis the time the upload was cached
+     */
+    private LocalEntry(LatestUpload upload, long cachedMillis) {
+      this.upload = upload;
+      this.cachedMillis = cachedMillis;
+    }
+  }
+}
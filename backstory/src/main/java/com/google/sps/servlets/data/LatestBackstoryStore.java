@@ -0,0 +1,125 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Text;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Finds the Backstories of a user's latest upload (one for each of its images), which every
+ * servlet that shows the latest upload reads through. They are read from the latest backstory
+ * cache, or from a single Datastore query on a miss (which then fills the cache).
+ */
+public final class LatestBackstoryStore {
+  /** the Datastore service the analyzed images are stored in */
+  private final DatastoreService datastoreService;
+  /** creates the query for the analyzed images */
+  private final QueryFactory queryFactory;
+  /** holds each user's latest upload */
+  private final LatestBackstoryCache latestBackstoryCache;
+  /** the most images an upload can have */
+  private final int fetchLimit;
+
+  /**
+   * Constructs a store which reads through the given cache.
+   *
+   * @param datastoreService the Datastore service the analyzed images are stored in
+   * @param queryFactory creates the query for the analyzed images
+   * @param latestBackstoryCache holds each user's latest upload
+   * @param fetchLimit the most images an upload can have
+   * @throws IllegalArgumentException if an argument is null or fetchLimit isn't positive
+   */
+  public LatestBackstoryStore(DatastoreService datastoreService, QueryFactory queryFactory,
+      LatestBackstoryCache latestBackstoryCache, int fetchLimit) throws IllegalArgumentException {
+    if (datastoreService == null || queryFactory == null || latestBackstoryCache == null) {
+      throw new IllegalArgumentException(
+          "Datastore service, query factory, and cache cannot be null.");
+    }
+
+    if (fetchLimit <= 0) {
+      throw new IllegalArgumentException("Fetch limit must be positive.");
+    }
+
+    this.datastoreService = datastoreService;
+    this.queryFactory = queryFactory;
+    this.latestBackstoryCache = latestBackstoryCache;
+    this.fetchLimit = fetchLimit;
+  }
+
+  /**
+   * Returns the Backstories of a user's latest upload.
+   *
+   * @param userEmail the email of the user
+   * @return the Backstories of the latest upload, each with its image's blob key and timestamp
+   *     (empty if the user hasn't uploaded anything)
+   */
+  public List<Backstory> getLatestBackstories(String userEmail) {
+    List<Backstory> backstories = latestBackstoryCache.get(userEmail);
+    return backstories == null ? queryLatestBackstories(userEmail) : backstories;
+  }
+
+  /**
+   * Queries Datastore for the Backstories of a user's latest upload, and caches them.
+   *
+   * @param userEmail the email of the user
+   * @return the Backstories of the latest upload (empty if the user hasn't uploaded anything)
+   */
+  private List<Backstory> queryLatestBackstories(String userEmail) {
+    // Query to find all analyzed image entities. We will filter to only return the current
+    // user's backstories.
+    // TODO: figure out what to do in the case that user emails are recycled.
+    Filter userBackstoriesFilter =
+        new FilterPredicate("userEmail", FilterOperator.EQUAL, userEmail);
+    Query query = queryFactory.newInstance("analyzed-image")
+                      .setFilter(userBackstoriesFilter)
+                      .addSort("timestamp", SortDirection.DESCENDING);
+
+    // Will limit the Query (which is sorted from newest to oldest) to the most images one upload
+    // can have. Every image of an upload is stored with the same timestamp, so the most recent
+    // upload is the results which share the timestamp of the first one.
+    PreparedQuery results = datastoreService.prepare(query);
+    List<Backstory> backstories = new ArrayList<>();
+    Object latestTimestamp = null;
+    for (Entity entity : results.asIterable(FetchOptions.Builder.withLimit(fetchLimit))) {
+      Object timestamp = entity.getProperty("timestamp");
+      if (backstories.isEmpty()) {
+        latestTimestamp = timestamp;
+      } else if (!Objects.equals(latestTimestamp, timestamp)) {
+        break;
+      }
+
+      Backstory backstory =
+          new Backstory((String) ((Text) entity.getProperty("backstory")).getValue(),
+              (String) entity.getProperty("blobKeyString"),
+              timestamp instanceof Long ? (Long) timestamp : 0);
+      backstories.add(backstory);
+    }
+
+    long timestamp = latestTimestamp instanceof Long ? (Long) latestTimestamp : 0;
+    latestBackstoryCache.fill(userEmail, timestamp, backstories);
+    return backstories;
+  }
+}
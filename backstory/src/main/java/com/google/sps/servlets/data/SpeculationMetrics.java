@@ -0,0 +1,159 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets.data;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the outcomes of speculative backstory generation: how many runs there were, how
+ * often each candidate (by the order it was launched in) won, and how the rest ended.
+ * All counters can be updated concurrently by candidates of any run.
+ */
+public final class SpeculationMetrics {
+  /** the metrics shared by every generator which isn't given its own */
+  private static final SpeculationMetrics SHARED = new SpeculationMetrics();
+
+  /** the number of runs started */
+  private final LongAdder runCount = new LongAdder();
+  /** the number of wins of each candidate index */
+  private final ConcurrentMap<Integer, LongAdder> winCounts =
+      new ConcurrentHashMap<Integer, LongAdder>();
+  /** the number of candidates rejected by story analysis */
+  private final LongAdder rejectionCount = new LongAdder();
+  /** the number of candidates which failed to generate or analyze a story */
+  private final LongAdder failureCount = new LongAdder();
+  /** the number of runs which used up their budget without a winner */
+  private final LongAdder exhaustedCount = new LongAdder();
+  /** the number of runs which passed their deadline without a winner */
+  private final LongAdder timeoutCount = new LongAdder();
+
+  /**
+   * Returns the metrics shared by every generator which isn't given its own.
+   *
+   * @return the shared SpeculationMetrics
+   */
+  public static SpeculationMetrics getShared() {
+    return SHARED;
+  }
+
+  /** Counts a started run. */
+  public void recordRun() {
+    runCount.increment();
+  }
+
+  /**
+   * Counts a win.
+   *
+   * @param candidateIndex the order the winning candidate was launched in (starting at 0)
+   */
+  public void recordWin(int candidateIndex) {
+    winCounts.computeIfAbsent(candidateIndex, (Integer index) -> new LongAdder()).increment();
+  }
+
+  /** Counts a candidate rejected by story analysis. */
+  public void recordRejection() {
+    rejectionCount.increment();
+  }
+
+  /** Counts a candidate which failed to generate or analyze a story. */
+  public void recordFailure() {
+    failureCount.increment();
+  }
+
+  /** Counts a run which used up its budget without a winner. */
+  public void recordExhausted() {
+    exhaustedCount.increment();
+  }
+
+  /** Counts a run which passed its deadline without a winner. */
+  public void recordTimeout() {
+    timeoutCount.increment();
+  }
+
+  /**
+   * Returns the number of runs started.
+   *
+   * @return the run count
+   */
+  public long getRunCount() {
+    return runCount.sum();
+  }
+
+  /**
+   * Returns the number of wins of a candidate index.
+   *
+   * @param candidateIndex the order the candidate was launched in (starting at 0)
+   * @return the number of runs that candidate won
+   */
+  public long getWinCount(int candidateIndex) {
+    LongAdder winCount = winCounts.get(candidateIndex);
+    return winCount == null ? 0 : winCount.sum();
+  }
+
+  /**
+   * Returns the number of wins of every candidate index which has won at least once.
+   *
+   * @return the win counts, ordered by candidate index
+   */
+  public Map<Integer, Long> getWinCounts() {
+    Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+
+    for (Map.Entry<Integer, LongAdder> winCount : winCounts.entrySet()) {
+      counts.put(winCount.getKey(), winCount.getValue().sum());
+    }
+
+    return counts;
+  }
+
+  /**
+   * Returns the number of candidates rejected by story analysis.
+   *
+   * @return the rejection count
+   */
+  public long getRejectionCount() {
+    return rejectionCount.sum();
+  }
+
+  /**
+   * Returns the number of candidates which failed to generate or analyze a story.
+   *
+   * @return the failure count
+   */
+  public long getFailureCount() {
+    return failureCount.sum();
+  }
+
+  /**
+   * Returns the number of runs which used up their budget without a winner.
+   *
+   * @return the exhausted run count
+   */
+  public long getExhaustedCount() {
+    return exhaustedCount.sum();
+  }
+
+  /**
+   * Returns the number of runs which passed their deadline without a winner.
+   *
+   * @return the timed out run count
+   */
+  public long getTimeoutCount() {
+    return timeoutCount.sum();
+  }
+}
@@ -0,0 +1,358 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets.data;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.sps.APINotAvailableException;
+import com.google.sps.perspective.StoryAnalysisManager;
+import com.google.sps.perspective.data.NoAppropriateStoryException;
+import com.google.sps.perspective.data.StoryDecision;
+import com.google.sps.story.StoryManager;
+import com.google.sps.story.StoryManagerURLProvider;
+import com.google.sps.story.StoryRequestAbortHandle;
+import com.google.sps.story.data.StoryEndpoint;
+import com.google.sps.story.data.StoryEndpointPool;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Generates a backstory by racing several candidates. Each candidate is sent to a different
+ * container of the endpoint pool (while there are enough available) and analyzed as soon as
+ * it arrives; the first one to pass analysis wins and the rest are cancelled. A candidate which
+ * fails or is rejected is replaced by a new one until the budget of candidates is used up.
+ *
+ * A candidate which is still waiting on its container when another wins has its request
+ * aborted, freeing its thread and container; one which has already generated its story isn't
+ * analyzed. Candidates are expected not to hedge themselves, since they're already spread
+ * across the containers.
+ */
+public final class SpeculativeBackstoryGenerator {
+  /** the system property which sets the number of candidates launched at once */
+  public static final String CANDIDATES_PROPERTY = "backstory.speculation.candidates";
+  /** the system property which sets the number of candidates launched per backstory in total */
+  public static final String BUDGET_PROPERTY = "backstory.speculation.budget";
+  /** the system property which sets the time (in milliseconds) to wait for a winner */
+  public static final String DEADLINE_PROPERTY = "backstory.speculation.deadline.millis";
+  /** the default number of candidates launched at once */
+  public static final int DEFAULT_CANDIDATES = 2;
+  /** the default number of candidates launched per backstory in total */
+  public static final int DEFAULT_BUDGET = 4;
+  /** the default time (in milliseconds) to wait for a winner */
+  public static final long DEFAULT_DEADLINE_MILLIS = 50000;
+  /** the system property which sets the number of threads of the default executor */
+  public static final String THREADS_PROPERTY = "backstory.speculation.threads";
+  /** the default number of threads of the default executor */
+  public static final int DEFAULT_THREADS = 64;
+
+  /**
+   * runs the candidates of generators which aren't given their own executor; candidates beyond
+   * its threads wait for one, and losing candidates are aborted, so threads are freed quickly
+   */
+  private static final ExecutorService CANDIDATE_EXECUTOR = Executors.newFixedThreadPool(
+      Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS),
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("story-candidate-%d").build());
+
+  /** creates the StoryManager of each candidate */
+  private final StoryManagerFactory storyManagerFactory;
+  /** creates the StoryAnalysisManager which analyzes each candidate */
+  private final StoryAnalysisManagerFactory storyAnalysisManagerFactory;
+  /** the containers the candidates are spread across */
+  private final StoryEndpointPool endpointPool;
+  /** the number of candidates launched at once */
+  private final int candidates;
+  /** the number of candidates launched per backstory in total */
+  private final int budget;
+  /** the time (in milliseconds) to wait for a winner */
+  private final long deadlineMillis;
+  /** runs the candidates */
+  private final Executor executor;
+  /** counts the outcomes of each run */
+  private final SpeculationMetrics metrics;
+
+  /**
+   * Constructs a generator which is configured by the system properties (or the defaults),
+   * spreads its candidates across the shared endpoint pool and records the shared metrics.
+   *
+   * @param storyManagerFactory creates the StoryManager of each candidate (without hedging)
+   * @param storyAnalysisManagerFactory creates the StoryAnalysisManager of each candidate
+   * @param executor runs the candidates (null for the default executor)
+   * @throws IllegalArgumentException if a factory is null or the configuration is invalid
+   */
+  public SpeculativeBackstoryGenerator(StoryManagerFactory storyManagerFactory,
+      StoryAnalysisManagerFactory storyAnalysisManagerFactory, Executor executor)
+      throws IllegalArgumentException {
+    this(storyManagerFactory, storyAnalysisManagerFactory, StoryEndpointPool.getShared(),
+        Integer.getInteger(CANDIDATES_PROPERTY, DEFAULT_CANDIDATES),
+        Integer.getInteger(BUDGET_PROPERTY, DEFAULT_BUDGET),
+        Long.getLong(DEADLINE_PROPERTY, DEFAULT_DEADLINE_MILLIS), executor,
+        SpeculationMetrics.getShared());
+  }
+
+  /**
+   * Constructs a generator with the given configuration.
+   *
+   * @param storyManagerFactory creates the StoryManager of each candidate
+   * @param storyAnalysisManagerFactory creates the StoryAnalysisManager of each candidate
+   * @param endpointPool the containers to spread the candidates across
+   * @param candidates the number of candidates launched at once
+   * @param budget the number of candidates launched per backstory in total
+   * @param deadlineMillis the time in milliseconds to wait for a winner
+   * @param executor runs the candidates (null for the default executor)
+   * @param metrics counts the outcomes of each run
+   * @throws IllegalArgumentException if a factory, endpointPool or metrics is null,
+   *     candidates or deadlineMillis isn't positive, or budget is less than candidates
+   */
+  public SpeculativeBackstoryGenerator(StoryManagerFactory storyManagerFactory,
+      StoryAnalysisManagerFactory storyAnalysisManagerFactory, StoryEndpointPool endpointPool,
+      int candidates, int budget, long deadlineMillis, Executor executor,
+      SpeculationMetrics metrics) throws IllegalArgumentException {
+    if (storyManagerFactory == null || storyAnalysisManagerFactory == null) {
+      throw new IllegalArgumentException("Factories cannot be null.");
+    }
+
+    if (endpointPool == null || metrics == null) {
+      throw new IllegalArgumentException("Endpoint pool and metrics cannot be null.");
+    }
+
+    if (candidates <= 0) {
+      throw new IllegalArgumentException("Number of candidates must be positive.");
+    }
+
+    if (budget < candidates) {
+      throw new IllegalArgumentException("Budget cannot be less than the number of candidates.");
+    }
+
+    if (deadlineMillis <= 0) {
+      throw new IllegalArgumentException("Deadline must be positive.");
+    }
+
+    this.storyManagerFactory = storyManagerFactory;
+    this.storyAnalysisManagerFactory = storyAnalysisManagerFactory;
+    this.endpointPool = endpointPool;
+    this.candidates = candidates;
+    this.budget = budget;
+    this.deadlineMillis = deadlineMillis;
+    this.executor = executor == null ? CANDIDATE_EXECUTOR : executor;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Generates a backstory from a prompt, returning the first candidate to pass analysis.
+   *
+   * @param prompt the prompt to be used in generation
+   * @param storyLength the length of the story to be generated
+   * @param temperature the temperature of the story to be generated
+   * @return the story of the winning candidate's StoryDecision
+   * @throws NoAppropriateStoryException if the budget was used up and a candidate was rejected
+   * @throws RuntimeException if every candidate failed or there was no winner by the deadline
+   */
+  public String generate(String prompt, int storyLength, double temperature)
+      throws NoAppropriateStoryException, RuntimeException {
+    Run run = new Run(prompt, storyLength, temperature);
+    metrics.recordRun();
+    run.start();
+
+    try {
+      return run.winner.get(deadlineMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException exception) {
+      run.winner.cancel(false);
+      metrics.recordTimeout();
+      throw new RuntimeException("No story passed analysis before the deadline.", exception);
+    } catch (InterruptedException exception) {
+      run.winner.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for a story.", exception);
+    } catch (ExecutionException exception) {
+      Throwable cause = exception.getCause();
+
+      if (cause instanceof NoAppropriateStoryException) {
+        throw (NoAppropriateStoryException) cause;
+      }
+
+      throw new RuntimeException("Every story candidate failed.", cause);
+    }
+  }
+
+  /**
+   * The candidates of one backstory. Launching and finishing candidates is synchronized on
+   * the run; the winner future is what cancels the candidates once it's done.
+   */
+  private final class Run {
+    /** the prompt to be used in generation */
+    private final String prompt;
+    /** the length of the story to be generated */
+    private final int storyLength;
+    /** the temperature of the story to be generated */
+    private final double temperature;
+    /** completed with the story of the first candidate to pass analysis */
+    private final CompletableFuture<String> winner = new CompletableFuture<String>();
+    /** the endpoints candidates have been sent to */
+    private final List<StoryEndpoint> usedEndpoints = new ArrayList<StoryEndpoint>();
+    /** the number of candidates launched */
+    private int launchedCount;
+    /** the number of candidates which failed or were rejected */
+    private int finishedCount;
+    /** whether any candidate was rejected by analysis */
+    private boolean anyRejected;
+
+    /**
+     * Constructs the run of one backstory.
+     *
+     * @param prompt the prompt to be used in generation
+     * @param storyLength the length of the story to be generated
+     * @param temperature the temperature of the story to be generated
+     */
+    Run(String prompt, int storyLength, double temperature) {
+      this.prompt = prompt;
+      this.storyLength = storyLength;
+      this.temperature = temperature;
+    }
+
+    /** Launches the first candidates. */
+    void start() {
+      for (int i = 0; i < candidates; i++) {
+        launch();
+      }
+    }
+
+    /**
+     * Launches the next candidate on the least used endpoint, unless there is already a winner
+     * or the budget is used up.
+     */
+    void launch() {
+      int candidateIndex;
+      StoryEndpoint endpoint;
+
+      synchronized (this) {
+        if (winner.isDone() || launchedCount >= budget) {
+          return;
+        }
+
+        candidateIndex = launchedCount++;
+        endpoint = endpointPool.selectAvoiding(usedEndpoints);
+        usedEndpoints.add(endpoint);
+      }
+
+      try {
+        executor.execute(() -> runCandidate(candidateIndex, endpoint));
+      } catch (RejectedExecutionException exception) {
+        metrics.recordFailure();
+        finishCandidate(false);
+      }
+    }
+
+    /**
+     * Generates and analyzes a candidate, completing the run if it passes and replacing it
+     * with a new candidate if it doesn't. The candidate's request is aborted once there's a
+     * winner, which isn't counted as a failure.
+     *
+     * @param candidateIndex the order the candidate was launched in
+     * @param endpoint the endpoint to generate the candidate on
+     */
+    void runCandidate(int candidateIndex, StoryEndpoint endpoint) {
+      if (winner.isDone()) {
+        return;
+      }
+
+      StoryRequestAbortHandle abortHandle = new StoryRequestAbortHandle();
+      winner.whenComplete((story, failure) -> abortHandle.abort());
+
+      try {
+        StoryManager storyManager = storyManagerFactory.newInstance(prompt, storyLength,
+            temperature, new StoryManagerURLProvider(endpointPool, endpoint));
+        String rawBackstory;
+
+        abortHandle.register();
+        try {
+          rawBackstory = storyManager.generateText();
+        } finally {
+          abortHandle.finish();
+          abortHandle.unregister();
+        }
+
+        if (rawBackstory == null || rawBackstory.isEmpty()) {
+          throw new RuntimeException("Generated story was empty.");
+        }
+
+        // a candidate which finishes after the winner isn't analyzed
+        if (winner.isDone()) {
+          return;
+        }
+
+        StoryAnalysisManager storyAnalysisManager = storyAnalysisManagerFactory.newInstance();
+        StoryDecision storyDecision = storyAnalysisManager.generateDecision(rawBackstory);
+
+        if (winner.complete(storyDecision.getStory())) {
+          metrics.recordWin(candidateIndex);
+        }
+      } catch (NoAppropriateStoryException exception) {
+        metrics.recordRejection();
+        finishCandidate(true);
+      } catch (APINotAvailableException | RuntimeException exception) {
+        // the candidate lost while waiting on its container
+        if (abortHandle.isAborted()) {
+          return;
+        }
+
+        System.err.println(exception);
+        metrics.recordFailure();
+        finishCandidate(false);
+      }
+    }
+
+    /**
+     * Replaces a candidate which failed or was rejected, and completes the run once every
+     * candidate of the budget has finished without a winner.
+     *
+     * @param rejected whether the candidate was rejected by analysis
+     */
+    void finishCandidate(boolean rejected) {
+      synchronized (this) {
+        finishedCount++;
+        anyRejected |= rejected;
+      }
+
+      launch();
+
+      boolean exhausted;
+      boolean rejectedExhausted;
+
+      synchronized (this) {
+        exhausted = finishedCount == launchedCount && launchedCount >= budget;
+        rejectedExhausted = anyRejected;
+      }
+
+      if (!exhausted) {
+        return;
+      }
+
+      Exception exception = rejectedExhausted
+          ? new NoAppropriateStoryException("No story candidate passed analysis.")
+          : new RuntimeException("Every story candidate failed to generate.");
+
+      if (winner.completeExceptionally(exception)) {
+        metrics.recordExhausted();
+      }
+    }
+  }
+}
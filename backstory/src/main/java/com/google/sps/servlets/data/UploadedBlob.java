@@ -0,0 +1,75 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets.data;
+
+import com.google.appengine.api.blobstore.BlobKey;
+
+/**
+ * A BLOB uploaded in the current request, along with its size. The key and size are resolved
+ * once per request, so reading the BLOB doesn't have to look up its uploads or BlobInfo again.
+ */
+public final class UploadedBlob {
+  /** the key of the BLOB */
+  private final BlobKey blobKey;
+  /** the size of the BLOB in bytes */
+  private final long size;
+
+  /**
+   * Creates a handle for an uploaded BLOB.
+   *
+   * @param blobKey the key of the BLOB.
+   * @param size the size of the BLOB in bytes, from its BlobInfo.
+   * @throws IllegalArgumentException if blobKey is null or size is negative.
+   */
+  public UploadedBlob(BlobKey blobKey, long size) throws IllegalArgumentException {
+    if (blobKey == null) {
+      throw new IllegalArgumentException("Blob key cannot be null.");
+    }
+
+    if (size < 0) {
+      throw new IllegalArgumentException("Size cannot be negative.");
+    }
+
+    this.blobKey = blobKey;
+    this.size = size;
+  }
+
+  /**
+   * Get the key of the BLOB.
+   *
+   * @return the BlobKey of the uploaded BLOB.
+   */
+  public BlobKey getBlobKey() {
+    return blobKey;
+  }
+
+  /**
+   * Get the key of the BLOB in String form, which is used to serve it back to the front-end.
+   *
+   * @return the blob key in String form.
+   */
+  public String getBlobKeyString() {
+    return blobKey.getKeyString();
+  }
+
+  /**
+   * Get the size of the BLOB.
+   *
+   * @return the size of the BLOB in bytes.
+   */
+  public long getSize() {
+    return size;
+  }
+}
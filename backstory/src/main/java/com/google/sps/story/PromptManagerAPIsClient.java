@@ -13,21 +13,39 @@
 // limitations under the License.
 package com.google.sps.story;
 
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.sps.APINotAvailableException;
 import com.google.sps.story.data.*;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Facilitates API calls to Cloud Natural Language
  * and Datamuse through a single object.
  */
 public class PromptManagerAPIsClient {
+  /** Bounded executor shared by all clients for concurrent word classification */
+  private static final ExecutorService CLASSIFICATION_EXECUTOR =
+      Executors.newFixedThreadPool(NLServiceClient.DEFAULT_MAX_CONCURRENT_CALLS,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("nl-classify-%d").build());
+
+  /** Word type cache shared by all clients (with a Datastore tier when on App Engine) */
+  private static final WordTypeCache SHARED_WORD_TYPE_CACHE = createSharedWordTypeCache();
+
   /** Client object for word classification */
   private NLServiceClient nlServiceClient;
+  /** Cache of word classifications (null if words are always classified) */
+  private WordTypeCache wordTypeCache = SHARED_WORD_TYPE_CACHE;
   /** Client object for word fetching */
   private DatamuseRequestClient datamuseRequestClient;
 
@@ -37,8 +55,8 @@ public class PromptManagerAPIsClient {
    * @throws IOException Exception for NLServiceClient instantiation error.
    */
   public PromptManagerAPIsClient() throws IOException {
-    // Instantiate datamuseRequestClient
-    datamuseRequestClient = new DatamuseRequestClient();
+    // Use the process-wide cache of related words
+    datamuseRequestClient = CachingDatamuseRequestClient.getSharedInstance();
   }
 
   /**
@@ -50,6 +68,15 @@ public class PromptManagerAPIsClient {
     this.nlServiceClient = nlServiceClient;
   }
 
+  /**
+   * Sets WordTypeCache instance for word classifying.
+   *
+   * @param wordTypeCache The WordTypeCache instance to set (null disables caching).
+   */
+  public void setWordTypeCache(WordTypeCache wordTypeCache) {
+    this.wordTypeCache = wordTypeCache;
+  }
+
   /**
    * Sets DatamuseRequestClient instance for word classifying.
    *
@@ -60,20 +87,137 @@ public class PromptManagerAPIsClient {
   }
 
   /**
-   * Classifies an input of strings based on their part of speech.
+   * Classifies an input of strings based on their part of speech. Single words
+   * are looked up in the word type cache first and only the misses are classified
+   * by the NL API.
    *
    * @param words A list of Strings containing keywords for prompts.
    * @return A mapping of WordTypes to given words.
    * @throws IOException Exception for network problem.
    */
   public Map<WordType, List<String>> groupByWordType(List<String> words) throws IOException {
+    if (wordTypeCache == null) {
+      return classifyWords(words);
+    }
+
+    // words with whitespace are grouped without calling the API, so they aren't cached
+    List<String> singleWords = new ArrayList<String>();
+    List<String> wordsToClassify = new ArrayList<String>();
+
+    for (String word : words) {
+      if (hasWhitespace(word)) {
+        wordsToClassify.add(word);
+      } else {
+        singleWords.add(word);
+      }
+    }
+
+    Map<String, WordType> wordTypes = new HashMap<String, WordType>();
+    wordTypes.putAll(wordTypeCache.getAll(singleWords));
+
+    for (String word : singleWords) {
+      if (!wordTypes.containsKey(word)) {
+        wordsToClassify.add(word);
+      }
+    }
+
+    if (!wordsToClassify.isEmpty()) {
+      Map<WordType, List<String>> classifiedWords = classifyWords(wordsToClassify);
+      Map<String, WordType> newWordTypes = new HashMap<String, WordType>();
+
+      for (Map.Entry<WordType, List<String>> grouping : classifiedWords.entrySet()) {
+        for (String word : grouping.getValue()) {
+          wordTypes.put(word, grouping.getKey());
+
+          // unusable single words aren't cached since they may come from a timed-out call
+          if (!hasWhitespace(word) && grouping.getKey() != WordType.UNUSABLE) {
+            newWordTypes.put(word, grouping.getKey());
+          }
+        }
+      }
+
+      wordTypeCache.putAll(newWordTypes);
+    }
+
+    // group words with whitespace first and then single words (each in input order)
+    // so the groupings are the same as the ones from NLServiceClient
+    Map<WordType, List<String>> groupings = new HashMap<WordType, List<String>>();
+
+    for (String word : words) {
+      if (hasWhitespace(word)) {
+        addToGroupings(groupings, wordTypes.get(word), word);
+      }
+    }
+
+    for (String word : singleWords) {
+      addToGroupings(groupings, wordTypes.get(word), word);
+    }
+
+    return groupings;
+  }
+
+  /**
+   * Classifies the words with the NLServiceClient. The default client uses the
+   * process-wide LanguageServiceClient, so it's kept open between calls.
+   *
+   * @param words A list of Strings to classify.
+   * @return A mapping of WordTypes to given words.
+   * @throws IOException Exception for network problem.
+   */
+  private Map<WordType, List<String>> classifyWords(List<String> words) throws IOException {
     if (nlServiceClient == null) {
       nlServiceClient = new NLServiceClient();
+      nlServiceClient.enableBatchClassification();
+      nlServiceClient.enableConcurrentClassification(
+          CLASSIFICATION_EXECUTOR, NLServiceClient.DEFAULT_CALL_DEADLINE_MILLIS);
     }
-    Map<WordType, List<String>> groupings = nlServiceClient.groupByWordType(words);
-    nlServiceClient.close();
 
-    return groupings;
+    return nlServiceClient.groupByWordType(words);
+  }
+
+  /**
+   * Adds a word to the list for its word type.
+   *
+   * @param groupings A mapping of WordTypes to words.
+   * @param type The WordType of the word.
+   * @param word The word to add.
+   */
+  private void addToGroupings(Map<WordType, List<String>> groupings, WordType type, String word) {
+    List<String> wordList = groupings.get(type);
+
+    if (wordList == null) {
+      wordList = new ArrayList<String>();
+      groupings.put(type, wordList);
+    }
+
+    wordList.add(word);
+  }
+
+  /**
+   * Checks if a word contains whitespace (and so isn't a single word).
+   *
+   * @param word The word to check.
+   * @return Whether or not the word contains whitespace.
+   */
+  private boolean hasWhitespace(String word) {
+    return word.matches("(?s).*\\s.*");
+  }
+
+  /**
+   * Creates the shared word type cache, using Datastore as a second tier
+   * when running on App Engine (including the development server).
+   *
+   * @return The shared WordTypeCache.
+   */
+  private static WordTypeCache createSharedWordTypeCache() {
+    WordTypeCache cache =
+        new WordTypeCache(WordTypeCache.DEFAULT_MAX_SIZE, WordTypeCache.DEFAULT_TTL_MILLIS);
+
+    if (SystemProperty.environment.value() != null) {
+      cache.setDatastoreService(DatastoreServiceFactory.getDatastoreService());
+    }
+
+    return cache;
   }
 
   /**
@@ -99,12 +243,40 @@ public class PromptManagerAPIsClient {
     }
 
     if (isRandom) {
-      List<String> adjectiveList = Arrays.asList(relatedAdjectives);
-      Collections.shuffle(adjectiveList);
-      String[] shuffledAdjectives = adjectiveList.toArray(new String[adjectiveList.size()]);
-      return shuffledAdjectives;
+      return shuffle(relatedAdjectives);
     } else {
       return relatedAdjectives;
     }
   }
+
+  /**
+   * Asynchronously fetches related adjectives to a given noun, so that
+   * adjectives for several nouns can be requested at once.
+   *
+   * @param noun The noun to get adjectives for
+   * @param cap A count of how many adjectives to return
+   * @param isRandom Determines whether or not to shuffle output
+   * @return A future which completes with an array of related adjectives.
+   * @throws IllegalArgumentException Exception for improper input to API.
+   */
+  public CompletableFuture<String[]> fetchRelatedAdjectivesAsync(
+      String noun, int cap, boolean isRandom) throws IllegalArgumentException {
+    String storytellingTopic = DatamuseRequestClient.getRandomStorytellingTopic();
+
+    return datamuseRequestClient
+        .fetchRelatedWordsAsync(noun, DatamuseRelatedWordType.ADJECTIVE, cap, storytellingTopic)
+        .thenApply(relatedAdjectives -> isRandom ? shuffle(relatedAdjectives) : relatedAdjectives);
+  }
+
+  /**
+   * Shuffles an array of words.
+   *
+   * @param words The words to shuffle.
+   * @return A shuffled copy of the words.
+   */
+  private String[] shuffle(String[] words) {
+    List<String> wordList = new ArrayList<String>(Arrays.asList(words));
+    Collections.shuffle(wordList);
+    return wordList.toArray(new String[wordList.size()]);
+  }
 }
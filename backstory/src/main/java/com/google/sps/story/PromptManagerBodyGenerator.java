@@ -15,12 +15,12 @@ package com.google.sps.story;
 
 import com.google.sps.story.data.*;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Constructs body of prompt given input keywords.
@@ -41,35 +41,14 @@ public class PromptManagerBodyGenerator {
   private List<String> nouns;
   private Map<WordType, List<String>> typeMap;
 
-  /** Minimum number of nouns for descriptive method. */
-  private final int MINIMUM_NOUNS = 3;
+  /** Minimum number of nouns for descriptive method (enough to fill any default template). */
+  private final int MINIMUM_NOUNS = StoryTemplateStore.MAX_PROMPT_NOUN_SLOTS;
 
   /** Final output string. */
   private String outputBody = "";
 
-  // TODO: Move these to external file for long term integration.
-  /** Templates for introductory sentence completion */
-  private final static List<String> INTRO_TEMPLATES = Collections.unmodifiableList(
-      Arrays.asList("a <adj> <noun> as well as a <adj> <noun> decided to come together.",
-          "a <adj> <adj> <noun> and a <adj> <adj> <noun> appeared all at once. "));
-
-  /** Templates for introductory sentence completion with gerunds included */
-  private final static List<String> INTRO_TEMPLATES_WITH_GERUNDS = Collections.unmodifiableList(
-      Arrays.asList("there was a <adj> <adj> <noun> <gerund> alongside a <adj> <noun>.",
-          "a <adj> <noun> as well as a <gerund> <adj> <noun> were together."));
-
-  /** Templates for second sentence. */
-  private final static List<String> SECOND_TEMPLATES = Collections.unmodifiableList(
-      Arrays.asList("A <adj> <noun> was also present, quite an interesting scene.",
-          "One must not forget the <adj> <noun>, which simply cannot be ignored."));
-
-  /** Templates for list method sentence endings. */
-  private final static List<String> SIMPLE_ENDINGS =
-      Collections.unmodifiableList(Arrays.asList("were all really quite interesting.",
-          "all came together in one place.", "were all together at once."));
-
-  /** Default ending for empty string return. */
-  private final static String EMPTY_ENDING = "a hectic, unrecognizable scene took place.";
+  /** Compiled templates for the prompt body. */
+  private StoryTemplateStore templateStore;
 
   /**
    * Initializes fields.
@@ -91,6 +70,15 @@ public class PromptManagerBodyGenerator {
     this.promptManagerAPIsClient = promptManagerAPIsClient;
   }
 
+  /**
+   * Sets the store of templates to build the prompt body from.
+   *
+   * @param templateStore StoryTemplateStore instance.
+   */
+  public void setTemplateStore(StoryTemplateStore templateStore) {
+    this.templateStore = templateStore;
+  }
+
   /**
    * Generates prompt body using given labels. If randomness
    * is disabled, the first of each applicable template type
@@ -130,54 +118,74 @@ public class PromptManagerBodyGenerator {
 
   /**
    * Generates descriptive prompt body using adjective generation.
+   * Only templates with no more noun and gerund slots than there are nouns and
+   * gerunds are used. Adjectives for every noun slot of the chosen templates are
+   * requested at once, and the body is then filled in a single pass.
    *
    * @return Completed prompt body.
    */
   private String makeDescriptiveTemplate() {
-    try {
-      // If gerunds are absent use noun-only templates.
-      if (gerunds == null) {
-        outputBody = getTemplate(INTRO_TEMPLATES);
-      } else {
-        outputBody = getTemplate(INTRO_TEMPLATES_WITH_GERUNDS);
-      }
-      outputBody += " " + getTemplate(SECOND_TEMPLATES);
-
-      while (true) {
-        // Replace gerund tag with first available from list.
-        if (outputBody.contains("<gerund>")) {
-          String gerund = gerunds.remove(0).toLowerCase();
-
-          outputBody = outputBody.replaceFirst("<gerund>", gerund);
+    // Use list method if no templates can be filled with the given words.
+    List<StoryTemplate> secondTemplates = getTemplates(StoryTemplateStore.SECOND, nouns.size(), 0);
+    if (secondTemplates.isEmpty()) {
+      return makeListTemplate();
+    }
 
-          // Replace double-adjective noun case with first available noun and fetched adjectives.
-        } else if (outputBody.contains("<adj> <adj> <noun>")) {
-          String doubleAdjectiveNoun = nouns.remove(0).toLowerCase();
-          String[] relatedAdjectives = promptManagerAPIsClient.fetchRelatedAdjectives(
-              doubleAdjectiveNoun, 2, isTemplateRandomized);
+    // Leave enough nouns after the introduction for the shortest second sentence.
+    int secondNounSlots = Integer.MAX_VALUE;
+    for (StoryTemplate template : secondTemplates) {
+      secondNounSlots = Math.min(secondNounSlots, template.getNounSlotCount());
+    }
 
-          doubleAdjectiveNoun =
-              relatedAdjectives[0] + " " + relatedAdjectives[1] + " " + doubleAdjectiveNoun;
-          outputBody = outputBody.replaceFirst("<adj> <adj> <noun>", doubleAdjectiveNoun);
+    List<StoryTemplate> introTemplates;
+    // If gerunds are absent use noun-only templates.
+    if (gerunds == null || gerunds.isEmpty()) {
+      introTemplates = getTemplates(StoryTemplateStore.INTRO, nouns.size() - secondNounSlots, 0);
+    } else {
+      introTemplates = getTemplates(
+          StoryTemplateStore.INTRO_WITH_GERUNDS, nouns.size() - secondNounSlots, gerunds.size());
+    }
 
-          // Replace single-adjective noun case with first available noun and fetched adjective.
-        } else if (outputBody.contains("<adj> <noun>")) {
-          String singleAdjectiveNoun = nouns.remove(0).toLowerCase();
-          String[] relatedAdjectives = promptManagerAPIsClient.fetchRelatedAdjectives(
-              singleAdjectiveNoun, 1, isTemplateRandomized);
+    if (introTemplates.isEmpty()) {
+      return makeListTemplate();
+    }
 
-          singleAdjectiveNoun = relatedAdjectives[0] + " " + singleAdjectiveNoun;
-          outputBody = outputBody.replaceFirst("<adj> <noun>", singleAdjectiveNoun);
+    StoryTemplate[] templates = new StoryTemplate[2];
+    templates[0] = chooseTemplate(introTemplates);
+    templates[1] = chooseTemplate(getTemplates(
+        StoryTemplateStore.SECOND, nouns.size() - templates[0].getNounSlotCount(), 0));
 
-          // Leave once tags are all replaced
-        } else {
-          break;
+    try {
+      // Assign nouns in order and request the adjectives each one needs.
+      List<String> slotNouns = new ArrayList<String>();
+      List<CompletableFuture<String[]>> adjectiveFutures =
+          new ArrayList<CompletableFuture<String[]>>();
+      for (StoryTemplate template : templates) {
+        for (int nounSlot = 0; nounSlot < template.getNounSlotCount(); nounSlot++) {
+          String noun = nouns.get(slotNouns.size()).toLowerCase();
+          int adjectiveCount = template.getAdjectiveCount(nounSlot);
+          slotNouns.add(noun);
+          // Nouns without adjectives don't need a request.
+          if (adjectiveCount == 0) {
+            adjectiveFutures.add(CompletableFuture.completedFuture(new String[0]));
+          } else {
+            adjectiveFutures.add(promptManagerAPIsClient.fetchRelatedAdjectivesAsync(
+                noun, adjectiveCount, isTemplateRandomized));
+          }
         }
       }
 
+      // Fill every slot in one pass.
+      SlotFiller slotFiller = new SlotFiller(slotNouns, adjectiveFutures);
+      StringBuilder body = new StringBuilder();
+      templates[0].renderTo(body, slotFiller);
+      body.append(' ');
+      templates[1].renderTo(body, slotFiller);
+
+      outputBody = body.toString();
       return outputBody;
-    } catch (Exception e) {
-      // In case of network exception, use list method.
+    } catch (IllegalArgumentException | CompletionException e) {
+      // In case a noun is rejected or of network exception, use list method.
       return makeListTemplate();
     }
   }
@@ -190,14 +198,14 @@ public class PromptManagerBodyGenerator {
   private String makeListTemplate() {
     // Use specific template if empty list is given.
     if (keywords.size() == 0) {
-      outputBody = EMPTY_ENDING;
+      outputBody = getTemplate(StoryTemplateStore.EMPTY_ENDING).render();
       // List single keyword if given.
     } else if (keywords.size() == 1) {
       outputBody = "a " + keywords.get(0) + " was present.";
       // List two keywords if given.
     } else if (keywords.size() == 2) {
       outputBody += "a " + keywords.get(0) + " as well as a " + keywords.get(1) + " ";
-      outputBody += getTemplate(SIMPLE_ENDINGS);
+      outputBody += getTemplate(StoryTemplateStore.SIMPLE_ENDING).render();
 
     } else {
       // Iterate through given keywords if over size 2.
@@ -207,22 +215,97 @@ public class PromptManagerBodyGenerator {
       outputBody += "as well as a " + keywords.get(keywords.size() - 1) + " ";
 
       // Get ending template.
-      outputBody += getTemplate(SIMPLE_ENDINGS);
+      outputBody += getTemplate(StoryTemplateStore.SIMPLE_ENDING).render();
     }
     return outputBody;
   }
 
   /**
-   * Obtains either the first available or a randomly selected template from the list.
+   * Obtains either the first available or a randomly selected template from a section.
    *
-   * @param templateList List of templates to choose from.
+   * @param section Name of the section of templates to choose from.
    * @return Template obtained.
    */
-  private String getTemplate(List<String> templateList) {
+  private StoryTemplate getTemplate(String section) {
+    return chooseTemplate(getTemplates(section, Integer.MAX_VALUE, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Obtains the templates of a section which have at most the given number
+   * of noun and gerund slots.
+   *
+   * @param section Name of the section of templates to choose from.
+   * @param maxNounSlots Most noun slots a template may have.
+   * @param maxGerundSlots Most gerund slots a template may have.
+   * @return Templates which fit, in file order.
+   */
+  private List<StoryTemplate> getTemplates(String section, int maxNounSlots, int maxGerundSlots) {
+    if (templateStore == null) {
+      templateStore = StoryTemplateStore.getDefault();
+    }
+
+    List<StoryTemplate> templateList = new ArrayList<StoryTemplate>();
+    for (StoryTemplate template : templateStore.getTemplates(section)) {
+      if (template.getNounSlotCount() <= maxNounSlots
+          && template.getGerundSlotCount() <= maxGerundSlots) {
+        templateList.add(template);
+      }
+    }
+    return templateList;
+  }
+
+  /**
+   * Chooses either the first or a randomly selected template from a non-empty list.
+   *
+   * @param templateList Templates to choose from.
+   * @return Template chosen.
+   */
+  private StoryTemplate chooseTemplate(List<StoryTemplate> templateList) {
     if (isTemplateRandomized) {
       return templateList.get(templateChooser.nextInt(templateList.size()));
     } else {
       return templateList.get(0);
     }
   }
+
+  /**
+   * Fills noun slots with the assigned nouns and their fetched adjectives,
+   * and gerund slots with the first available gerunds.
+   */
+  private final class SlotFiller implements StoryTemplate.SlotValues {
+    /** Nouns in the order their slots appear. */
+    private final List<String> slotNouns;
+    /** Adjectives for each noun. */
+    private final List<CompletableFuture<String[]>> adjectiveFutures;
+    /** Index of the next noun slot. */
+    private int nounIndex = 0;
+    /** Index of the next gerund slot. */
+    private int gerundIndex = 0;
+
+    /**
+     * Initializes fields.
+     *
+     * @param slotNouns Nouns in the order their slots appear.
+     * @param adjectiveFutures Adjectives for each noun.
+     */
+    private SlotFiller(List<String> slotNouns, List<CompletableFuture<String[]>> adjectiveFutures) {
+      this.slotNouns = slotNouns;
+      this.adjectiveFutures = adjectiveFutures;
+    }
+
+    @Override
+    public void appendNoun(StringBuilder out, int adjectiveCount) {
+      String[] relatedAdjectives = adjectiveFutures.get(nounIndex).join();
+      // Datamuse may know fewer related adjectives than were asked for.
+      for (int index = 0; index < Math.min(adjectiveCount, relatedAdjectives.length); index++) {
+        out.append(relatedAdjectives[index]).append(' ');
+      }
+      out.append(slotNouns.get(nounIndex++));
+    }
+
+    @Override
+    public void appendGerund(StringBuilder out) {
+      out.append(gerunds.get(gerundIndex++).toLowerCase());
+    }
+  }
 }
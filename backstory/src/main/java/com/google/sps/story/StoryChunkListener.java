@@ -0,0 +1,30 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import java.io.IOException;
+
+/**
+ * Receives the generated text of a story as it streams in.
+ */
+public interface StoryChunkListener {
+  /**
+   * Called with each chunk of generated text, in order.
+   *
+   * @param chunk the next chunk of generated text.
+   * @throws IOException if the chunk could not be passed on (e.g. the client disconnected).
+   */
+  public void onChunk(String chunk) throws IOException;
+}
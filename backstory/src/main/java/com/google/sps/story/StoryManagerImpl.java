@@ -24,17 +24,51 @@ import com.google.auth.http.HttpCredentialsAdapter;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.IdTokenCredentials;
 import com.google.auth.oauth2.IdTokenProvider;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
+import com.google.sps.story.data.StoryEndpoint;
+import com.google.sps.story.data.StoryHedgingPolicy;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
  * Object which generates text through interface with Cloud Contained
  * GPT-2 Model and indication of associated parameters.
  */
-public final class StoryManagerImpl implements StoryManager {
+public final class StoryManagerImpl implements StreamingStoryManager {
+  /** The time (in milliseconds) a streamed response may go without sending a chunk. */
+  private static final int STREAM_READ_TIMEOUT_MILLIS = 30000;
+  /** The content type of a streamed response: one JSON object with a "text" chunk per line. */
+  private static final String STREAM_CONTENT_TYPE = "application/x-ndjson";
+
+  /** The system property which sets the number of threads sending hedged requests. */
+  public static final String GENERATION_THREADS_PROPERTY = "backstory.story.hedge.threads";
+  /** The default number of threads sending hedged requests. */
+  public static final int DEFAULT_GENERATION_THREADS = 64;
+
+  /**
+   * Threads which send hedged requests. Losing requests are aborted, so threads are freed
+   * as soon as a generation is decided; requests beyond the cap wait for a free thread.
+   */
+  private static final ExecutorService GENERATION_EXECUTOR = Executors.newFixedThreadPool(
+      Integer.getInteger(GENERATION_THREADS_PROPERTY, DEFAULT_GENERATION_THREADS),
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("story-generation-%d").build());
+
   /** String to indicate basis for text generation */
   private String prefix;
   /** Maximum character length of generation */
@@ -46,6 +80,10 @@ public final class StoryManagerImpl implements StoryManager {
 
   /** requestFactory - Builds and facilitates authenticated post requests. */
   private StoryManagerRequestFactory requestFactory;
+  /** Decides when requests are hedged (null if hedging is off). */
+  private StoryHedgingPolicy hedgingPolicy;
+  /** Sends the requests of hedged generations. */
+  private Executor generationExecutor = GENERATION_EXECUTOR;
 
   /**
    * Instantiate StoryManager.
@@ -62,7 +100,7 @@ public final class StoryManagerImpl implements StoryManager {
     this.prefix = prefix;
     this.maxTextLength = maxLength;
     this.temperature = temperature;
-    requestFactory = new StoryManagerRequestFactoryImpl();
+    requestFactory = StoryManagerRequestFactoryImpl.getSharedInstance();
 
     if (prefix == null) {
       throw new IllegalArgumentException("Prefix cannot be null.");
@@ -82,22 +120,47 @@ public final class StoryManagerImpl implements StoryManager {
   /**
    * Makes a post request with a JSON including GPT2 Parameters
    *
+   * @param endpoint The container to send the request to.
+   * @param requestBody The JSON body of the request.
+   * @param timeoutMillis The connect and read timeout in milliseconds (0 to wait indefinitely).
+   * @param abortHandle The handle the request can be aborted through (null if it can't be).
    * @return HttpResponse The reponse from the Generation server expected to include
    *          a "text" field with the generated text.
    * @throws IOException If there's an error with HTTP.
    */
-  private HttpResponse requestGeneratedText() throws IOException {
-    // Form JSON body using generation parameters
-    String requestBody = makeRequestBody(prefix, maxTextLength, temperature);
-
+  private HttpResponse requestGeneratedText(StoryEndpoint endpoint, String requestBody,
+      int timeoutMillis, StoryRequestAbortHandle abortHandle) throws IOException {
     // Build Request with Adapter and JSON Input
-    HttpRequest request = requestFactory.newInstance(requestBody, URLProvider.getCurrentURL());
+    HttpRequest request = requestFactory.newInstance(requestBody, endpoint.getURL());
     request.getHeaders().setContentType("application/json");
 
     // Wait until response received
-    request.setConnectTimeout(0);
-    request.setReadTimeout(0);
-    return request.execute();
+    request.setConnectTimeout(timeoutMillis);
+    request.setReadTimeout(timeoutMillis);
+
+    // Record the outcome so unhealthy containers are avoided
+    endpoint.recordStart();
+    long startTime = System.nanoTime();
+
+    try {
+      HttpResponse response = request.execute();
+      long latencyNanos = System.nanoTime() - startTime;
+      endpoint.recordSuccess(latencyNanos);
+
+      if (hedgingPolicy != null) {
+        hedgingPolicy.record(latencyNanos);
+      }
+
+      return response;
+    } catch (IOException | RuntimeException exception) {
+      // An aborted request was abandoned, so it says nothing about the container's health
+      if (abortHandle != null && abortHandle.isAborted()) {
+        endpoint.recordAbandoned();
+      } else {
+        endpoint.recordFailure(System.nanoTime() - startTime);
+      }
+      throw exception;
+    }
   }
 
   /**
@@ -107,13 +170,217 @@ public final class StoryManagerImpl implements StoryManager {
    * @throws RuntimeException If cannot convert from JSON.
    */
   public String generateText() throws RuntimeException {
+    if (hedgingPolicy != null) {
+      return generateHedgedText();
+    }
+
     // Obtain response from Server POST Request
     HttpResponse outputResponse;
     try {
-      outputResponse = requestGeneratedText();
+      // Form JSON body using generation parameters
+      String requestBody = makeRequestBody(prefix, maxTextLength, temperature);
+      // The caller may abort the request through a handle registered for this thread
+      outputResponse = requestGeneratedText(URLProvider.getCurrentEndpoint(), requestBody, 0,
+          StoryRequestAbortHandle.getCurrent());
     } catch (IOException serverException) {
       throw new RuntimeException("Error with server", serverException);
     }
+    return parseGeneratedText(outputResponse);
+  }
+
+  /**
+   * Returns generated text, sending a duplicate request to another container if the
+   * current one hasn't answered within the hedge delay. The first text to arrive is
+   * used; the other request is dropped if it hasn't been sent yet, or else aborted.
+   * Both requests are aborted if the deadline passes.
+   *
+   * @return String Generated output text.
+   * @throws RuntimeException If every request failed or the deadline passed.
+   */
+  private String generateHedgedText() throws RuntimeException {
+    long deadlineMillis = hedgingPolicy.getDeadlineMillis();
+    long startTime = System.nanoTime();
+    CompletableFuture<String> winner = new CompletableFuture<String>();
+    AtomicInteger launchedCount = new AtomicInteger(1);
+    AtomicInteger failedCount = new AtomicInteger();
+
+    StoryEndpoint primaryEndpoint = URLProvider.getCurrentEndpoint();
+    sendHedgedRequest(primaryEndpoint, winner, launchedCount, failedCount);
+
+    try {
+      try {
+        return winner.get(hedgingPolicy.getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException slowPrimary) {
+        URLProvider.cycleURL();
+        StoryEndpoint hedgeEndpoint = URLProvider.getCurrentEndpoint();
+
+        // Only hedge if there's another container and the primary hasn't failed meanwhile
+        if (hedgeEndpoint != primaryEndpoint) {
+          launchedCount.incrementAndGet();
+
+          if (!winner.isDone()) {
+            sendHedgedRequest(hedgeEndpoint, winner, launchedCount, failedCount);
+          }
+        }
+      }
+
+      long remainingMillis =
+          deadlineMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+      return winner.get(Math.max(remainingMillis, 0), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException deadlineException) {
+      winner.cancel(false);
+      throw new RuntimeException("Story generation timed out", deadlineException);
+    } catch (InterruptedException interruptedException) {
+      winner.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted during story generation", interruptedException);
+    } catch (ExecutionException generationException) {
+      Throwable cause = generationException.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException("Error with server", cause);
+    }
+  }
+
+  /**
+   * Sends one of the requests of a hedged generation on the generation executor. The first
+   * request to produce text completes the winner; the winner only fails once every launched
+   * request has failed. A request which starts after the winner is decided is dropped, and
+   * one which is still in flight when it's decided is aborted, freeing its thread.
+   *
+   * @param endpoint The container to send the request to.
+   * @param winner Completed with the first generated text.
+   * @param launchedCount The number of requests launched for this generation.
+   * @param failedCount The number of those requests which failed.
+   */
+  private void sendHedgedRequest(StoryEndpoint endpoint, CompletableFuture<String> winner,
+      AtomicInteger launchedCount, AtomicInteger failedCount) {
+    int timeoutMillis = (int) Math.min(hedgingPolicy.getDeadlineMillis(), Integer.MAX_VALUE);
+    String requestBody = makeRequestBody(prefix, maxTextLength, temperature);
+
+    StoryRequestAbortHandle abortHandle = new StoryRequestAbortHandle();
+    winner.whenComplete((text, failure) -> abortHandle.abort());
+
+    generationExecutor.execute(() -> {
+      if (winner.isDone()) {
+        return;
+      }
+
+      abortHandle.register();
+      try {
+        HttpResponse response =
+            requestGeneratedText(endpoint, requestBody, timeoutMillis, abortHandle);
+
+        if (winner.isDone()) {
+          response.disconnect();
+          return;
+        }
+
+        String text = parseGeneratedText(response);
+        abortHandle.finish();
+        winner.complete(text);
+      } catch (IOException | RuntimeException exception) {
+        if (abortHandle.isAborted()) {
+          return;
+        }
+
+        if (failedCount.incrementAndGet() >= launchedCount.get()) {
+          winner.completeExceptionally(exception instanceof RuntimeException
+                  ? exception
+                  : new RuntimeException("Error with server", exception));
+        }
+      } finally {
+        abortHandle.unregister();
+      }
+    });
+  }
+
+  /**
+   * Generates text, asking the container to stream it. Each line of a streamed response
+   * is a JSON object whose "text" field is the next chunk, and is passed to the listener
+   * as soon as it arrives. A container which doesn't stream answers with a single JSON
+   * object, which is passed on as one chunk.
+   *
+   * @param listener StoryChunkListener to receive each chunk.
+   * @return String The whole generated output text.
+   * @throws RuntimeException If there's an error with the server, or converting from JSON,
+   *          or passing a chunk on.
+   */
+  public String streamText(StoryChunkListener listener) throws RuntimeException {
+    Map<String, Object> requestMap = makeRequestMap(prefix, maxTextLength, temperature);
+    requestMap.put("stream", Boolean.TRUE);
+    String requestBody = new Gson().toJson(requestMap);
+
+    HttpResponse outputResponse;
+    try {
+      outputResponse = requestGeneratedText(
+          URLProvider.getCurrentEndpoint(), requestBody, STREAM_READ_TIMEOUT_MILLIS, null);
+    } catch (IOException serverException) {
+      throw new RuntimeException("Error with server", serverException);
+    }
+
+    String contentType = outputResponse.getContentType();
+    if (contentType == null || !contentType.startsWith(STREAM_CONTENT_TYPE)) {
+      String text = parseGeneratedText(outputResponse);
+      passOnChunk(listener, text);
+      return text;
+    }
+
+    StringBuilder text = new StringBuilder();
+    try (BufferedReader reader = new BufferedReader(
+             new InputStreamReader(outputResponse.getContent(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+
+        String chunk = new JSONObject(line).optString("text", "");
+        if (!chunk.isEmpty()) {
+          text.append(chunk);
+          passOnChunk(listener, chunk);
+        }
+      }
+    } catch (IOException streamException) {
+      throw new RuntimeException("Error with server", streamException);
+    } catch (JSONException jsonException) {
+      throw new RuntimeException("Failed to convert response from JSON", jsonException);
+    } finally {
+      try {
+        outputResponse.disconnect();
+      } catch (IOException disconnectException) {
+        System.err.println(disconnectException);
+      }
+    }
+
+    return text.toString();
+  }
+
+  /**
+   * Passes a chunk of generated text on to a listener.
+   *
+   * @param listener StoryChunkListener to receive the chunk.
+   * @param chunk The chunk of generated text.
+   * @throws RuntimeException If the listener could not pass the chunk on.
+   */
+  private static void passOnChunk(StoryChunkListener listener, String chunk)
+      throws RuntimeException {
+    try {
+      listener.onChunk(chunk);
+    } catch (IOException listenerException) {
+      throw new RuntimeException("Error passing on generated text", listenerException);
+    }
+  }
+
+  /**
+   * Parses the generated text out of a response from the Generation server.
+   *
+   * @param outputResponse The response expected to include a "text" field.
+   * @return String Generated output text.
+   * @throws RuntimeException If cannot convert from JSON.
+   */
+  private String parseGeneratedText(HttpResponse outputResponse) throws RuntimeException {
     // Parse response as JSON
     try {
       JSONObject jsonObject = new JSONObject(outputResponse.parseAsString());
@@ -123,6 +390,29 @@ public final class StoryManagerImpl implements StoryManager {
     }
   }
 
+  /**
+   * Turns on hedging: requests which take longer than the policy's hedge delay are
+   * duplicated to another container from the URL provider. Null turns hedging off.
+   *
+   * @param hedgingPolicy StoryHedgingPolicy deciding when to hedge, or null.
+   */
+  public void setHedgingPolicy(StoryHedgingPolicy hedgingPolicy) {
+    this.hedgingPolicy = hedgingPolicy;
+  }
+
+  /**
+   * Sets the executor hedged requests are sent on (mainly to be used for testing).
+   *
+   * @param executor Executor to send hedged requests on.
+   * @throws IllegalArgumentException If executor is null.
+   */
+  public void setGenerationExecutor(Executor executor) throws IllegalArgumentException {
+    if (executor == null) {
+      throw new IllegalArgumentException("Executor cannot be null.");
+    }
+    generationExecutor = executor;
+  }
+
   /**
    * Allow public setting of RequestFactory for alternative posting.
    *
@@ -143,6 +433,19 @@ public final class StoryManagerImpl implements StoryManager {
   private String makeRequestBody(String prefix, int maxLength, Double temperature) {
     Gson gson = new Gson();
 
+    String convertedMap = gson.toJson(makeRequestMap(prefix, maxLength, temperature));
+    return convertedMap;
+  }
+
+  /**
+   * Forms the request parameters from GPT-2 parameters.
+   *
+   * @param prefix String to serve as generation prompt.
+   * @param maxLength Maximum text character length for generation output.
+   * @param temperature Double to hold number 0-1 for text generation volatility.
+   * @return A map of the request parameters.
+   */
+  private Map<String, Object> makeRequestMap(String prefix, int maxLength, Double temperature) {
     HashMap<String, Object> requestMap = new HashMap<>();
 
     requestMap.put("length", new Integer(maxLength));
@@ -150,7 +453,6 @@ public final class StoryManagerImpl implements StoryManager {
     requestMap.put("prefix", prefix);
     requestMap.put("temperature", temperature);
 
-    String convertedMap = gson.toJson(requestMap);
-    return convertedMap;
+    return requestMap;
   }
 }
@@ -17,20 +17,127 @@ package com.google.sps.story;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.auth.http.HttpCredentialsAdapter;
+import com.google.auth.http.HttpTransportFactory;
+import com.google.auth.oauth2.AccessToken;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.IdTokenCredentials;
 import com.google.auth.oauth2.IdTokenProvider;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Object for building POST Requests to a GPT-2 Container.
+ *
+ * The application credentials are discovered once, and each service URL (the target
+ * audience of its ID tokens) gets one IdTokenCredentials and one transport which are
+ * reused by every request to it. IdTokenCredentials caches its token; once the token
+ * is within the refresh-ahead window of expiring, it's refreshed in the background so
+ * requests don't wait on minting a new one. The transports open their connections
+ * through StoryRequestAbortHandle, so a request which is no longer needed can be aborted.
  */
-
 public class StoryManagerRequestFactoryImpl implements StoryManagerRequestFactory {
+  /** the default time (in milliseconds) before a token expires at which it's refreshed */
+  public static final long DEFAULT_REFRESH_AHEAD_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  /** the factory shared by the whole process */
+  private static final StoryManagerRequestFactoryImpl SHARED_INSTANCE =
+      new StoryManagerRequestFactoryImpl();
+
+  /** background thread which refreshes tokens ahead of their expiry */
+  private static final ExecutorService TOKEN_REFRESHER = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("id-token-refresh-%d").build());
+
+  /** obtains the application credentials */
+  private final StoryManagerCredentialsFactory credentialsFactory;
+  /** creates the transport of each service URL */
+  private final HttpTransportFactory transportFactory;
+  /** the time (in milliseconds) before a token expires at which it's refreshed */
+  private final long refreshAheadMillis;
+
+  /** the application credentials (null until first use) */
+  private volatile GoogleCredentials credentials;
+  /** the ID token credentials of each service URL */
+  private final ConcurrentHashMap<String, IdTokenCredentials> tokenCredentials =
+      new ConcurrentHashMap<String, IdTokenCredentials>();
+  /** the request factory (with its transport) of each service URL */
+  private final ConcurrentHashMap<String, HttpRequestFactory> requestFactories =
+      new ConcurrentHashMap<String, HttpRequestFactory>();
+  /** the service URLs whose tokens are being refreshed in the background */
+  private final Set<String> refreshingURLs = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Returns the factory shared by the whole process, so that credentials, tokens
+   * and connections are reused across stories.
+   *
+   * @return the process-wide StoryManagerRequestFactoryImpl
+   */
+  public static StoryManagerRequestFactoryImpl getSharedInstance() {
+    return SHARED_INSTANCE;
+  }
+
+  /**
+   * Constructs a factory which uses the application default credentials.
+   */
+  public StoryManagerRequestFactoryImpl() {
+    this(GoogleCredentials::getApplicationDefault, DEFAULT_REFRESH_AHEAD_MILLIS);
+  }
+
+  /**
+   * Constructs a factory with the given credentials and refresh-ahead window
+   * (mainly to be used for testing).
+   *
+   * @param credentialsFactory obtains the application credentials
+   * @param refreshAheadMillis the time in milliseconds before a token expires at which
+   *     it's refreshed
+   * @throws IllegalArgumentException if credentialsFactory is null or refreshAheadMillis
+   *     is negative
+   */
+  public StoryManagerRequestFactoryImpl(
+      StoryManagerCredentialsFactory credentialsFactory, long refreshAheadMillis)
+      throws IllegalArgumentException {
+    this(credentialsFactory, StoryManagerRequestFactoryImpl::newAbortableTransport,
+        refreshAheadMillis);
+  }
+
+  /**
+   * Constructs a factory with the given credentials, transports and refresh-ahead window
+   * (mainly to be used for testing).
+   *
+   * @param credentialsFactory obtains the application credentials
+   * @param transportFactory creates the transport of each service URL
+   * @param refreshAheadMillis the time in milliseconds before a token expires at which
+   *     it's refreshed
+   * @throws IllegalArgumentException if credentialsFactory or transportFactory is null or
+   *     refreshAheadMillis is negative
+   */
+  public StoryManagerRequestFactoryImpl(StoryManagerCredentialsFactory credentialsFactory,
+      HttpTransportFactory transportFactory, long refreshAheadMillis)
+      throws IllegalArgumentException {
+    if (credentialsFactory == null) {
+      throw new IllegalArgumentException("Credentials factory cannot be null.");
+    }
+
+    if (transportFactory == null) {
+      throw new IllegalArgumentException("Transport factory cannot be null.");
+    }
+
+    if (refreshAheadMillis < 0) {
+      throw new IllegalArgumentException("Refresh ahead time cannot be negative.");
+    }
+
+    this.credentialsFactory = credentialsFactory;
+    this.transportFactory = transportFactory;
+    this.refreshAheadMillis = refreshAheadMillis;
+  }
+
   /**
    * Builds a PostRequest given parameters.
    *
@@ -39,30 +146,120 @@ public class StoryManagerRequestFactoryImpl implements StoryManagerRequestFactor
   public HttpRequest newInstance(String requestBody, String serviceUrl)
       throws IllegalStateException, IOException {
     try {
-      // Obtain Credentials
-      GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
+      HttpRequestFactory requestFactory = getRequestFactory(serviceUrl);
+      refreshAheadOfExpiry(serviceUrl);
 
-      // Validate Credentials
-      if (!(credentials instanceof IdTokenProvider)) {
-        throw new IllegalStateException("Credentials are not an instance of IdTokenProvider.");
+      return requestFactory.buildPostRequest(new GenericUrl(serviceUrl),
+          ByteArrayContent.fromString("application/json", requestBody));
+    } catch (IOException serverException) {
+      throw new IOException("Error creating request.", serverException);
+    }
+  }
+
+  /**
+   * Returns the request factory of a service URL, creating it (along with its
+   * ID token credentials and transport) on first use.
+   *
+   * @param serviceUrl the URL requests will be sent to
+   * @return the request factory of the service URL
+   * @throws IllegalStateException if the credentials can't provide ID tokens
+   * @throws IOException if the credentials could not be obtained
+   */
+  private HttpRequestFactory getRequestFactory(String serviceUrl)
+      throws IllegalStateException, IOException {
+    HttpRequestFactory requestFactory = requestFactories.get(serviceUrl);
+
+    if (requestFactory != null) {
+      return requestFactory;
+    }
+
+    synchronized (requestFactories) {
+      requestFactory = requestFactories.get(serviceUrl);
+
+      if (requestFactory == null) {
+        IdTokenCredentials tokenCredential = IdTokenCredentials.newBuilder()
+                                                 .setIdTokenProvider(getIdTokenProvider())
+                                                 .setTargetAudience(serviceUrl)
+                                                 .build();
+
+        HttpCredentialsAdapter adapter = new HttpCredentialsAdapter(tokenCredential);
+        requestFactory = transportFactory.create().createRequestFactory(adapter);
+
+        tokenCredentials.put(serviceUrl, tokenCredential);
+        requestFactories.put(serviceUrl, requestFactory);
       }
 
-      // Generate Authentication Token
-      IdTokenCredentials tokenCredential = IdTokenCredentials.newBuilder()
-                                               .setIdTokenProvider((IdTokenProvider) credentials)
-                                               .setTargetAudience(serviceUrl)
-                                               .build();
+      return requestFactory;
+    }
+  }
 
-      // Configure URL
-      GenericUrl genericUrl = new GenericUrl(serviceUrl);
+  /**
+   * Returns the application credentials as an ID token provider, obtaining them on first use.
+   *
+   * @return the application credentials
+   * @throws IllegalStateException if the credentials can't provide ID tokens
+   * @throws IOException if the credentials could not be obtained
+   */
+  private IdTokenProvider getIdTokenProvider() throws IllegalStateException, IOException {
+    if (credentials == null) {
+      synchronized (this) {
+        if (credentials == null) {
+          GoogleCredentials discoveredCredentials = credentialsFactory.newInstance();
 
-      // Form Adapter with Authentication token
-      HttpCredentialsAdapter adapter = new HttpCredentialsAdapter(tokenCredential);
-      HttpTransport transport = new NetHttpTransport();
-      return transport.createRequestFactory(adapter).buildPostRequest(
-          genericUrl, ByteArrayContent.fromString("application/json", requestBody));
-    } catch (IOException serverException) {
-      throw new IOException("Error creating request.", serverException);
+          // Validate Credentials
+          if (!(discoveredCredentials instanceof IdTokenProvider)) {
+            throw new IllegalStateException("Credentials are not an instance of IdTokenProvider.");
+          }
+
+          credentials = discoveredCredentials;
+        }
+      }
     }
+
+    return (IdTokenProvider) credentials;
+  }
+
+  /**
+   * Refreshes the token of a service URL in the background if it expires within the
+   * refresh-ahead window (and isn't already being refreshed). A token that hasn't been
+   * minted yet is minted by the request itself.
+   *
+   * @param serviceUrl the URL whose token to check
+   */
+  private void refreshAheadOfExpiry(String serviceUrl) {
+    IdTokenCredentials tokenCredential = tokenCredentials.get(serviceUrl);
+    AccessToken token = tokenCredential.getAccessToken();
+
+    if (token == null || token.getExpirationTime() == null) {
+      return;
+    }
+
+    long expiresInMillis = token.getExpirationTime().getTime() - System.currentTimeMillis();
+
+    if (expiresInMillis > refreshAheadMillis || !refreshingURLs.add(serviceUrl)) {
+      return;
+    }
+
+    TOKEN_REFRESHER.execute(() -> {
+      try {
+        tokenCredential.refresh();
+      } catch (IOException exception) {
+        // the request will refresh the token itself once it's about to expire
+        System.err.println("Could not refresh the ID token for " + serviceUrl + ": " + exception);
+      } finally {
+        refreshingURLs.remove(serviceUrl);
+      }
+    });
+  }
+
+  /**
+   * Creates a transport whose requests can be aborted through StoryRequestAbortHandle.
+   *
+   * @return the NetHttpTransport
+   */
+  private static NetHttpTransport newAbortableTransport() {
+    return new NetHttpTransport.Builder()
+        .setConnectionFactory(StoryRequestAbortHandle.CONNECTION_FACTORY)
+        .build();
   }
 }
@@ -14,43 +14,73 @@
 
 package com.google.sps.story;
 
-import com.google.api.client.http.ByteArrayContent;
-import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.auth.http.HttpCredentialsAdapter;
-import com.google.auth.oauth2.GoogleCredentials;
-import com.google.auth.oauth2.IdTokenCredentials;
-import com.google.auth.oauth2.IdTokenProvider;
-import java.io.IOException;
+import com.google.sps.story.data.StoryEndpoint;
+import com.google.sps.story.data.StoryEndpointPool;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Object for providing container URLs to StoryManager.
+ * Object for providing container URLs to StoryManager. The URLs come from a
+ * StoryEndpointPool, which picks healthy containers based on their load and latency.
  */
 public class StoryManagerURLProvider {
-  /** serviceUrls - URLs for each story generation container */
-  private final static String[] serviceURLs = {
-      "https://backstory-text-gen-1-pdaqhmzgva-uc.a.run.app",
-      "https://backstory-text-gen-2-pdaqhmzgva-uc.a.run.app",
-      "https://backstory-text-gen-3-pdaqhmzgva-uc.a.run.app",
-      "https://backstory-text-gen-4-pdaqhmzgva-uc.a.run.app",
-      "https://backstory-text-gen-5-pdaqhmzgva-uc.a.run.app"};
+  /** the endpoints to pick from */
+  private final StoryEndpointPool endpointPool;
 
-  /** Index of URL to provide. */
-  private int selectedURLIndex;
+  /** the currently selected endpoint */
+  private final AtomicReference<StoryEndpoint> currentEndpoint;
 
   /**
-   * Cycles to next serviceUrl to an alternate container.
+   * Constructs a provider which picks from the shared endpoint pool.
+   */
+  public StoryManagerURLProvider() {
+    this(StoryEndpointPool.getShared());
+  }
+
+  /**
+   * Constructs a provider which picks from the given endpoint pool.
    *
+   * @param endpointPool the endpoints to pick from
+   * @throws IllegalArgumentException if endpointPool is null
    */
-  synchronized public void cycleURL() {
-    if (selectedURLIndex < serviceURLs.length - 1) {
-      selectedURLIndex++;
-    } else {
-      selectedURLIndex = 0;
+  public StoryManagerURLProvider(StoryEndpointPool endpointPool) throws IllegalArgumentException {
+    if (endpointPool == null) {
+      throw new IllegalArgumentException("Endpoint pool cannot be null.");
     }
+
+    this.endpointPool = endpointPool;
+    this.currentEndpoint = new AtomicReference<StoryEndpoint>(endpointPool.select(null));
+  }
+
+  /**
+   * Constructs a provider which starts on the given endpoint of the given pool.
+   *
+   * @param endpointPool the endpoints to pick from
+   * @param initialEndpoint the endpoint to start on
+   * @throws IllegalArgumentException if endpointPool or initialEndpoint is null
+   */
+  public StoryManagerURLProvider(StoryEndpointPool endpointPool, StoryEndpoint initialEndpoint)
+      throws IllegalArgumentException {
+    if (endpointPool == null || initialEndpoint == null) {
+      throw new IllegalArgumentException("Endpoint pool and initial endpoint cannot be null.");
+    }
+
+    this.endpointPool = endpointPool;
+    this.currentEndpoint = new AtomicReference<StoryEndpoint>(initialEndpoint);
+  }
+
+  /**
+   * Selects the best available endpoint, which may be the current one.
+   */
+  public void selectURL() {
+    currentEndpoint.set(endpointPool.select(null));
+  }
+
+  /**
+   * Cycles to an alternate container: the best available endpoint other than the
+   * current one (unless no other is available).
+   */
+  public void cycleURL() {
+    currentEndpoint.set(endpointPool.select(currentEndpoint.get()));
   }
 
   /**
@@ -58,7 +88,16 @@ public class StoryManagerURLProvider {
    *
    * @return The current url.
    */
-  synchronized public String getCurrentURL() {
-    return serviceURLs[selectedURLIndex];
+  public String getCurrentURL() {
+    return currentEndpoint.get().getURL();
+  }
+
+  /**
+   * Returns the currently selected endpoint, so the outcome of a request can be recorded.
+   *
+   * @return The current endpoint.
+   */
+  public StoryEndpoint getCurrentEndpoint() {
+    return currentEndpoint.get();
   }
 }
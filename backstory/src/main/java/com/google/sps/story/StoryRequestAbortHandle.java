@@ -0,0 +1,123 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import com.google.api.client.http.javanet.ConnectionFactory;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets a request which is being sent on another thread be aborted. While a thread sends
+ * the request, the handle is registered for it, and each connection the thread opens
+ * through CONNECTION_FACTORY is recorded on the handle. Aborting the handle disconnects
+ * those connections, so a request blocked reading its response fails at once instead of
+ * holding its thread (and the container) until the read timeout.
+ */
+public final class StoryRequestAbortHandle {
+  /** the handle registered for the current thread (null if none) */
+  private static final ThreadLocal<StoryRequestAbortHandle> CURRENT_HANDLE =
+      new ThreadLocal<StoryRequestAbortHandle>();
+
+  /** Opens connections, recording them on the handle registered for the current thread. */
+  public static final ConnectionFactory CONNECTION_FACTORY = (URL url) -> {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    StoryRequestAbortHandle handle = CURRENT_HANDLE.get();
+
+    if (handle != null) {
+      handle.addConnection(connection);
+    }
+
+    return connection;
+  };
+
+  /** the connections opened while the handle was registered */
+  private final List<HttpURLConnection> connections = new ArrayList<HttpURLConnection>();
+  /** whether the request was aborted */
+  private boolean aborted;
+  /** whether the request finished, so it can no longer be aborted */
+  private boolean finished;
+
+  /**
+   * Returns the handle registered for the current thread.
+   *
+   * @return the StoryRequestAbortHandle, or null if none is registered
+   */
+  public static StoryRequestAbortHandle getCurrent() {
+    return CURRENT_HANDLE.get();
+  }
+
+  /**
+   * Registers the handle for the current thread, until unregister is called.
+   */
+  public void register() {
+    CURRENT_HANDLE.set(this);
+  }
+
+  /**
+   * Unregisters the handle registered for the current thread.
+   */
+  public void unregister() {
+    CURRENT_HANDLE.remove();
+  }
+
+  /**
+   * Marks the request as finished: aborting it afterwards does nothing, so its connection
+   * can be reused.
+   */
+  public synchronized void finish() {
+    finished = true;
+  }
+
+  /**
+   * Aborts the request by disconnecting its connections, unless it has finished. Connections
+   * can't be opened for it afterwards.
+   */
+  public synchronized void abort() {
+    if (finished || aborted) {
+      return;
+    }
+
+    aborted = true;
+    for (HttpURLConnection connection : connections) {
+      connection.disconnect();
+    }
+    connections.clear();
+  }
+
+  /**
+   * Returns whether the request was aborted.
+   *
+   * @return true, if abort was called before the request finished; false, otherwise
+   */
+  public synchronized boolean isAborted() {
+    return aborted;
+  }
+
+  /**
+   * Records a connection opened for the request.
+   *
+   * @param connection HttpURLConnection opened for the request
+   * @throws IOException if the request was already aborted
+   */
+  private synchronized void addConnection(HttpURLConnection connection) throws IOException {
+    if (aborted) {
+      throw new IOException("Request was aborted.");
+    }
+    connections.add(connection);
+  }
+}
@@ -0,0 +1,29 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+/**
+ * Story generation class which can also pass on the generated text as it streams in.
+ */
+public interface StreamingStoryManager extends StoryManager {
+  /**
+   * Generates text, passing each chunk to the listener as soon as it arrives.
+   *
+   * @param listener StoryChunkListener to receive each chunk.
+   * @return String The whole generated output text.
+   * @throws RuntimeException If the text could not be generated or passed on.
+   */
+  public String streamText(StoryChunkListener listener) throws RuntimeException;
+}
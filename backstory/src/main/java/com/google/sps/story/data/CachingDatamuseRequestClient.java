@@ -0,0 +1,478 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story.data;
+
+import com.google.sps.APINotAvailableException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A DatamuseRequestClient which caches the words fetched for each (noun, word type, topic).
+ *
+ * Datamuse returns the most related words first and the max parameter only truncates that
+ * list, so words are always fetched with a larger cap and sliced down for each caller. A
+ * request for fewer words than were fetched (or for a noun Datamuse has fewer words for) is
+ * then served from the cache. The cache holds a bounded number of entries and evicts the least
+ * recently used one once it's full. It can be written to and read from a snapshot file so a
+ * cold instance can start warm. Hits and misses are counted per topic.
+ */
+public final class CachingDatamuseRequestClient extends DatamuseRequestClient {
+  /** the default maximum number of (noun, word type, topic) entries held */
+  public static final int DEFAULT_MAX_SIZE = 2000;
+  /** the default number of words fetched from Datamuse for each entry */
+  public static final int DEFAULT_FETCH_CAP = 20;
+  /** the system property holding the path of the snapshot file (unset disables snapshots) */
+  public static final String SNAPSHOT_PATH_PROPERTY = "backstory.datamuse.snapshot";
+
+  /** separates the fields of an entry in a snapshot file */
+  private static final String SNAPSHOT_DELIMITER = "\t";
+
+  /** the caching client shared by the whole process */
+  private static final CachingDatamuseRequestClient SHARED_INSTANCE =
+      new CachingDatamuseRequestClient(new DatamuseRequestClient(), DEFAULT_MAX_SIZE,
+          DEFAULT_FETCH_CAP);
+
+  /** the client which makes the actual requests */
+  private final DatamuseRequestClient delegate;
+  /** the maximum number of entries held */
+  private final int maxSize;
+  /** the number of words fetched from Datamuse for each entry */
+  private final int fetchCap;
+  /** the cached words, in least to most recently used order */
+  private final LinkedHashMap<RelatedWordsKey, CachedWords> entries;
+  /** the asynchronous fetches in flight, so concurrent misses share one request */
+  private final ConcurrentHashMap<RelatedWordsKey, CompletableFuture<CachedWords>> pendingFetches =
+      new ConcurrentHashMap<RelatedWordsKey, CompletableFuture<CachedWords>>();
+  /** the hit and miss counts for each topic */
+  private final ConcurrentHashMap<String, TopicStats> topicStats =
+      new ConcurrentHashMap<String, TopicStats>();
+
+  /**
+   * Returns the caching client shared by the whole process.
+   *
+   * @return the process-wide CachingDatamuseRequestClient
+   */
+  public static CachingDatamuseRequestClient getSharedInstance() {
+    return SHARED_INSTANCE;
+  }
+
+  /**
+   * Constructs a caching client around the given client.
+   *
+   * @param delegate the client to make the actual requests with
+   * @param maxSize the maximum number of (noun, word type, topic) entries to hold
+   * @param fetchCap the number of words to fetch from Datamuse for each entry
+   * @throws IllegalArgumentException if delegate is null or maxSize or fetchCap is not positive
+   */
+  public CachingDatamuseRequestClient(DatamuseRequestClient delegate, int maxSize, int fetchCap)
+      throws IllegalArgumentException {
+    if (delegate == null) {
+      throw new IllegalArgumentException("Delegate cannot be null.");
+    }
+
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Max size must be greater than 0.");
+    }
+
+    if (fetchCap <= 0) {
+      throw new IllegalArgumentException("Fetch cap must be greater than 0.");
+    }
+
+    this.delegate = delegate;
+    this.maxSize = maxSize;
+    this.fetchCap = fetchCap;
+    this.entries = new LinkedHashMap<RelatedWordsKey, CachedWords>(16, .75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<RelatedWordsKey, CachedWords> eldest) {
+        return size() > CachingDatamuseRequestClient.this.maxSize;
+      }
+    };
+  }
+
+  @Override
+  public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis)
+      throws IllegalArgumentException {
+    delegate.setTimeouts(connectTimeoutMillis, readTimeoutMillis);
+  }
+
+  @Override
+  public void setExecutor(Executor executor) throws IllegalArgumentException {
+    delegate.setExecutor(executor);
+  }
+
+  /**
+   * Fetches an array of words, of type wordType, related to the passed-in noun from the
+   * cache, or from Datamuse (with a larger cap) if the cache doesn't hold enough words.
+   *
+   * @param noun the noun to get words related to (must be one word)
+   * @param wordType the type of word to fetch (e.g. adjectives or gerunds)
+   * @param cap the maximum number of words to retrieve
+   * @param topic will sort the words most relevant to given topic
+   *    (empty string for topic is same as no topic)
+   * @return an array of words of type wordType related to the noun of max size cap
+   * @throws IllegalArgumentException if noun is more than one word (has whitespace)
+   * @throws APINotAvailableException if Datamuse API cannot be reached
+   * @throws RuntimeException if JSON received back from the API cannot be parsed
+   */
+  @Override
+  public String[] fetchRelatedWords(String noun, DatamuseRelatedWordType wordType, int cap,
+      String topic) throws IllegalArgumentException, APINotAvailableException, RuntimeException {
+    validateArguments(noun, wordType, cap, topic);
+
+    RelatedWordsKey key = new RelatedWordsKey(noun, wordType, topic);
+    CachedWords cached = lookup(key, cap);
+
+    if (cached != null) {
+      return cached.slice(cap);
+    }
+
+    int requestCap = Math.max(cap, fetchCap);
+    CachedWords fetched =
+        new CachedWords(delegate.fetchRelatedWords(noun, wordType, requestCap, topic), requestCap);
+    store(key, fetched);
+
+    return fetched.slice(cap);
+  }
+
+  /**
+   * Asynchronously fetches an array of words, of type wordType, related to the passed-in noun
+   * from the cache, or from Datamuse (with a larger cap) if the cache doesn't hold enough words.
+   * Concurrent misses for the same entry share a single request.
+   *
+   * @param noun the noun to get words related to (must be one word)
+   * @param wordType the type of word to fetch (e.g. adjectives or gerunds)
+   * @param cap the maximum number of words to retrieve
+   * @param topic will sort the words most relevant to given topic
+   *    (empty string for topic is same as no topic)
+   * @return a future which completes with an array of words of type wordType related to the
+   *    noun of max size cap (or exceptionally, as in DatamuseRequestClient)
+   * @throws IllegalArgumentException if noun is more than one word (has whitespace)
+   */
+  @Override
+  public CompletableFuture<String[]> fetchRelatedWordsAsync(String noun,
+      DatamuseRelatedWordType wordType, int cap, String topic) throws IllegalArgumentException {
+    validateArguments(noun, wordType, cap, topic);
+
+    RelatedWordsKey key = new RelatedWordsKey(noun, wordType, topic);
+    CachedWords cached = lookup(key, cap);
+
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached.slice(cap));
+    }
+
+    int requestCap = Math.max(cap, fetchCap);
+    CompletableFuture<CachedWords> fetch = new CompletableFuture<CachedWords>();
+    CompletableFuture<CachedWords> pendingFetch = pendingFetches.putIfAbsent(key, fetch);
+
+    if (pendingFetch == null) {
+      pendingFetch = fetch;
+      delegate.fetchRelatedWordsAsync(noun, wordType, requestCap, topic)
+          .whenComplete((words, exception) -> {
+            pendingFetches.remove(key, fetch);
+
+            if (exception != null) {
+              fetch.completeExceptionally(exception);
+            } else {
+              CachedWords fetched = new CachedWords(words, requestCap);
+              store(key, fetched);
+              fetch.complete(fetched);
+            }
+          });
+    }
+
+    // a shared fetch was made with the cap of whoever started it, which may be too small
+    return pendingFetch.thenCompose(fetched -> fetched.covers(cap)
+        ? CompletableFuture.completedFuture(fetched.slice(cap))
+        : delegate.fetchRelatedWordsAsync(noun, wordType, cap, topic));
+  }
+
+  /**
+   * Returns the hit and miss counts for the given topic.
+   *
+   * @param topic the topic to get the counts of
+   * @return the counts of the topic (all zero if it hasn't been looked up)
+   */
+  public TopicStats getTopicStats(String topic) {
+    TopicStats stats = topicStats.get(topic);
+    return stats == null ? new TopicStats() : stats;
+  }
+
+  /**
+   * Returns the hit and miss counts of every topic looked up so far
+   * (e.g. each of the STORYTELLING_TOPICS).
+   *
+   * @return an unmodifiable map from topics to their counts
+   */
+  public Map<String, TopicStats> getTopicStats() {
+    return Collections.unmodifiableMap(new HashMap<String, TopicStats>(topicStats));
+  }
+
+  /**
+   * Returns the number of entries currently held.
+   *
+   * @return the number of cached (noun, word type, topic) entries
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Writes every cached entry to a snapshot file, replacing the file if it exists.
+   *
+   * @param path the path of the snapshot file
+   * @throws IOException if the snapshot could not be written
+   */
+  public void writeSnapshot(Path path) throws IOException {
+    Map<RelatedWordsKey, CachedWords> snapshot;
+
+    synchronized (entries) {
+      snapshot = new LinkedHashMap<RelatedWordsKey, CachedWords>(entries);
+    }
+
+    Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+    try (BufferedWriter writer = Files.newBufferedWriter(temporaryPath, StandardCharsets.UTF_8)) {
+      for (Map.Entry<RelatedWordsKey, CachedWords> entry : snapshot.entrySet()) {
+        List<String> fields = new ArrayList<String>();
+        fields.add(entry.getKey().noun);
+        fields.add(entry.getKey().wordType.name());
+        fields.add(entry.getKey().topic);
+        fields.add(Integer.toString(entry.getValue().fetchedCap));
+        fields.addAll(Arrays.asList(entry.getValue().words));
+
+        writer.write(String.join(SNAPSHOT_DELIMITER, fields));
+        writer.newLine();
+      }
+    }
+
+    Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Adds the entries in a snapshot file to the cache. Lines which can't be read
+   * are skipped.
+   *
+   * @param path the path of the snapshot file
+   * @return the number of entries added
+   * @throws IOException if the snapshot could not be read
+   */
+  public int readSnapshot(Path path) throws IOException {
+    int entryCount = 0;
+
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        // keep trailing empty fields so an empty topic is read back
+        String[] fields = line.split(SNAPSHOT_DELIMITER, -1);
+
+        if (fields.length < 4) {
+          continue;
+        }
+
+        try {
+          RelatedWordsKey key = new RelatedWordsKey(
+              fields[0], DatamuseRelatedWordType.valueOf(fields[1]), fields[2]);
+          String[] words = Arrays.copyOfRange(fields, 4, fields.length);
+          store(key, new CachedWords(words, Integer.parseInt(fields[3])));
+          entryCount++;
+        } catch (IllegalArgumentException exception) {
+          // skip entries which were written in an unexpected format
+        }
+      }
+    }
+
+    return entryCount;
+  }
+
+  /**
+   * Looks up an entry which holds enough words for the cap, and counts the
+   * lookup as a hit or miss for its topic.
+   *
+   * @param key the entry to look up
+   * @param cap the number of words needed
+   * @return the cached words, or null if they aren't cached or there aren't enough of them
+   */
+  private CachedWords lookup(RelatedWordsKey key, int cap) {
+    CachedWords cached;
+
+    synchronized (entries) {
+      cached = entries.get(key);
+    }
+
+    TopicStats stats = topicStats.computeIfAbsent(key.topic, topic -> new TopicStats());
+
+    if (cached != null && cached.covers(cap)) {
+      stats.hitCount.incrementAndGet();
+      return cached;
+    }
+
+    stats.missCount.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Adds an entry to the cache.
+   *
+   * @param key the entry to add
+   * @param words the words fetched for the entry
+   */
+  private void store(RelatedWordsKey key, CachedWords words) {
+    synchronized (entries) {
+      entries.put(key, words);
+    }
+  }
+
+  /**
+   * The hit and miss counts of a single topic.
+   */
+  public static final class TopicStats {
+    /** the number of lookups served from the cache */
+    private final AtomicLong hitCount = new AtomicLong();
+    /** the number of lookups which went to Datamuse */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Returns the number of lookups served from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+      return hitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups which went to Datamuse.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+      return missCount.get();
+    }
+
+    /**
+     * Returns the fraction of lookups served from the cache.
+     *
+     * @return the hit rate between 0 and 1 (0 if there have been no lookups)
+     */
+    public double getHitRate() {
+      long hits = hitCount.get();
+      long total = hits + missCount.get();
+      return total == 0 ? 0 : (double) hits / total;
+    }
+  }
+
+  /**
+   * The arguments which identify a cached list of related words.
+   */
+  private static final class RelatedWordsKey {
+    /** the noun the words are related to */
+    private final String noun;
+    /** the type of the words */
+    private final DatamuseRelatedWordType wordType;
+    /** the topic the words are sorted by */
+    private final String topic;
+
+    /**
+     * Constructs a key for the given arguments.
+     *
+     * @param noun the noun the words are related to
+     * @param wordType the type of the words
+     * @param topic the topic the words are sorted by
+     */
+    private RelatedWordsKey(String noun, DatamuseRelatedWordType wordType, String topic) {
+      this.noun = noun;
+      this.wordType = wordType;
+      this.topic = topic;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof RelatedWordsKey)) {
+        return false;
+      }
+
+      RelatedWordsKey otherKey = (RelatedWordsKey) other;
+      return noun.equals(otherKey.noun) && wordType == otherKey.wordType
+          && topic.equals(otherKey.topic);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(noun, wordType, topic);
+    }
+  }
+
+  /**
+   * The words fetched for an entry along with the cap they were fetched with.
+   */
+  private static final class CachedWords {
+    /** the words, most related first */
+    private final String[] words;
+    /** the cap the words were fetched with */
+    private final int fetchedCap;
+
+    /**
+     * Constructs an entry for fetched words.
+     *
+     * @param words the words, most related first
+     * @param fetchedCap the cap the words were fetched with
+     */
+    private CachedWords(String[] words, int fetchedCap) {
+      this.words = words;
+      this.fetchedCap = fetchedCap;
+    }
+
+    /**
+     * Checks if these words can answer a request with the given cap, which is the case
+     * if they were fetched with at least that cap or if Datamuse had fewer words than asked for.
+     *
+     * @param cap the cap of the request
+     * @return true, if the request can be served from these words; false, otherwise
+     */
+    private boolean covers(int cap) {
+      return cap <= fetchedCap || words.length < fetchedCap;
+    }
+
+    /**
+     * Returns the first (most related) words up to the cap.
+     *
+     * @param cap the maximum number of words to return
+     * @return a new array of at most cap words
+     */
+    private String[] slice(int cap) {
+      return Arrays.copyOf(words, Math.min(cap, words.length));
+    }
+  }
+}
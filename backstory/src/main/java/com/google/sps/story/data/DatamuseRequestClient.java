@@ -15,18 +15,26 @@
 package com.google.sps.story.data;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.sps.APINotAvailableException;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  * A class to make requests of the Datamuse API.
@@ -35,8 +43,31 @@ public class DatamuseRequestClient {
   /** the url to access the Datamuse database we're querying */
   private static final String DATAMUSE_URL = "http://api.datamuse.com/words?";
 
+  /** the default timeout (in milliseconds) for connecting to the Datamuse API */
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+  /** the default timeout (in milliseconds) for reading a response from the Datamuse API */
+  public static final int DEFAULT_READ_TIMEOUT_MILLIS = 5000;
+  /** the default maximum number of asynchronous requests in flight at once */
+  public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+
+  /** the error message for when content can't be retrieved from the Datamuse API */
+  private static final String ERROR_MESSAGE =
+      "This query could not successfully retrieve content from Datamuse API."
+      + System.lineSeparator();
+
+  /** bounded executor shared by all clients for asynchronous requests */
+  private static final Executor DATAMUSE_EXECUTOR =
+      Executors.newFixedThreadPool(DEFAULT_MAX_CONCURRENT_REQUESTS,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("datamuse-%d").build());
+
   /** holds the base url to query */
   private final String url;
+  /** the executor to run asynchronous requests on */
+  private Executor executor = DATAMUSE_EXECUTOR;
+  /** the timeout (in milliseconds) for connecting to the Datamuse API */
+  private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+  /** the timeout (in milliseconds) for reading a response from the Datamuse API */
+  private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
 
   /** a list of topics related to storytelling for which to filter adjectives/gerunds for */
   public static final ImmutableList<String> STORYTELLING_TOPICS = ImmutableList.of("story",
@@ -59,6 +90,38 @@ public class DatamuseRequestClient {
     this.url = url;
   }
 
+  /**
+   * Sets the timeouts for requests made by this client.
+   *
+   * @param connectTimeoutMillis the timeout in milliseconds for connecting (0 waits forever)
+   * @param readTimeoutMillis the timeout in milliseconds for reading a response (0 waits forever)
+   * @throws IllegalArgumentException if either timeout is negative
+   */
+  public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis)
+      throws IllegalArgumentException {
+    if (connectTimeoutMillis < 0 || readTimeoutMillis < 0) {
+      throw new IllegalArgumentException("Timeouts cannot be negative.");
+    }
+
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  /**
+   * Sets the executor asynchronous requests are run on (by default,
+   * a bounded pool shared by all clients).
+   *
+   * @param executor the executor to run asynchronous requests on
+   * @throws IllegalArgumentException if executor is null
+   */
+  public void setExecutor(Executor executor) throws IllegalArgumentException {
+    if (executor == null) {
+      throw new IllegalArgumentException("Executor cannot be null.");
+    }
+
+    this.executor = executor;
+  }
+
   /**
    * Returns a randomly-chosen topic related to storytelling
    * from a preset array.
@@ -93,6 +156,54 @@ public class DatamuseRequestClient {
       String topic) throws IllegalArgumentException, APINotAvailableException, RuntimeException {
     validateArguments(noun, wordType, cap, topic);
 
+    return queryWords(buildQuery(noun, wordType, cap, topic));
+  }
+
+  /**
+   * Asynchronously fetches an array of words, of type wordType, related to the passed-in
+   * noun. Works the same as fetchRelatedWords(), but the request is made on this client's
+   * executor, so requests for several nouns can be in flight at once.
+   *
+   * @param noun the noun to get words related to (must be one word)
+   * @param wordType the type of word to fetch (e.g. adjectives or gerunds)
+   * @param cap the maximum number of words to retrieve
+   * @param topic will sort the words most relevant to given topic
+   *    (empty string for topic is same as no topic)
+   * @return a future which completes with an array of words of type wordType related to the
+   *    noun of max size cap, or completes exceptionally with an APINotAvailableException if
+   *    Datamuse API cannot be reached or a RuntimeException if the JSON cannot be parsed
+   * @throws IllegalArgumentException if noun is more than one word (has whitespace)
+   */
+  public CompletableFuture<String[]> fetchRelatedWordsAsync(String noun,
+      DatamuseRelatedWordType wordType, int cap, String topic) throws IllegalArgumentException {
+    validateArguments(noun, wordType, cap, topic);
+
+    String query = buildQuery(noun, wordType, cap, topic);
+    CompletableFuture<String[]> words = new CompletableFuture<String[]>();
+
+    executor.execute(() -> {
+      try {
+        words.complete(queryWords(query));
+      } catch (APINotAvailableException | RuntimeException exception) {
+        words.completeExceptionally(exception);
+      }
+    });
+
+    return words;
+  }
+
+  /**
+   * Builds the url to query for words of type wordType related to the noun.
+   *
+   * @param noun the noun to get words related to
+   * @param wordType the type of word to fetch
+   * @param cap the maximum number of words to retrieve
+   * @param topic the topic to sort the words by
+   * @return the url to query
+   * @throws IllegalArgumentException if wordType is not supported
+   */
+  private String buildQuery(String noun, DatamuseRelatedWordType wordType, int cap, String topic)
+      throws IllegalArgumentException {
     String query = url;
 
     switch (wordType) {
@@ -110,9 +221,7 @@ public class DatamuseRequestClient {
     // cap number of results (max=cap) & set the topic (topics=topic)
     query += "&max=" + cap + "&topics=" + topic;
 
-    String jsonResponse = queryUrl(query);
-
-    return parseWordArrayFromJson(jsonResponse);
+    return query;
   }
 
   /**
@@ -128,7 +237,7 @@ public class DatamuseRequestClient {
    * @throws IllegalArgumentException if object arguments are null, if word contains whitespace, or
    *     if cap <= 0
    */
-  private void validateArguments(String word, DatamuseRelatedWordType wordType, int cap,
+  protected void validateArguments(String word, DatamuseRelatedWordType wordType, int cap,
       String topic) throws IllegalArgumentException {
     // check this first b/c you use word type when you write error message for
     // when word == null
@@ -158,72 +267,105 @@ public class DatamuseRequestClient {
   }
 
   /**
-   * Makes a GET request to given url and retrieve info at that site.
-   * If there's nothing at that site, return null. This code was
+   * Makes a GET request to given url and reads the words out of the JSON response.
+   * The response is streamed straight into the JSON parser, and whatever happens the rest of
+   * the response (or of the error body) is always read and closed so that the JDK can keep
+   * the connection alive and reuse it for the next request to Datamuse. This code was
    * adapted from the DatamuseQuery class in the Datamuse4J repo
    * (https://github.com/sjblair/Datamuse4J/blob/master/src/datamuse/DatamuseQuery.java).
    *
    * @param url the url to query
-   * @return the response body of the GET request
+   * @return the words in the response of the GET request
    * @throws APINotAvailableException if the method can't retrieve the content at the site
+   * @throws RuntimeException if the word array cannot be successfully parsed
    */
-  private String queryUrl(String url) throws APINotAvailableException {
-    final String ERROR_MESSAGE =
-        "This query could not successfully retrieve content from Datamuse API."
-        + System.lineSeparator();
+  private String[] queryWords(String url) throws APINotAvailableException, RuntimeException {
+    URLConnection connection;
 
     try {
-      URL site = new URL(url);
-      URLConnection connection = site.openConnection();
+      connection = new URL(url).openConnection();
+    } catch (IOException exception) {
+      throw new APINotAvailableException(ERROR_MESSAGE + exception.toString());
+    }
 
-      if (connection == null) {
-        throw new APINotAvailableException(ERROR_MESSAGE + "URLConnection was null.");
-      }
+    if (connection == null) {
+      throw new APINotAvailableException(ERROR_MESSAGE + "URLConnection was null.");
+    }
 
-      BufferedReader in =
-          new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+    connection.setConnectTimeout(connectTimeoutMillis);
+    connection.setReadTimeout(readTimeoutMillis);
 
-      StringBuilder content = new StringBuilder();
+    JSONArray jsonArray;
+    InputStream body = null;
+    boolean bodyFailed = false;
 
-      // build a StringBuilder from the content present at the site
-      String inputLine;
-      while ((inputLine = in.readLine()) != null) {
-        content.append(inputLine);
+    try {
+      body = connection.getInputStream();
+      Reader in = new BufferedReader(new InputStreamReader(body, "UTF-8"));
+      jsonArray = new JSONArray(new JSONTokener(in));
+    } catch (IOException exception) {
+      bodyFailed = body != null;
+      throw new APINotAvailableException(ERROR_MESSAGE + exception.toString());
+    } catch (JSONException exception) {
+      // the tokener wraps errors reading the stream in a JSONException
+      if (exception.getCause() instanceof IOException) {
+        bodyFailed = body != null;
+        throw new APINotAvailableException(ERROR_MESSAGE + exception.getCause().toString());
       }
 
-      in.close();
+      throw new RuntimeException(
+          "Could not parse the JSON received back from the Datamuse Query.", exception);
+    } finally {
+      releaseConnection(connection, body, !bodyFailed);
+    }
+
+    return parseWordArrayFromJson(jsonArray);
+  }
 
-      return content.toString();
+  /**
+   * Reads and closes the rest of the response body, or the error stream if the request
+   * failed before there was a body, which lets the JDK reuse the underlying connection
+   * instead of discarding it. A body which failed to be read is only closed, as reading
+   * it again would just wait for the read timeout again.
+   *
+   * @param connection the connection of the request
+   * @param body the response body (null if it couldn't be opened)
+   * @param drainBody whether the rest of the body (or the error stream) can be read
+   */
+  private void releaseConnection(URLConnection connection, InputStream body, boolean drainBody) {
+    InputStream remaining = body;
+
+    if (remaining == null && connection instanceof HttpURLConnection) {
+      remaining = ((HttpURLConnection) connection).getErrorStream();
+    }
+
+    if (remaining == null) {
+      return;
+    }
+
+    try (InputStream in = remaining) {
+      byte[] buffer = new byte[1024];
+      while (drainBody && in.read(buffer) != -1) {
+        // discard what's left of the body
+      }
     } catch (IOException exception) {
-      throw new APINotAvailableException(ERROR_MESSAGE + exception.toString());
+      // the connection will simply not be reused
     }
   }
 
   /**
-   * Helper method to read in a String array from the jsonResponse and gets the Strings
+   * Helper method to read in a String array from the jsonArray and gets the Strings
    * in this array from the value for "word" stored in the objects of this response. Throws an error
    * if json is not formatted as expected (expected format is that of JSON found at a Datamuse query
-   * url) or if it can't be parsed for some reason. Purpose of this method is to read the words
-   * retrieved from a Datamuse query from the JSON they're wrapped in.
+   * url). Purpose of this method is to read the words retrieved from a Datamuse query from the
+   * JSON they're wrapped in.
    *
-   * @param jsonResponse the json to parse the word array from
+   * @param jsonArray the parsed json to read the word array from
    * @return a String array that consists of the String stored in the "word" field
-   *    of the JSON objects stored in the jsonResponse (which should be a JSON array)
-   * @throws RuntimeException if the word array cannot be successfully parsed
+   *    of the JSON objects stored in the jsonArray
+   * @throws RuntimeException if the word array cannot be successfully read
    */
-  private String[] parseWordArrayFromJson(String jsonResponse) throws RuntimeException {
-    // there are two try statements b/c there's a possibility for more than one JSONException to be
-    // thrown in this method so specifying what went wrong with that exact JSON exception
-    // will be more helpful hence a try block for each JSONException that needs a customized message
-    JSONArray jsonArray;
-
-    try {
-      jsonArray = new JSONArray(jsonResponse);
-    } catch (JSONException exception) {
-      throw new RuntimeException(
-          "Could not parse the JSON received back from the Datamuse Query.", exception);
-    }
-
+  private String[] parseWordArrayFromJson(JSONArray jsonArray) throws RuntimeException {
     try {
       int length = jsonArray.length();
       String[] words = new String[length];
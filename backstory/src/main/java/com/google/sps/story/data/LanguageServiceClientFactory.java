@@ -0,0 +1,31 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story.data;
+
+import com.google.cloud.language.v1.LanguageServiceClient;
+import java.io.IOException;
+
+/**
+ * Factory pattern for LanguageServiceClient.
+ */
+public interface LanguageServiceClientFactory {
+  /**
+   * Create a new instance of LanguageServiceClient.
+   *
+   * @return an instance of LanguageServiceClient.
+   * @throws IOException if the client could not be created.
+   */
+  public LanguageServiceClient newInstance() throws IOException;
+}
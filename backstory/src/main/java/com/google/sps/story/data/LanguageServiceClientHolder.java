@@ -0,0 +1,139 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story.data;
+
+import com.google.cloud.language.v1.LanguageServiceClient;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds a single long-lived LanguageServiceClient which is shared by every
+ * NL API consumer in the process, so the gRPC channel (and its credentials and
+ * TLS connection) is set up once instead of on every request.
+ *
+ * The client is created lazily on first use. If it has been shut down (e.g. by a
+ * caller closing it by mistake), it's replaced with a new one on the next use.
+ * Once the holder itself is shut down (when the servlet context is destroyed),
+ * no more clients are handed out.
+ */
+public final class LanguageServiceClientHolder {
+  /** how long (in seconds) to wait for in-flight calls to finish on shutdown */
+  public static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+  /** the holder shared by the whole process */
+  private static final LanguageServiceClientHolder INSTANCE =
+      new LanguageServiceClientHolder(LanguageServiceClient::create);
+
+  /** creates the client when there is no healthy one */
+  private final LanguageServiceClientFactory clientFactory;
+  /** the current client (null until first use or after shutdown) */
+  private volatile LanguageServiceClient client;
+  /** whether this holder has been shut down (guarded by this) */
+  private boolean isShutdown = false;
+
+  /**
+   * Returns the holder shared by the whole process.
+   *
+   * @return the process-wide LanguageServiceClientHolder
+   */
+  public static LanguageServiceClientHolder getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Constructs a holder which creates its clients with the given factory
+   * (mainly to be used for testing).
+   *
+   * @param clientFactory the factory to create clients with
+   * @throws IllegalArgumentException if clientFactory is null
+   */
+  public LanguageServiceClientHolder(LanguageServiceClientFactory clientFactory)
+      throws IllegalArgumentException {
+    if (clientFactory == null) {
+      throw new IllegalArgumentException("Client factory cannot be null");
+    }
+
+    this.clientFactory = clientFactory;
+  }
+
+  /**
+   * Returns the shared client, creating it if there is none yet or if the current
+   * one is no longer healthy. Callers must not close the returned client.
+   *
+   * @return a healthy LanguageServiceClient
+   * @throws IOException if a new client could not be created
+   * @throws IllegalStateException if this holder has been shut down
+   */
+  public LanguageServiceClient getClient() throws IOException, IllegalStateException {
+    LanguageServiceClient current = client;
+
+    if (current != null && isHealthy(current)) {
+      return current;
+    }
+
+    synchronized (this) {
+      if (isShutdown) {
+        throw new IllegalStateException("Language service client holder has been shut down");
+      }
+
+      if (client == null || !isHealthy(client)) {
+        if (client != null) {
+          // release whatever the unhealthy client still holds on to
+          client.close();
+        }
+
+        client = clientFactory.newInstance();
+      }
+
+      return client;
+    }
+  }
+
+  /**
+   * Shuts down the shared client, giving in-flight calls up to
+   * SHUTDOWN_TIMEOUT_SECONDS to finish before they are cancelled.
+   * After this, getClient() throws an IllegalStateException.
+   */
+  public synchronized void shutdown() {
+    isShutdown = true;
+
+    if (client == null) {
+      return;
+    }
+
+    LanguageServiceClient closing = client;
+    client = null;
+    closing.shutdown();
+
+    try {
+      if (!closing.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        closing.shutdownNow();
+      }
+    } catch (InterruptedException exception) {
+      closing.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Checks if a client can still be used to make calls.
+   *
+   * @param client the client to check
+   * @return true, if the client has not been shut down; false, otherwise
+   */
+  private static boolean isHealthy(LanguageServiceClient client) {
+    return !client.isShutdown() && !client.isTerminated();
+  }
+}
@@ -17,6 +17,7 @@ package com.google.sps.story.data;
 import com.google.cloud.language.v1.AnalyzeSyntaxResponse;
 import com.google.cloud.language.v1.Document;
 import com.google.cloud.language.v1.Document.Type;
+import com.google.cloud.language.v1.EncodingType;
 import com.google.cloud.language.v1.LanguageServiceClient;
 import com.google.cloud.language.v1.PartOfSpeech;
 import com.google.cloud.language.v1.PartOfSpeech.Form;
@@ -28,6 +29,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,16 +41,35 @@ import java.util.regex.Pattern;
  * Service client for Cloud Natural Language API
  */
 public class NLServiceClient {
+  /** the default maximum number of words to classify concurrently */
+  public static final int DEFAULT_MAX_CONCURRENT_CALLS = 10;
+  /** the default deadline (in milliseconds) for classifying the words of one call */
+  public static final long DEFAULT_CALL_DEADLINE_MILLIS = 5000;
+
   /** holds the language service client instance for this service client */
   private LanguageServiceClient client;
+  /** whether this service client owns its language service client (and so closes it) */
+  private final boolean ownsClient;
+  /** the executor to classify words on (null if words are classified one at a time) */
+  private ExecutorService executor;
+  /** the deadline (in milliseconds) for classifying the words of one call in concurrent mode */
+  private long callDeadlineMillis = DEFAULT_CALL_DEADLINE_MILLIS;
+  /** whether all single words are classified together in one document */
+  private boolean isBatchClassification = false;
+
+  /** separates words in a batch document so each word is a sentence of its own */
+  private static final String BATCH_DELIMITER = ". ";
+  /** put before a word to check if it's identified as a verb (and so a gerund) */
+  private static final String GERUND_PREFIX = "is ";
 
   /**
-   * Constructs a default object of client service class.
+   * Constructs a default object of client service class, which uses the
+   * LanguageServiceClient shared by the whole process.
    *
    * @throws IOException if an instance of LanguageServiceClient could not be created
    */
   public NLServiceClient() throws IOException {
-    this(LanguageServiceClient.create());
+    this(LanguageServiceClientHolder.getInstance().getClient(), false);
   }
 
   /**
@@ -55,11 +80,63 @@ public class NLServiceClient {
    * @throws IllegalArgumentException if client is null
    */
   public NLServiceClient(LanguageServiceClient client) throws IllegalArgumentException {
+    this(client, true);
+  }
+
+  /**
+   * Constructs a NLServiceClient class with a given LanguageServiceClient.
+   *
+   * @param client a given LanguageServiceClient to use to access Natural Language API
+   * @param ownsClient whether close() should close the LanguageServiceClient
+   * @throws IllegalArgumentException if client is null
+   */
+  private NLServiceClient(LanguageServiceClient client, boolean ownsClient)
+      throws IllegalArgumentException {
     if (client == null) {
       throw new IllegalArgumentException("Client cannot be null");
     }
 
     this.client = client;
+    this.ownsClient = ownsClient;
+  }
+
+  /**
+   * Turns on concurrent classification, where the calls to the NL API for each
+   * single word are issued on the passed-in executor instead of one after another.
+   * The executor is not owned by this client (close() will not shut it down), so it
+   * can be shared between clients. The deadline bounds the wait for all the words of
+   * one call together; words which aren't classified by then are grouped as UNUSABLE.
+   *
+   * @param executor the executor to issue calls on (its size bounds the number of
+   *     calls in flight at once)
+   * @param callDeadlineMillis the deadline in milliseconds for classifying the words of
+   *     one call
+   * @throws IllegalArgumentException if executor is null or deadline is not positive
+   */
+  public void enableConcurrentClassification(ExecutorService executor, long callDeadlineMillis)
+      throws IllegalArgumentException {
+    if (executor == null) {
+      throw new IllegalArgumentException("Executor cannot be null");
+    }
+
+    if (callDeadlineMillis <= 0) {
+      throw new IllegalArgumentException("Call deadline must be greater than 0");
+    }
+
+    this.executor = executor;
+    this.callDeadlineMillis = callDeadlineMillis;
+  }
+
+  /**
+   * Turns on batch classification, where all single words are joined into one
+   * delimited document and classified with a single call to the NL API (plus one more
+   * call for all possible gerunds). Words are matched back to their tokens by offset.
+   * Only words whose token cannot be matched exactly (e.g. the API split the word into
+   * several tokens) are classified individually, which uses concurrent classification
+   * if it's enabled.
+   */
+  public void enableBatchClassification() {
+    isBatchClassification = true;
   }
 
   /**
@@ -113,61 +190,295 @@ public class NLServiceClient {
       }
     }
 
-    // TODO: Parallelize requests to Cloud Natural Language API
+    List<WordType> types;
 
-    for (String word : singleWords) {
-      Document doc = buildDocumentFromText(word);
+    if (isBatchClassification) {
+      types = classifyWordsInBatch(singleWords);
+    } else {
+      types = classifyWords(singleWords);
+    }
 
-      AnalyzeSyntaxResponse response = client.analyzeSyntax(doc);
+    // group words in input order so the output is the same in all modes
+    for (int i = 0; i < singleWords.size(); i++) {
+      WordType type = types.get(i);
+      List<String> wordList = map.get(type);
 
-      Token token = response.getTokens(0);
-      PartOfSpeech partOfSpeech = token.getPartOfSpeech();
+      if (wordList == null) {
+        wordList = new ArrayList<String>();
+        map.put(type, wordList);
+      }
 
-      WordType type = WordType.UNUSABLE;
+      wordList.add(singleWords.get(i));
+    }
 
-      switch (partOfSpeech.getTag()) {
-        case VERB:
-          if (isGerund(word)) {
-            type = WordType.GERUND;
-          }
-          break;
-        case NOUN:
-          if (isGerund(word)) {
-            type = WordType.GERUND;
-            break;
-          }
+    return map;
+  }
 
-          if (partOfSpeech.getProper() == Proper.PROPER) {
-            type = WordType.PROPER_NOUN;
-          } else {
-            type = WordType.NOUN;
-          }
-          break;
+  /**
+   * Classifies each of the words individually (concurrently, if enabled) and returns
+   * their word types in the same order as the words were passed in.
+   *
+   * @param words the single words to classify
+   * @return the word type of each word
+   */
+  private List<WordType> classifyWords(List<String> words) {
+    if (executor != null) {
+      return classifyWordsConcurrently(words);
+    }
 
-        case ADJ:
-          type = WordType.ADJECTIVE;
-          break;
+    List<WordType> types = new ArrayList<WordType>();
+
+    for (String word : words) {
+      types.add(classifyWord(word));
+    }
+
+    return types;
+  }
+
+  /**
+   * Classifies all of the words with one call to the NL API on a document containing
+   * every word, and one more call for the words that might be gerunds. Words that
+   * can't be matched to exactly one token are classified individually instead.
+   *
+   * @param words the single words to classify
+   * @return the word type of each word in the same order as the words were passed in
+   */
+  private List<WordType> classifyWordsInBatch(List<String> words) {
+    List<PartOfSpeech> partsOfSpeech = analyzeInBatch(words, "");
+
+    // find the words that were aligned and might be gerunds to check them together
+    List<String> gerundCandidates = new ArrayList<String>();
+
+    for (int i = 0; i < words.size(); i++) {
+      PartOfSpeech partOfSpeech = partsOfSpeech.get(i);
+
+      if (partOfSpeech != null && mightBeGerund(partOfSpeech)
+          && hasGerundSuffix(words.get(i))) {
+        gerundCandidates.add(words.get(i));
       }
+    }
 
-      List<String> wordList = map.get(type);
+    List<PartOfSpeech> gerundPartsOfSpeech = analyzeInBatch(gerundCandidates, GERUND_PREFIX);
 
-      if (wordList == null) {
-        wordList = new ArrayList<String>();
-        map.put(type, wordList);
+    Map<String, Boolean> isGerundByWord = new HashMap<String, Boolean>();
+
+    for (int i = 0; i < gerundCandidates.size(); i++) {
+      String candidate = gerundCandidates.get(i);
+      PartOfSpeech partOfSpeech = gerundPartsOfSpeech.get(i);
+
+      if (partOfSpeech == null) {
+        isGerundByWord.put(candidate, isGerund(candidate));
+      } else {
+        isGerundByWord.put(candidate, partOfSpeech.getTag() == Tag.VERB);
       }
+    }
 
-      wordList.add(word);
+    // classify the words that couldn't be aligned individually
+    List<String> ambiguousWords = new ArrayList<String>();
+
+    for (int i = 0; i < words.size(); i++) {
+      if (partsOfSpeech.get(i) == null) {
+        ambiguousWords.add(words.get(i));
+      }
     }
 
-    return map;
+    List<WordType> ambiguousTypes = classifyWords(ambiguousWords);
+
+    List<WordType> types = new ArrayList<WordType>();
+    int ambiguousIndex = 0;
+
+    for (int i = 0; i < words.size(); i++) {
+      PartOfSpeech partOfSpeech = partsOfSpeech.get(i);
+
+      if (partOfSpeech == null) {
+        types.add(ambiguousTypes.get(ambiguousIndex));
+        ambiguousIndex++;
+      } else {
+        Boolean isGerund = isGerundByWord.get(words.get(i));
+        types.add(toWordType(partOfSpeech, isGerund != null && isGerund));
+      }
+    }
+
+    return types;
+  }
+
+  /**
+   * Analyzes all the words (each with the prefix before it) in one delimited document
+   * and returns the part of speech of the token at each word's offset.
+   *
+   * @param words the words to analyze
+   * @param prefix the text to put before each word (may be empty)
+   * @return the part of speech of each word in the same order as the words, with null
+   *     for any word whose token doesn't exactly match the word
+   */
+  private List<PartOfSpeech> analyzeInBatch(List<String> words, String prefix) {
+    List<PartOfSpeech> partsOfSpeech = new ArrayList<PartOfSpeech>();
+
+    if (words.isEmpty()) {
+      return partsOfSpeech;
+    }
+
+    StringBuilder content = new StringBuilder();
+    int[] offsets = new int[words.size()];
+
+    for (int i = 0; i < words.size(); i++) {
+      content.append(prefix);
+      offsets[i] = content.length();
+      content.append(words.get(i)).append(BATCH_DELIMITER);
+    }
+
+    // UTF16 offsets are the same as the indices of a Java String
+    AnalyzeSyntaxResponse response =
+        client.analyzeSyntax(buildDocumentFromText(content.toString()), EncodingType.UTF16);
+
+    Map<Integer, Token> tokensByOffset = new HashMap<Integer, Token>();
+
+    for (Token token : response.getTokensList()) {
+      tokensByOffset.put(token.getText().getBeginOffset(), token);
+    }
+
+    for (int i = 0; i < words.size(); i++) {
+      Token token = tokensByOffset.get(offsets[i]);
+
+      if (token != null && token.getText().getContent().equals(words.get(i))) {
+        partsOfSpeech.add(token.getPartOfSpeech());
+      } else {
+        partsOfSpeech.add(null);
+      }
+    }
+
+    return partsOfSpeech;
+  }
+
+  /**
+   * Classifies each of the words on the executor and returns their word types
+   * in the same order as the words were passed in.
+   *
+   * @param words the single words to classify
+   * @return the word type of each word (UNUSABLE if it wasn't classified by the deadline)
+   * @throws RuntimeException if a call to the NL API failed
+   */
+  private List<WordType> classifyWordsConcurrently(List<String> words) throws RuntimeException {
+    // one deadline for all of the words, so the wait doesn't grow with the number of words
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(callDeadlineMillis);
+    List<Future<WordType>> futures = new ArrayList<Future<WordType>>();
+
+    for (String word : words) {
+      futures.add(executor.submit(() -> classifyWord(word)));
+    }
+
+    List<WordType> types = new ArrayList<WordType>();
+
+    try {
+      for (Future<WordType> future : futures) {
+        try {
+          long remainingNanos = Math.max(deadlineNanos - System.nanoTime(), 0);
+          types.add(future.get(remainingNanos, TimeUnit.NANOSECONDS));
+        } catch (TimeoutException exception) {
+          future.cancel(true);
+          types.add(WordType.UNUSABLE);
+        }
+      }
+    } catch (ExecutionException exception) {
+      cancelAll(futures);
+      throw new RuntimeException("Could not classify word with NL API.", exception.getCause());
+    } catch (InterruptedException exception) {
+      cancelAll(futures);
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while classifying words.", exception);
+    }
+
+    return types;
+  }
+
+  /**
+   * Cancels all of the passed-in futures (finished futures are unaffected).
+   *
+   * @param futures the futures to cancel
+   */
+  private void cancelAll(List<Future<WordType>> futures) {
+    for (Future<WordType> future : futures) {
+      future.cancel(true);
+    }
+  }
+
+  /**
+   * Classifies a single word (one without whitespace) by its part of speech
+   * using the NL API.
+   *
+   * @param word the word to classify
+   * @return the word type of the word
+   */
+  private WordType classifyWord(String word) {
+    Document doc = buildDocumentFromText(word);
+
+    AnalyzeSyntaxResponse response = client.analyzeSyntax(doc);
+
+    Token token = response.getTokens(0);
+    PartOfSpeech partOfSpeech = token.getPartOfSpeech();
+
+    boolean isGerund = mightBeGerund(partOfSpeech) && isGerund(word);
+
+    return toWordType(partOfSpeech, isGerund);
+  }
+
+  /**
+   * Converts a part of speech from the NL API to a word type.
+   *
+   * @param partOfSpeech the part of speech of the word
+   * @param isGerund whether the word was found to be a gerund
+   * @return the word type for this part of speech
+   */
+  private WordType toWordType(PartOfSpeech partOfSpeech, boolean isGerund) {
+    WordType type = WordType.UNUSABLE;
+
+    switch (partOfSpeech.getTag()) {
+      case VERB:
+        if (isGerund) {
+          type = WordType.GERUND;
+        }
+        break;
+      case NOUN:
+        if (isGerund) {
+          type = WordType.GERUND;
+          break;
+        }
+
+        if (partOfSpeech.getProper() == Proper.PROPER) {
+          type = WordType.PROPER_NOUN;
+        } else {
+          type = WordType.NOUN;
+        }
+        break;
+
+      case ADJ:
+        type = WordType.ADJECTIVE;
+        break;
+    }
+
+    return type;
+  }
+
+  /**
+   * Checks if a word with this part of speech needs to be checked for being
+   * a gerund (only verbs and nouns can be gerunds).
+   *
+   * @param partOfSpeech the part of speech of the word
+   * @return true, if the word could be a gerund; false, otherwise
+   */
+  private boolean mightBeGerund(PartOfSpeech partOfSpeech) {
+    return partOfSpeech.getTag() == Tag.VERB || partOfSpeech.getTag() == Tag.NOUN;
   }
 
   /**
    * Close out the NLServiceClient by closing out
-   * the LanguageServiceClient.
+   * the LanguageServiceClient (unless it's the shared client,
+   * which stays open until the servlet context is destroyed).
    */
   public void close() {
-    client.close();
+    if (ownsClient) {
+      client.close();
+    }
   }
 
   /**
@@ -191,6 +502,29 @@ public class NLServiceClient {
    * @return true, if it's a gerund; false, otherwise
    */
   private boolean isGerund(String word) {
+    if (!hasGerundSuffix(word)) {
+      return false;
+    }
+
+    // check if when paired with "is", it's identified as a verb
+    Document doc = buildDocumentFromText(GERUND_PREFIX + word);
+
+    AnalyzeSyntaxResponse response = client.analyzeSyntax(doc);
+
+    // get the second token (the potential gerund)
+    Token token = response.getTokens(1);
+
+    return token.getPartOfSpeech().getTag() == Tag.VERB;
+  }
+
+  /**
+   * Checks the heuristics for a word being a gerund without calling the NL API:
+   * it's one word and it ends in "ing".
+   *
+   * @param word the word to check
+   * @return true, if the word passes the heuristic test; false, otherwise
+   */
+  private boolean hasGerundSuffix(String word) {
     // first, check it's one word by checking for whitespace
     // (if it has whitespace it's not one word)
     Pattern pattern = Pattern.compile("\\s");
@@ -210,18 +544,7 @@ public class NLServiceClient {
     }
 
     String ending = word.substring(word.length() - suffixLength);
-    if (!ending.equals(suffix)) {
-      return false;
-    }
-
-    // third, check if when paired with "is", it's identified as a verb
-    Document doc = buildDocumentFromText("is " + word);
-
-    AnalyzeSyntaxResponse response = client.analyzeSyntax(doc);
 
-    // get the second token (the potential gerund)
-    Token token = response.getTokens(1);
-
-    return token.getPartOfSpeech().getTag() == Tag.VERB;
+    return ending.equals(suffix);
   }
 }
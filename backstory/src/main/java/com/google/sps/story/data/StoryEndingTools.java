@@ -14,22 +14,12 @@
 
 package com.google.sps.story.data;
 
+import java.util.List;
+
 /**
  * Static methods to help end a story naturally
  */
 public class StoryEndingTools {
-  /** the endings to add to the story (should be one sentence) */
-  private static String[] ENDINGS = {
-      "The End.",
-      "They lived happily ever after.",
-      "Then, everything went horribly wrong.",
-      "And--- that's a wrap.",
-      "Goodbye!",
-      "Then the director screamed \"CUT!\".",
-      "With that, our story draws to a close.",
-      "We'll never know what happened next.",
-  };
-
   /** an array of sentence enders */
   public static final String[] SENTENCE_ENDERS = {".", "?", "!"};
 
@@ -91,8 +81,8 @@ public class StoryEndingTools {
   }
 
   /**
-   * Add one of a list of pre-written endings to the story, and return
-   * the story with that ending.
+   * Add one of a list of pre-written endings (the story-ending section of the
+   * templates, each one sentence) to the story, and return the story with that ending.
    *
    * @param story the story to add an ending to
    * @return story + ending
@@ -101,7 +91,11 @@ public class StoryEndingTools {
   public static String addEnding(String story) {
     validateStory(story);
 
-    return story + " " + ENDINGS[(int) (Math.random() * ENDINGS.length)];
+    List<StoryTemplate> endings =
+        StoryTemplateStore.getDefault().getTemplates(StoryTemplateStore.STORY_ENDING);
+    String ending = endings.get((int) (Math.random() * endings.size())).render();
+
+    return story + " " + ending;
   }
 
   /**
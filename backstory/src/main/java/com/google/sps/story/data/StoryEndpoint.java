@@ -0,0 +1,259 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story.data;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A story generation container along with its load, latency and error counts, and a
+ * circuit breaker. After a number of consecutive failures (e.g. a container which has
+ * run out of memory) the endpoint is ejected for a cooldown; once the cooldown is over
+ * it's tried again, and a single further failure ejects it again.
+ *
+ * All state is kept in atomics, so endpoints can be shared by concurrent requests
+ * without locking.
+ */
+public final class StoryEndpoint {
+  /** the weight of the newest latency in the moving average */
+  private static final double EWMA_WEIGHT = 0.2;
+
+  /** the URL of the container */
+  private final String url;
+  /** the number of consecutive failures which eject the endpoint */
+  private final int failureThreshold;
+  /** the time (in milliseconds) an ejected endpoint is left out */
+  private final long cooldownMillis;
+  /** provides the current time in milliseconds */
+  private final LongSupplier clock;
+
+  /** the number of requests which have started but not finished */
+  private final AtomicInteger outstandingRequests = new AtomicInteger();
+  /** the bits of the exponentially weighted moving average latency, in milliseconds */
+  private final AtomicLong ewmaLatencyBits = new AtomicLong(Double.doubleToLongBits(0));
+  /** the number of failures since the last success */
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  /** the time the current ejection ends (0 if never ejected) */
+  private volatile long ejectedUntilMillis;
+
+  /** the number of finished requests */
+  private final LongAdder requestCount = new LongAdder();
+  /** the number of failed requests */
+  private final LongAdder errorCount = new LongAdder();
+  /** the total latency of finished requests, in nanoseconds */
+  private final LongAdder totalLatencyNanos = new LongAdder();
+  /** the number of times the endpoint was ejected */
+  private final LongAdder ejectionCount = new LongAdder();
+
+  /**
+   * Constructs an endpoint.
+   *
+   * @param url the URL of the container
+   * @param failureThreshold the number of consecutive failures which eject the endpoint
+   * @param cooldownMillis the time in milliseconds an ejected endpoint is left out
+   * @param clock provides the current time in milliseconds
+   * @throws IllegalArgumentException if url or clock is null, failureThreshold isn't positive
+   *     or cooldownMillis is negative
+   */
+  public StoryEndpoint(String url, int failureThreshold, long cooldownMillis, LongSupplier clock)
+      throws IllegalArgumentException {
+    if (url == null) {
+      throw new IllegalArgumentException("URL cannot be null.");
+    }
+
+    if (failureThreshold < 1) {
+      throw new IllegalArgumentException("Failure threshold must be positive.");
+    }
+
+    if (cooldownMillis < 0) {
+      throw new IllegalArgumentException("Cooldown cannot be negative.");
+    }
+
+    if (clock == null) {
+      throw new IllegalArgumentException("Clock cannot be null.");
+    }
+
+    this.url = url;
+    this.failureThreshold = failureThreshold;
+    this.cooldownMillis = cooldownMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the URL of the container.
+   *
+   * @return the URL of this endpoint
+   */
+  public String getURL() {
+    return url;
+  }
+
+  /**
+   * Returns whether the endpoint can take requests, i.e. it isn't ejected.
+   *
+   * @return true, if the endpoint isn't ejected; false, otherwise
+   */
+  public boolean isAvailable() {
+    return clock.getAsLong() >= ejectedUntilMillis;
+  }
+
+  /**
+   * Returns the time the current (or last) ejection ends.
+   *
+   * @return the time in milliseconds, or 0 if the endpoint was never ejected
+   */
+  public long getEjectedUntilMillis() {
+    return ejectedUntilMillis;
+  }
+
+  /**
+   * Records that a request to this endpoint has started.
+   */
+  public void recordStart() {
+    outstandingRequests.incrementAndGet();
+  }
+
+  /**
+   * Records that a request to this endpoint succeeded, which closes its circuit breaker.
+   *
+   * @param latencyNanos how long the request took, in nanoseconds
+   */
+  public void recordSuccess(long latencyNanos) {
+    recordFinish(latencyNanos);
+    consecutiveFailures.set(0);
+  }
+
+  /**
+   * Records that a request to this endpoint failed, ejecting it if it has now failed
+   * the threshold number of times in a row.
+   *
+   * @param latencyNanos how long the request took before failing, in nanoseconds
+   */
+  public void recordFailure(long latencyNanos) {
+    recordFinish(latencyNanos);
+    errorCount.increment();
+
+    if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+      long now = clock.getAsLong();
+
+      if (now >= ejectedUntilMillis) {
+        ejectionCount.increment();
+      }
+
+      ejectedUntilMillis = now + cooldownMillis;
+    }
+  }
+
+  /**
+   * Records that a request to this endpoint was abandoned before it finished (e.g. it lost
+   * a hedge), which counts toward neither its latency nor its failures.
+   */
+  public void recordAbandoned() {
+    outstandingRequests.decrementAndGet();
+  }
+
+  /**
+   * Updates the counts shared by successful and failed requests.
+   *
+   * @param latencyNanos how long the request took, in nanoseconds
+   */
+  private void recordFinish(long latencyNanos) {
+    outstandingRequests.decrementAndGet();
+    requestCount.increment();
+    totalLatencyNanos.add(latencyNanos);
+
+    double latencyMillis = latencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    long currentBits;
+    long updatedBits;
+
+    do {
+      currentBits = ewmaLatencyBits.get();
+      double current = Double.longBitsToDouble(currentBits);
+      double updated = current == 0 ? latencyMillis
+                                    : EWMA_WEIGHT * latencyMillis + (1 - EWMA_WEIGHT) * current;
+      updatedBits = Double.doubleToLongBits(updated);
+    } while (!ewmaLatencyBits.compareAndSet(currentBits, updatedBits));
+  }
+
+  /**
+   * Returns the number of requests which have started but not finished.
+   *
+   * @return the number of outstanding requests
+   */
+  public int getOutstandingRequests() {
+    return outstandingRequests.get();
+  }
+
+  /**
+   * Returns the exponentially weighted moving average of the latency.
+   *
+   * @return the average latency in milliseconds, or 0 if no request has finished
+   */
+  public double getEwmaLatencyMillis() {
+    return Double.longBitsToDouble(ewmaLatencyBits.get());
+  }
+
+  /**
+   * Returns the mean latency of all finished requests.
+   *
+   * @return the mean latency in milliseconds, or 0 if no request has finished
+   */
+  public double getMeanLatencyMillis() {
+    long requests = requestCount.sum();
+    return requests == 0
+        ? 0
+        : totalLatencyNanos.sum() / (double) requests / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * Returns the number of finished requests.
+   *
+   * @return the number of requests
+   */
+  public long getRequestCount() {
+    return requestCount.sum();
+  }
+
+  /**
+   * Returns the number of failed requests.
+   *
+   * @return the number of errors
+   */
+  public long getErrorCount() {
+    return errorCount.sum();
+  }
+
+  /**
+   * Returns the fraction of finished requests which failed.
+   *
+   * @return the error rate, or 0 if no request has finished
+   */
+  public double getErrorRate() {
+    long requests = requestCount.sum();
+    return requests == 0 ? 0 : errorCount.sum() / (double) requests;
+  }
+
+  /**
+   * Returns the number of times the endpoint was ejected.
+   *
+   * @return the number of ejections
+   */
+  public long getEjectionCount() {
+    return ejectionCount.sum();
+  }
+}
@@ -0,0 +1,254 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story.data;
+
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The story generation endpoints along with the selector which spreads requests across
+ * them. Ejected endpoints are left out of selection until their cooldown is over; if
+ * every endpoint is ejected, the one whose cooldown ends first is used.
+ *
+ * The endpoints are read from the file at {@link #DEFAULT_RESOURCE} (one URL per line,
+ * lines starting with # are comments) unless the {@link #ENDPOINTS_PROPERTY} system property
+ * lists them (comma separated). Requests go to the endpoint with the fewest outstanding
+ * requests unless the {@link #SELECTOR_PROPERTY} system property picks another selector.
+ */
+public final class StoryEndpointPool {
+  /** the resource the default endpoints are loaded from */
+  public static final String DEFAULT_RESOURCE = "/story-endpoints.txt";
+  /** the system property which overrides the endpoints (comma separated URLs) */
+  public static final String ENDPOINTS_PROPERTY = "backstory.story.endpoints";
+  /** the system property which names the selector (e.g. "least-outstanding") */
+  public static final String SELECTOR_PROPERTY = "backstory.story.selector";
+  /** the default number of consecutive failures which eject an endpoint */
+  public static final int DEFAULT_FAILURE_THRESHOLD = 2;
+  /** the default time (in milliseconds) an ejected endpoint is left out */
+  public static final long DEFAULT_COOLDOWN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  /** the pool shared by the whole process (created on first use) */
+  private static volatile StoryEndpointPool sharedPool;
+
+  /** the endpoints, in configuration order */
+  private final ImmutableList<StoryEndpoint> endpoints;
+  /** picks among the available endpoints */
+  private final StoryEndpointSelector selector;
+
+  /**
+   * Returns the pool shared by the whole process, configuring it on first use.
+   *
+   * @return the shared StoryEndpointPool
+   * @throws RuntimeException if the endpoints could not be loaded
+   */
+  public static StoryEndpointPool getShared() throws RuntimeException {
+    if (sharedPool == null) {
+      synchronized (StoryEndpointPool.class) {
+        if (sharedPool == null) {
+          String selectorName = System.getProperty(SELECTOR_PROPERTY);
+          StoryEndpointSelector selector = selectorName == null
+              ? StoryEndpointSelectors.LEAST_OUTSTANDING
+              : StoryEndpointSelectors.fromName(selectorName);
+
+          sharedPool = new StoryEndpointPool(loadConfiguredURLs(), selector);
+        }
+      }
+    }
+
+    return sharedPool;
+  }
+
+  /**
+   * Constructs a pool with the default circuit breaker settings.
+   *
+   * @param urls the URLs of the endpoints
+   * @param selector picks among the available endpoints
+   * @throws IllegalArgumentException if urls is null or empty or selector is null
+   */
+  public StoryEndpointPool(List<String> urls, StoryEndpointSelector selector)
+      throws IllegalArgumentException {
+    this(urls, selector, DEFAULT_FAILURE_THRESHOLD, DEFAULT_COOLDOWN_MILLIS,
+        System::currentTimeMillis);
+  }
+
+  /**
+   * Constructs a pool with the given circuit breaker settings and clock
+   * (mainly to be used for testing).
+   *
+   * @param urls the URLs of the endpoints
+   * @param selector picks among the available endpoints
+   * @param failureThreshold the number of consecutive failures which eject an endpoint
+   * @param cooldownMillis the time in milliseconds an ejected endpoint is left out
+   * @param clock provides the current time in milliseconds
+   * @throws IllegalArgumentException if urls is null or empty, selector is null,
+   *     or the circuit breaker settings are invalid
+   */
+  public StoryEndpointPool(List<String> urls, StoryEndpointSelector selector,
+      int failureThreshold, long cooldownMillis, LongSupplier clock)
+      throws IllegalArgumentException {
+    if (urls == null || urls.isEmpty()) {
+      throw new IllegalArgumentException("There must be at least one endpoint.");
+    }
+
+    if (selector == null) {
+      throw new IllegalArgumentException("Selector cannot be null.");
+    }
+
+    ImmutableList.Builder<StoryEndpoint> builder = ImmutableList.builder();
+
+    for (String url : urls) {
+      builder.add(new StoryEndpoint(url, failureThreshold, cooldownMillis, clock));
+    }
+
+    this.endpoints = builder.build();
+    this.selector = selector;
+  }
+
+  /**
+   * Picks an endpoint for a request, preferring one other than the endpoint to avoid
+   * (e.g. the one a failed attempt was just sent to).
+   *
+   * @param avoid the endpoint to pick only if no other is available (can be null)
+   * @return the picked endpoint
+   */
+  public StoryEndpoint select(StoryEndpoint avoid) {
+    return selectAvoiding(
+        avoid == null ? Collections.<StoryEndpoint>emptySet() : Collections.singleton(avoid));
+  }
+
+  /**
+   * Picks an endpoint for a request, preferring one which isn't in the endpoints to avoid
+   * (e.g. the ones other candidates of the same story were sent to).
+   *
+   * @param avoid the endpoints to pick only if no other is available
+   * @return the picked endpoint
+   */
+  public StoryEndpoint selectAvoiding(Collection<StoryEndpoint> avoid) {
+    List<StoryEndpoint> candidates = new ArrayList<StoryEndpoint>(endpoints.size());
+    List<StoryEndpoint> avoidedCandidates = new ArrayList<StoryEndpoint>();
+
+    for (StoryEndpoint endpoint : endpoints) {
+      if (!endpoint.isAvailable()) {
+        continue;
+      }
+
+      if (avoid.contains(endpoint)) {
+        avoidedCandidates.add(endpoint);
+      } else {
+        candidates.add(endpoint);
+      }
+    }
+
+    if (!candidates.isEmpty()) {
+      return selector.select(candidates);
+    }
+
+    if (!avoidedCandidates.isEmpty()) {
+      return selector.select(avoidedCandidates);
+    }
+
+    // every endpoint is ejected, so probe the one which recovers first
+    StoryEndpoint soonest = endpoints.get(0);
+
+    for (StoryEndpoint endpoint : endpoints) {
+      if (endpoint.getEjectedUntilMillis() < soonest.getEjectedUntilMillis()) {
+        soonest = endpoint;
+      }
+    }
+
+    return soonest;
+  }
+
+  /**
+   * Returns the endpoints, e.g. to publish their metrics.
+   *
+   * @return the endpoints in configuration order
+   */
+  public ImmutableList<StoryEndpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  /**
+   * Reads endpoint URLs from a file with one URL per line. Empty lines and lines
+   * starting with # are skipped.
+   *
+   * @param source the file to read
+   * @return the URLs in file order
+   * @throws IOException if the file could not be read
+   */
+  public static List<String> readURLs(URL source) throws IOException {
+    List<String> urls = new ArrayList<String>();
+
+    try (BufferedReader reader = new BufferedReader(
+             new InputStreamReader(source.openStream(), StandardCharsets.UTF_8))) {
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          urls.add(line);
+        }
+      }
+    }
+
+    return urls;
+  }
+
+  /**
+   * Returns the URLs given by the system property, or else the default resource.
+   *
+   * @return the configured URLs
+   * @throws RuntimeException if the default resource could not be read
+   */
+  private static List<String> loadConfiguredURLs() throws RuntimeException {
+    String property = System.getProperty(ENDPOINTS_PROPERTY);
+
+    if (property != null && !property.trim().isEmpty()) {
+      List<String> urls = new ArrayList<String>();
+
+      for (String url : Arrays.asList(property.split(","))) {
+        if (!url.trim().isEmpty()) {
+          urls.add(url.trim());
+        }
+      }
+
+      return urls;
+    }
+
+    URL resource = StoryEndpointPool.class.getResource(DEFAULT_RESOURCE);
+
+    if (resource == null) {
+      throw new RuntimeException("Could not find the endpoints at " + DEFAULT_RESOURCE);
+    }
+
+    try {
+      return readURLs(resource);
+    } catch (IOException exception) {
+      throw new RuntimeException("Could not load the endpoints from " + resource, exception);
+    }
+  }
+}
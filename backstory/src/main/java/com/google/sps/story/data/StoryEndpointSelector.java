@@ -0,0 +1,30 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story.data;
+
+import java.util.List;
+
+/**
+ * Picks which story generation endpoint a request is sent to.
+ */
+public interface StoryEndpointSelector {
+  /**
+   * Picks one of the candidate endpoints.
+   *
+   * @param candidates the endpoints to pick from (never empty)
+   * @return the picked endpoint
+   */
+  public StoryEndpoint select(List<StoryEndpoint> candidates);
+}
@@ -0,0 +1,88 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story.data;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The built-in endpoint selectors. Each picks the candidate with the lowest cost,
+ * scanning from a random position so that ties are spread across endpoints.
+ */
+public enum StoryEndpointSelectors implements StoryEndpointSelector {
+  /** picks the endpoint with the fewest outstanding requests */
+  LEAST_OUTSTANDING {
+    @Override
+    double cost(StoryEndpoint endpoint) {
+      return endpoint.getOutstandingRequests();
+    }
+  },
+
+  /**
+   * picks the endpoint with the lowest average latency, weighted by its outstanding
+   * requests so a fast endpoint isn't sent everything (endpoints with no measured
+   * latency yet are tried first)
+   */
+  EWMA_LATENCY {
+    @Override
+    double cost(StoryEndpoint endpoint) {
+      return endpoint.getEwmaLatencyMillis() * (endpoint.getOutstandingRequests() + 1);
+    }
+  };
+
+  /**
+   * Returns the cost of sending a request to an endpoint.
+   *
+   * @param endpoint the endpoint to cost
+   * @return the cost (lower is better)
+   */
+  abstract double cost(StoryEndpoint endpoint);
+
+  @Override
+  public StoryEndpoint select(List<StoryEndpoint> candidates) {
+    int size = candidates.size();
+    int start = ThreadLocalRandom.current().nextInt(size);
+    StoryEndpoint best = null;
+    double bestCost = Double.MAX_VALUE;
+
+    for (int i = 0; i < size; i++) {
+      StoryEndpoint candidate = candidates.get((start + i) % size);
+      double candidateCost = cost(candidate);
+
+      if (best == null || candidateCost < bestCost) {
+        best = candidate;
+        bestCost = candidateCost;
+      }
+    }
+
+    return best;
+  }
+
+  /**
+   * Returns the selector with the given name, ignoring case and treating dashes as underscores
+   * (e.g. "ewma-latency").
+   *
+   * @param name the name of the selector
+   * @return the named selector
+   * @throws IllegalArgumentException if there is no such selector
+   */
+  public static StoryEndpointSelectors fromName(String name) throws IllegalArgumentException {
+    if (name == null) {
+      throw new IllegalArgumentException("Selector name cannot be null.");
+    }
+
+    return valueOf(name.trim().replace('-', '_').toUpperCase());
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story.data;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides when a story generation request is hedged: once the primary request has taken
+ * longer than a percentile of recent latencies, a duplicate is sent to another container.
+ * Until enough latencies have been recorded, a fixed initial delay is used. Hedged
+ * requests also have a deadline, after which generation gives up instead of blocking.
+ *
+ * Latencies are kept in a fixed-size ring buffer of atomics, so recording never locks.
+ */
+public final class StoryHedgingPolicy {
+  /** the system property which sets the percentile of the shared policy (e.g. "0.95") */
+  public static final String PERCENTILE_PROPERTY = "backstory.story.hedge.percentile";
+  /** the default percentile of recent latencies after which a request is hedged */
+  public static final double DEFAULT_PERCENTILE = 0.95;
+  /** the default delay (in milliseconds) used until enough latencies have been recorded */
+  public static final long DEFAULT_INITIAL_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(20);
+  /** the default time (in milliseconds) after which a hedged request gives up */
+  public static final long DEFAULT_DEADLINE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+  /** the number of recent latencies the percentile is computed over */
+  public static final int WINDOW_SIZE = 256;
+  /** the number of latencies needed before the percentile is used */
+  public static final int MIN_SAMPLES = 20;
+
+  /** the policy shared by the whole process (created on first use) */
+  private static volatile StoryHedgingPolicy sharedPolicy;
+
+  /** the percentile of recent latencies after which a request is hedged */
+  private final double percentile;
+  /** the delay (in milliseconds) used until enough latencies have been recorded */
+  private final long initialDelayMillis;
+  /** the time (in milliseconds) after which a hedged request gives up */
+  private final long deadlineMillis;
+
+  /** the most recent latencies, in milliseconds */
+  private final AtomicLongArray latencies = new AtomicLongArray(WINDOW_SIZE);
+  /** the number of latencies recorded so far */
+  private final AtomicLong recordedCount = new AtomicLong();
+
+  /**
+   * Returns the policy shared by the whole process, creating it on first use.
+   *
+   * @return the shared StoryHedgingPolicy
+   * @throws IllegalArgumentException if the configured percentile is invalid
+   */
+  public static StoryHedgingPolicy getShared() throws IllegalArgumentException {
+    if (sharedPolicy == null) {
+      synchronized (StoryHedgingPolicy.class) {
+        if (sharedPolicy == null) {
+          String percentile = System.getProperty(PERCENTILE_PROPERTY);
+
+          try {
+            sharedPolicy = new StoryHedgingPolicy(
+                percentile == null ? DEFAULT_PERCENTILE : Double.parseDouble(percentile),
+                DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_DEADLINE_MILLIS);
+          } catch (NumberFormatException exception) {
+            throw new IllegalArgumentException("Invalid hedging percentile: " + percentile);
+          }
+        }
+      }
+    }
+
+    return sharedPolicy;
+  }
+
+  /**
+   * Constructs a hedging policy.
+   *
+   * @param percentile the percentile (between 0 and 1) of recent latencies after which a
+   *     request is hedged
+   * @param initialDelayMillis the delay in milliseconds used until enough latencies have
+   *     been recorded
+   * @param deadlineMillis the time in milliseconds after which a hedged request gives up
+   * @throws IllegalArgumentException if percentile isn't between 0 and 1, or a time is
+   *     negative or the deadline is shorter than the initial delay
+   */
+  public StoryHedgingPolicy(double percentile, long initialDelayMillis, long deadlineMillis)
+      throws IllegalArgumentException {
+    if (percentile <= 0 || percentile > 1) {
+      throw new IllegalArgumentException("Percentile must be between 0 and 1.");
+    }
+
+    if (initialDelayMillis < 0 || deadlineMillis < initialDelayMillis) {
+      throw new IllegalArgumentException(
+          "Delays cannot be negative and the deadline cannot be before the initial delay.");
+    }
+
+    this.percentile = percentile;
+    this.initialDelayMillis = initialDelayMillis;
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  /**
+   * Records the latency of a successful request.
+   *
+   * @param latencyNanos how long the request took, in nanoseconds
+   */
+  public void record(long latencyNanos) {
+    long index = recordedCount.getAndIncrement();
+    latencies.set((int) (index % WINDOW_SIZE), TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+  }
+
+  /**
+   * Returns how long to wait for the primary request before hedging it: the percentile
+   * of recent latencies (capped at the deadline), or the initial delay if too few
+   * latencies have been recorded.
+   *
+   * @return the hedge delay in milliseconds
+   */
+  public long getHedgeDelayMillis() {
+    int samples = getSampleCount();
+
+    if (samples < MIN_SAMPLES) {
+      return initialDelayMillis;
+    }
+
+    long[] window = new long[samples];
+
+    for (int i = 0; i < samples; i++) {
+      window[i] = latencies.get(i);
+    }
+
+    Arrays.sort(window);
+    int rank = (int) Math.ceil(percentile * samples) - 1;
+
+    return Math.min(window[Math.max(rank, 0)], deadlineMillis);
+  }
+
+  /**
+   * Returns the time after which a hedged request gives up.
+   *
+   * @return the deadline in milliseconds
+   */
+  public long getDeadlineMillis() {
+    return deadlineMillis;
+  }
+
+  /**
+   * Returns the number of latencies the percentile is computed over.
+   *
+   * @return the number of recorded latencies in the window
+   */
+  public int getSampleCount() {
+    return (int) Math.min(recordedCount.get(), WINDOW_SIZE);
+  }
+}
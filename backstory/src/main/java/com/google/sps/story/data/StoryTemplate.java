@@ -0,0 +1,240 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A template which has been compiled into an array of tokens: literal text,
+ * gerund slots, and noun slots (along with the number of adjectives in front
+ * of each noun). Rendering walks the tokens once and appends to a StringBuilder,
+ * without any regular expressions.
+ */
+public final class StoryTemplate {
+  /** the tag for an adjective in front of a noun */
+  public static final String ADJECTIVE_TAG = "<adj>";
+  /** the tag for a noun */
+  public static final String NOUN_TAG = "<noun>";
+  /** the tag for a gerund */
+  public static final String GERUND_TAG = "<gerund>";
+
+  /** the template this was compiled from */
+  private final String source;
+  /** the type of each token */
+  private final TokenType[] tokenTypes;
+  /** the literal text of each text token (null for slots) */
+  private final String[] tokenTexts;
+  /** the number of adjectives in front of each noun slot, in order */
+  private final int[] nounAdjectiveCounts;
+  /** the number of gerund slots */
+  private final int gerundSlotCount;
+
+  /**
+   * Fills in the slots of a template as it's rendered. Slots are filled in the
+   * order they appear in the template.
+   */
+  public interface SlotValues {
+    /**
+     * Appends the next noun along with its adjectives.
+     *
+     * @param out the builder to append to
+     * @param adjectiveCount the number of adjectives to put in front of the noun
+     */
+    public void appendNoun(StringBuilder out, int adjectiveCount);
+
+    /**
+     * Appends the next gerund.
+     *
+     * @param out the builder to append to
+     */
+    public void appendGerund(StringBuilder out);
+  }
+
+  /**
+   * Constructs a compiled template from its tokens.
+   *
+   * @param source the template this was compiled from
+   * @param tokenTypes the type of each token
+   * @param tokenTexts the literal text of each text token
+   * @param nounAdjectiveCounts the number of adjectives in front of each noun slot
+   * @param gerundSlotCount the number of gerund slots
+   */
+  private StoryTemplate(String source, TokenType[] tokenTypes, String[] tokenTexts,
+      int[] nounAdjectiveCounts, int gerundSlotCount) {
+    this.source = source;
+    this.tokenTypes = tokenTypes;
+    this.tokenTexts = tokenTexts;
+    this.nounAdjectiveCounts = nounAdjectiveCounts;
+    this.gerundSlotCount = gerundSlotCount;
+  }
+
+  /**
+   * Compiles a template. A run of adjective tags followed by a noun tag is one
+   * noun slot, and a gerund tag is one gerund slot. Tags that don't form a slot
+   * are kept as literal text.
+   *
+   * @param source the template to compile
+   * @return the compiled template
+   * @throws IllegalArgumentException if source is null
+   */
+  public static StoryTemplate compile(String source) throws IllegalArgumentException {
+    if (source == null) {
+      throw new IllegalArgumentException("Template cannot be null.");
+    }
+
+    List<TokenType> tokenTypes = new ArrayList<TokenType>();
+    List<String> tokenTexts = new ArrayList<String>();
+    List<Integer> nounAdjectiveCounts = new ArrayList<Integer>();
+    int gerundSlotCount = 0;
+    int textStart = 0;
+    int index = 0;
+
+    while ((index = source.indexOf('<', index)) != -1) {
+      int tagEnd = index;
+      int adjectiveCount = 0;
+
+      while (source.startsWith(ADJECTIVE_TAG + " ", tagEnd)) {
+        adjectiveCount++;
+        tagEnd += ADJECTIVE_TAG.length() + 1;
+      }
+
+      TokenType slotType = null;
+
+      if (source.startsWith(NOUN_TAG, tagEnd)) {
+        slotType = TokenType.NOUN;
+        tagEnd += NOUN_TAG.length();
+        nounAdjectiveCounts.add(adjectiveCount);
+      } else if (adjectiveCount == 0 && source.startsWith(GERUND_TAG, tagEnd)) {
+        slotType = TokenType.GERUND;
+        tagEnd += GERUND_TAG.length();
+        gerundSlotCount++;
+      }
+
+      if (slotType == null) {
+        index++;
+        continue;
+      }
+
+      if (index > textStart) {
+        tokenTypes.add(TokenType.TEXT);
+        tokenTexts.add(source.substring(textStart, index));
+      }
+
+      tokenTypes.add(slotType);
+      tokenTexts.add(null);
+      textStart = tagEnd;
+      index = tagEnd;
+    }
+
+    if (textStart < source.length()) {
+      tokenTypes.add(TokenType.TEXT);
+      tokenTexts.add(source.substring(textStart));
+    }
+
+    int[] adjectiveCounts = new int[nounAdjectiveCounts.size()];
+
+    for (int i = 0; i < adjectiveCounts.length; i++) {
+      adjectiveCounts[i] = nounAdjectiveCounts.get(i);
+    }
+
+    return new StoryTemplate(source, tokenTypes.toArray(new TokenType[tokenTypes.size()]),
+        tokenTexts.toArray(new String[tokenTexts.size()]), adjectiveCounts, gerundSlotCount);
+  }
+
+  /**
+   * Returns the number of noun slots in this template.
+   *
+   * @return the number of noun slots
+   */
+  public int getNounSlotCount() {
+    return nounAdjectiveCounts.length;
+  }
+
+  /**
+   * Returns the number of adjectives in front of a noun slot.
+   *
+   * @param nounSlot the index of the noun slot (in the order they appear)
+   * @return the number of adjectives in front of that noun
+   * @throws IndexOutOfBoundsException if there is no such noun slot
+   */
+  public int getAdjectiveCount(int nounSlot) throws IndexOutOfBoundsException {
+    return nounAdjectiveCounts[nounSlot];
+  }
+
+  /**
+   * Returns the number of gerund slots in this template.
+   *
+   * @return the number of gerund slots
+   */
+  public int getGerundSlotCount() {
+    return gerundSlotCount;
+  }
+
+  /**
+   * Returns the template this was compiled from.
+   *
+   * @return the source of this template
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * Appends this template to a builder, filling its slots in order.
+   *
+   * @param out the builder to append to
+   * @param values fills in the slots (can be null if the template has no slots)
+   * @throws IllegalStateException if the template has slots but values is null
+   */
+  public void renderTo(StringBuilder out, SlotValues values) throws IllegalStateException {
+    int nounSlot = 0;
+
+    for (int i = 0; i < tokenTypes.length; i++) {
+      if (tokenTypes[i] == TokenType.TEXT) {
+        out.append(tokenTexts[i]);
+        continue;
+      }
+
+      if (values == null) {
+        throw new IllegalStateException("Template has slots but no values were given.");
+      }
+
+      if (tokenTypes[i] == TokenType.NOUN) {
+        values.appendNoun(out, nounAdjectiveCounts[nounSlot++]);
+      } else {
+        values.appendGerund(out);
+      }
+    }
+  }
+
+  /**
+   * Renders a template which has no slots. As there's nothing to fill in,
+   * this is the template itself.
+   *
+   * @return the rendered template
+   * @throws IllegalStateException if the template has slots
+   */
+  public String render() throws IllegalStateException {
+    if (getNounSlotCount() > 0 || gerundSlotCount > 0) {
+      throw new IllegalStateException("Template has slots but no values were given.");
+    }
+
+    return source;
+  }
+
+  /** The types of tokens in a compiled template. */
+  private enum TokenType { TEXT, NOUN, GERUND }
+}
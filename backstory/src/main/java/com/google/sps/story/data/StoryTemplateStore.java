@@ -0,0 +1,391 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story.data;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Loads the prompt and story ending templates from a resource file and compiles them
+ * once, so rendering a template never has to parse it again.
+ *
+ * The file is made up of sections which start with their name in square brackets;
+ * every other non-empty line (after trimming) that doesn't start with # is a template.
+ * If the file is on the file system (e.g. an exploded WAR or the dev server), it is
+ * checked for changes at most once per check interval and reloaded when it changes.
+ * The templates are only replaced once the whole file has been read and checked: a
+ * reload that fails (the file can't be read, a section is repeated or has no name, a
+ * required section is missing or empty, or a default section has templates which prompts
+ * and stories can't be built from) keeps the templates that were already loaded, and the
+ * file isn't read again until it's modified again.
+ */
+public final class StoryTemplateStore {
+  /** the resource the default templates are loaded from */
+  public static final String DEFAULT_RESOURCE = "/templates/story-templates.txt";
+  /** the default time (in milliseconds) between checks of the file for changes */
+  public static final long DEFAULT_CHECK_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  /** introductory prompt sentences for when there are no gerunds */
+  public static final String INTRO = "intro";
+  /** introductory prompt sentences for when there are gerunds */
+  public static final String INTRO_WITH_GERUNDS = "intro-with-gerunds";
+  /** second prompt sentences */
+  public static final String SECOND = "second";
+  /** endings for prompts which list their keywords */
+  public static final String SIMPLE_ENDING = "simple-ending";
+  /** prompt body for when there are no keywords */
+  public static final String EMPTY_ENDING = "empty-ending";
+  /** endings added to generated stories */
+  public static final String STORY_ENDING = "story-ending";
+  /** the sections the default templates must have, as prompts and stories are built from them */
+  public static final ImmutableSet<String> DEFAULT_SECTIONS = ImmutableSet.of(
+      INTRO, INTRO_WITH_GERUNDS, SECOND, SIMPLE_ENDING, EMPTY_ENDING, STORY_ENDING);
+  /** the most noun slots an introductory and a second prompt sentence can have together */
+  public static final int MAX_PROMPT_NOUN_SLOTS = 3;
+
+  /** the store of the default templates (created on first use) */
+  private static volatile StoryTemplateStore defaultStore;
+
+  /** where the templates are loaded from */
+  private final URL source;
+  /** the time (in milliseconds) between checks of the file for changes */
+  private final long checkIntervalMillis;
+  /** provides the current time in milliseconds */
+  private final LongSupplier clock;
+  /** the sections which must be in the file and have at least one template */
+  private final ImmutableSet<String> requiredSections;
+
+  /** the compiled templates of each section (replaced as a whole on reload) */
+  private volatile ImmutableMap<String, ImmutableList<StoryTemplate>> sections;
+  /** the last modified time of the file when it was last read, even if it failed (0 if unknown) */
+  private volatile long readLastModified;
+  /** the time of the last check for changes */
+  private volatile long lastCheckMillis;
+
+  /**
+   * Returns the store of the default templates, loading them on first use.
+   *
+   * @return the default StoryTemplateStore
+   * @throws RuntimeException if the default templates could not be loaded
+   */
+  public static StoryTemplateStore getDefault() throws RuntimeException {
+    if (defaultStore == null) {
+      synchronized (StoryTemplateStore.class) {
+        if (defaultStore == null) {
+          URL resource = StoryTemplateStore.class.getResource(DEFAULT_RESOURCE);
+
+          if (resource == null) {
+            throw new RuntimeException("Could not find the templates at " + DEFAULT_RESOURCE);
+          }
+
+          defaultStore = new StoryTemplateStore(resource, DEFAULT_CHECK_INTERVAL_MILLIS,
+              System::currentTimeMillis, DEFAULT_SECTIONS);
+        }
+      }
+    }
+
+    return defaultStore;
+  }
+
+  /**
+   * Constructs a store and loads the templates from the given source.
+   *
+   * @param source where to load the templates from
+   * @throws IllegalArgumentException if source is null
+   * @throws RuntimeException if the templates could not be loaded
+   */
+  public StoryTemplateStore(URL source) throws IllegalArgumentException, RuntimeException {
+    this(source, DEFAULT_CHECK_INTERVAL_MILLIS, System::currentTimeMillis);
+  }
+
+  /**
+   * Constructs a store with the given check interval and clock
+   * (mainly to be used for testing) and loads the templates from the given source.
+   *
+   * @param source where to load the templates from
+   * @param checkIntervalMillis the time in milliseconds between checks of the file for changes
+   * @param clock provides the current time in milliseconds
+   * @throws IllegalArgumentException if source or clock is null or checkIntervalMillis is negative
+   * @throws RuntimeException if the templates could not be loaded
+   */
+  public StoryTemplateStore(URL source, long checkIntervalMillis, LongSupplier clock)
+      throws IllegalArgumentException, RuntimeException {
+    this(source, checkIntervalMillis, clock, ImmutableSet.<String>of());
+  }
+
+  /**
+   * Constructs a store with the given check interval, clock and required sections,
+   * and loads the templates from the given source.
+   *
+   * @param source where to load the templates from
+   * @param checkIntervalMillis the time in milliseconds between checks of the file for changes
+   * @param clock provides the current time in milliseconds
+   * @param requiredSections the sections which must be in the file and not be empty
+   * @throws IllegalArgumentException if source, clock or requiredSections is null or
+   *     checkIntervalMillis is negative
+   * @throws RuntimeException if the templates could not be loaded
+   */
+  public StoryTemplateStore(URL source, long checkIntervalMillis, LongSupplier clock,
+      Collection<String> requiredSections) throws IllegalArgumentException, RuntimeException {
+    if (source == null) {
+      throw new IllegalArgumentException("Source cannot be null.");
+    }
+
+    if (checkIntervalMillis < 0) {
+      throw new IllegalArgumentException("Check interval cannot be negative.");
+    }
+
+    if (clock == null) {
+      throw new IllegalArgumentException("Clock cannot be null.");
+    }
+
+    if (requiredSections == null) {
+      throw new IllegalArgumentException("Required sections cannot be null.");
+    }
+
+    this.source = source;
+    this.checkIntervalMillis = checkIntervalMillis;
+    this.clock = clock;
+    this.requiredSections = ImmutableSet.copyOf(requiredSections);
+    this.lastCheckMillis = clock.getAsLong();
+
+    try {
+      load();
+    } catch (IOException | RuntimeException exception) {
+      throw new RuntimeException("Could not load the templates from " + source, exception);
+    }
+  }
+
+  /**
+   * Returns the compiled templates of a section, reloading the file first
+   * if it's due for a check and has changed.
+   *
+   * @param section the name of the section
+   * @return the templates of the section, in file order
+   * @throws IllegalArgumentException if there is no such section (or it's empty)
+   */
+  public ImmutableList<StoryTemplate> getTemplates(String section)
+      throws IllegalArgumentException {
+    reloadIfModified();
+
+    ImmutableList<StoryTemplate> templates = sections.get(section);
+
+    if (templates == null || templates.isEmpty()) {
+      throw new IllegalArgumentException("There are no templates named " + section + ".");
+    }
+
+    return templates;
+  }
+
+  /**
+   * Reloads the templates from the source. If they can't be loaded (or aren't valid),
+   * the templates that were already loaded are kept.
+   *
+   * @return true, if the templates were reloaded; false, otherwise
+   */
+  public boolean reload() {
+    try {
+      load();
+      return true;
+    } catch (IOException | RuntimeException exception) {
+      System.err.println("Could not reload the templates from " + source + ": " + exception);
+      return false;
+    }
+  }
+
+  /**
+   * Reloads the templates if the check interval has passed since the last check
+   * and the file has been modified since it was last read.
+   */
+  private void reloadIfModified() {
+    long now = clock.getAsLong();
+
+    if (now - lastCheckMillis < checkIntervalMillis) {
+      return;
+    }
+
+    synchronized (this) {
+      if (now - lastCheckMillis < checkIntervalMillis) {
+        return;
+      }
+
+      lastCheckMillis = now;
+      long lastModified = getLastModified();
+
+      if (lastModified != 0 && lastModified != readLastModified) {
+        reload();
+      }
+    }
+  }
+
+  /**
+   * Reads and compiles every template in the source, and replaces the loaded templates
+   * with them once they've been checked.
+   *
+   * @throws IOException if the source could not be read
+   * @throws IllegalArgumentException if a section is repeated or has no name, a required
+   *     section is missing or empty, or a default section can't be filled
+   */
+  private synchronized void load() throws IOException {
+    // Remember this version of the file even if it fails, so it isn't read again until it changes.
+    readLastModified = getLastModified();
+    Map<String, List<StoryTemplate>> loaded = new LinkedHashMap<String, List<StoryTemplate>>();
+    List<StoryTemplate> currentSection = null;
+
+    try (BufferedReader reader = new BufferedReader(
+             new InputStreamReader(source.openStream(), StandardCharsets.UTF_8))) {
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+
+        if (line.startsWith("[") && line.endsWith("]")) {
+          String name = line.substring(1, line.length() - 1).trim();
+
+          if (name.isEmpty()) {
+            throw new IllegalArgumentException("A section has no name.");
+          }
+
+          if (loaded.containsKey(name)) {
+            throw new IllegalArgumentException("The section " + name + " is repeated.");
+          }
+
+          currentSection = new ArrayList<StoryTemplate>();
+          loaded.put(name, currentSection);
+        } else if (currentSection != null) {
+          currentSection.add(StoryTemplate.compile(line));
+        }
+      }
+    }
+
+    for (String section : requiredSections) {
+      if (!loaded.containsKey(section) || loaded.get(section).isEmpty()) {
+        throw new IllegalArgumentException("The required section " + section + " is missing.");
+      }
+    }
+
+    if (requiredSections.containsAll(DEFAULT_SECTIONS)) {
+      checkDefaultSections(loaded);
+    }
+
+    ImmutableMap.Builder<String, ImmutableList<StoryTemplate>> builder = ImmutableMap.builder();
+
+    for (Map.Entry<String, List<StoryTemplate>> section : loaded.entrySet()) {
+      builder.put(section.getKey(), ImmutableList.copyOf(section.getValue()));
+    }
+
+    sections = builder.build();
+  }
+
+  /**
+   * Checks that prompts and stories can be built from the templates of the default sections:
+   * every noun in a prompt sentence has an adjective, only introductory sentences for when
+   * there are gerunds have a (single) gerund, an introductory and a second sentence have at
+   * most MAX_PROMPT_NOUN_SLOTS nouns together, and endings have no slots.
+   *
+   * @param loaded the templates of each section
+   * @throws IllegalArgumentException if a template of a default section can't be filled
+   */
+  private static void checkDefaultSections(Map<String, List<StoryTemplate>> loaded)
+      throws IllegalArgumentException {
+    for (String section : ImmutableList.of(INTRO, INTRO_WITH_GERUNDS, SECOND)) {
+      int maxGerundSlots = INTRO_WITH_GERUNDS.equals(section) ? 1 : 0;
+
+      for (StoryTemplate template : loaded.get(section)) {
+        for (int nounSlot = 0; nounSlot < template.getNounSlotCount(); nounSlot++) {
+          if (template.getAdjectiveCount(nounSlot) == 0) {
+            throw new IllegalArgumentException("The template " + template.getSource() + " in "
+                + section + " has a noun without an adjective.");
+          }
+        }
+
+        if (template.getGerundSlotCount() > maxGerundSlots) {
+          throw new IllegalArgumentException("The template " + template.getSource() + " in "
+              + section + " has more than " + maxGerundSlots + " gerunds.");
+        }
+      }
+    }
+
+    int secondNounSlots = getMaxNounSlotCount(loaded.get(SECOND));
+
+    for (String section : ImmutableList.of(INTRO, INTRO_WITH_GERUNDS)) {
+      if (getMaxNounSlotCount(loaded.get(section)) + secondNounSlots > MAX_PROMPT_NOUN_SLOTS) {
+        throw new IllegalArgumentException("The templates in " + section + " and " + SECOND
+            + " have more than " + MAX_PROMPT_NOUN_SLOTS + " nouns together.");
+      }
+    }
+
+    for (String section : ImmutableList.of(SIMPLE_ENDING, EMPTY_ENDING, STORY_ENDING)) {
+      for (StoryTemplate template : loaded.get(section)) {
+        if (template.getNounSlotCount() > 0 || template.getGerundSlotCount() > 0) {
+          throw new IllegalArgumentException(
+              "The template " + template.getSource() + " in " + section + " has slots.");
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the most noun slots any of the given templates has.
+   *
+   * @param templates the templates
+   * @return the largest noun slot count, or 0 if there are no templates
+   */
+  private static int getMaxNounSlotCount(List<StoryTemplate> templates) {
+    int maxNounSlots = 0;
+
+    for (StoryTemplate template : templates) {
+      maxNounSlots = Math.max(maxNounSlots, template.getNounSlotCount());
+    }
+
+    return maxNounSlots;
+  }
+
+  /**
+   * Returns the last modified time of the source, if it's a file.
+   *
+   * @return the last modified time in milliseconds, or 0 if the source isn't a file
+   */
+  private long getLastModified() {
+    if (!"file".equals(source.getProtocol())) {
+      return 0;
+    }
+
+    try {
+      return new File(source.toURI()).lastModified();
+    } catch (URISyntaxException | IllegalArgumentException exception) {
+      return 0;
+    }
+  }
+}
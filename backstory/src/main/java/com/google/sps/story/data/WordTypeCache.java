@@ -0,0 +1,338 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A cache of the word types that words were classified as by the NL API.
+ *
+ * The first tier is a bounded in-process map which evicts the least recently used
+ * word once it's full. The optional second tier is Datastore, which lets warm instances
+ * share their classifications. Entries in both tiers expire after a time to live.
+ * Words are keyed by their Unicode NFC normalized form (case is kept because it
+ * affects whether a word is classified as a proper noun).
+ */
+public final class WordTypeCache {
+  /** the default maximum number of words held in memory */
+  public static final int DEFAULT_MAX_SIZE = 5000;
+  /** the default time (in milliseconds) a classification is kept for */
+  public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+  /** the kind of the Datastore entities which hold classifications */
+  public static final String ENTITY_KIND = "word-type";
+
+  /** the in-memory tier, in least to most recently used order */
+  private final LinkedHashMap<String, CachedWordType> entries;
+  /** the maximum number of words held in memory */
+  private final int maxSize;
+  /** how long (in milliseconds) a classification is kept for */
+  private final long ttlMillis;
+  /** provides the current time in milliseconds */
+  private final LongSupplier clock;
+  /** the Datastore tier (null if there is no second tier) */
+  private DatastoreService datastoreService;
+
+  /** the number of words found in memory */
+  private final AtomicLong hitCount = new AtomicLong();
+  /** the number of words found in Datastore after missing in memory */
+  private final AtomicLong datastoreHitCount = new AtomicLong();
+  /** the number of words found in neither tier */
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Constructs an in-memory word type cache.
+   *
+   * @param maxSize the maximum number of words to hold in memory
+   * @param ttlMillis how long (in milliseconds) a classification is kept for
+   * @throws IllegalArgumentException if maxSize or ttlMillis is not positive
+   */
+  public WordTypeCache(int maxSize, long ttlMillis) throws IllegalArgumentException {
+    this(maxSize, ttlMillis, System::currentTimeMillis);
+  }
+
+  /**
+   * Constructs an in-memory word type cache with the given clock
+   * (mainly to be used for testing).
+   *
+   * @param maxSize the maximum number of words to hold in memory
+   * @param ttlMillis how long (in milliseconds) a classification is kept for
+   * @param clock provides the current time in milliseconds
+   * @throws IllegalArgumentException if maxSize or ttlMillis is not positive, or clock is null
+   */
+  public WordTypeCache(int maxSize, long ttlMillis, LongSupplier clock)
+      throws IllegalArgumentException {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Max size must be greater than 0.");
+    }
+
+    if (ttlMillis <= 0) {
+      throw new IllegalArgumentException("Time to live must be greater than 0.");
+    }
+
+    if (clock == null) {
+      throw new IllegalArgumentException("Clock cannot be null.");
+    }
+
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+    this.clock = clock;
+    this.entries = new LinkedHashMap<String, CachedWordType>(16, .75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedWordType> eldest) {
+        return size() > WordTypeCache.this.maxSize;
+      }
+    };
+  }
+
+  /**
+   * Adds Datastore as the second tier of this cache.
+   *
+   * @param datastoreService the Datastore service to store classifications in
+   *     (null removes the second tier)
+   */
+  public void setDatastoreService(DatastoreService datastoreService) {
+    this.datastoreService = datastoreService;
+  }
+
+  /**
+   * Looks up the word types of all the given words, first in memory and then
+   * (for the words not in memory) in Datastore with a single batch get.
+   * Words found in Datastore are added to memory.
+   *
+   * @param words the words to look up
+   * @return a map from each word that was found to its word type (words that weren't
+   *     found are not in the map)
+   */
+  public Map<String, WordType> getAll(Collection<String> words) {
+    Map<String, WordType> found = new HashMap<String, WordType>();
+    List<String> notInMemory = new ArrayList<String>();
+    long now = clock.getAsLong();
+
+    synchronized (entries) {
+      for (String word : words) {
+        String key = normalize(word);
+        CachedWordType cached = entries.get(key);
+
+        if (cached != null && cached.isExpired(now)) {
+          entries.remove(key);
+          cached = null;
+        }
+
+        if (cached == null) {
+          notInMemory.add(word);
+        } else {
+          found.put(word, cached.wordType);
+          hitCount.incrementAndGet();
+        }
+      }
+    }
+
+    Map<String, CachedWordType> fromDatastore = getAllFromDatastore(notInMemory, now);
+
+    synchronized (entries) {
+      for (String word : notInMemory) {
+        CachedWordType cached = fromDatastore.get(normalize(word));
+
+        if (cached == null) {
+          missCount.incrementAndGet();
+        } else {
+          entries.put(normalize(word), cached);
+          found.put(word, cached.wordType);
+          datastoreHitCount.incrementAndGet();
+        }
+      }
+    }
+
+    return found;
+  }
+
+  /**
+   * Adds the word types of the given words to memory and (if there is a second tier)
+   * to Datastore with a single batch put.
+   *
+   * @param wordTypes a map from words to the word types they were classified as
+   */
+  public void putAll(Map<String, WordType> wordTypes) {
+    if (wordTypes.isEmpty()) {
+      return;
+    }
+
+    long expiration = clock.getAsLong() + ttlMillis;
+    List<Entity> entities = new ArrayList<Entity>();
+
+    synchronized (entries) {
+      for (Map.Entry<String, WordType> wordType : wordTypes.entrySet()) {
+        String key = normalize(wordType.getKey());
+        entries.put(key, new CachedWordType(wordType.getValue(), expiration));
+
+        if (datastoreService != null) {
+          Entity entity = new Entity(ENTITY_KIND, key);
+          entity.setUnindexedProperty("wordType", wordType.getValue().name());
+          entity.setUnindexedProperty("expiration", expiration);
+          entities.add(entity);
+        }
+      }
+    }
+
+    if (!entities.isEmpty()) {
+      try {
+        datastoreService.put(entities);
+      } catch (RuntimeException exception) {
+        // the second tier is only an optimization, so failing to write to it is not an error
+        System.err.println("Could not write word types to Datastore: " + exception);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of words found in memory.
+   *
+   * @return the number of in-memory hits
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the number of words not found in memory but found in Datastore.
+   *
+   * @return the number of Datastore hits
+   */
+  public long getDatastoreHitCount() {
+    return datastoreHitCount.get();
+  }
+
+  /**
+   * Returns the number of words found in neither tier.
+   *
+   * @return the number of misses
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the number of words currently held in memory (including expired
+   * words which haven't been looked up since they expired).
+   *
+   * @return the number of words in memory
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Looks up the given words in Datastore with a single batch get.
+   *
+   * @param words the words to look up
+   * @param now the current time in milliseconds
+   * @return a map from the normalized words found (and not expired) to their entries
+   */
+  private Map<String, CachedWordType> getAllFromDatastore(List<String> words, long now) {
+    Map<String, CachedWordType> found = new HashMap<String, CachedWordType>();
+
+    if (datastoreService == null || words.isEmpty()) {
+      return found;
+    }
+
+    List<Key> keys = new ArrayList<Key>();
+
+    for (String word : words) {
+      keys.add(KeyFactory.createKey(ENTITY_KIND, normalize(word)));
+    }
+
+    Map<Key, Entity> entities;
+
+    try {
+      entities = datastoreService.get(keys);
+    } catch (RuntimeException exception) {
+      // treat a failure to read the second tier as a miss
+      System.err.println("Could not read word types from Datastore: " + exception);
+      return found;
+    }
+
+    for (Entity entity : entities.values()) {
+      try {
+        WordType wordType = WordType.valueOf((String) entity.getProperty("wordType"));
+        long expiration = (Long) entity.getProperty("expiration");
+        CachedWordType cached = new CachedWordType(wordType, expiration);
+
+        if (!cached.isExpired(now)) {
+          found.put(entity.getKey().getName(), cached);
+        }
+      } catch (IllegalArgumentException | ClassCastException | NullPointerException exception) {
+        // skip entities which were written in an unexpected format
+      }
+    }
+
+    return found;
+  }
+
+  /**
+   * Normalizes a word to use as a key.
+   *
+   * @param word the word to normalize
+   * @return the Unicode NFC normalized form of the word
+   */
+  private static String normalize(String word) {
+    return Normalizer.normalize(word, Normalizer.Form.NFC);
+  }
+
+  /**
+   * A word type along with the time it expires.
+   */
+  private static final class CachedWordType {
+    /** the word type the word was classified as */
+    private final WordType wordType;
+    /** the time in milliseconds after which this entry is expired */
+    private final long expiration;
+
+    /**
+     * Constructs an entry for a word type.
+     *
+     * @param wordType the word type the word was classified as
+     * @param expiration the time in milliseconds after which this entry is expired
+     */
+    private CachedWordType(WordType wordType, long expiration) {
+      this.wordType = wordType;
+      this.expiration = expiration;
+    }
+
+    /**
+     * Checks if this entry is expired.
+     *
+     * @param now the current time in milliseconds
+     * @return true, if the entry is expired; false, otherwise
+     */
+    private boolean isExpired(long now) {
+      return now > expiration;
+    }
+  }
+}
@@ -23,9 +23,11 @@ export {fetchBlobstoreUrl};
  * it as the action of the form with the passed-in name.
  *
  * @param formName - the name of the form to set the action for
+ * @param target - (optional) 'stream' to upload to the streaming back-end
  */
-function fetchBlobstoreUrl(formName) {
-  fetch('/blobstore-upload-url')
+function fetchBlobstoreUrl(formName, target) {
+  const query = target ? '?target=' + encodeURIComponent(target) : '';
+  fetch('/blobstore-upload-url' + query)
       .then((response) => {
         return response.text();
       })
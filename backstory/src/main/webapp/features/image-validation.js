@@ -21,12 +21,12 @@
 export {validateImageUpload};
 
 /**
- * Validate that the file uploaded to image upload
- * is an accepted image. Alert user to upload a new file if not.
+ * Validate that every file uploaded to image upload
+ * is an accepted image. Alert user to upload new files if not.
  *
  * @param imageUploadElementID - the id of the image upload element to check
- * @return true, if valid image uploaded; false, if no image uploaded
- *      or if no valid image uploaded
+ * @return true, if only valid images uploaded; false, if no image uploaded
+ *      or if any file isn't a valid image
  */
 function validateImageUpload(imageUploadElementID) {
   const imageUpload = document.getElementById(imageUploadElementID);
@@ -37,7 +37,7 @@ function validateImageUpload(imageUploadElementID) {
     return false;
   }
 
-  if (!validImage(files.item(0))) {
+  if (!Array.from(files).every(validImage)) {
     alert(
         'Only PNGs and JPGs are accepted image upload types. ' +
         'Please upload a PNG or JPG.');
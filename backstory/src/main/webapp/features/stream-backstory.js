@@ -0,0 +1,87 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+/*
+ * JS for Streaming a Backstory as it is Generated
+ */
+
+export {streamBackstory};
+
+/**
+ * Opens an event stream to the back-end for the backstory of the image just
+ * uploaded and shows the story in the display element as it arrives. The
+ * back-end only sends the story once it has passed the story analysis and
+ * been saved, after which the onDone callback is called to show it.
+ *
+ * @param displayName - the name of the element to display the story in
+ * @param onDone - called once the backstory has been saved
+ */
+function streamBackstory(displayName, onDone) {
+  const storyDisplayElement = document.getElementById(displayName);
+  const eventSource = new EventSource('/stream-backstory');
+  let storyParagraph = null;
+
+  eventSource.addEventListener('status', (event) => {
+    const loadingText =
+        storyDisplayElement.querySelector('.backstory-loading-text p');
+    if (loadingText !== null) {
+      loadingText.textContent = JSON.parse(event.data);
+    }
+  });
+
+  eventSource.addEventListener('chunk', (event) => {
+    if (storyParagraph === null) {
+      storyParagraph = createStreamingElement(storyDisplayElement);
+    }
+    storyParagraph.textContent += JSON.parse(event.data);
+  });
+
+  eventSource.addEventListener('done', () => {
+    eventSource.close();
+    onDone();
+  });
+
+  const showMessage = (event) => {
+    eventSource.close();
+    storyParagraph = createStreamingElement(storyDisplayElement);
+    storyParagraph.textContent = event.data ?
+        JSON.parse(event.data) :
+        'Sorry! There was an error in your backstory generation. ' +
+            'Please try again!';
+  };
+  eventSource.addEventListener('rejected', showMessage);
+  eventSource.addEventListener('error', showMessage);
+}
+
+/**
+ * Helper function to replace the contents of the display element with an
+ * empty paragraph for the story being written.
+ *
+ * @param storyDisplayElement - the element to display the story in
+ * @return the paragraph to write the story into
+ */
+function createStreamingElement(storyDisplayElement) {
+  const backstoryParagraph = document.createElement('p');
+  const backstoryParagraphDiv = document.createElement('div');
+  backstoryParagraphDiv.appendChild(backstoryParagraph);
+  backstoryParagraphDiv.classList.add('backstory-paragraph');
+
+  const backstoryElement = document.createElement('div');
+  backstoryElement.classList.add('backstory-element');
+  backstoryElement.appendChild(backstoryParagraphDiv);
+
+  storyDisplayElement.innerHTML = '';
+  storyDisplayElement.appendChild(backstoryElement);
+  return backstoryParagraph;
+}
@@ -22,6 +22,7 @@
 import {createBackstoryLoadingElement} from './features/backstory-loading-element.js';
 import {fetchBlobstoreUrl} from './features/fetch-blobstore-url.js';
 import {validateImageUpload} from './features/image-validation.js';
+import {streamBackstory} from './features/stream-backstory.js';
 import {updateFileName} from './features/update-file-name.js';
 
 // export methods by making them global
@@ -53,7 +54,8 @@ function checkForm() {
 
 /**
  * Fetch the Blobstore URL by calling the method
- * for the 'photo-upload' form element.
+ * for the 'photo-upload' form element. Uploads go to the
+ * analysis back-end, which handles several images at once.
  */
 function fetchBlobstoreUrlForBackstory() {
   fetchBlobstoreUrl('photo-upload');
@@ -64,34 +66,33 @@ function fetchBlobstoreUrlForBackstory() {
 /**
  * This function interfaces with the back-end to get the user's photo upload
  * along, with the relevant backstory, from permanent storage. No analysis or
- * computation is done from this interface with the backend.
+ * computation is done from this interface with the backend. If an image was
+ * uploaded to the streaming back-end instead, its backstory is streamed first.
  */
 function getAnalyzedImagesForBackstory() {
-  fetch('/backstory')
+  if (new URLSearchParams(window.location.search).has('stream')) {
+    // Drop the parameter so reloading the page doesn't stream again.
+    window.history.replaceState(null, '', window.location.pathname);
+    createBackstoryLoadingElement('story-display');
+    streamBackstory('story-display', getAnalyzedImagesForBackstory);
+    return;
+  }
+
+  // The backstory and its image's URL come back together, and the image's
+  // own URL never changes, so the browser can cache it.
+  fetch('/latest-backstory')
       .then((response) => response.json())
       .then((backstoryObject) => {
         if (backstoryObject.length !== 0) {
-          // Only support returning a single backstory at the moment
-          const backstory = backstoryObject[0].backstory;
-
-          fetch('/analyzed-images')
-              .then((response) => response.blob())
-              .then((blob) => {
-                const storyDisplayElement =
-                    document.getElementById('story-display');
-                storyDisplayElement.innerHTML = '';
-                const urlCreator = window.URL;
-                const imageUrl = urlCreator.createObjectURL(blob);
-
-                if (storyDisplayElement.childNodes.length === 1) {
-                  storyDisplayElement.replaceChild(
-                      createBackstoryElement(imageUrl, backstory),
-                      storyDisplayElement.childNodes[0]);
-                } else {
-                  storyDisplayElement.appendChild(
-                      createBackstoryElement(imageUrl, backstory));
-                }
-              });
+          // Show the backstory of every image in the upload, in upload order.
+          const storyDisplayElement = document.getElementById('story-display');
+          storyDisplayElement.innerHTML = '';
+          for (const backstoryItem of backstoryObject) {
+            const imageUrl = backstoryItem.imageUrl === undefined ?
+                '/analyzed-images' : backstoryItem.imageUrl;
+            storyDisplayElement.appendChild(
+                createBackstoryElement(imageUrl, backstoryItem.backstory));
+          }
         }
       });
 }
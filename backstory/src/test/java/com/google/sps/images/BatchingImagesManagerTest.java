@@ -0,0 +1,203 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images;
+
+import static org.mockito.Mockito.*;
+
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.protobuf.ByteString;
+import com.google.sps.images.data.AnnotatedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for BatchingImagesManager.
+ */
+@RunWith(JUnit4.class)
+public final class BatchingImagesManagerTest {
+  /** the linger window to use for tests, long enough for every caller to join a batch */
+  private static final long LINGER_MILLIS = 200;
+  /** the first byte of images which Vision fails to annotate */
+  private static final byte FAILING_IMAGE = 0;
+
+  /** the mocked Vision manager, which labels each image with its first byte */
+  private VisionImagesManager mockDelegate;
+  /** runs the concurrent callers */
+  private ExecutorService callers;
+
+  @Before
+  public void setUp() throws Exception {
+    callers = Executors.newCachedThreadPool();
+    mockDelegate = mock(VisionImagesManager.class);
+    when(mockDelegate.annotateEach(anyList())).thenAnswer(invocation -> {
+      List<CompletableFuture<AnnotatedImage>> results =
+          new ArrayList<CompletableFuture<AnnotatedImage>>();
+      for (ByteString image : (List<ByteString>) invocation.getArgument(0)) {
+        CompletableFuture<AnnotatedImage> result = new CompletableFuture<AnnotatedImage>();
+        if (image.byteAt(0) == FAILING_IMAGE) {
+          result.completeExceptionally(new IOException("Bad image data."));
+        } else {
+          result.complete(new AnnotatedImage(image, Arrays.asList(label(image.byteAt(0))),
+              Collections.emptyList()));
+        }
+        results.add(result);
+      }
+      return results;
+    });
+  }
+
+  @After
+  public void tearDown() {
+    callers.shutdownNow();
+  }
+
+  /**
+   * Check that the images of concurrent callers share one request, and each caller gets its
+   * own annotated image.
+   */
+  @Test
+  public void batchesConcurrentCallers() throws Exception {
+    BatchingImagesManager manager =
+        new BatchingImagesManager(mockDelegate, 16, LINGER_MILLIS, Runnable::run);
+    List<Future<List<AnnotatedImage>>> results = new ArrayList<Future<List<AnnotatedImage>>>();
+
+    for (byte i = 1; i <= 3; i++) {
+      byte[] image = {i};
+      results.add(callers.submit(() -> {
+        return manager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(image));
+      }));
+    }
+
+    for (int i = 0; i < 3; i++) {
+      List<AnnotatedImage> annotatedImages = results.get(i).get(5, TimeUnit.SECONDS);
+      Assert.assertEquals(
+          Arrays.asList(Integer.toString(i + 1)), annotatedImages.get(0).getLabelDescriptions());
+    }
+
+    verify(mockDelegate, times(1)).annotateEach(anyList());
+    Assert.assertEquals(1, manager.getBatchCount());
+    Assert.assertEquals(3, manager.getImageCount());
+  }
+
+  /**
+   * Check that a full batch is sent without waiting for the linger window.
+   */
+  @Test
+  public void sendsFullBatchImmediately() throws Exception {
+    BatchingImagesManager manager =
+        new BatchingImagesManager(mockDelegate, 2, TimeUnit.MINUTES.toMillis(1), Runnable::run);
+
+    List<AnnotatedImage> annotatedImages = manager.createAnnotatedImagesFromImagesAsByteArrays(
+        Arrays.asList(new byte[] {1}, new byte[] {2}, new byte[] {3}, new byte[] {4}));
+
+    Assert.assertEquals(4, annotatedImages.size());
+    Assert.assertEquals(Arrays.asList("4"), annotatedImages.get(3).getLabelDescriptions());
+    verify(mockDelegate, times(2)).annotateEach(anyList());
+  }
+
+  /**
+   * Check that an image which Vision fails to annotate only fails its own caller.
+   */
+  @Test
+  public void errorsStayPerImage() throws Exception {
+    BatchingImagesManager manager =
+        new BatchingImagesManager(mockDelegate, 2, LINGER_MILLIS, Runnable::run);
+
+    CompletableFuture<AnnotatedImage> failing =
+        manager.annotate(ByteString.copyFrom(new byte[] {FAILING_IMAGE}));
+    CompletableFuture<AnnotatedImage> passing =
+        manager.annotate(ByteString.copyFrom(new byte[] {1}));
+
+    Assert.assertTrue(failing.isCompletedExceptionally());
+    Assert.assertEquals(Arrays.asList("1"), passing.get().getLabelDescriptions());
+    verify(mockDelegate, times(1)).annotateEach(anyList());
+  }
+
+  /**
+   * Check that a failing caller gets the IOException of its image.
+   */
+  @Test(expected = IOException.class)
+  public void callerGetsImageError() throws Exception {
+    BatchingImagesManager manager =
+        new BatchingImagesManager(mockDelegate, 16, 0, Runnable::run);
+
+    manager.createAnnotatedImagesFromImagesAsByteArrays(
+        Arrays.asList(new byte[] {FAILING_IMAGE}));
+  }
+
+  /**
+   * Check that a caller whose batch never completes gets an IOException once the timeout passes.
+   */
+  @Test
+  public void hungBatchTimesOut() throws Exception {
+    // the batch is never sent, as if its Vision request had hung
+    BatchingImagesManager manager =
+        new BatchingImagesManager(mockDelegate, 1, LINGER_MILLIS, (Runnable request) -> {});
+    manager.setTimeoutMillis(50);
+
+    Future<List<AnnotatedImage>> result = callers.submit(() -> {
+      return manager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(new byte[] {1}));
+    });
+
+    try {
+      result.get(5, TimeUnit.SECONDS);
+      Assert.fail("The caller should have timed out.");
+    } catch (ExecutionException exception) {
+      Assert.assertTrue(exception.getCause() instanceof IOException);
+    }
+  }
+
+  /**
+   * Check that an exception is thrown for a timeout which isn't positive.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidTimeout() {
+    new BatchingImagesManager(mockDelegate, 1, LINGER_MILLIS, Runnable::run).setTimeoutMillis(0);
+  }
+
+  /**
+   * Check that an exception is thrown for a batch larger than Vision accepts.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidMaxBatchSize() {
+    new BatchingImagesManager(
+        mockDelegate, BatchingImagesManager.MAX_BATCH_SIZE + 1, LINGER_MILLIS, Runnable::run);
+  }
+
+  /**
+   * Creates a label annotation.
+   *
+   * @param description the first byte of the image, used as the description of its label
+   * @return the label annotation
+   */
+  private static EntityAnnotation label(byte description) {
+    return EntityAnnotation.newBuilder().setDescription(Byte.toString(description)).build();
+  }
+}
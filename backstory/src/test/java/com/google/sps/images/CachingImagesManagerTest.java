@@ -0,0 +1,210 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images;
+
+import static org.mockito.Mockito.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.protobuf.ByteString;
+import com.google.sps.images.data.AnnotatedImage;
+import com.google.sps.images.data.ImageFingerprint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Tests for CachingImagesManager.
+ */
+@RunWith(JUnit4.class)
+public final class CachingImagesManagerTest {
+  /** an image to use for tests (the delegate labels images with their first byte) */
+  private static final byte[] FIRST_IMAGE = {1, 10};
+  /** a second image to use for tests */
+  private static final byte[] SECOND_IMAGE = {2, 20};
+  /** a third image to use for tests */
+  private static final byte[] THIRD_IMAGE = {3, 30};
+
+  /** the mocked manager which annotates the images not found in the cache */
+  private ImagesManager mockDelegate;
+
+  @Before
+  public void setUp() throws Exception {
+    mockDelegate = mock(ImagesManager.class);
+    when(mockDelegate.createAnnotatedImagesFromImagesAsByteStrings(anyList()))
+        .thenAnswer(invocation -> {
+          List<AnnotatedImage> annotatedImages = new ArrayList<AnnotatedImage>();
+          for (ByteString image : (List<ByteString>) invocation.getArgument(0)) {
+            annotatedImages.add(new AnnotatedImage(image,
+                Arrays.asList(label(Byte.toString(image.byteAt(0)))), Collections.emptyList()));
+          }
+          return annotatedImages;
+        });
+  }
+
+  /**
+   * Check that only the images which weren't annotated before are sent to the delegate,
+   * in one batch, and that the results are in input order.
+   */
+  @Test
+  public void onlyMissesAreBatched() throws Exception {
+    CachingImagesManager manager = new CachingImagesManager(mockDelegate, 10);
+    manager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(SECOND_IMAGE));
+
+    List<AnnotatedImage> annotatedImages = manager.createAnnotatedImagesFromImagesAsByteArrays(
+        Arrays.asList(FIRST_IMAGE, SECOND_IMAGE, THIRD_IMAGE));
+
+    Assert.assertEquals(Arrays.asList("1", "2", "3"), firstLabels(annotatedImages));
+    Assert.assertArrayEquals(SECOND_IMAGE, annotatedImages.get(1).getRawImageData());
+    verify(mockDelegate).createAnnotatedImagesFromImagesAsByteStrings(
+        Arrays.asList(ByteString.copyFrom(FIRST_IMAGE), ByteString.copyFrom(THIRD_IMAGE)));
+    Assert.assertEquals(1, manager.getHitCount());
+    Assert.assertEquals(3, manager.getMissCount());
+  }
+
+  /**
+   * Check that the same image twice in one call is only annotated once.
+   */
+  @Test
+  public void duplicatesInBatchAreAnnotatedOnce() throws Exception {
+    CachingImagesManager manager = new CachingImagesManager(mockDelegate, 10);
+
+    List<AnnotatedImage> annotatedImages = manager.createAnnotatedImagesFromImagesAsByteArrays(
+        Arrays.asList(FIRST_IMAGE, FIRST_IMAGE.clone()));
+
+    Assert.assertEquals(Arrays.asList("1", "1"), firstLabels(annotatedImages));
+    verify(mockDelegate).createAnnotatedImagesFromImagesAsByteStrings(
+        Arrays.asList(ByteString.copyFrom(FIRST_IMAGE)));
+  }
+
+  /**
+   * Check that annotations written to Datastore by one manager are read by another
+   * without calling the delegate.
+   */
+  @Test
+  public void readsThroughToDatastore() throws Exception {
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+    CachingImagesManager warmManager = new CachingImagesManager(mockDelegate, 10);
+    warmManager.setDatastoreService(mockDatastoreService);
+    when(mockDatastoreService.get(anyIterable())).thenReturn(new HashMap<>());
+    warmManager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(FIRST_IMAGE));
+
+    ArgumentCaptor<Iterable<Entity>> entitiesCaptor = ArgumentCaptor.forClass(Iterable.class);
+    verify(mockDatastoreService).put(entitiesCaptor.capture());
+    Map<Key, Entity> stored = new HashMap<>();
+    for (Entity entity : entitiesCaptor.getValue()) {
+      stored.put(entity.getKey(), entity);
+    }
+    when(mockDatastoreService.get(anyIterable())).thenReturn(stored);
+
+    ImagesManager coldDelegate = mock(ImagesManager.class);
+    CachingImagesManager coldManager = new CachingImagesManager(coldDelegate, 10);
+    coldManager.setDatastoreService(mockDatastoreService);
+
+    List<AnnotatedImage> annotatedImages =
+        coldManager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(FIRST_IMAGE));
+
+    Assert.assertEquals(Arrays.asList("1"), firstLabels(annotatedImages));
+    Assert.assertEquals(1, coldManager.getDatastoreHitCount());
+    verify(coldDelegate, never()).createAnnotatedImagesFromImagesAsByteStrings(anyList());
+  }
+
+  /**
+   * Check that the least recently used image is evicted once the cache is full.
+   */
+  @Test
+  public void evictsLeastRecentlyUsed() throws Exception {
+    CachingImagesManager manager = new CachingImagesManager(mockDelegate, 1);
+
+    manager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(FIRST_IMAGE));
+    manager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(SECOND_IMAGE));
+    manager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(FIRST_IMAGE));
+
+    Assert.assertEquals(1, manager.size());
+    verify(mockDelegate, times(2)).createAnnotatedImagesFromImagesAsByteStrings(
+        Arrays.asList(ByteString.copyFrom(FIRST_IMAGE)));
+  }
+
+  /**
+   * Check that fingerprints passed in are used as they are, rather than hashing the images again.
+   */
+  @Test
+  public void usesGivenFingerprints() throws Exception {
+    CachingImagesManager manager = new CachingImagesManager(mockDelegate, 10);
+    manager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(FIRST_IMAGE));
+
+    // The second image is passed with the first image's fingerprint, so it's found in memory.
+    List<AnnotatedImage> annotatedImages = manager.createAnnotatedImagesFromImagesAsByteStrings(
+        Arrays.asList(ByteString.copyFrom(SECOND_IMAGE)),
+        Arrays.asList(ImageFingerprint.of(FIRST_IMAGE)));
+
+    Assert.assertEquals(Arrays.asList("1"), firstLabels(annotatedImages));
+    Assert.assertEquals(1, manager.getHitCount());
+    verify(mockDelegate, times(1)).createAnnotatedImagesFromImagesAsByteStrings(anyList());
+  }
+
+  /**
+   * Check that an exception is thrown when there isn't one fingerprint for each image.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void missingFingerprint() throws Exception {
+    CachingImagesManager manager = new CachingImagesManager(mockDelegate, 10);
+    manager.createAnnotatedImagesFromImagesAsByteStrings(
+        Arrays.asList(ByteString.copyFrom(FIRST_IMAGE)), Collections.emptyList());
+  }
+
+  /**
+   * Check that an exception is thrown for a cache with no room.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidMaxSize() {
+    new CachingImagesManager(mockDelegate, 0);
+  }
+
+  /**
+   * Returns the description of the first label of each annotated image.
+   *
+   * @param annotatedImages the annotated images
+   * @return the descriptions, in order
+   */
+  private static List<String> firstLabels(List<AnnotatedImage> annotatedImages) {
+    List<String> labels = new ArrayList<String>();
+    for (AnnotatedImage annotatedImage : annotatedImages) {
+      labels.add(annotatedImage.getLabelDescriptions().get(0));
+    }
+    return labels;
+  }
+
+  /**
+   * Creates a label annotation.
+   *
+   * @param description the description of the label
+   * @return the label annotation
+   */
+  private static EntityAnnotation label(String description) {
+    return EntityAnnotation.newBuilder().setDescription(description).build();
+  }
+}
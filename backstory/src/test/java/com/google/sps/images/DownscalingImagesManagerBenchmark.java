@@ -0,0 +1,88 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images;
+
+import com.google.protobuf.ByteString;
+import com.sun.net.httpserver.HttpServer;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Benchmark of the bytes sent to a stand-in Vision API, and the time taken, to annotate a phone
+ * photo as uploaded and downscaled (including the time to downscale it). Not part of the unit
+ * tests; run it with `mvn test -Pbenchmarks`.
+ */
+@RunWith(JUnit4.class)
+public final class DownscalingImagesManagerBenchmark {
+  /** the long edge the photo is downscaled to */
+  private static final int MAX_LONG_EDGE = 1024;
+  /** the number of annotations measured for each path */
+  private static final int REQUEST_COUNT = 5;
+
+  /**
+   * Measures annotating the photo as uploaded and downscaled. The latency depends on the link
+   * to Vision, which is a loopback here.
+   */
+  @Test
+  public void annotationBytesAndLatency() throws Exception {
+    AtomicLong receivedBytes = new AtomicLong();
+    HttpServer server = DownscalingImagesManagerTest.startStubServer(receivedBytes);
+
+    try {
+      URL serviceUrl = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+      ImagesManager standInImagesManager = (List<ByteString> imagesAsByteStrings) -> {
+        return DownscalingImagesManagerTest.annotateWithStandIn(serviceUrl, imagesAsByteStrings);
+      };
+      ImagesManager downscalingManager =
+          new DownscalingImagesManager(standInImagesManager, MAX_LONG_EDGE, 0.85f);
+      byte[] photo = DownscalingImagesManagerTest.newPhoto();
+
+      // warm up both paths
+      standInImagesManager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(photo));
+      downscalingManager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(photo));
+
+      receivedBytes.set(0);
+      long startTime = System.nanoTime();
+      for (int i = 0; i < REQUEST_COUNT; i++) {
+        standInImagesManager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(photo));
+      }
+      long originalNanos = System.nanoTime() - startTime;
+      long originalBytes = receivedBytes.getAndSet(0);
+
+      startTime = System.nanoTime();
+      for (int i = 0; i < REQUEST_COUNT; i++) {
+        downscalingManager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(photo));
+      }
+      long downscaledNanos = System.nanoTime() - startTime;
+      long downscaledBytes = receivedBytes.get();
+
+      System.out.println(String.format("%d annotations of a %dx%d photo: %d bytes in %d ms as "
+              + "uploaded, %d bytes in %d ms downscaled to %d px (%.1f%% of the bytes)",
+          REQUEST_COUNT, DownscalingImagesManagerTest.PHOTO_WIDTH,
+          DownscalingImagesManagerTest.PHOTO_HEIGHT, originalBytes,
+          TimeUnit.NANOSECONDS.toMillis(originalNanos), downscaledBytes,
+          TimeUnit.NANOSECONDS.toMillis(downscaledNanos), MAX_LONG_EDGE,
+          100.0 * downscaledBytes / originalBytes));
+    } finally {
+      server.stop(0);
+    }
+  }
+}
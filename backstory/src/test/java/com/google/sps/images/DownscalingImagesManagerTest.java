@@ -0,0 +1,269 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.images;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.cloud.vision.v1.Image;
+import com.google.protobuf.ByteString;
+import com.google.sps.images.data.AnnotatedImage;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for DownscalingImagesManager, using a local stub server in place of the Vision API.
+ */
+@RunWith(JUnit4.class)
+public final class DownscalingImagesManagerTest {
+  /** the long edge to downscale to in tests */
+  private static final int MAX_LONG_EDGE = 1024;
+  /** the width of the generated phone photo */
+  static final int PHOTO_WIDTH = 4032;
+  /** the height of the generated phone photo */
+  static final int PHOTO_HEIGHT = 3024;
+
+  /** the stub Vision server */
+  private HttpServer server;
+  /** the URL of the stub server */
+  private URL serviceUrl;
+  /** the number of request bytes the stub server received */
+  private AtomicLong receivedBytes;
+  /** the image annotator which sends its requests to the stub server */
+  private ImagesManager standInImagesManager;
+
+  @Before
+  public void setUp() throws Exception {
+    receivedBytes = new AtomicLong();
+    server = startStubServer(receivedBytes);
+    serviceUrl = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+    standInImagesManager = (List<ByteString> imagesAsByteStrings) -> {
+      return annotateWithStandIn(serviceUrl, imagesAsByteStrings);
+    };
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  /**
+   * Starts a stub Vision server which, like Vision, decodes each image and labels it with its
+   * size.
+   *
+   * @param receivedBytes counts the request bytes the server receives
+   * @return the started server
+   * @throws IOException if the server could not be started
+   */
+  static HttpServer startStubServer(AtomicLong receivedBytes) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      BatchAnnotateImagesRequest request;
+
+      try (InputStream body = exchange.getRequestBody()) {
+        byte[] requestBytes = readAll(body);
+        receivedBytes.addAndGet(requestBytes.length);
+        request = BatchAnnotateImagesRequest.parseFrom(requestBytes);
+      }
+
+      // like Vision, decode each image before annotating it
+      BatchAnnotateImagesResponse.Builder response = BatchAnnotateImagesResponse.newBuilder();
+      for (AnnotateImageRequest imageRequest : request.getRequestsList()) {
+        byte[] imageBytes = imageRequest.getImage().getContent().toByteArray();
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageBytes));
+        EntityAnnotation size = EntityAnnotation.newBuilder()
+            .setDescription(image.getWidth() + "x" + image.getHeight())
+            .build();
+        response.addResponses(AnnotateImageResponse.newBuilder().addLabelAnnotations(size));
+      }
+
+      byte[] responseBytes = response.build().toByteArray();
+      exchange.sendResponseHeaders(200, responseBytes.length);
+
+      try (OutputStream body = exchange.getResponseBody()) {
+        body.write(responseBytes);
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  /**
+   * Check that a large photo is downsampled to the long edge, keeping its aspect ratio,
+   * while the annotated image keeps the uploaded bytes.
+   */
+  @Test
+  public void downscalesLargePhoto() throws Exception {
+    byte[] photo = newPhoto();
+    ImagesManager manager =
+        new DownscalingImagesManager(standInImagesManager, MAX_LONG_EDGE, 0.85f);
+
+    List<AnnotatedImage> annotatedImages =
+        manager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(photo));
+
+    Assert.assertEquals(Arrays.asList("1024x768"), annotatedImages.get(0).getLabelDescriptions());
+    Assert.assertArrayEquals(photo, annotatedImages.get(0).getRawImageData());
+  }
+
+  /**
+   * Check that an image which is already small enough is sent as it was uploaded.
+   */
+  @Test
+  public void keepsSmallImage() throws Exception {
+    ByteString image = ByteString.copyFrom(AnnotatedImageTest.getBytesFromImageReference(
+        "src/test/java/com/google/sps/images/data/dogRunningOnBeach.jpg", "jpg"));
+    DownscalingImagesManager manager =
+        new DownscalingImagesManager(standInImagesManager, 4096, 0.85f);
+
+    Assert.assertSame(image, manager.downscale(image));
+  }
+
+  /**
+   * Check that bytes which can't be decoded are kept rather than failing the upload.
+   */
+  @Test
+  public void keepsUndecodableBytes() {
+    ByteString notAnImage = ByteString.copyFrom(new byte[] {(byte) 0xFF, (byte) 0xD8, 1, 2, 3});
+    DownscalingImagesManager manager =
+        new DownscalingImagesManager(standInImagesManager, MAX_LONG_EDGE, 0.85f);
+
+    Assert.assertSame(notAnImage, manager.downscale(notAnImage));
+  }
+
+  /**
+   * Check that an exception is thrown for an invalid long edge.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidMaxLongEdge() {
+    new DownscalingImagesManager(standInImagesManager, 0, 0.85f);
+  }
+
+  /**
+   * Check that annotating a downscaled phone photo sends a fraction of the bytes of the photo
+   * as uploaded.
+   */
+  @Test
+  public void downscalingSendsFewerBytes() throws Exception {
+    byte[] photo = newPhoto();
+    ImagesManager downscalingManager =
+        new DownscalingImagesManager(standInImagesManager, MAX_LONG_EDGE, 0.85f);
+
+    standInImagesManager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(photo));
+    long originalBytes = receivedBytes.getAndSet(0);
+    downscalingManager.createAnnotatedImagesFromImagesAsByteArrays(Arrays.asList(photo));
+    long downscaledBytes = receivedBytes.get();
+
+    Assert.assertTrue(downscaledBytes < originalBytes / 4);
+  }
+
+  /**
+   * Annotates images like VisionImagesManager, but with the stub server.
+   *
+   * @param serviceUrl the URL of the stub server
+   * @param imagesAsByteStrings the images to annotate
+   * @return the annotated images
+   * @throws IOException if the stub server could not be reached
+   */
+  static List<AnnotatedImage> annotateWithStandIn(URL serviceUrl,
+      List<ByteString> imagesAsByteStrings) throws IOException {
+    BatchAnnotateImagesRequest.Builder request = BatchAnnotateImagesRequest.newBuilder();
+    for (ByteString imageBytes : imagesAsByteStrings) {
+      request.addRequests(AnnotateImageRequest.newBuilder().setImage(
+          Image.newBuilder().setContent(imageBytes)));
+    }
+
+    HttpURLConnection connection = (HttpURLConnection) serviceUrl.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    try (OutputStream body = connection.getOutputStream()) {
+      request.build().writeTo(body);
+    }
+
+    BatchAnnotateImagesResponse response;
+    try (InputStream body = connection.getInputStream()) {
+      response = BatchAnnotateImagesResponse.parseFrom(body);
+    }
+
+    List<AnnotatedImage> annotatedImages = new ArrayList<AnnotatedImage>();
+    for (int i = 0; i < imagesAsByteStrings.size(); i++) {
+      AnnotateImageResponse imageResponse = response.getResponses(i);
+      annotatedImages.add(new AnnotatedImage(imagesAsByteStrings.get(i),
+          imageResponse.getLabelAnnotationsList(), imageResponse.getLandmarkAnnotationsList()));
+    }
+    return annotatedImages;
+  }
+
+  /**
+   * Generates a JPEG photo the size of a 12 megapixel phone camera's, with enough detail that
+   * it compresses about as well as a real photo.
+   *
+   * @return the JPEG photo
+   * @throws IOException if the photo could not be encoded
+   */
+  static byte[] newPhoto() throws IOException {
+    BufferedImage photo = new BufferedImage(PHOTO_WIDTH, PHOTO_HEIGHT, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(1);
+    for (int y = 0; y < PHOTO_HEIGHT; y++) {
+      for (int x = 0; x < PHOTO_WIDTH; x++) {
+        int red = x * 255 / PHOTO_WIDTH;
+        int green = y * 255 / PHOTO_HEIGHT;
+        photo.setRGB(x, y, (red << 16) | (green << 8) | random.nextInt(256));
+      }
+    }
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ImageIO.write(photo, "jpg", output);
+    return output.toByteArray();
+  }
+
+  /**
+   * Reads a stream to its end.
+   *
+   * @param input the stream to read
+   * @return the bytes read
+   * @throws IOException if the stream could not be read
+   */
+  private static byte[] readAll(InputStream input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      output.write(buffer, 0, read);
+    }
+    return output.toByteArray();
+  }
+}
@@ -22,6 +22,7 @@ import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
 import com.google.cloud.vision.v1.EntityAnnotation;
 import com.google.cloud.vision.v1.Feature;
 import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.protobuf.ByteString;
 import com.google.sps.images.AnnotatedImageTest;
 import com.google.sps.images.VisionImagesManager;
 import com.google.sps.images.data.AnnotatedImage;
@@ -30,6 +31,7 @@ import com.google.rpc.Status.Builder;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -126,6 +128,32 @@ public final class VisionImagesManagerTest {
     Assert.assertEquals(expectedFeatures, request.getFeaturesList());
   }
 
+  /**
+   * Check that annotateEach keeps the error of one image from failing the others.
+   */
+  @Test
+  public void annotateEachKeepsErrorsPerImage() throws Exception {
+    byte[] rawImageData = AnnotatedImageTest.getBytesFromImageReference(
+        "src/test/java/com/google/sps/images/data/dogRunningOnBeach.jpg", "jpg");
+    List<ByteString> rawImageDataList = new ArrayList<ByteString>();
+    rawImageDataList.add(ByteString.copyFrom(rawImageData));
+    rawImageDataList.add(ByteString.copyFrom(rawImageData));
+
+    // the second image's response is an error
+    List<AnnotatedImage> responses = new ArrayList<AnnotatedImage>();
+    responses.add(new AnnotatedImage(
+        rawImageData, new ArrayList<EntityAnnotation>(), new ArrayList<EntityAnnotation>()));
+    responses.add(null);
+
+    VisionImagesManager manager = new VisionImagesManager(mockImageAnnotatorClient(responses));
+    List<CompletableFuture<AnnotatedImage>> annotatedImages =
+        manager.annotateEach(rawImageDataList);
+
+    Assert.assertEquals(2, annotatedImages.size());
+    Assert.assertFalse(annotatedImages.get(0).isCompletedExceptionally());
+    Assert.assertTrue(annotatedImages.get(1).isCompletedExceptionally());
+  }
+
   /** 
    * Create a mock of the ImageAnnotatorClient that will return responses gotten from the
    * passed-in AnnotatedImage List in place of actual network responses.
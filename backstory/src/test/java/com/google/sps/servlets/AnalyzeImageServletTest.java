@@ -22,6 +22,7 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobKey;
+import com.google.protobuf.ByteString;
 import com.google.sps.images.data.AnnotatedImage;
 import com.google.sps.perspective.PerspectiveStoryAnalysisManager;
 import com.google.sps.perspective.StoryAnalysisManager;
@@ -35,11 +36,15 @@ import com.google.appengine.api.datastore.DatastoreService;
 import com.google.sps.servlets.data.BlobstoreManagerFactory;
 import com.google.sps.servlets.data.BackstoryDatastoreServiceFactory;
 import com.google.sps.servlets.data.EntityFactory;
+import com.google.sps.servlets.data.ImageDigestIndex;
 import com.google.sps.servlets.data.ImagesManagerFactory;
 import com.google.sps.servlets.data.StoryManagerFactory;
+import com.google.sps.servlets.data.UploadedBlob;
 import com.google.sps.servlets.data.BackstoryUserServiceFactory;
 import com.google.sps.servlets.data.StoryAnalysisManagerFactory;
 import com.google.sps.servlets.data.BlobstoreManager;
+import com.google.sps.servlets.data.Backstory;
+import com.google.sps.servlets.data.LatestBackstoryCache;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.User;
 import org.junit.Assert;
@@ -49,11 +54,22 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.ArgumentCaptor;
 import java.util.ArrayList;
 import java.util.List;
+import com.google.apphosting.api.ApiProxy;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.google.sps.APINotAvailableException;
 import com.google.sps.perspective.data.NoAppropriateStoryException;
 import com.google.sps.perspective.data.StoryDecision;
@@ -68,6 +84,8 @@ import java.io.StringWriter;
  */
 @RunWith(MockitoJUnitRunner.class)
 public final class AnalyzeImageServletTest {
+  /** the story generated for the image of newSingleImageServlet */
+  private static final String SAMPLE_RAW_BACKSTORY = "sampleRawBackstory";
 
   /**
    * Tests that the correct input is passed from the initial call to the managers, 
@@ -78,7 +96,17 @@ public final class AnalyzeImageServletTest {
     HttpServletRequest mockRequest = mock(HttpServletRequest.class);
     HttpServletResponse mockResponse = mock(HttpServletResponse.class);
 
+    AsyncContext mockAsyncContext = mock(AsyncContext.class);
+    when(mockRequest.startAsync(mockRequest, mockResponse)).thenReturn(mockAsyncContext);
+
     AnalyzeImageServlet servlet = new AnalyzeImageServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
+    // Run the async pipeline on the calling thread so it's finished when doPost returns.
+    servlet.setExecutor(Runnable::run);
+    servlet.setCandidateExecutor(Runnable::run);
+    ImageDigestIndex mockImageDigestIndex = mock(ImageDigestIndex.class);
+    servlet.setImageDigestIndex(mockImageDigestIndex);
     ImagesManager mockImagesManager = mock(VisionImagesManager.class);
     StoryManager mockStoryManager = mock(StoryManagerImpl.class);
     StoryAnalysisManager mockStoryAnalysisManager = mock(PerspectiveStoryAnalysisManager.class);
@@ -96,12 +124,12 @@ public final class AnalyzeImageServletTest {
     when(mockUserService.getCurrentUser()).thenReturn(testUser);
 
     String blobKeyString = "blobKeyString";
-    when(mockBlobstoreManager.getUploadedFileBlobKeyString(any(HttpServletRequest.class), anyString()))
-        .thenReturn(blobKeyString);
     int bytesInUploadedImage = 10;
-    byte[] uploadedImageBytes = new byte[bytesInUploadedImage];
-    when(mockBlobstoreManager.getBlobBytes(any(HttpServletRequest.class), anyString()))
-        .thenReturn(uploadedImageBytes);
+    UploadedBlob uploadedBlob = new UploadedBlob(new BlobKey(blobKeyString), bytesInUploadedImage);
+    when(mockBlobstoreManager.getUploadedBlobs(any(HttpServletRequest.class), anyString()))
+        .thenReturn(Arrays.asList(uploadedBlob));
+    ByteString uploadedImageBytes = ByteString.copyFrom(new byte[bytesInUploadedImage]);
+    when(mockBlobstoreManager.getBlobByteString(uploadedBlob)).thenReturn(uploadedImageBytes);
 
     String sampleDescription = "sampleDescription";
     List<String> uploadedImageDescriptions = new ArrayList<>();
@@ -109,8 +137,10 @@ public final class AnalyzeImageServletTest {
     AnnotatedImage uploadedAnnotatedImage = mock(AnnotatedImage.class);
     when(uploadedAnnotatedImage.getLabelDescriptions()).thenReturn(uploadedImageDescriptions);
     List<AnnotatedImage> uploadedAnnotatedImages = Arrays.asList(uploadedAnnotatedImage);
-    when(mockImagesManager.createAnnotatedImagesFromImagesAsByteArrays(
-        Arrays.asList(uploadedImageBytes)
+    // The image is passed with the digest it was looked up by, so it isn't hashed again.
+    when(mockImagesManager.createAnnotatedImagesFromImagesAsByteStrings(
+        Arrays.asList(uploadedImageBytes),
+        Arrays.asList(ImageDigestIndex.digest(uploadedImageBytes))
     )).thenReturn(uploadedAnnotatedImages);
 
     String sampleRawBackstory = "sampleRawBackstory";
@@ -154,7 +184,7 @@ public final class AnalyzeImageServletTest {
 
     // Check that the request is as expected:
     ArgumentCaptor<String> formInputNameCaptor = ArgumentCaptor.forClass(String.class);
-    verify(mockBlobstoreManager).getUploadedFileBlobKeyString(any(HttpServletRequest.class), formInputNameCaptor.capture());
+    verify(mockBlobstoreManager).getUploadedBlobs(any(HttpServletRequest.class), formInputNameCaptor.capture());
     // The formInputName must be "image-upload" because that is the name of the front-end form input element.
     String expectedFormInputName = "image-upload";
     String actualFormInputName = formInputNameCaptor.getValue();
@@ -170,9 +200,510 @@ public final class AnalyzeImageServletTest {
     verify(mockAnalyzedImageEntity).setProperty(eq("timestamp"), anyLong());
 
     // Check that the analyzed image entity goes into datastore.
-    ArgumentCaptor<Entity> outputArgument = ArgumentCaptor.forClass(Entity.class);
-    verify(mockDatastoreService).put(outputArgument.capture());
-    Entity actualEntityInDatastore = outputArgument.getValue();
-    Assert.assertEquals(mockAnalyzedImageEntity, actualEntityInDatastore);
+    verify(mockDatastoreService).put(Arrays.asList(mockAnalyzedImageEntity));
+
+    // Check that the analyzed image is indexed by its digest.
+    ArgumentCaptor<ImageDigestIndex.Entry> indexEntryCaptor =
+        ArgumentCaptor.forClass(ImageDigestIndex.Entry.class);
+    verify(mockImageDigestIndex).record(
+        eq(ImageDigestIndex.digest(uploadedImageBytes)), indexEntryCaptor.capture());
+    Assert.assertEquals(blobKeyString, indexEntryCaptor.getValue().getBlobKeyString());
+    Assert.assertEquals(uploadedImageDescriptions, indexEntryCaptor.getValue().getLabelDescriptions());
+
+    // Check that the async request is finished with a redirect back to the HTML page.
+    verify(mockResponse).sendRedirect("/index.html");
+    verify(mockAsyncContext).complete();
+  }
+
+  /**
+   * Tests that an image which was uploaded before reuses the prior upload's blob and prompt
+   * without being analyzed again, and that the duplicate blob is deleted.
+   */
+  @Test
+  public void testDoPostReusesPriorUpload() throws APINotAvailableException, NoAppropriateStoryException, IOException {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+
+    AsyncContext mockAsyncContext = mock(AsyncContext.class);
+    when(mockRequest.startAsync(mockRequest, mockResponse)).thenReturn(mockAsyncContext);
+
+    AnalyzeImageServlet servlet = new AnalyzeImageServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
+    servlet.setExecutor(Runnable::run);
+    servlet.setCandidateExecutor(Runnable::run);
+    servlet.setReusePrompts(true);
+    ImagesManager mockImagesManager = mock(VisionImagesManager.class);
+    StoryManager mockStoryManager = mock(StoryManagerImpl.class);
+    StoryAnalysisManager mockStoryAnalysisManager = mock(PerspectiveStoryAnalysisManager.class);
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+    Entity mockAnalyzedImageEntity = mock(Entity.class);
+    BlobstoreManager mockBlobstoreManager = mock(BlobstoreManager.class);
+    UserService mockUserService = mock(UserService.class);
+    ImageDigestIndex mockImageDigestIndex = mock(ImageDigestIndex.class);
+
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User("user@gmail.com", "authentication"));
+
+    String duplicateBlobKeyString = "duplicateBlobKeyString";
+    UploadedBlob duplicateUploadedBlob = new UploadedBlob(new BlobKey(duplicateBlobKeyString), 3);
+    when(mockBlobstoreManager.getUploadedBlobs(any(HttpServletRequest.class), anyString()))
+        .thenReturn(Arrays.asList(duplicateUploadedBlob));
+    ByteString uploadedImageBytes = ByteString.copyFrom(new byte[] {1, 2, 3});
+    when(mockBlobstoreManager.getBlobByteString(duplicateUploadedBlob))
+        .thenReturn(uploadedImageBytes);
+
+    String priorBlobKeyString = "priorBlobKeyString";
+    String priorPrompt = "priorPrompt";
+    when(mockImageDigestIndex.lookup(ImageDigestIndex.digest(uploadedImageBytes)))
+        .thenReturn(new ImageDigestIndex.Entry(priorBlobKeyString,
+            Arrays.asList("sampleDescription"), new ArrayList<String>(), priorPrompt));
+
+    String sampleRawBackstory = "sampleRawBackstory";
+    when(mockStoryManager.generateText()).thenReturn(sampleRawBackstory);
+    when(mockStoryAnalysisManager.generateDecision(sampleRawBackstory))
+        .thenReturn(new StoryDecision(sampleRawBackstory));
+
+    List<String> prompts = new ArrayList<>();
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBlobstoreManagerFactory(() -> mockBlobstoreManager);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+    servlet.setImagesManagerFactory(() -> mockImagesManager);
+    servlet.setStoryManagerFactory((String prompt, int storyLength, double temperature,
+        StoryManagerURLProvider storyManagerURLProvider) -> {
+      prompts.add(prompt);
+      return mockStoryManager;
+    });
+    servlet.setStoryAnalysisManagerFactory(() -> mockStoryAnalysisManager);
+    servlet.setEntityFactory((String entityName) -> mockAnalyzedImageEntity);
+    servlet.setImageDigestIndex(mockImageDigestIndex);
+
+    servlet.doPost(mockRequest, mockResponse);
+
+    // The prior upload's prompt is generated from, without analyzing the image again.
+    Assert.assertEquals(Arrays.asList(priorPrompt), prompts);
+    verify(mockImagesManager, never()).createAnnotatedImagesFromImagesAsByteStrings(any(), any());
+    verify(mockImageDigestIndex, never()).record(anyString(), any());
+
+    // The Backstory is stored with the prior upload's blob, and the duplicate is deleted.
+    verify(mockBlobstoreManager).delete(duplicateBlobKeyString);
+    verify(mockAnalyzedImageEntity).setProperty("blobKeyString", priorBlobKeyString);
+    verify(mockDatastoreService).put(Arrays.asList(mockAnalyzedImageEntity));
+    verify(mockResponse).sendRedirect("/index.html");
+    verify(mockAsyncContext).complete();
+  }
+
+  /**
+   * Tests that the images of a multi-image upload are analyzed in one call, that each gets its
+   * own Backstory with at most the upload parallelism generated at once, and that all of them
+   * go into datastore in one batch.
+   */
+  @Test
+  public void testDoPostMultipleImages() throws Exception {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+
+    AsyncContext mockAsyncContext = mock(AsyncContext.class);
+    when(mockRequest.startAsync(mockRequest, mockResponse)).thenReturn(mockAsyncContext);
+
+    int imageCount = 4;
+    int uploadParallelism = 2;
+    ExecutorService executor = Executors.newFixedThreadPool(imageCount * 2);
+    AnalyzeImageServlet servlet = new AnalyzeImageServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    LatestBackstoryCache latestBackstoryCache = new LatestBackstoryCache(10, 60000);
+    servlet.setLatestBackstoryCache(latestBackstoryCache);
+    servlet.setExecutor(executor);
+    servlet.setCandidateExecutor(Runnable::run);
+    servlet.setUploadParallelism(uploadParallelism);
+    servlet.setImageDigestIndex(mock(ImageDigestIndex.class));
+    ImagesManager mockImagesManager = mock(VisionImagesManager.class);
+    StoryAnalysisManager mockStoryAnalysisManager = mock(PerspectiveStoryAnalysisManager.class);
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+    BlobstoreManager mockBlobstoreManager = mock(BlobstoreManager.class);
+    UserService mockUserService = mock(UserService.class);
+
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User("user@gmail.com", "authentication"));
+
+    // Each image is labelled with its own description.
+    List<String> blobKeyStrings = new ArrayList<>();
+    List<UploadedBlob> uploadedBlobs = new ArrayList<>();
+    List<ByteString> uploadedImages = new ArrayList<>();
+    List<AnnotatedImage> uploadedAnnotatedImages = new ArrayList<>();
+    for (int i = 0; i < imageCount; i++) {
+      String blobKeyString = "blobKeyString" + i;
+      ByteString uploadedImageBytes = ByteString.copyFrom(new byte[] {(byte) i});
+      UploadedBlob uploadedBlob = new UploadedBlob(new BlobKey(blobKeyString), 1);
+      blobKeyStrings.add(blobKeyString);
+      uploadedBlobs.add(uploadedBlob);
+      uploadedImages.add(uploadedImageBytes);
+      when(mockBlobstoreManager.getBlobByteString(uploadedBlob)).thenReturn(uploadedImageBytes);
+
+      AnnotatedImage uploadedAnnotatedImage = mock(AnnotatedImage.class);
+      when(uploadedAnnotatedImage.getLabelDescriptions())
+          .thenReturn(Arrays.asList("description" + i));
+      uploadedAnnotatedImages.add(uploadedAnnotatedImage);
+    }
+    when(mockBlobstoreManager.getUploadedBlobs(any(HttpServletRequest.class), anyString()))
+        .thenReturn(uploadedBlobs);
+    when(mockImagesManager.createAnnotatedImagesFromImagesAsByteStrings(
+             eq(uploadedImages), anyList()))
+        .thenReturn(uploadedAnnotatedImages);
+    when(mockStoryAnalysisManager.generateDecision(anyString()))
+        .thenAnswer(invocation -> new StoryDecision(invocation.getArgument(0)));
+
+    // Track how many Backstories are being generated at once.
+    AtomicInteger generating = new AtomicInteger();
+    AtomicInteger maxGenerating = new AtomicInteger();
+    servlet.setStoryManagerFactory((String prompt, int storyLength, double temperature,
+        StoryManagerURLProvider storyManagerURLProvider) -> {
+      StoryManager mockStoryManager = mock(StoryManagerImpl.class);
+      when(mockStoryManager.generateText()).thenAnswer(invocation -> {
+        maxGenerating.accumulateAndGet(generating.incrementAndGet(), Math::max);
+        Thread.sleep(50);
+        generating.decrementAndGet();
+        return prompt;
+      });
+      return mockStoryManager;
+    });
+
+    List<Entity> analyzedImageEntities = new ArrayList<>();
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBlobstoreManagerFactory(() -> mockBlobstoreManager);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+    servlet.setImagesManagerFactory(() -> mockImagesManager);
+    servlet.setStoryAnalysisManagerFactory(() -> mockStoryAnalysisManager);
+    servlet.setEntityFactory((String entityName) -> {
+      Entity analyzedImageEntity = mock(Entity.class);
+      synchronized (analyzedImageEntities) {
+        analyzedImageEntities.add(analyzedImageEntity);
+      }
+      return analyzedImageEntity;
+    });
+
+    try {
+      servlet.doPost(mockRequest, mockResponse);
+      verify(mockAsyncContext, timeout(5000)).complete();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // All of the images are analyzed in one call.
+    verify(mockImagesManager, times(1)).createAnnotatedImagesFromImagesAsByteStrings(any(), any());
+    Assert.assertTrue(maxGenerating.get() <= uploadParallelism);
+
+    // Each image's Backstory is stored with its own blob key, and all of them in one batch.
+    verify(mockDatastoreService).put(analyzedImageEntities);
+    Assert.assertEquals(imageCount, analyzedImageEntities.size());
+    for (int i = 0; i < imageCount; i++) {
+      Entity analyzedImageEntity = analyzedImageEntities.get(i);
+      verify(analyzedImageEntity).setProperty("blobKeyString", blobKeyStrings.get(i));
+      verify(analyzedImageEntity).setProperty(eq("backstory"), any(Text.class));
+      verify(analyzedImageEntity).setProperty(eq("timestamp"), anyLong());
+    }
+    verify(mockResponse).sendRedirect("/index.html");
+
+    // The upload is written through to the cache, so loading the page doesn't query for it.
+    List<Backstory> cachedBackstories = latestBackstoryCache.get("user@gmail.com");
+    Assert.assertEquals(imageCount, cachedBackstories.size());
+    for (int i = 0; i < imageCount; i++) {
+      Assert.assertEquals(blobKeyStrings.get(i), cachedBackstories.get(i).getBlobKeyString());
+    }
+  }
+
+  /**
+   * Tests that every App Engine API call of the pipeline runs with the request's environment,
+   * i.e. on a thread created by the factory obtained on the container's thread.
+   */
+  @Test
+  public void testPipelineRunsOnRequestThreads() throws Exception {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+    AsyncContext mockAsyncContext = mock(AsyncContext.class);
+    when(mockRequest.startAsync(mockRequest, mockResponse)).thenReturn(mockAsyncContext);
+
+    List<ApiProxy.Environment> apiCallEnvironments = new CopyOnWriteArrayList<>();
+    StoryAnalysisManager mockStoryAnalysisManager = mock(PerspectiveStoryAnalysisManager.class);
+    when(mockStoryAnalysisManager.generateDecision(SAMPLE_RAW_BACKSTORY))
+        .thenReturn(new StoryDecision(SAMPLE_RAW_BACKSTORY));
+    AnalyzeImageServlet servlet =
+        newSingleImageServlet(mockStoryAnalysisManager, apiCallEnvironments);
+    servlet.setCandidateExecutor(Runnable::run);
+    // Stands in for ThreadManager: its threads run with the environment of the request which
+    // obtained the factory, and without one if it was obtained anywhere else.
+    servlet.setThreadFactorySupplier(() -> {
+      ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+      return (Runnable runnable) -> new Thread(() -> {
+        ApiProxy.setEnvironmentForCurrentThread(environment);
+        runnable.run();
+      });
+    });
+
+    ApiProxy.Environment requestEnvironment = mock(ApiProxy.Environment.class);
+    ApiProxy.setEnvironmentForCurrentThread(requestEnvironment);
+    try {
+      servlet.doPost(mockRequest, mockResponse);
+      verify(mockAsyncContext, timeout(5000)).complete();
+    } finally {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+
+    // The blob read, the digest lookup and the Datastore write all saw the request.
+    verify(mockResponse).sendRedirect("/index.html");
+    Assert.assertEquals(3, apiCallEnvironments.size());
+    for (ApiProxy.Environment apiCallEnvironment : apiCallEnvironments) {
+      Assert.assertSame(requestEnvironment, apiCallEnvironment);
+    }
+  }
+
+  /**
+   * Tests that an upload of more images than its parallelism runs every stage on one pool of at
+   * most uploadParallelism request threads, and hands its images one shared fetch pool.
+   */
+  @Test
+  public void testUploadThreadsAreBounded() throws Exception {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+    AsyncContext mockAsyncContext = mock(AsyncContext.class);
+    when(mockRequest.startAsync(mockRequest, mockResponse)).thenReturn(mockAsyncContext);
+
+    int imageCount = 6;
+    int uploadParallelism = 2;
+    Set<Thread> createdThreads = ConcurrentHashMap.newKeySet();
+    Set<Thread> readThreads = ConcurrentHashMap.newKeySet();
+    Set<Thread> generationThreads = ConcurrentHashMap.newKeySet();
+
+    AnalyzeImageServlet servlet = new AnalyzeImageServlet();
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
+    servlet.setThreadFactorySupplier(() -> (Runnable runnable) -> {
+      Thread thread = new Thread(runnable);
+      createdThreads.add(thread);
+      return thread;
+    });
+    servlet.setCandidateExecutor(Runnable::run);
+    servlet.setUploadParallelism(uploadParallelism);
+    servlet.setImageDigestIndex(mock(ImageDigestIndex.class));
+    UserService mockUserService = mock(UserService.class);
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User("user@gmail.com", "authentication"));
+
+    BlobstoreManager mockBlobstoreManager = mock(BlobstoreManager.class);
+    List<UploadedBlob> uploadedBlobs = new ArrayList<>();
+    List<ByteString> uploadedImages = new ArrayList<>();
+    List<AnnotatedImage> uploadedAnnotatedImages = new ArrayList<>();
+    for (int i = 0; i < imageCount; i++) {
+      UploadedBlob uploadedBlob = new UploadedBlob(new BlobKey("blobKeyString" + i), 1);
+      ByteString uploadedImageBytes = ByteString.copyFrom(new byte[] {(byte) i});
+      uploadedBlobs.add(uploadedBlob);
+      uploadedImages.add(uploadedImageBytes);
+      when(mockBlobstoreManager.getBlobByteString(uploadedBlob)).thenAnswer(invocation -> {
+        readThreads.add(Thread.currentThread());
+        return uploadedImageBytes;
+      });
+
+      AnnotatedImage uploadedAnnotatedImage = mock(AnnotatedImage.class);
+      when(uploadedAnnotatedImage.getLabelDescriptions())
+          .thenReturn(Arrays.asList("description" + i));
+      uploadedAnnotatedImages.add(uploadedAnnotatedImage);
+    }
+    when(mockBlobstoreManager.getUploadedBlobs(any(HttpServletRequest.class), anyString()))
+        .thenReturn(uploadedBlobs);
+    ImagesManager mockImagesManager = mock(VisionImagesManager.class);
+    when(mockImagesManager.createAnnotatedImagesFromImagesAsByteStrings(
+             eq(uploadedImages), anyList()))
+        .thenReturn(uploadedAnnotatedImages);
+
+    StoryManager mockStoryManager = mock(StoryManagerImpl.class);
+    when(mockStoryManager.generateText()).thenAnswer(invocation -> {
+      generationThreads.add(Thread.currentThread());
+      return SAMPLE_RAW_BACKSTORY;
+    });
+    StoryAnalysisManager mockStoryAnalysisManager = mock(PerspectiveStoryAnalysisManager.class);
+    when(mockStoryAnalysisManager.generateDecision(SAMPLE_RAW_BACKSTORY))
+        .thenReturn(new StoryDecision(SAMPLE_RAW_BACKSTORY));
+
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBlobstoreManagerFactory(() -> mockBlobstoreManager);
+    servlet.setImagesManagerFactory(() -> mockImagesManager);
+    servlet.setStoryManagerFactory((String prompt, int storyLength, double temperature,
+        StoryManagerURLProvider storyManagerURLProvider) -> mockStoryManager);
+    servlet.setStoryAnalysisManagerFactory(() -> mockStoryAnalysisManager);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mock(DatastoreService.class));
+    servlet.setEntityFactory((String entityName) -> mock(Entity.class));
+
+    servlet.doPost(mockRequest, mockResponse);
+    verify(mockAsyncContext, timeout(5000)).complete();
+
+    verify(mockResponse).sendRedirect("/index.html");
+    Assert.assertFalse(generationThreads.isEmpty());
+    Assert.assertFalse(createdThreads.isEmpty());
+    Assert.assertTrue(createdThreads.size() <= uploadParallelism);
+    Assert.assertTrue(createdThreads.containsAll(readThreads));
+    Assert.assertTrue(createdThreads.containsAll(generationThreads));
+    verify(mockBlobstoreManager, times(1)).setFetchExecutor(any(Executor.class));
+  }
+
+  /**
+   * Tests that an upload which takes too long is answered with 503, and that the pipeline
+   * finishing afterwards neither responds again nor completes the request a second time.
+   */
+  @Test
+  public void testDoPostTimesOut() throws Exception {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+    AsyncContext mockAsyncContext = mock(AsyncContext.class);
+    when(mockRequest.startAsync(mockRequest, mockResponse)).thenReturn(mockAsyncContext);
+
+    StoryAnalysisManager mockStoryAnalysisManager = mock(PerspectiveStoryAnalysisManager.class);
+    when(mockStoryAnalysisManager.generateDecision(SAMPLE_RAW_BACKSTORY))
+        .thenReturn(new StoryDecision(SAMPLE_RAW_BACKSTORY));
+    AnalyzeImageServlet servlet =
+        newSingleImageServlet(mockStoryAnalysisManager, new ArrayList<>());
+    // The pipeline's stages are held back until the request has timed out.
+    List<Runnable> heldStages = new ArrayList<>();
+    servlet.setExecutor(heldStages::add);
+    servlet.setCandidateExecutor(Runnable::run);
+
+    servlet.doPost(mockRequest, mockResponse);
+
+    ArgumentCaptor<AsyncListener> listenerCaptor = ArgumentCaptor.forClass(AsyncListener.class);
+    verify(mockAsyncContext).addListener(listenerCaptor.capture());
+    listenerCaptor.getValue().onTimeout(mock(AsyncEvent.class));
+    verify(mockResponse).sendError(eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), anyString());
+
+    while (!heldStages.isEmpty()) {
+      heldStages.remove(0).run();
+    }
+
+    verify(mockResponse, never()).sendRedirect(anyString());
+    verify(mockResponse, times(1)).sendError(anyInt(), anyString());
+    verify(mockAsyncContext, times(1)).complete();
+  }
+
+  /**
+   * Tests that a timeout which fires after the pipeline has responded is ignored.
+   */
+  @Test
+  public void testTimeoutAfterResponse() throws Exception {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+    AsyncContext mockAsyncContext = mock(AsyncContext.class);
+    when(mockRequest.startAsync(mockRequest, mockResponse)).thenReturn(mockAsyncContext);
+
+    StoryAnalysisManager mockStoryAnalysisManager = mock(PerspectiveStoryAnalysisManager.class);
+    when(mockStoryAnalysisManager.generateDecision(SAMPLE_RAW_BACKSTORY))
+        .thenReturn(new StoryDecision(SAMPLE_RAW_BACKSTORY));
+    AnalyzeImageServlet servlet =
+        newSingleImageServlet(mockStoryAnalysisManager, new ArrayList<>());
+    servlet.setExecutor(Runnable::run);
+    servlet.setCandidateExecutor(Runnable::run);
+
+    servlet.doPost(mockRequest, mockResponse);
+
+    ArgumentCaptor<AsyncListener> listenerCaptor = ArgumentCaptor.forClass(AsyncListener.class);
+    verify(mockAsyncContext).addListener(listenerCaptor.capture());
+    listenerCaptor.getValue().onTimeout(mock(AsyncEvent.class));
+
+    verify(mockResponse).sendRedirect("/index.html");
+    verify(mockResponse, never()).sendError(anyInt(), anyString());
+    verify(mockAsyncContext, times(1)).complete();
+  }
+
+  /**
+   * Tests that a story which fails the filtration is neither stored nor cached, and that the
+   * upload is answered with 400.
+   */
+  @Test
+  public void testRejectedStoryIsNotStored() throws Exception {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+    AsyncContext mockAsyncContext = mock(AsyncContext.class);
+    when(mockRequest.startAsync(mockRequest, mockResponse)).thenReturn(mockAsyncContext);
+
+    StoryAnalysisManager mockStoryAnalysisManager = mock(PerspectiveStoryAnalysisManager.class);
+    when(mockStoryAnalysisManager.generateDecision(SAMPLE_RAW_BACKSTORY))
+        .thenThrow(new NoAppropriateStoryException("Rejected."));
+    List<ApiProxy.Environment> apiCallEnvironments = new ArrayList<>();
+    AnalyzeImageServlet servlet =
+        newSingleImageServlet(mockStoryAnalysisManager, apiCallEnvironments);
+    servlet.setExecutor(Runnable::run);
+    servlet.setCandidateExecutor(Runnable::run);
+    LatestBackstoryCache latestBackstoryCache = new LatestBackstoryCache(10, 60000);
+    servlet.setLatestBackstoryCache(latestBackstoryCache);
+
+    servlet.doPost(mockRequest, mockResponse);
+
+    // Only the blob read and the digest lookup reach the App Engine APIs; nothing is stored.
+    Assert.assertEquals(2, apiCallEnvironments.size());
+    Assert.assertNull(latestBackstoryCache.get("user@gmail.com"));
+    verify(mockResponse).sendError(eq(400), contains("No appropriate Backstory"));
+    verify(mockResponse, never()).sendRedirect(anyString());
+    verify(mockAsyncContext).complete();
+  }
+
+  /**
+   * Creates a servlet whose managers upload one image and generate SAMPLE_RAW_BACKSTORY for it,
+   * leaving its filtration to the story analysis manager. The environment each App Engine API
+   * call (the blob read, the digest lookup and the Datastore write) runs with is recorded.
+   *
+   * @param mockStoryAnalysisManager the story analysis manager deciding on the story.
+   * @param apiCallEnvironments receives the environment of each App Engine API call.
+   * @return the servlet, whose executors are left to the test.
+   */
+  private static AnalyzeImageServlet newSingleImageServlet(
+      StoryAnalysisManager mockStoryAnalysisManager,
+      List<ApiProxy.Environment> apiCallEnvironments) throws Exception {
+    AnalyzeImageServlet servlet = new AnalyzeImageServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
+
+    UserService mockUserService = mock(UserService.class);
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User("user@gmail.com", "authentication"));
+
+    UploadedBlob uploadedBlob = new UploadedBlob(new BlobKey("blobKeyString"), 1);
+    ByteString uploadedImageBytes = ByteString.copyFrom(new byte[] {1});
+    BlobstoreManager mockBlobstoreManager = mock(BlobstoreManager.class);
+    when(mockBlobstoreManager.getUploadedBlobs(any(HttpServletRequest.class), anyString()))
+        .thenReturn(Arrays.asList(uploadedBlob));
+    when(mockBlobstoreManager.getBlobByteString(uploadedBlob)).thenAnswer(invocation -> {
+      apiCallEnvironments.add(ApiProxy.getCurrentEnvironment());
+      return uploadedImageBytes;
+    });
+
+    ImageDigestIndex mockImageDigestIndex = mock(ImageDigestIndex.class);
+    when(mockImageDigestIndex.lookup(anyString())).thenAnswer(invocation -> {
+      apiCallEnvironments.add(ApiProxy.getCurrentEnvironment());
+      return null;
+    });
+
+    AnnotatedImage uploadedAnnotatedImage = mock(AnnotatedImage.class);
+    when(uploadedAnnotatedImage.getLabelDescriptions())
+        .thenReturn(Arrays.asList("sampleDescription"));
+    ImagesManager mockImagesManager = mock(VisionImagesManager.class);
+    when(mockImagesManager.createAnnotatedImagesFromImagesAsByteStrings(
+             eq(Arrays.asList(uploadedImageBytes)), anyList()))
+        .thenReturn(Arrays.asList(uploadedAnnotatedImage));
+
+    StoryManager mockStoryManager = mock(StoryManagerImpl.class);
+    when(mockStoryManager.generateText()).thenReturn(SAMPLE_RAW_BACKSTORY);
+
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+    lenient().when(mockDatastoreService.put(anyList())).thenAnswer(invocation -> {
+      apiCallEnvironments.add(ApiProxy.getCurrentEnvironment());
+      return new ArrayList<Key>();
+    });
+
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBlobstoreManagerFactory(() -> mockBlobstoreManager);
+    servlet.setImageDigestIndex(mockImageDigestIndex);
+    servlet.setImagesManagerFactory(() -> mockImagesManager);
+    servlet.setStoryManagerFactory((String prompt, int storyLength, double temperature,
+        StoryManagerURLProvider storyManagerURLProvider) -> mockStoryManager);
+    servlet.setStoryAnalysisManagerFactory(() -> mockStoryAnalysisManager);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+    servlet.setEntityFactory((String entityName) -> mock(Entity.class));
+    return servlet;
   }
 }
@@ -32,6 +32,14 @@ import java.util.List;
 import java.util.ArrayList;
 import java.io.IOException;
 import javax.servlet.http.HttpServletRequest;
+import com.google.protobuf.ByteString;
+import com.google.sps.servlets.data.UploadedBlob;
+import com.google.apphosting.api.ApiProxy;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -78,6 +86,46 @@ public final class BlobstoreManagerTest {
     Assert.assertEquals(mockBlobKeyString, blobstoreManager.getUploadedFileBlobKeyString(mockRequest, formInputElementName));
   }
 
+  /**
+   * Tests that the getUploadedFileBlobKeyStrings method of BlobstoreManager returns every image
+   * uploaded in order, and deletes empty files instead of returning them.
+   */
+  @Test
+  public void testGetUploadedFileBlobKeyStrings() throws IOException {
+    mockRequest = mock(HttpServletRequest.class);
+    mockBlobstoreService = mock(BlobstoreService.class);
+    mockBlobstoreServiceConstantFields = mock(BlobstoreServiceConstantFields.class);
+    mockBlobInfoFactory = mock(BlobInfoFactory.class);
+
+    BlobKey firstBlobKey = new BlobKey("firstBlobKeyString");
+    BlobKey emptyBlobKey = new BlobKey("emptyBlobKeyString");
+    BlobKey secondBlobKey = new BlobKey("secondBlobKeyString");
+    Map<String, List<BlobKey>> mockInputToBlobKey = new HashMap<>();
+    List<BlobKey> mockBlobKeys = new ArrayList<>();
+    mockBlobKeys.add(firstBlobKey);
+    mockBlobKeys.add(emptyBlobKey);
+    mockBlobKeys.add(secondBlobKey);
+    mockInputToBlobKey.put(formInputElementName, mockBlobKeys);
+
+    when(mockBlobstoreService.getUploads(any(HttpServletRequest.class)))
+        .thenReturn(mockInputToBlobKey);
+
+    BlobInfo mockBlobInfo = mock(BlobInfo.class);
+    when(mockBlobInfo.getSize()).thenReturn(new Long(1));
+    BlobInfo mockEmptyBlobInfo = mock(BlobInfo.class);
+    when(mockEmptyBlobInfo.getSize()).thenReturn(new Long(0));
+    when(mockBlobInfoFactory.loadBlobInfo(firstBlobKey)).thenReturn(mockBlobInfo);
+    when(mockBlobInfoFactory.loadBlobInfo(emptyBlobKey)).thenReturn(mockEmptyBlobInfo);
+    when(mockBlobInfoFactory.loadBlobInfo(secondBlobKey)).thenReturn(mockBlobInfo);
+
+    BlobstoreManager blobstoreManager = new BlobstoreManager(mockBlobstoreService, mockBlobstoreServiceConstantFields, mockBlobInfoFactory);
+    List<String> expectedBlobKeyStrings = new ArrayList<>();
+    expectedBlobKeyStrings.add("firstBlobKeyString");
+    expectedBlobKeyStrings.add("secondBlobKeyString");
+    Assert.assertEquals(expectedBlobKeyStrings, blobstoreManager.getUploadedFileBlobKeyStrings(mockRequest, formInputElementName));
+    verify(mockBlobstoreService).delete(emptyBlobKey);
+  }
+
   /**
    * Tests the getBlobBytes method of BlobstoreManager
    */
@@ -118,4 +166,164 @@ public final class BlobstoreManagerTest {
     BlobstoreManager blobstoreManager = new BlobstoreManager(mockBlobstoreService, mockBlobstoreServiceConstantFields, mockBlobInfoFactory);
     Assert.assertEquals(uploadedFileSize.intValue(), blobstoreManager.getBlobBytes(mockRequest, formInputElementName).length);
   }
+
+  /**
+   * Tests that the getUploadedBlobs method of BlobstoreManager looks up the uploads once and the
+   * BlobInfo of each image once, and returns each image with its size.
+   */
+  @Test
+  public void testGetUploadedBlobs() throws IOException {
+    mockRequest = mock(HttpServletRequest.class);
+    mockBlobstoreService = mock(BlobstoreService.class);
+    mockBlobstoreServiceConstantFields = mock(BlobstoreServiceConstantFields.class);
+    mockBlobInfoFactory = mock(BlobInfoFactory.class);
+
+    BlobKey firstBlobKey = new BlobKey("firstBlobKeyString");
+    BlobKey secondBlobKey = new BlobKey("secondBlobKeyString");
+    Map<String, List<BlobKey>> mockInputToBlobKey = new HashMap<>();
+    List<BlobKey> mockBlobKeys = new ArrayList<>();
+    mockBlobKeys.add(firstBlobKey);
+    mockBlobKeys.add(secondBlobKey);
+    mockInputToBlobKey.put(formInputElementName, mockBlobKeys);
+    when(mockBlobstoreService.getUploads(any(HttpServletRequest.class)))
+        .thenReturn(mockInputToBlobKey);
+
+    BlobInfo mockFirstBlobInfo = mock(BlobInfo.class);
+    when(mockFirstBlobInfo.getSize()).thenReturn(new Long(7));
+    BlobInfo mockSecondBlobInfo = mock(BlobInfo.class);
+    when(mockSecondBlobInfo.getSize()).thenReturn(new Long(9));
+    when(mockBlobInfoFactory.loadBlobInfo(firstBlobKey)).thenReturn(mockFirstBlobInfo);
+    when(mockBlobInfoFactory.loadBlobInfo(secondBlobKey)).thenReturn(mockSecondBlobInfo);
+
+    BlobstoreManager blobstoreManager = new BlobstoreManager(mockBlobstoreService, mockBlobstoreServiceConstantFields, mockBlobInfoFactory);
+    List<UploadedBlob> uploadedBlobs = blobstoreManager.getUploadedBlobs(mockRequest, formInputElementName);
+
+    Assert.assertEquals(2, uploadedBlobs.size());
+    Assert.assertEquals(firstBlobKey, uploadedBlobs.get(0).getBlobKey());
+    Assert.assertEquals(7, uploadedBlobs.get(0).getSize());
+    Assert.assertEquals("secondBlobKeyString", uploadedBlobs.get(1).getBlobKeyString());
+    Assert.assertEquals(9, uploadedBlobs.get(1).getSize());
+    verify(mockBlobstoreService, times(1)).getUploads(mockRequest);
+    verify(mockBlobInfoFactory, times(1)).loadBlobInfo(firstBlobKey);
+    verify(mockBlobInfoFactory, times(1)).loadBlobInfo(secondBlobKey);
+  }
+
+  /**
+   * Tests that the getBlobByteString method of BlobstoreManager fetches the chunks of an uploaded
+   * image at once (each fetch waits until every chunk has been asked for), and joins them in order.
+   */
+  @Test
+  public void testGetBlobByteStringFetchesChunksAtOnce() throws Exception {
+    mockBlobstoreService = mock(BlobstoreService.class);
+    mockBlobstoreServiceConstantFields = mock(BlobstoreServiceConstantFields.class);
+    mockBlobInfoFactory = mock(BlobInfoFactory.class);
+
+    // The image is 25 bytes, so it's fetched as chunks of 10, 10, and 5 bytes.
+    int maxBlobFetchSize = 10;
+    int uploadedFileSize = 25;
+    byte[] imageBytes = new byte[uploadedFileSize];
+    for (int i = 0; i < imageBytes.length; i++) {
+      imageBytes[i] = (byte) i;
+    }
+    when(mockBlobstoreServiceConstantFields.getMaxBlobFetchSize()).thenReturn(maxBlobFetchSize);
+    CountDownLatch fetchesStarted = new CountDownLatch(3);
+    when(mockBlobstoreService.fetchData(any(BlobKey.class), anyLong(), anyLong()))
+        .thenAnswer(invocation -> {
+          fetchesStarted.countDown();
+          Assert.assertTrue(fetchesStarted.await(5, TimeUnit.SECONDS));
+          int start = ((Long) invocation.getArgument(1)).intValue();
+          int end = ((Long) invocation.getArgument(2)).intValue();
+          byte[] chunk = new byte[end - start + 1];
+          System.arraycopy(imageBytes, start, chunk, 0, chunk.length);
+          return chunk;
+        });
+
+    ExecutorService fetchExecutor = Executors.newFixedThreadPool(3);
+    try {
+      BlobstoreManager blobstoreManager = new BlobstoreManager(mockBlobstoreService, mockBlobstoreServiceConstantFields, mockBlobInfoFactory);
+      blobstoreManager.setFetchExecutor(fetchExecutor);
+      UploadedBlob uploadedBlob = new UploadedBlob(new BlobKey(mockBlobKeyString), uploadedFileSize);
+
+      Assert.assertEquals(ByteString.copyFrom(imageBytes), blobstoreManager.getBlobByteString(uploadedBlob));
+      verify(mockBlobstoreService).fetchData(uploadedBlob.getBlobKey(), 20, 24);
+      verify(mockBlobInfoFactory, never()).loadBlobInfo(any(BlobKey.class));
+    } finally {
+      fetchExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Tests that the getBlobByteString method of BlobstoreManager fetches every chunk with the
+   * reading request's environment, i.e. on a pool created from the factory obtained on the
+   * reading thread, and shuts that pool down once the image has been read.
+   */
+  @Test
+  public void testGetBlobByteStringFetchesOnRequestThreads() throws Exception {
+    mockBlobstoreService = mock(BlobstoreService.class);
+    mockBlobstoreServiceConstantFields = mock(BlobstoreServiceConstantFields.class);
+    mockBlobInfoFactory = mock(BlobInfoFactory.class);
+
+    List<ApiProxy.Environment> fetchEnvironments = new CopyOnWriteArrayList<>();
+    when(mockBlobstoreServiceConstantFields.getMaxBlobFetchSize()).thenReturn(10);
+    when(mockBlobstoreService.fetchData(any(BlobKey.class), anyLong(), anyLong()))
+        .thenAnswer(invocation -> {
+          fetchEnvironments.add(ApiProxy.getCurrentEnvironment());
+          return new byte[10];
+        });
+
+    // Stands in for ThreadManager: its threads run with the environment of the request which
+    // obtained the factory, and without one if it was obtained anywhere else.
+    List<Thread> fetchThreads = new CopyOnWriteArrayList<>();
+    BlobstoreManager blobstoreManager = new BlobstoreManager(
+        mockBlobstoreService, mockBlobstoreServiceConstantFields, mockBlobInfoFactory);
+    blobstoreManager.setThreadFactorySupplier(() -> {
+      ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+      return (Runnable runnable) -> {
+        Thread thread = new Thread(() -> {
+          ApiProxy.setEnvironmentForCurrentThread(environment);
+          runnable.run();
+        });
+        fetchThreads.add(thread);
+        return thread;
+      };
+    });
+
+    ApiProxy.Environment requestEnvironment = mock(ApiProxy.Environment.class);
+    ApiProxy.setEnvironmentForCurrentThread(requestEnvironment);
+    try {
+      Assert.assertEquals(30, blobstoreManager.getBlobByteString(
+          new UploadedBlob(new BlobKey(mockBlobKeyString), 30)).size());
+    } finally {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+
+    Assert.assertEquals(3, fetchEnvironments.size());
+    for (ApiProxy.Environment fetchEnvironment : fetchEnvironments) {
+      Assert.assertSame(requestEnvironment, fetchEnvironment);
+    }
+    Assert.assertFalse(fetchThreads.isEmpty());
+    for (Thread fetchThread : fetchThreads) {
+      fetchThread.join(5000);
+      Assert.assertFalse(fetchThread.isAlive());
+    }
+  }
+
+  /**
+   * Tests that the getBlobByteString method of BlobstoreManager fails rather than returning a
+   * truncated image when Blobstore returns fewer bytes than the image's size.
+   */
+  @Test(expected = IOException.class)
+  public void testGetBlobByteStringShortChunk() throws IOException {
+    mockBlobstoreService = mock(BlobstoreService.class);
+    mockBlobstoreServiceConstantFields = mock(BlobstoreServiceConstantFields.class);
+    mockBlobInfoFactory = mock(BlobInfoFactory.class);
+
+    when(mockBlobstoreServiceConstantFields.getMaxBlobFetchSize()).thenReturn(10);
+    when(mockBlobstoreService.fetchData(any(BlobKey.class), anyLong(), anyLong()))
+        .thenReturn(new byte[4]);
+
+    BlobstoreManager blobstoreManager = new BlobstoreManager(mockBlobstoreService, mockBlobstoreServiceConstantFields, mockBlobInfoFactory);
+    blobstoreManager.setFetchExecutor(Runnable::run);
+    blobstoreManager.getBlobByteString(new UploadedBlob(new BlobKey(mockBlobKeyString), 15));
+  }
 }
@@ -51,6 +51,7 @@ import com.google.sps.servlets.data.StoryManagerFactory;
 import com.google.sps.servlets.data.BackstoryUserServiceFactory;
 import com.google.sps.servlets.data.StoryAnalysisManagerFactory;
 import com.google.sps.servlets.data.BlobstoreManager;
+import com.google.sps.servlets.data.LatestBackstoryCache;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.User;
 import org.junit.Assert;
@@ -93,6 +94,8 @@ public final class GetAnalyzedImagesServletTest {
     HttpServletRequest mockRequest = mock(HttpServletRequest.class);
     HttpServletResponse mockResponse = mock(HttpServletResponse.class);
     GetAnalyzedImagesServlet servlet = new GetAnalyzedImagesServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
 
     DatastoreService mockDatastoreService = mock(DatastoreService.class);
     UserService mockUserService = mock(UserService.class);
@@ -114,22 +117,27 @@ public final class GetAnalyzedImagesServletTest {
     when(mockQuery.setFilter(userBackstoriesFilter)).thenReturn(mockQuery);
     when(mockQuery.addSort("timestamp", SortDirection.DESCENDING)).thenReturn(mockQuery);
 
-    // Limit the Query (which is sorted from newest to oldest) to only return the first
-    // result, thus displaying the most recent story uploaded.
-    int backstoryFetchLimit = 1;
+    // Limit the Query (which is sorted from newest to oldest) to the most images one upload can
+    // have, as the latest upload is read the same way as GET /latest-backstory.
+    int backstoryFetchLimit = AnalyzeImageServlet.MAX_UPLOAD_IMAGES;
 
-    // Create two entities to assure that only the first (most recent) backstory is returned.
+    // Create two entities from different uploads to assure that only the first (most recent)
+    // image is served.
     String firstBlobKeyString = "firstBlobKey";
     // The entities must have a property named backstory
     Entity firstEntity = mock(Entity.class);
+    when(firstEntity.getProperty("timestamp")).thenReturn(2L);
+    when(firstEntity.getProperty("backstory")).thenReturn(new Text("first backstory"));
     when(firstEntity.getProperty("blobKeyString")).thenReturn(firstBlobKeyString);
     Entity secondEntity = mock(Entity.class);
+    when(secondEntity.getProperty("timestamp")).thenReturn(1L);
     List<Entity> entityList = Arrays.asList(firstEntity, secondEntity);
 
     // The datastore prepare function takes in a raw Query object and returns a PreparedQuery
     // which is capable of being iterated through.
     PreparedQuery mockPreparedQuery = mock(PreparedQuery.class);
-    when(mockPreparedQuery.asIterable(FetchOptions.Builder.withLimit(backstoryFetchLimit))).thenReturn(entityList.subList(0, backstoryFetchLimit));
+    when(mockPreparedQuery.asIterable(FetchOptions.Builder.withLimit(backstoryFetchLimit)))
+        .thenReturn(entityList);
     when(mockDatastoreService.prepare(mockQuery)).thenReturn(mockPreparedQuery);
     
     // Create and set the factories to return the configured mocks.
@@ -169,6 +177,8 @@ public final class GetAnalyzedImagesServletTest {
     HttpServletRequest mockRequest = mock(HttpServletRequest.class);
     HttpServletResponse mockResponse = mock(HttpServletResponse.class);
     GetAnalyzedImagesServlet servlet = new GetAnalyzedImagesServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
 
     DatastoreService mockDatastoreService = mock(DatastoreService.class);
     UserService mockUserService = mock(UserService.class);
@@ -189,9 +199,9 @@ public final class GetAnalyzedImagesServletTest {
     when(mockQuery.setFilter(userBackstoriesFilter)).thenReturn(mockQuery);
     when(mockQuery.addSort("timestamp", SortDirection.DESCENDING)).thenReturn(mockQuery);
 
-    // Limit the Query (which is sorted from newest to oldest) to only return the first
-    // result, thus displaying the most recent story uploaded.
-    int backstoryFetchLimit = 1;
+    // Limit the Query (which is sorted from newest to oldest) to the most images one upload can
+    // have, as the latest upload is read the same way as GET /latest-backstory.
+    int backstoryFetchLimit = AnalyzeImageServlet.MAX_UPLOAD_IMAGES;
 
     // The empty list which must be returned when no backstories have been generated yet for the user.
     List<Entity> entityList = new ArrayList<>();
@@ -227,4 +237,121 @@ public final class GetAnalyzedImagesServletTest {
     verify(mockQuery).setFilter(userBackstoriesFilter);
     verify(mockQuery).addSort("timestamp", SortDirection.DESCENDING);
   }
+
+  /**
+   * Tests that a request for an image by its blob key which already has the image (its
+   * If-None-Match matches the ETag) is answered with 304 without touching Datastore or Blobstore.
+   */
+  @Test
+  public void testNotModifiedByBlobKey() throws IOException {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+    GetAnalyzedImagesServlet servlet = new GetAnalyzedImagesServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
+
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+    UserService mockUserService = mock(UserService.class);
+    BlobstoreManager mockBlobstoreManager = mock(BlobstoreManager.class);
+
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User("user@gmail.com", "authentication"));
+    String blobKeyString = "blobKeyString";
+    when(mockRequest.getParameter("blobKey")).thenReturn(blobKeyString);
+    // Browsers may send several ETags, and weak ones.
+    when(mockRequest.getHeader("If-None-Match")).thenReturn("\"otherBlobKey\", W/\"blobKeyString\"");
+
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+    servlet.setBlobstoreManagerFactory(() -> mockBlobstoreManager);
+
+    // doGet call to initiate testing.
+    servlet.doGet(mockRequest, mockResponse);
+
+    verify(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(mockResponse).setHeader("ETag", "\"blobKeyString\"");
+    verify(mockResponse).setHeader("Cache-Control", GetAnalyzedImagesServlet.IMMUTABLE_CACHE_CONTROL);
+    verifyZeroInteractions(mockDatastoreService, mockBlobstoreManager);
+  }
+
+  /**
+   * Tests that an image requested by its blob key is served with a strong ETag and an immutable
+   * Cache-Control, once it has been checked to belong to the user.
+   */
+  @Test
+  public void testServeByBlobKey() throws IOException {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+    GetAnalyzedImagesServlet servlet = new GetAnalyzedImagesServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
+
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+    UserService mockUserService = mock(UserService.class);
+    BlobstoreManager mockBlobstoreManager = mock(BlobstoreManager.class);
+
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User("user@gmail.com", "authentication"));
+    String blobKeyString = "blobKeyString";
+    when(mockRequest.getParameter("blobKey")).thenReturn(blobKeyString);
+
+    Query mockQuery = mock(Query.class);
+    when(mockQuery.setFilter(any(Filter.class))).thenReturn(mockQuery);
+    PreparedQuery mockPreparedQuery = mock(PreparedQuery.class);
+    when(mockPreparedQuery.asList(FetchOptions.Builder.withLimit(1)))
+        .thenReturn(Arrays.asList(mock(Entity.class)));
+    when(mockDatastoreService.prepare(mockQuery)).thenReturn(mockPreparedQuery);
+
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+    servlet.setQueryFactory((String queryName) -> mockQuery);
+    servlet.setBlobstoreManagerFactory(() -> mockBlobstoreManager);
+
+    // doGet call to initiate testing.
+    servlet.doGet(mockRequest, mockResponse);
+
+    verify(mockResponse).setHeader("ETag", "\"blobKeyString\"");
+    verify(mockResponse).setHeader("Cache-Control", GetAnalyzedImagesServlet.IMMUTABLE_CACHE_CONTROL);
+    verify(mockBlobstoreManager).serve(eq(new BlobKey(blobKeyString)), eq(mockResponse));
+    Assert.assertEquals("/analyzed-images?blobKey=blobKeyString",
+        GetAnalyzedImagesServlet.getImageUrl(blobKeyString));
+  }
+
+  /**
+   * Tests that an image which doesn't belong to the user isn't served by its blob key.
+   */
+  @Test
+  public void testServeByBlobKeyOfOtherUser() throws IOException {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+    GetAnalyzedImagesServlet servlet = new GetAnalyzedImagesServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
+
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+    UserService mockUserService = mock(UserService.class);
+    BlobstoreManager mockBlobstoreManager = mock(BlobstoreManager.class);
+
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User("user@gmail.com", "authentication"));
+    when(mockRequest.getParameter("blobKey")).thenReturn("otherUsersBlobKey");
+
+    Query mockQuery = mock(Query.class);
+    when(mockQuery.setFilter(any(Filter.class))).thenReturn(mockQuery);
+    PreparedQuery mockPreparedQuery = mock(PreparedQuery.class);
+    when(mockPreparedQuery.asList(FetchOptions.Builder.withLimit(1)))
+        .thenReturn(new ArrayList<Entity>());
+    when(mockDatastoreService.prepare(mockQuery)).thenReturn(mockPreparedQuery);
+
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+    servlet.setQueryFactory((String queryName) -> mockQuery);
+    servlet.setBlobstoreManagerFactory(() -> mockBlobstoreManager);
+
+    // doGet call to initiate testing.
+    servlet.doGet(mockRequest, mockResponse);
+
+    verify(mockResponse).sendError(eq(HttpServletResponse.SC_NOT_FOUND), anyString());
+    verifyZeroInteractions(mockBlobstoreManager);
+  }
 }
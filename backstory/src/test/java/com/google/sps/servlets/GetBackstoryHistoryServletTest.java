@@ -0,0 +1,229 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.*;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Projection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.users.User;
+import com.google.appengine.api.users.UserService;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.sps.servlets.data.BackstoryHistoryPage;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Tests for the GetBackstoryHistoryServlet, which manages the GET /backstory-history request.
+ * GET /backstory-history pages through the user's backstories from permanent storage.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public final class GetBackstoryHistoryServletTest {
+  private final String userEmail = "user@gmail.com";
+
+  private HttpServletRequest mockRequest;
+  private HttpServletResponse mockResponse;
+  private DatastoreService mockDatastoreService;
+  private StringWriter stringWriter;
+  private GetBackstoryHistoryServlet servlet;
+
+  @Before
+  public void setUp() throws IOException {
+    mockRequest = mock(HttpServletRequest.class);
+    mockResponse = mock(HttpServletResponse.class);
+    mockDatastoreService = mock(DatastoreService.class);
+    stringWriter = new StringWriter();
+    // Rejected requests don't write a response.
+    lenient().when(mockResponse.getWriter()).thenReturn(new PrintWriter(stringWriter, true));
+
+    UserService mockUserService = mock(UserService.class);
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User(userEmail, "authentication"));
+
+    servlet = new GetBackstoryHistoryServlet();
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+  }
+
+  /**
+   * Tests that a full page is read with a projection query on timestamp and blobKeyString (never
+   * the backstory text), and comes with the cursor of the next page.
+   */
+  @Test
+  public void testFullPage() throws IOException {
+    when(mockRequest.getParameter("limit")).thenReturn("2");
+
+    Query mockQuery = mock(Query.class);
+    when(mockQuery.setFilter(any(Filter.class))).thenReturn(mockQuery);
+    when(mockQuery.addSort("timestamp", SortDirection.DESCENDING)).thenReturn(mockQuery);
+    when(mockQuery.addProjection(any(Projection.class))).thenReturn(mockQuery);
+    servlet.setQueryFactory((String queryName) -> mockQuery);
+
+    List<Entity> entities = Arrays.asList(
+        mockProjectedEntity(1L, 20L, "newerBlobKeyString"),
+        mockProjectedEntity(2L, 10L, "olderBlobKeyString"));
+    Cursor mockCursor = mock(Cursor.class);
+    when(mockCursor.toWebSafeString()).thenReturn("nextCursor");
+    QueryResultList<Entity> mockResults = mockResults(entities);
+    when(mockResults.getCursor()).thenReturn(mockCursor);
+    PreparedQuery mockPreparedQuery = mock(PreparedQuery.class);
+    when(mockPreparedQuery.asQueryResultList(FetchOptions.Builder.withLimit(2)))
+        .thenReturn(mockResults);
+    when(mockDatastoreService.prepare(mockQuery)).thenReturn(mockPreparedQuery);
+
+    servlet.doGet(mockRequest, mockResponse);
+
+    ArgumentCaptor<Projection> projectionCaptor = ArgumentCaptor.forClass(Projection.class);
+    verify(mockQuery, times(2)).addProjection(projectionCaptor.capture());
+    Assert.assertEquals("timestamp", projectionCaptor.getAllValues().get(0).getName());
+    Assert.assertEquals("blobKeyString", projectionCaptor.getAllValues().get(1).getName());
+
+    BackstoryHistoryPage page =
+        new Gson().fromJson(stringWriter.toString(), BackstoryHistoryPage.class);
+    Assert.assertEquals("nextCursor", page.getNextCursor());
+    Assert.assertEquals(2, page.getBackstories().size());
+    Assert.assertEquals(1L, page.getBackstories().get(0).getId());
+    Assert.assertEquals(20L, page.getBackstories().get(0).getTimestamp());
+    Assert.assertEquals("/analyzed-images?blobKey=newerBlobKeyString",
+        page.getBackstories().get(0).getImageUrl());
+    Assert.assertEquals("olderBlobKeyString", page.getBackstories().get(1).getBlobKeyString());
+  }
+
+  /**
+   * Tests that a page with fewer backstories than the limit is the last one.
+   */
+  @Test
+  public void testLastPage() throws IOException {
+    Query mockQuery = mock(Query.class);
+    when(mockQuery.setFilter(any(Filter.class))).thenReturn(mockQuery);
+    when(mockQuery.addSort("timestamp", SortDirection.DESCENDING)).thenReturn(mockQuery);
+    when(mockQuery.addProjection(any(Projection.class))).thenReturn(mockQuery);
+    servlet.setQueryFactory((String queryName) -> mockQuery);
+
+    QueryResultList<Entity> mockResults =
+        mockResults(Arrays.asList(mockProjectedEntity(1L, 20L, "blobKeyString")));
+    PreparedQuery mockPreparedQuery = mock(PreparedQuery.class);
+    when(mockPreparedQuery.asQueryResultList(
+        FetchOptions.Builder.withLimit(GetBackstoryHistoryServlet.DEFAULT_PAGE_SIZE)))
+        .thenReturn(mockResults);
+    when(mockDatastoreService.prepare(mockQuery)).thenReturn(mockPreparedQuery);
+
+    servlet.doGet(mockRequest, mockResponse);
+
+    BackstoryHistoryPage page =
+        new Gson().fromJson(stringWriter.toString(), BackstoryHistoryPage.class);
+    Assert.assertNull(page.getNextCursor());
+    Assert.assertEquals(1, page.getBackstories().size());
+  }
+
+  /**
+   * Tests that the texts of the requested backstories are fetched in one batch get, leaving out
+   * backstories of other users.
+   */
+  @Test
+  public void testBackstoryTexts() throws IOException {
+    when(mockRequest.getParameter("ids")).thenReturn("1,2");
+
+    Entity ownEntity = mock(Entity.class);
+    when(ownEntity.getProperty("userEmail")).thenReturn(userEmail);
+    when(ownEntity.getProperty("backstory")).thenReturn(new Text("ownBackstory"));
+    Entity otherEntity = mock(Entity.class);
+    when(otherEntity.getProperty("userEmail")).thenReturn("other@gmail.com");
+    Map<Key, Entity> entities = new HashMap<>();
+    entities.put(KeyFactory.createKey("analyzed-image", 1L), ownEntity);
+    entities.put(KeyFactory.createKey("analyzed-image", 2L), otherEntity);
+    when(mockDatastoreService.get(anyIterable())).thenReturn(entities);
+
+    servlet.doGet(mockRequest, mockResponse);
+
+    verify(mockDatastoreService, times(1)).get(anyIterable());
+    verify(mockDatastoreService, never()).prepare(any(Query.class));
+    JsonObject backstoryTexts = new Gson().fromJson(stringWriter.toString(), JsonObject.class);
+    Assert.assertEquals(1, backstoryTexts.size());
+    Assert.assertEquals("ownBackstory", backstoryTexts.get("1").getAsString());
+  }
+
+  /**
+   * Tests that invalid limits and cursors are rejected without querying permanent storage.
+   */
+  @Test
+  public void testInvalidParameters() throws IOException {
+    when(mockRequest.getParameter("limit")).thenReturn("0", "2");
+    when(mockRequest.getParameter("cursor")).thenReturn(null, "not a cursor");
+
+    servlet.doGet(mockRequest, mockResponse);
+    servlet.doGet(mockRequest, mockResponse);
+
+    verify(mockResponse, times(2)).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+    verifyZeroInteractions(mockDatastoreService);
+  }
+
+  /**
+   * Creates an entity as returned by the projection query.
+   *
+   * @param id the id of the entity.
+   * @param timestamp the projected timestamp.
+   * @param blobKeyString the projected blob key.
+   * @return the mocked entity.
+   */
+  private static Entity mockProjectedEntity(long id, long timestamp, String blobKeyString) {
+    Key mockKey = mock(Key.class);
+    when(mockKey.getId()).thenReturn(id);
+    Entity mockEntity = mock(Entity.class);
+    when(mockEntity.getKey()).thenReturn(mockKey);
+    when(mockEntity.getProperty("timestamp")).thenReturn(timestamp);
+    when(mockEntity.getProperty("blobKeyString")).thenReturn(blobKeyString);
+    return mockEntity;
+  }
+
+  /**
+   * Creates the results of a query which iterate over the given entities.
+   *
+   * @param entities the entities of the results.
+   * @return the mocked results.
+   */
+  @SuppressWarnings("unchecked")
+  private static QueryResultList<Entity> mockResults(List<Entity> entities) {
+    QueryResultList<Entity> mockResults = mock(QueryResultList.class);
+    when(mockResults.iterator()).thenReturn(entities.iterator());
+    when(mockResults.size()).thenReturn(entities.size());
+    return mockResults;
+  }
+}
@@ -51,6 +51,7 @@ import com.google.sps.servlets.data.StoryManagerFactory;
 import com.google.sps.servlets.data.BackstoryUserServiceFactory;
 import com.google.sps.servlets.data.StoryAnalysisManagerFactory;
 import com.google.sps.servlets.data.BlobstoreManager;
+import com.google.sps.servlets.data.LatestBackstoryCache;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.User;
 import org.junit.Assert;
@@ -74,6 +75,8 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import com.google.sps.servlets.GetBackstoryServlet;
+import com.google.sps.servlets.data.Backstory;
+import com.google.gson.Gson;
 
 /**
  * Tests for the GetBackstoryServlet, which manages the GET /backstory request.
@@ -94,6 +97,8 @@ public final class GetBackstoryServletTest {
     PrintWriter writer = new PrintWriter(stringWriter);
     when(mockResponse.getWriter()).thenReturn(writer);
     GetBackstoryServlet servlet = new GetBackstoryServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
 
     DatastoreService mockDatastoreService = mock(DatastoreService.class);
     UserService mockUserService = mock(UserService.class);
@@ -113,22 +118,25 @@ public final class GetBackstoryServletTest {
     when(mockQuery.setFilter(userBackstoriesFilter)).thenReturn(mockQuery);
     when(mockQuery.addSort("timestamp", SortDirection.DESCENDING)).thenReturn(mockQuery);
 
-    // Limit the Query (which is sorted from newest to oldest) to only return the first
-    // result, thus displaying the most recent story uploaded.
-    int backstoryFetchLimit = 1;
+    // Limit the Query (which is sorted from newest to oldest) to the most images one upload
+    // can have, of which only those from the most recent upload are returned.
+    int backstoryFetchLimit = AnalyzeImageServlet.MAX_UPLOAD_IMAGES;
 
     // Create two entities to assure that only the first (most recent) backstory is returned.
     Text firstBackstory = new Text("firstBackstory");
     // The entities must have a property named backstory
     Entity firstEntity = mock(Entity.class);
     when(firstEntity.getProperty("backstory")).thenReturn(firstBackstory);
+    when(firstEntity.getProperty("timestamp")).thenReturn(2L);
+    // The second entity is from an older upload, so it has an older timestamp.
     Entity secondEntity = mock(Entity.class);
+    when(secondEntity.getProperty("timestamp")).thenReturn(1L);
     List<Entity> entityList = Arrays.asList(firstEntity, secondEntity);
 
     // The datastore prepare function takes in a raw Query object and returns a PreparedQuery
     // which is capable of being iterated through.
     PreparedQuery mockPreparedQuery = mock(PreparedQuery.class);
-    when(mockPreparedQuery.asIterable(FetchOptions.Builder.withLimit(backstoryFetchLimit))).thenReturn(entityList.subList(0, backstoryFetchLimit));
+    when(mockPreparedQuery.asIterable(FetchOptions.Builder.withLimit(backstoryFetchLimit))).thenReturn(entityList);
     when(mockDatastoreService.prepare(mockQuery)).thenReturn(mockPreparedQuery);
     
     // Create and set the factories to return the configured mocks.
@@ -172,6 +180,8 @@ public final class GetBackstoryServletTest {
     PrintWriter writer = new PrintWriter(stringWriter);
     when(mockResponse.getWriter()).thenReturn(writer);
     GetBackstoryServlet servlet = new GetBackstoryServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
 
     DatastoreService mockDatastoreService = mock(DatastoreService.class);
     UserService mockUserService = mock(UserService.class);
@@ -191,9 +201,9 @@ public final class GetBackstoryServletTest {
     when(mockQuery.setFilter(userBackstoriesFilter)).thenReturn(mockQuery);
     when(mockQuery.addSort("timestamp", SortDirection.DESCENDING)).thenReturn(mockQuery);
 
-    // Limit the Query (which is sorted from newest to oldest) to only return the first
-    // result, thus displaying the most recent story uploaded.
-    int backstoryFetchLimit = 1;
+    // Limit the Query (which is sorted from newest to oldest) to the most images one upload
+    // can have, of which only those from the most recent upload are returned.
+    int backstoryFetchLimit = AnalyzeImageServlet.MAX_UPLOAD_IMAGES;
 
     // The empty list which must be returned when no backstories have been generated yet for the user.
     List<Entity> entityList = new ArrayList<>();
@@ -232,4 +242,147 @@ public final class GetBackstoryServletTest {
     String expectedResponse = "[]\n";
     Assert.assertEquals(expectedResponse, actualResponse);
   }
+
+  /**
+   * Tests that the GetBackstoryServlet GET request returns the backstory of every image of the
+   * latest upload, each along with its image's blob key, but none from older uploads.
+   */
+  @Test
+  public void testDatastoreRetrievalMultipleImages() throws IOException {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+    StringWriter stringWriter = new StringWriter();
+    PrintWriter writer = new PrintWriter(stringWriter);
+    when(mockResponse.getWriter()).thenReturn(writer);
+    GetBackstoryServlet servlet = new GetBackstoryServlet();
+    // Each test starts with an empty cache of the latest backstories.
+    servlet.setLatestBackstoryCache(new LatestBackstoryCache(10, 60000));
+
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+    UserService mockUserService = mock(UserService.class);
+
+    String userEmail = "user@gmail.com";
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User(userEmail, "authentication"));
+
+    Query mockQuery = mock(Query.class);
+    Filter userBackstoriesFilter =
+            new FilterPredicate("userEmail", FilterOperator.EQUAL, userEmail);
+    when(mockQuery.setFilter(userBackstoriesFilter)).thenReturn(mockQuery);
+    when(mockQuery.addSort("timestamp", SortDirection.DESCENDING)).thenReturn(mockQuery);
+
+    // The latest upload had two images, which were stored with the same timestamp.
+    Entity firstEntity = mock(Entity.class);
+    when(firstEntity.getProperty("backstory")).thenReturn(new Text("firstBackstory"));
+    when(firstEntity.getProperty("blobKeyString")).thenReturn("firstBlobKeyString");
+    when(firstEntity.getProperty("timestamp")).thenReturn(2L);
+    Entity secondEntity = mock(Entity.class);
+    when(secondEntity.getProperty("backstory")).thenReturn(new Text("secondBackstory"));
+    when(secondEntity.getProperty("blobKeyString")).thenReturn("secondBlobKeyString");
+    when(secondEntity.getProperty("timestamp")).thenReturn(2L);
+    // The older entity is from an earlier upload, so it's never read past its timestamp.
+    Entity olderEntity = mock(Entity.class);
+    when(olderEntity.getProperty("timestamp")).thenReturn(1L);
+    List<Entity> entityList = Arrays.asList(firstEntity, secondEntity, olderEntity);
+
+    PreparedQuery mockPreparedQuery = mock(PreparedQuery.class);
+    when(mockPreparedQuery.asIterable(
+        FetchOptions.Builder.withLimit(AnalyzeImageServlet.MAX_UPLOAD_IMAGES))).thenReturn(entityList);
+    when(mockDatastoreService.prepare(mockQuery)).thenReturn(mockPreparedQuery);
+
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+    servlet.setQueryFactory((String queryName) -> mockQuery);
+
+    servlet.doGet(mockRequest, mockResponse);
+    writer.flush();
+    String actualResponse = stringWriter.toString();
+
+    Backstory[] backstories = new Gson().fromJson(actualResponse, Backstory[].class);
+    Assert.assertEquals(2, backstories.length);
+    Assert.assertEquals("firstBackstory", backstories[0].getBackstory());
+    Assert.assertEquals("firstBlobKeyString", backstories[0].getBlobKeyString());
+    Assert.assertEquals("secondBackstory", backstories[1].getBackstory());
+    Assert.assertEquals("secondBlobKeyString", backstories[1].getBlobKeyString());
+  }
+
+  /**
+   * Tests that the GetBackstoryServlet GET request serves an upload which was written through to
+   * the latest backstory cache without querying permanent storage.
+   */
+  @Test
+  public void testCachedRetrieval() throws IOException {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+    StringWriter stringWriter = new StringWriter();
+    PrintWriter writer = new PrintWriter(stringWriter);
+    when(mockResponse.getWriter()).thenReturn(writer);
+    GetBackstoryServlet servlet = new GetBackstoryServlet();
+    LatestBackstoryCache latestBackstoryCache = new LatestBackstoryCache(10, 60000);
+    servlet.setLatestBackstoryCache(latestBackstoryCache);
+
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+    UserService mockUserService = mock(UserService.class);
+
+    String userEmail = "user@gmail.com";
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User(userEmail, "authentication"));
+    latestBackstoryCache.put(
+        userEmail, 2L, Arrays.asList(new Backstory("cachedBackstory", "cachedBlobKeyString")));
+
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+
+    servlet.doGet(mockRequest, mockResponse);
+    writer.flush();
+
+    Backstory[] backstories = new Gson().fromJson(stringWriter.toString(), Backstory[].class);
+    Assert.assertEquals(1, backstories.length);
+    Assert.assertEquals("cachedBackstory", backstories[0].getBackstory());
+    Assert.assertEquals("cachedBlobKeyString", backstories[0].getBlobKeyString());
+    verifyZeroInteractions(mockDatastoreService);
+  }
+
+  /**
+   * Tests that the GetBackstoryServlet GET request fills the latest backstory cache after a miss,
+   * so loading the page again doesn't query permanent storage.
+   */
+  @Test
+  public void testRetrievalFillsCache() throws IOException {
+    HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+    HttpServletResponse mockResponse = mock(HttpServletResponse.class);
+    when(mockResponse.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    GetBackstoryServlet servlet = new GetBackstoryServlet();
+    LatestBackstoryCache latestBackstoryCache = new LatestBackstoryCache(10, 60000);
+    servlet.setLatestBackstoryCache(latestBackstoryCache);
+
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+    UserService mockUserService = mock(UserService.class);
+
+    String userEmail = "user@gmail.com";
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User(userEmail, "authentication"));
+
+    Query mockQuery = mock(Query.class);
+    when(mockQuery.setFilter(any(Filter.class))).thenReturn(mockQuery);
+    when(mockQuery.addSort("timestamp", SortDirection.DESCENDING)).thenReturn(mockQuery);
+    Entity entity = mock(Entity.class);
+    when(entity.getProperty("backstory")).thenReturn(new Text("backstory"));
+    when(entity.getProperty("blobKeyString")).thenReturn("blobKeyString");
+    when(entity.getProperty("timestamp")).thenReturn(1L);
+    PreparedQuery mockPreparedQuery = mock(PreparedQuery.class);
+    when(mockPreparedQuery.asIterable(
+        FetchOptions.Builder.withLimit(AnalyzeImageServlet.MAX_UPLOAD_IMAGES))).thenReturn(Arrays.asList(entity));
+    when(mockDatastoreService.prepare(mockQuery)).thenReturn(mockPreparedQuery);
+
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+    servlet.setQueryFactory((String queryName) -> mockQuery);
+
+    servlet.doGet(mockRequest, mockResponse);
+    servlet.doGet(mockRequest, mockResponse);
+
+    verify(mockDatastoreService, times(1)).prepare(mockQuery);
+    Assert.assertEquals("blobKeyString", latestBackstoryCache.get(userEmail).get(0).getBlobKeyString());
+  }
 }
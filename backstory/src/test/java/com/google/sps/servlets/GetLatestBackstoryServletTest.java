@@ -0,0 +1,155 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.users.User;
+import com.google.appengine.api.users.UserService;
+import com.google.gson.Gson;
+import com.google.sps.servlets.data.Backstory;
+import com.google.sps.servlets.data.LatestBackstory;
+import com.google.sps.servlets.data.LatestBackstoryCache;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Tests for the GetLatestBackstoryServlet, which manages the GET /latest-backstory request.
+ * GET /latest-backstory returns the backstories of the user's latest upload along with the
+ * stable URL of each image and the time it was stored.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public final class GetLatestBackstoryServletTest {
+  /** the email of the user the backstories were created for */
+  private static final String USER_EMAIL = "user@gmail.com";
+
+  private HttpServletRequest mockRequest;
+  private HttpServletResponse mockResponse;
+  private StringWriter stringWriter;
+  private DatastoreService mockDatastoreService;
+  private LatestBackstoryCache latestBackstoryCache;
+  private GetLatestBackstoryServlet servlet;
+
+  @Before
+  public void setUp() throws IOException {
+    mockRequest = mock(HttpServletRequest.class);
+    mockResponse = mock(HttpServletResponse.class);
+    stringWriter = new StringWriter();
+    when(mockResponse.getWriter()).thenReturn(new PrintWriter(stringWriter));
+    mockDatastoreService = mock(DatastoreService.class);
+
+    UserService mockUserService = mock(UserService.class);
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    when(mockUserService.getCurrentUser()).thenReturn(new User(USER_EMAIL, "authentication"));
+
+    // Each test starts with an empty cache of the latest backstories.
+    latestBackstoryCache = new LatestBackstoryCache(10, 60000);
+    servlet = new GetLatestBackstoryServlet();
+    servlet.setLatestBackstoryCache(latestBackstoryCache);
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+  }
+
+  /**
+   * Tests that the backstory, image URL, and timestamp of the latest upload come back from a
+   * single query, and that only the images of the latest upload are returned.
+   */
+  @Test
+  public void testDatastoreRetrieval() throws IOException {
+    Query mockQuery = mock(Query.class);
+    when(mockQuery.setFilter(any(Filter.class))).thenReturn(mockQuery);
+    when(mockQuery.addSort("timestamp", SortDirection.DESCENDING)).thenReturn(mockQuery);
+
+    Entity firstEntity = mock(Entity.class);
+    when(firstEntity.getProperty("timestamp")).thenReturn(2L);
+    when(firstEntity.getProperty("backstory")).thenReturn(new Text("firstBackstory"));
+    when(firstEntity.getProperty("blobKeyString")).thenReturn("firstBlobKey");
+    // The second entity is from an older upload, so it has an older timestamp.
+    Entity secondEntity = mock(Entity.class);
+    when(secondEntity.getProperty("timestamp")).thenReturn(1L);
+
+    PreparedQuery mockPreparedQuery = mock(PreparedQuery.class);
+    when(mockPreparedQuery.asIterable(
+             FetchOptions.Builder.withLimit(AnalyzeImageServlet.MAX_UPLOAD_IMAGES)))
+        .thenReturn(Arrays.asList(firstEntity, secondEntity));
+    when(mockDatastoreService.prepare(mockQuery)).thenReturn(mockPreparedQuery);
+    servlet.setQueryFactory((String queryName) -> mockQuery);
+
+    // doGet call to initiate testing.
+    servlet.doGet(mockRequest, mockResponse);
+
+    LatestBackstory[] latestBackstories =
+        new Gson().fromJson(stringWriter.toString(), LatestBackstory[].class);
+    Assert.assertEquals(1, latestBackstories.length);
+    Assert.assertEquals("firstBackstory", latestBackstories[0].getBackstory());
+    Assert.assertEquals("firstBlobKey", latestBackstories[0].getBlobKeyString());
+    Assert.assertEquals(
+        GetAnalyzedImagesServlet.getImageUrl("firstBlobKey"), latestBackstories[0].getImageUrl());
+    Assert.assertEquals(2L, latestBackstories[0].getTimestamp());
+    verify(mockDatastoreService, times(1)).prepare(mockQuery);
+    Assert.assertEquals(1, latestBackstoryCache.get(USER_EMAIL).size());
+  }
+
+  /**
+   * Tests that a cached upload is returned without touching Datastore.
+   */
+  @Test
+  public void testCachedRetrieval() throws IOException {
+    latestBackstoryCache.put(USER_EMAIL, 3L,
+        Arrays.asList(new Backstory("cachedBackstory", "cachedBlobKey", 3L)));
+
+    // doGet call to initiate testing.
+    servlet.doGet(mockRequest, mockResponse);
+
+    LatestBackstory[] latestBackstories =
+        new Gson().fromJson(stringWriter.toString(), LatestBackstory[].class);
+    Assert.assertEquals(1, latestBackstories.length);
+    Assert.assertEquals("cachedBackstory", latestBackstories[0].getBackstory());
+    Assert.assertEquals(
+        GetAnalyzedImagesServlet.getImageUrl("cachedBlobKey"), latestBackstories[0].getImageUrl());
+    Assert.assertEquals(3L, latestBackstories[0].getTimestamp());
+    verifyZeroInteractions(mockDatastoreService);
+  }
+
+  /**
+   * Tests that an empty JSON array is returned when the user hasn't uploaded anything.
+   */
+  @Test
+  public void testNoneUploaded() throws IOException {
+    latestBackstoryCache.put(USER_EMAIL, 0L, Arrays.asList());
+
+    // doGet call to initiate testing.
+    servlet.doGet(mockRequest, mockResponse);
+
+    Assert.assertEquals("[]", stringWriter.toString().trim());
+  }
+}
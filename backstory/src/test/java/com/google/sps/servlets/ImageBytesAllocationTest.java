@@ -0,0 +1,195 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.*;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.protobuf.ByteString;
+import com.google.sps.images.VisionImagesManager;
+import com.google.sps.images.data.AnnotatedImage;
+import com.google.sps.servlets.data.BlobstoreManager;
+import com.google.sps.servlets.data.BlobstoreServiceConstantFields;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Allocation tests for the path an uploaded image takes from Blobstore to the Vision request and
+ * the annotated image, which should hold the image in memory only once.
+ */
+@RunWith(JUnit4.class)
+public final class ImageBytesAllocationTest {
+  /** the size of the uploaded image, about that of a large phone photo */
+  private static final int IMAGE_SIZE = 10 * 1024 * 1024;
+  /** the most bytes Blobstore returns from one fetch */
+  private static final int FETCH_SIZE = 1015808;
+
+  /** the contents of the image's chunks, of which each fetch returns a new copy like Blobstore */
+  private byte[][] chunks;
+  /** reads the image from the mocked Blobstore */
+  private BlobstoreManager blobstoreManager;
+  /** the mocked Vision client */
+  private ImageAnnotatorClient mockImageAnnotatorClient;
+  /** the key of the uploaded image */
+  private final BlobKey blobKey = new BlobKey("blobKeyString");
+
+  @Before
+  public void setUp() throws Exception {
+    Random random = new Random(42);
+    chunks = new byte[IMAGE_SIZE / FETCH_SIZE + 1][];
+    for (int i = 0; i < chunks.length; i++) {
+      chunks[i] = new byte[Math.min(FETCH_SIZE, IMAGE_SIZE - i * FETCH_SIZE)];
+      random.nextBytes(chunks[i]);
+    }
+
+    BlobstoreService mockBlobstoreService = mock(BlobstoreService.class);
+    when(mockBlobstoreService.fetchData(any(BlobKey.class), anyLong(), anyLong()))
+        .thenAnswer(invocation ->
+            chunks[(int) ((long) invocation.getArgument(1) / FETCH_SIZE)].clone());
+    BlobstoreServiceConstantFields mockBlobstoreServiceConstantFields =
+        mock(BlobstoreServiceConstantFields.class);
+    when(mockBlobstoreServiceConstantFields.getMaxBlobFetchSize()).thenReturn(FETCH_SIZE);
+    BlobInfo mockBlobInfo = mock(BlobInfo.class);
+    when(mockBlobInfo.getSize()).thenReturn((long) IMAGE_SIZE);
+    BlobInfoFactory mockBlobInfoFactory = mock(BlobInfoFactory.class);
+    when(mockBlobInfoFactory.loadBlobInfo(any(BlobKey.class))).thenReturn(mockBlobInfo);
+    blobstoreManager = new BlobstoreManager(
+        mockBlobstoreService, mockBlobstoreServiceConstantFields, mockBlobInfoFactory);
+    // The chunks are fetched on the test's thread, so their allocations are measured too.
+    blobstoreManager.setFetchExecutor(Runnable::run);
+
+    mockImageAnnotatorClient = mock(ImageAnnotatorClient.class);
+    BatchAnnotateImagesResponse response = BatchAnnotateImagesResponse.newBuilder()
+        .addResponses(AnnotateImageResponse.newBuilder().addLabelAnnotations(
+            EntityAnnotation.newBuilder().setDescription("beach")))
+        .build();
+    when(mockImageAnnotatorClient.batchAnnotateImages(anyList())).thenReturn(response);
+  }
+
+  /**
+   * Check that the bytes read from Blobstore are the bytes sent to Vision and held by the
+   * annotated image, and that reading and annotating the image allocates the image once (the
+   * chunks Blobstore returns are the only copy) and little besides.
+   */
+  @Test
+  public void imageIsMaterializedOnce() throws Exception {
+    com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+    VisionImagesManager manager = new VisionImagesManager(mockImageAnnotatorClient);
+    long threadId = Thread.currentThread().getId();
+
+    // warm up, so class loading isn't counted
+    annotate(manager);
+
+    long before = threadMXBean.getThreadAllocatedBytes(threadId);
+    ByteString image = blobstoreManager.getBlobByteString(blobKey);
+    AnnotatedImage annotatedImage = manager.createAnnotatedImagesFromImagesAsByteStrings(
+        Arrays.asList(image)).get(0);
+    ByteString rawImage = annotatedImage.getRawImageByteString();
+    long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+    ArgumentCaptor<List<AnnotateImageRequest>> requestsCaptor =
+        ArgumentCaptor.forClass(List.class);
+    verify(mockImageAnnotatorClient, atLeastOnce()).batchAnnotateImages(requestsCaptor.capture());
+
+    Assert.assertEquals(IMAGE_SIZE, image.size());
+    Assert.assertSame(image, requestsCaptor.getValue().get(0).getImage().getContent());
+    Assert.assertSame(image, rawImage);
+    Assert.assertTrue("Allocated " + allocated + " bytes",
+        allocated >= IMAGE_SIZE && allocated < IMAGE_SIZE + IMAGE_SIZE / 10);
+  }
+
+  /**
+   * Check that reading and annotating an image allocates less than when the image is copied
+   * into an array at each step (as it was before ByteStrings were passed on).
+   */
+  @Test
+  public void allocatesLessThanCopying() throws Exception {
+    com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+    VisionImagesManager manager = new VisionImagesManager(mockImageAnnotatorClient);
+    long threadId = Thread.currentThread().getId();
+    annotate(manager);
+    annotateWithCopies(manager);
+
+    long before = threadMXBean.getThreadAllocatedBytes(threadId);
+    annotate(manager);
+    long zeroCopyAllocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+    before = threadMXBean.getThreadAllocatedBytes(threadId);
+    annotateWithCopies(manager);
+    long copyingAllocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+    Assert.assertTrue("Allocated " + zeroCopyAllocated + " bytes passed as a ByteString, "
+            + copyingAllocated + " bytes copied at each step",
+        zeroCopyAllocated < copyingAllocated);
+  }
+
+  /**
+   * Reads the image from Blobstore and annotates it, passing it on as a ByteString.
+   *
+   * @param manager the manager to annotate the image with
+   * @return the bytes of the annotated image
+   */
+  private ByteString annotate(VisionImagesManager manager) throws Exception {
+    ByteString image = blobstoreManager.getBlobByteString(blobKey);
+    return manager.createAnnotatedImagesFromImagesAsByteStrings(Arrays.asList(image))
+        .get(0).getRawImageByteString();
+  }
+
+  /**
+   * Reads the image from Blobstore and annotates it, copying it into an array at each step.
+   *
+   * @param manager the manager to annotate the image with
+   * @return the bytes of the annotated image
+   */
+  private byte[] annotateWithCopies(VisionImagesManager manager) throws Exception {
+    byte[] image = blobstoreManager.getBlobBytes(blobKey);
+    ByteString copy = ByteString.copyFrom(image);
+    return manager.createAnnotatedImagesFromImagesAsByteStrings(Arrays.asList(copy))
+        .get(0).getRawImageData();
+  }
+
+  /**
+   * Returns the bean which counts the bytes each thread allocates, skipping the test on JVMs
+   * which don't count them.
+   *
+   * @return the allocation counting ThreadMXBean
+   */
+  private static com.sun.management.ThreadMXBean getThreadMXBean() {
+    Assume.assumeTrue(
+        ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    return threadMXBean;
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+import com.google.sps.servlets.data.ImageDigestIndex;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Quality tests for ImageDigestIndex
+ */
+@RunWith(JUnit4.class)
+public final class ImageDigestIndexTest {
+  /** the digest to use for tests */
+  private static final String DIGEST = "digest";
+
+  /** the mocked Datastore the index is stored in */
+  private DatastoreService mockDatastoreService;
+  /** the index under test */
+  private ImageDigestIndex index;
+
+  @Before
+  public void setUp() {
+    mockDatastoreService = mock(DatastoreService.class);
+    index = new ImageDigestIndex(mockDatastoreService);
+  }
+
+  /**
+   * Check that the digest is the hexadecimal SHA-256 of the bytes.
+   */
+  @Test
+  public void digestIsSha256() {
+    Assert.assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+        ImageDigestIndex.digest("abc".getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  /**
+   * Check that a recorded upload is written under its digest and read back on a hit.
+   */
+  @Test
+  public void recordAndLookup() throws Exception {
+    index.record(DIGEST, new ImageDigestIndex.Entry(
+        "blobKeyString", Arrays.asList("beach", "sky"), Collections.emptyList(), "prompt"));
+
+    ArgumentCaptor<Entity> entityCaptor = ArgumentCaptor.forClass(Entity.class);
+    verify(mockDatastoreService).put(entityCaptor.capture());
+    Entity entity = entityCaptor.getValue();
+    Assert.assertEquals(ImageDigestIndex.ENTITY_KIND, entity.getKind());
+    Assert.assertEquals(DIGEST, entity.getKey().getName());
+    when(mockDatastoreService.get(entity.getKey())).thenReturn(entity);
+
+    ImageDigestIndex.Entry entry = index.lookup(DIGEST);
+
+    Assert.assertEquals("blobKeyString", entry.getBlobKeyString());
+    Assert.assertEquals(Arrays.asList("beach", "sky"), entry.getLabelDescriptions());
+    Assert.assertTrue(entry.getLandmarkDescriptions().isEmpty());
+    Assert.assertEquals("prompt", entry.getPrompt());
+    Assert.assertEquals(1, index.getHitCount());
+    Assert.assertEquals(1.0, index.getHitRate(), 1e-9);
+  }
+
+  /**
+   * Check that an image which isn't indexed is a miss.
+   */
+  @Test
+  public void missingEntityIsMiss() throws Exception {
+    when(mockDatastoreService.get(any(Key.class)))
+        .thenThrow(new EntityNotFoundException(null));
+
+    Assert.assertNull(index.lookup(DIGEST));
+    Assert.assertEquals(1, index.getLookupCount());
+    Assert.assertEquals(0, index.getHitRate(), 1e-9);
+    Assert.assertEquals(0, index.getErrorCount());
+  }
+
+  /**
+   * Check that a failing Datastore is treated as a miss instead of an error.
+   */
+  @Test
+  public void failingDatastoreIsMiss() throws Exception {
+    when(mockDatastoreService.get(any(Key.class))).thenThrow(new RuntimeException("down"));
+    doThrow(new RuntimeException("down")).when(mockDatastoreService).put(any(Entity.class));
+
+    Assert.assertNull(index.lookup(DIGEST));
+    index.record(DIGEST,
+        new ImageDigestIndex.Entry("blobKeyString", Collections.emptyList(),
+            Collections.emptyList(), null));
+    Assert.assertEquals(2, index.getErrorCount());
+  }
+}
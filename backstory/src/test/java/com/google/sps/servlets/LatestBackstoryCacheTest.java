@@ -0,0 +1,183 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.*;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.sps.servlets.data.Backstory;
+import com.google.sps.servlets.data.LatestBackstoryCache;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Quality tests for LatestBackstoryCache
+ */
+@RunWith(JUnit4.class)
+public final class LatestBackstoryCacheTest {
+  /** the user to use for tests */
+  private static final String USER = "user@gmail.com";
+  /** the time (in milliseconds) in-process entries are kept */
+  private static final long TTL_MILLIS = 1000;
+  /** the Backstories of the upload to use for tests */
+  private static final List<Backstory> BACKSTORIES =
+      Arrays.asList(new Backstory("backstory", "blobKeyString"));
+
+  /** the current time of the cache */
+  private AtomicLong now;
+  /** the mocked memcache tier */
+  private MemcacheService mockMemcacheService;
+
+  @Before
+  public void setUp() {
+    now = new AtomicLong(1000);
+    mockMemcacheService = mock(MemcacheService.class);
+  }
+
+  /**
+   * Check that a cached upload is returned until it expires, and a user without one is a miss.
+   */
+  @Test
+  public void putThenGetUntilExpired() {
+    LatestBackstoryCache cache = new LatestBackstoryCache(10, TTL_MILLIS, null, now::get);
+
+    cache.put(USER, 1, BACKSTORIES);
+
+    Assert.assertEquals(BACKSTORIES, cache.get(USER));
+    Assert.assertNull(cache.get("other@gmail.com"));
+    now.addAndGet(TTL_MILLIS + 1);
+    Assert.assertNull(cache.get(USER));
+    Assert.assertEquals(1.0 / 3, cache.getHitRate(), 1e-9);
+  }
+
+  /**
+   * Check that a user without any uploads is cached as an empty list rather than a miss.
+   */
+  @Test
+  public void cachesNoUploads() {
+    LatestBackstoryCache cache = new LatestBackstoryCache(10, TTL_MILLIS, null, now::get);
+
+    cache.fill(USER, 0, Collections.<Backstory>emptyList());
+
+    Assert.assertTrue(cache.get(USER).isEmpty());
+  }
+
+  /**
+   * Check that a fill from an older query result doesn't replace a later upload.
+   */
+  @Test
+  public void olderUploadDoesNotReplaceLater() {
+    LatestBackstoryCache cache = new LatestBackstoryCache(10, TTL_MILLIS, null, now::get);
+    List<Backstory> olderBackstories = Arrays.asList(new Backstory("older", "olderBlobKeyString"));
+
+    cache.put(USER, 2, BACKSTORIES);
+    cache.fill(USER, 1, olderBackstories);
+
+    Assert.assertEquals(BACKSTORIES, cache.get(USER));
+  }
+
+  /**
+   * Check that the least recently used user is evicted once the cache is full.
+   */
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    LatestBackstoryCache cache = new LatestBackstoryCache(1, TTL_MILLIS, null, now::get);
+
+    cache.put(USER, 1, BACKSTORIES);
+    cache.put("other@gmail.com", 1, BACKSTORIES);
+
+    Assert.assertEquals(1, cache.size());
+    Assert.assertNull(cache.get(USER));
+  }
+
+  /**
+   * Check that uploads are written through to memcache, fills only add missing entries,
+   * and a local miss is served from memcache.
+   */
+  @Test
+  public void memcacheTier() {
+    LatestBackstoryCache cache =
+        new LatestBackstoryCache(10, TTL_MILLIS, mockMemcacheService, now::get);
+    ArgumentCaptor<Object> valueCaptor = ArgumentCaptor.forClass(Object.class);
+
+    cache.put(USER, 2, BACKSTORIES);
+    verify(mockMemcacheService)
+        .put(anyString(), valueCaptor.capture(), isNull(), eq(SetPolicy.SET_ALWAYS));
+    cache.fill("other@gmail.com", 1, BACKSTORIES);
+    verify(mockMemcacheService)
+        .put(anyString(), any(), isNull(), eq(SetPolicy.ADD_ONLY_IF_NOT_PRESENT));
+
+    // another instance only has the memcache entry
+    LatestBackstoryCache otherCache =
+        new LatestBackstoryCache(10, TTL_MILLIS, mockMemcacheService, now::get);
+    when(mockMemcacheService.get(anyString())).thenReturn(valueCaptor.getValue());
+    Assert.assertEquals(BACKSTORIES, otherCache.get(USER));
+  }
+
+  /**
+   * Check that with no in-process TTL every read goes to memcache, so an upload handled by
+   * another instance is seen straight away.
+   */
+  @Test
+  public void zeroTtlDisablesInProcessTier() {
+    LatestBackstoryCache cache = new LatestBackstoryCache(10, 0, mockMemcacheService, now::get);
+    ArgumentCaptor<Object> valueCaptor = ArgumentCaptor.forClass(Object.class);
+
+    cache.put(USER, 1, BACKSTORIES);
+    verify(mockMemcacheService)
+        .put(anyString(), valueCaptor.capture(), isNull(), eq(SetPolicy.SET_ALWAYS));
+    Assert.assertEquals(0, cache.size());
+
+    // another instance stores a later upload, which replaces the memcache entry
+    List<Backstory> laterBackstories = Arrays.asList(new Backstory("later", "laterBlobKeyString"));
+    LatestBackstoryCache otherCache =
+        new LatestBackstoryCache(10, 0, mockMemcacheService, now::get);
+    otherCache.put(USER, 2, laterBackstories);
+    verify(mockMemcacheService, times(2))
+        .put(anyString(), valueCaptor.capture(), isNull(), eq(SetPolicy.SET_ALWAYS));
+    when(mockMemcacheService.get(anyString())).thenReturn(valueCaptor.getValue());
+
+    Assert.assertEquals(laterBackstories, cache.get(USER));
+  }
+
+  /**
+   * Check that a memcache failure is treated as a miss.
+   */
+  @Test
+  public void memcacheFailureIsMiss() {
+    LatestBackstoryCache cache =
+        new LatestBackstoryCache(10, TTL_MILLIS, mockMemcacheService, now::get);
+    when(mockMemcacheService.get(anyString())).thenThrow(new RuntimeException("unavailable"));
+
+    Assert.assertNull(cache.get(USER));
+  }
+
+  /**
+   * Check that an exception is thrown for a cache with no room.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidMaxSize() {
+    new LatestBackstoryCache(0, TTL_MILLIS);
+  }
+}
@@ -0,0 +1,293 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.*;
+
+import com.google.sps.perspective.StoryAnalysisManager;
+import com.google.sps.perspective.data.NoAppropriateStoryException;
+import com.google.sps.perspective.data.StoryDecision;
+import com.google.sps.servlets.data.SpeculationMetrics;
+import com.google.sps.servlets.data.SpeculativeBackstoryGenerator;
+import com.google.sps.servlets.data.StoryManagerFactory;
+import com.google.sps.story.StoryManager;
+import com.google.sps.story.StoryManagerURLProvider;
+import com.google.sps.story.StoryRequestAbortHandle;
+import com.google.sps.story.data.StoryEndpointPool;
+import com.google.sps.story.data.StoryEndpointSelectors;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Quality tests for SpeculativeBackstoryGenerator
+ */
+@RunWith(JUnit4.class)
+public final class SpeculativeBackstoryGeneratorTest {
+  /** the URLs of the containers to use for tests */
+  private static final List<String> URLS =
+      Arrays.asList("https://gen-1.example", "https://gen-2.example", "https://gen-3.example");
+  /** the prompt to use for tests */
+  private static final String PROMPT = "prompt";
+  /** the story which is rejected by analysis */
+  private static final String REJECTED_STORY = "rejected";
+  /** the story which passes analysis */
+  private static final String PASSING_STORY = "passing";
+
+  /** the containers the candidates are spread across */
+  private StoryEndpointPool endpointPool;
+  /** the outcomes of each test's runs */
+  private SpeculationMetrics metrics;
+  /** the analysis which rejects REJECTED_STORY and passes anything else */
+  private StoryAnalysisManager mockStoryAnalysisManager;
+  /** the URL each candidate was sent to, in launch order */
+  private List<String> candidateURLs;
+
+  @Before
+  public void setUp() throws Exception {
+    endpointPool = new StoryEndpointPool(URLS, StoryEndpointSelectors.LEAST_OUTSTANDING);
+    metrics = new SpeculationMetrics();
+    candidateURLs = new CopyOnWriteArrayList<String>();
+    mockStoryAnalysisManager = mock(StoryAnalysisManager.class);
+    when(mockStoryAnalysisManager.generateDecision(anyString()))
+        .thenAnswer(invocation -> new StoryDecision(invocation.getArgument(0)));
+    when(mockStoryAnalysisManager.generateDecision(REJECTED_STORY))
+        .thenThrow(new NoAppropriateStoryException("toxic"));
+  }
+
+  /**
+   * Check that a rejected candidate is replaced on another container and the
+   * first candidate to pass wins.
+   */
+  @Test
+  public void replacesRejectedCandidate() throws Exception {
+    StoryManager rejected = newStoryManager(REJECTED_STORY);
+    StoryManager passing = newStoryManager(PASSING_STORY);
+    SpeculativeBackstoryGenerator generator =
+        newGenerator(newFactory(rejected, passing), 1, 3, Runnable::run);
+
+    Assert.assertEquals(PASSING_STORY, generator.generate(PROMPT, 10, 0.7));
+    Assert.assertEquals(2, candidateURLs.size());
+    Assert.assertNotEquals(candidateURLs.get(0), candidateURLs.get(1));
+    Assert.assertEquals(1, metrics.getWinCount(1));
+    Assert.assertEquals(0, metrics.getWinCount(0));
+    Assert.assertEquals(1, metrics.getRejectionCount());
+  }
+
+  /**
+   * Check that the candidates launched at once go to different containers, and that once
+   * one has won the others aren't analyzed.
+   */
+  @Test
+  public void firstPassingCandidateWins() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    CountDownLatch slowCandidate = new CountDownLatch(1);
+    StoryManager slow = mock(StoryManager.class);
+    when(slow.generateText()).thenAnswer(invocation -> {
+      slowCandidate.await(5, TimeUnit.SECONDS);
+      return "slow";
+    });
+    StoryManager fast = newStoryManager(PASSING_STORY);
+
+    try {
+      SpeculativeBackstoryGenerator generator =
+          newGenerator(newFactory(slow, fast), 3, 3, executor);
+
+      Assert.assertEquals(PASSING_STORY, generator.generate(PROMPT, 10, 0.7));
+      Assert.assertEquals(new HashSet<String>(URLS), new HashSet<String>(candidateURLs));
+      Assert.assertEquals(1, metrics.getWinCounts().size());
+    } finally {
+      slowCandidate.countDown();
+      executor.shutdown();
+      Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    verify(mockStoryAnalysisManager, never()).generateDecision("slow");
+  }
+
+  /**
+   * Check that a candidate still waiting on its container when another wins has its request
+   * aborted, and that it isn't counted as a failure.
+   */
+  @Test
+  public void abortsLosingCandidate() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    CountDownLatch slowConnected = new CountDownLatch(1);
+
+    try (ServerSocket silentServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      URL silentURL = new URL("http://localhost:" + silentServer.getLocalPort());
+      // The slow candidate waits on a container which never answers.
+      StoryManager slow = mock(StoryManager.class);
+      when(slow.generateText()).thenAnswer(invocation -> {
+        HttpURLConnection connection =
+            StoryRequestAbortHandle.CONNECTION_FACTORY.openConnection(silentURL);
+        connection.setReadTimeout(10000);
+        try {
+          connection.connect();
+          slowConnected.countDown();
+          return "slow " + connection.getResponseCode();
+        } catch (IOException exception) {
+          throw new RuntimeException("Error with server", exception);
+        }
+      });
+      // The fast candidate only wins once the slow one is waiting.
+      StoryManager fast = mock(StoryManager.class);
+      when(fast.generateText()).thenAnswer(invocation -> {
+        slowConnected.await(5, TimeUnit.SECONDS);
+        return PASSING_STORY;
+      });
+
+      SpeculativeBackstoryGenerator generator =
+          newGenerator(newFactory(slow, fast), 2, 2, executor);
+      Assert.assertEquals(PASSING_STORY, generator.generate(PROMPT, 10, 0.7));
+
+      // Without the abort, the slow candidate would wait for its read timeout.
+      executor.shutdown();
+      Assert.assertTrue(executor.awaitTermination(2, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Assert.assertEquals(0, metrics.getFailureCount());
+    verify(mockStoryAnalysisManager, never()).generateDecision(startsWith("slow"));
+  }
+
+  /**
+   * Check that a run whose budget is used up by rejected candidates has no appropriate story.
+   */
+  @Test
+  public void rejectionsExhaustBudget() throws Exception {
+    StoryManager rejected = newStoryManager(REJECTED_STORY);
+    SpeculativeBackstoryGenerator generator =
+        newGenerator(newFactory(rejected), 2, 4, Runnable::run);
+
+    try {
+      generator.generate(PROMPT, 10, 0.7);
+      Assert.fail("Expected NoAppropriateStoryException");
+    } catch (NoAppropriateStoryException exception) {
+      // expected
+    }
+
+    verify(rejected, times(4)).generateText();
+    Assert.assertEquals(4, metrics.getRejectionCount());
+    Assert.assertEquals(1, metrics.getExhaustedCount());
+    Assert.assertTrue(metrics.getWinCounts().isEmpty());
+  }
+
+  /**
+   * Check that a run in which every candidate fails to generate fails.
+   */
+  @Test(expected = RuntimeException.class)
+  public void failuresExhaustBudget() throws Exception {
+    StoryManager failing = mock(StoryManager.class);
+    when(failing.generateText()).thenThrow(new RuntimeException("container is down"));
+    SpeculativeBackstoryGenerator generator =
+        newGenerator(newFactory(failing), 2, 2, Runnable::run);
+
+    try {
+      generator.generate(PROMPT, 10, 0.7);
+    } finally {
+      Assert.assertEquals(2, metrics.getFailureCount());
+    }
+  }
+
+  /**
+   * Check that a run with no winner by the deadline times out.
+   */
+  @Test
+  public void deadlinePasses() throws Exception {
+    SpeculativeBackstoryGenerator generator = new SpeculativeBackstoryGenerator(
+        newFactory(newStoryManager(PASSING_STORY)), () -> mockStoryAnalysisManager, endpointPool,
+        2, 2, 10, (Runnable candidate) -> {}, metrics);
+
+    try {
+      generator.generate(PROMPT, 10, 0.7);
+      Assert.fail("Expected RuntimeException");
+    } catch (RuntimeException exception) {
+      // expected
+    }
+
+    Assert.assertEquals(1, metrics.getTimeoutCount());
+  }
+
+  /**
+   * Check that an exception is thrown for a budget smaller than the number of candidates.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void budgetBelowCandidates() {
+    newGenerator(newFactory(mock(StoryManager.class)), 3, 2, Runnable::run);
+  }
+
+  /**
+   * Returns a generator with the test's pool, analysis and metrics.
+   *
+   * @param storyManagerFactory creates the StoryManager of each candidate
+   * @param candidates the number of candidates launched at once
+   * @param budget the number of candidates launched in total
+   * @param executor runs the candidates
+   * @return the generator
+   */
+  private SpeculativeBackstoryGenerator newGenerator(StoryManagerFactory storyManagerFactory,
+      int candidates, int budget, Executor executor) {
+    return new SpeculativeBackstoryGenerator(storyManagerFactory, () -> mockStoryAnalysisManager,
+        endpointPool, candidates, budget, 5000, executor, metrics);
+  }
+
+  /**
+   * Returns a factory which hands out the given managers in launch order (repeating the last
+   * one) and records the URL each candidate was sent to.
+   *
+   * @param storyManagers the StoryManager of each candidate
+   * @return the factory
+   */
+  private StoryManagerFactory newFactory(StoryManager... storyManagers) {
+    return (String prompt, int storyLength, double temperature,
+        StoryManagerURLProvider storyManagerURLProvider) -> {
+      synchronized (candidateURLs) {
+        candidateURLs.add(storyManagerURLProvider.getCurrentURL());
+        return storyManagers[Math.min(candidateURLs.size(), storyManagers.length) - 1];
+      }
+    };
+  }
+
+  /**
+   * Returns a StoryManager which generates the given story.
+   *
+   * @param story the story to generate
+   * @return the mocked StoryManager
+   */
+  private static StoryManager newStoryManager(String story) {
+    StoryManager storyManager = mock(StoryManager.class);
+    when(storyManager.generateText()).thenReturn(story);
+    return storyManager;
+  }
+}
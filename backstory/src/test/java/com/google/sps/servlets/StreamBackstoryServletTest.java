@@ -0,0 +1,243 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.*;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.users.User;
+import com.google.appengine.api.users.UserService;
+import com.google.protobuf.ByteString;
+import com.google.sps.images.ImagesManager;
+import com.google.sps.images.data.AnnotatedImage;
+import com.google.sps.perspective.StoryAnalysisManager;
+import com.google.sps.perspective.data.NoAppropriateStoryException;
+import com.google.sps.perspective.data.StoryDecision;
+import com.google.sps.servlets.data.Backstory;
+import com.google.sps.servlets.data.BlobstoreManager;
+import com.google.sps.servlets.data.LatestBackstoryCache;
+import com.google.sps.story.StoryChunkListener;
+import com.google.sps.story.StoryManagerURLProvider;
+import com.google.sps.story.StreamingStoryManager;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Tests for the StreamBackstoryServlet, which streams a backstory to the browser as
+ * Server-Sent Events and only stores it once it has passed the story analysis.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public final class StreamBackstoryServletTest {
+  /** the email of the user the backstory is created for */
+  private static final String USER_EMAIL = "user@gmail.com";
+  /** the key of the uploaded image */
+  private static final String BLOB_KEY_STRING = "blobKeyString";
+  /** the story streamed by the story manager */
+  private static final String RAW_BACKSTORY = "The dog ran home. It was";
+
+  private HttpServletRequest mockRequest;
+  private HttpServletResponse mockResponse;
+  private HttpSession mockSession;
+  private StringWriter stringWriter;
+  private BlobstoreManager mockBlobstoreManager;
+  private StreamingStoryManager mockStoryManager;
+  private StoryAnalysisManager mockStoryAnalysisManager;
+  private DatastoreService mockDatastoreService;
+  private Entity mockAnalyzedImageEntity;
+  private LatestBackstoryCache latestBackstoryCache;
+  private StreamBackstoryServlet servlet;
+
+  @Before
+  public void setUp() throws Exception {
+    mockRequest = mock(HttpServletRequest.class);
+    mockResponse = mock(HttpServletResponse.class);
+    stringWriter = new StringWriter();
+    lenient().when(mockResponse.getWriter()).thenReturn(new PrintWriter(stringWriter));
+
+    // The image waiting for its backstory was handed over through the session by doPost.
+    mockSession = mock(HttpSession.class);
+    lenient().when(mockRequest.getSession(false)).thenReturn(mockSession);
+    lenient()
+        .when(mockSession.getAttribute(StreamBackstoryServlet.PENDING_BLOB_KEY_ATTRIBUTE))
+        .thenReturn(BLOB_KEY_STRING);
+
+    UserService mockUserService = mock(UserService.class);
+    when(mockUserService.isUserLoggedIn()).thenReturn(true);
+    lenient().when(mockUserService.getCurrentUser()).thenReturn(new User(USER_EMAIL, "auth"));
+
+    ByteString imageBytes = ByteString.copyFrom(new byte[10]);
+    mockBlobstoreManager = mock(BlobstoreManager.class);
+    lenient()
+        .when(mockBlobstoreManager.getBlobByteString(new BlobKey(BLOB_KEY_STRING)))
+        .thenReturn(imageBytes);
+
+    AnnotatedImage annotatedImage = mock(AnnotatedImage.class);
+    lenient().when(annotatedImage.getLabelDescriptions()).thenReturn(Arrays.asList("dog"));
+    ImagesManager mockImagesManager = mock(ImagesManager.class);
+    lenient()
+        .when(mockImagesManager.createAnnotatedImagesFromImagesAsByteStrings(
+            Arrays.asList(imageBytes)))
+        .thenReturn(Arrays.asList(annotatedImage));
+
+    // The story is streamed in two chunks.
+    mockStoryManager = mock(StreamingStoryManager.class);
+    lenient().when(mockStoryManager.streamText(any(StoryChunkListener.class))).thenAnswer(
+        invocation -> {
+          StoryChunkListener listener = invocation.getArgument(0);
+          listener.onChunk("The dog ran home.");
+          listener.onChunk(" It was");
+          return RAW_BACKSTORY;
+        });
+
+    mockStoryAnalysisManager = mock(StoryAnalysisManager.class);
+    mockDatastoreService = mock(DatastoreService.class);
+    mockAnalyzedImageEntity = mock(Entity.class);
+
+    // Each test starts with an empty cache of the latest backstories.
+    latestBackstoryCache = new LatestBackstoryCache(10, 60000);
+    servlet = new StreamBackstoryServlet();
+    servlet.setLatestBackstoryCache(latestBackstoryCache);
+    servlet.setBackstoryUserServiceFactory(() -> mockUserService);
+    servlet.setBlobstoreManagerFactory(() -> mockBlobstoreManager);
+    servlet.setImagesManagerFactory(() -> mockImagesManager);
+    servlet.setStreamingStoryManagerFactory((String prompt, int storyLength,
+        double temperature, StoryManagerURLProvider provider) -> mockStoryManager);
+    servlet.setStoryAnalysisManagerFactory(() -> mockStoryAnalysisManager);
+    servlet.setBackstoryDatastoreServiceFactory(() -> mockDatastoreService);
+    servlet.setEntityFactory((String entityName) -> mockAnalyzedImageEntity);
+  }
+
+  /**
+   * Tests that doPost hands the uploaded image over through the session and sends the user
+   * back to the page which streams its backstory.
+   */
+  @Test
+  public void doPostHandsImageOverThroughSession() throws IOException {
+    when(mockBlobstoreManager.getUploadedFileBlobKeyString(mockRequest, "image-upload"))
+        .thenReturn(BLOB_KEY_STRING);
+    HttpSession newSession = mock(HttpSession.class);
+    when(mockRequest.getSession()).thenReturn(newSession);
+
+    servlet.doPost(mockRequest, mockResponse);
+
+    verify(newSession).setAttribute(
+        StreamBackstoryServlet.PENDING_BLOB_KEY_ATTRIBUTE, BLOB_KEY_STRING);
+    verify(mockResponse).sendRedirect("/index.html?stream=true");
+  }
+
+  /**
+   * Tests that an approved story is stored and written through to the cache, then sent chunk
+   * by chunk before the done event, and that the image is taken out of the session.
+   */
+  @Test
+  public void approvedStoryIsStreamedAndStored() throws Exception {
+    when(mockStoryAnalysisManager.generateDecision(RAW_BACKSTORY))
+        .thenReturn(new StoryDecision(RAW_BACKSTORY));
+
+    servlet.doGet(mockRequest, mockResponse);
+
+    verify(mockSession).removeAttribute(StreamBackstoryServlet.PENDING_BLOB_KEY_ATTRIBUTE);
+    verify(mockResponse).setContentType("text/event-stream");
+    Assert.assertEquals(Arrays.asList("status", "status", "chunk", "chunk", "done"),
+        getEventNames(stringWriter.toString()));
+    Assert.assertTrue(stringWriter.toString().contains("data: \"The dog ran home.\"\n"));
+
+    verify(mockAnalyzedImageEntity).setProperty("userEmail", USER_EMAIL);
+    verify(mockAnalyzedImageEntity).setProperty("blobKeyString", BLOB_KEY_STRING);
+    verify(mockDatastoreService).put(mockAnalyzedImageEntity);
+    List<Backstory> cachedBackstories = latestBackstoryCache.get(USER_EMAIL);
+    Assert.assertEquals(1, cachedBackstories.size());
+    Assert.assertEquals(BLOB_KEY_STRING, cachedBackstories.get(0).getBlobKeyString());
+  }
+
+  /**
+   * Tests that a story which fails the analysis ends the stream with a rejected event, without
+   * any of its text being sent, and is never committed to permanent storage or the cache.
+   */
+  @Test
+  public void rejectedStoryIsNotStored() throws Exception {
+    when(mockStoryAnalysisManager.generateDecision(RAW_BACKSTORY))
+        .thenThrow(new NoAppropriateStoryException("Rejected."));
+
+    servlet.doGet(mockRequest, mockResponse);
+
+    Assert.assertEquals(
+        Arrays.asList("status", "status", "rejected"), getEventNames(stringWriter.toString()));
+    Assert.assertFalse(stringWriter.toString().contains("The dog ran home."));
+    verify(mockDatastoreService, never()).put(any(Entity.class));
+    Assert.assertNull(latestBackstoryCache.get(USER_EMAIL));
+  }
+
+  /**
+   * Tests that a failed generation ends the stream with an error event, without analyzing or
+   * storing anything.
+   */
+  @Test
+  public void failedGenerationSendsError() throws Exception {
+    when(mockStoryManager.streamText(any(StoryChunkListener.class)))
+        .thenThrow(new RuntimeException("Error with server"));
+
+    servlet.doGet(mockRequest, mockResponse);
+
+    Assert.assertEquals(
+        Arrays.asList("status", "status", "error"), getEventNames(stringWriter.toString()));
+    verify(mockStoryAnalysisManager, never()).generateDecision(anyString());
+    verify(mockDatastoreService, never()).put(any(Entity.class));
+  }
+
+  /**
+   * Tests that a request without an image waiting in the session is answered with 404
+   * instead of opening an event stream.
+   */
+  @Test
+  public void noPendingImage() throws IOException {
+    when(mockRequest.getSession(false)).thenReturn(null);
+
+    servlet.doGet(mockRequest, mockResponse);
+
+    verify(mockResponse).sendError(eq(HttpServletResponse.SC_NOT_FOUND), anyString());
+    verify(mockResponse, never()).getWriter();
+  }
+
+  /**
+   * Returns the names of the events in an event stream, in order.
+   *
+   * @param eventStream the text of the event stream
+   * @return the event names
+   */
+  private static List<String> getEventNames(String eventStream) {
+    List<String> eventNames = new ArrayList<>();
+    for (String line : eventStream.split("\n")) {
+      if (line.startsWith("event: ")) {
+        eventNames.add(line.substring("event: ".length()));
+      }
+    }
+    return eventNames;
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import static org.mockito.Mockito.*;
+
+import com.google.sps.story.data.CachingDatamuseRequestClient;
+import com.google.sps.story.data.DatamuseRelatedWordType;
+import com.google.sps.story.data.DatamuseRequestClient;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Quality tests for CachingDatamuseRequestClient
+ */
+@RunWith(JUnit4.class)
+public final class CachingDatamuseRequestClientTest {
+  /** the noun to use for tests */
+  private static final String NOUN = "beach";
+  /** the word type to use for tests */
+  private static final DatamuseRelatedWordType WORD_TYPE = DatamuseRelatedWordType.ADJECTIVE;
+  /** the topic to use for tests */
+  private static final String TOPIC = "story";
+  /** the number of words the caching client fetches */
+  private static final int FETCH_CAP = 5;
+  /** the words the mocked Datamuse API returns */
+  private static final String[] WORDS = {"sandy", "long", "private", "white", "small"};
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  /** the mocked client which makes the actual requests */
+  private DatamuseRequestClient mockDelegate;
+
+  @Before
+  public void setUp() throws Exception {
+    mockDelegate = mock(DatamuseRequestClient.class);
+    when(mockDelegate.fetchRelatedWords(anyString(), any(), anyInt(), anyString()))
+        .thenReturn(WORDS);
+  }
+
+  /**
+   * Check that words are fetched with the larger cap once and
+   * sliced down for each caller.
+   */
+  @Test
+  public void slicesFromLargerFetch() throws Exception {
+    CachingDatamuseRequestClient client =
+        new CachingDatamuseRequestClient(mockDelegate, 10, FETCH_CAP);
+
+    String[] first = client.fetchRelatedWords(NOUN, WORD_TYPE, 2, TOPIC);
+    String[] second = client.fetchRelatedWords(NOUN, WORD_TYPE, 1, TOPIC);
+
+    Assert.assertArrayEquals(new String[] {"sandy", "long"}, first);
+    Assert.assertArrayEquals(new String[] {"sandy"}, second);
+    verify(mockDelegate, times(1)).fetchRelatedWords(NOUN, WORD_TYPE, FETCH_CAP, TOPIC);
+  }
+
+  /**
+   * Check that the same noun with a different topic or word type is a different entry.
+   */
+  @Test
+  public void keyIncludesTopicAndWordType() throws Exception {
+    CachingDatamuseRequestClient client =
+        new CachingDatamuseRequestClient(mockDelegate, 10, FETCH_CAP);
+
+    client.fetchRelatedWords(NOUN, WORD_TYPE, 1, TOPIC);
+    client.fetchRelatedWords(NOUN, WORD_TYPE, 1, "fairytale");
+    client.fetchRelatedWords(NOUN, DatamuseRelatedWordType.GERUND, 1, TOPIC);
+
+    verify(mockDelegate, times(3)).fetchRelatedWords(anyString(), any(), anyInt(), anyString());
+    Assert.assertEquals(3, client.size());
+  }
+
+  /**
+   * Check that a request for more words than were fetched goes to Datamuse,
+   * unless Datamuse had fewer words than were asked for.
+   */
+  @Test
+  public void largerCapRefetches() throws Exception {
+    CachingDatamuseRequestClient client =
+        new CachingDatamuseRequestClient(mockDelegate, 10, FETCH_CAP);
+
+    client.fetchRelatedWords(NOUN, WORD_TYPE, 1, TOPIC);
+    client.fetchRelatedWords(NOUN, WORD_TYPE, FETCH_CAP + 1, TOPIC);
+    verify(mockDelegate, times(1)).fetchRelatedWords(NOUN, WORD_TYPE, FETCH_CAP + 1, TOPIC);
+
+    // Datamuse only had five words, so every larger cap is covered
+    client.fetchRelatedWords(NOUN, WORD_TYPE, FETCH_CAP + 2, TOPIC);
+    verify(mockDelegate, times(2)).fetchRelatedWords(anyString(), any(), anyInt(), anyString());
+  }
+
+  /**
+   * Check that the least recently used entry is evicted once the cache is full.
+   */
+  @Test
+  public void evictsLeastRecentlyUsed() throws Exception {
+    CachingDatamuseRequestClient client =
+        new CachingDatamuseRequestClient(mockDelegate, 1, FETCH_CAP);
+
+    client.fetchRelatedWords(NOUN, WORD_TYPE, 1, TOPIC);
+    client.fetchRelatedWords("tree", WORD_TYPE, 1, TOPIC);
+    client.fetchRelatedWords(NOUN, WORD_TYPE, 1, TOPIC);
+
+    Assert.assertEquals(1, client.size());
+    verify(mockDelegate, times(2)).fetchRelatedWords(NOUN, WORD_TYPE, FETCH_CAP, TOPIC);
+  }
+
+  /**
+   * Check that hits and misses are counted separately for each topic.
+   */
+  @Test
+  public void countsHitsPerTopic() throws Exception {
+    CachingDatamuseRequestClient client =
+        new CachingDatamuseRequestClient(mockDelegate, 10, FETCH_CAP);
+
+    client.fetchRelatedWords(NOUN, WORD_TYPE, 1, TOPIC);
+    client.fetchRelatedWords(NOUN, WORD_TYPE, 1, TOPIC);
+    client.fetchRelatedWords(NOUN, WORD_TYPE, 1, TOPIC);
+    client.fetchRelatedWords(NOUN, WORD_TYPE, 1, "poem");
+
+    Assert.assertEquals(2, client.getTopicStats(TOPIC).getHitCount());
+    Assert.assertEquals(1, client.getTopicStats(TOPIC).getMissCount());
+    Assert.assertEquals(2.0 / 3, client.getTopicStats(TOPIC).getHitRate(), 1e-9);
+    Assert.assertEquals(0, client.getTopicStats("poem").getHitRate(), 1e-9);
+    Assert.assertEquals(0, client.getTopicStats("drama").getMissCount());
+    Assert.assertEquals(2, client.getTopicStats().size());
+  }
+
+  /**
+   * Check that concurrent asynchronous misses for the same entry share one request.
+   */
+  @Test
+  public void asyncSharesPendingFetch() throws Exception {
+    CompletableFuture<String[]> pendingWords = new CompletableFuture<String[]>();
+    when(mockDelegate.fetchRelatedWordsAsync(anyString(), any(), anyInt(), anyString()))
+        .thenReturn(pendingWords);
+    CachingDatamuseRequestClient client =
+        new CachingDatamuseRequestClient(mockDelegate, 10, FETCH_CAP);
+
+    CompletableFuture<String[]> first = client.fetchRelatedWordsAsync(NOUN, WORD_TYPE, 1, TOPIC);
+    CompletableFuture<String[]> second = client.fetchRelatedWordsAsync(NOUN, WORD_TYPE, 2, TOPIC);
+    pendingWords.complete(WORDS);
+
+    Assert.assertArrayEquals(new String[] {"sandy"}, first.get());
+    Assert.assertArrayEquals(new String[] {"sandy", "long"}, second.get());
+    verify(mockDelegate, times(1)).fetchRelatedWordsAsync(NOUN, WORD_TYPE, FETCH_CAP, TOPIC);
+
+    // now the words are cached
+    Assert.assertTrue(client.fetchRelatedWordsAsync(NOUN, WORD_TYPE, 1, TOPIC).isDone());
+  }
+
+  /**
+   * Check that a snapshot written by one cache warms up another,
+   * including an entry with an empty topic.
+   */
+  @Test
+  public void snapshotRoundTrip() throws Exception {
+    Path snapshotPath = temporaryFolder.getRoot().toPath().resolve("datamuse-snapshot");
+    CachingDatamuseRequestClient warmClient =
+        new CachingDatamuseRequestClient(mockDelegate, 10, FETCH_CAP);
+    warmClient.fetchRelatedWords(NOUN, WORD_TYPE, 1, TOPIC);
+    warmClient.fetchRelatedWords(NOUN, WORD_TYPE, 1, "");
+    warmClient.writeSnapshot(snapshotPath);
+
+    DatamuseRequestClient coldDelegate = mock(DatamuseRequestClient.class);
+    CachingDatamuseRequestClient coldClient =
+        new CachingDatamuseRequestClient(coldDelegate, 10, FETCH_CAP);
+
+    Assert.assertEquals(2, coldClient.readSnapshot(snapshotPath));
+    Assert.assertArrayEquals(WORDS, coldClient.fetchRelatedWords(NOUN, WORD_TYPE, FETCH_CAP, TOPIC));
+    Assert.assertArrayEquals(
+        new String[] {"sandy"}, coldClient.fetchRelatedWords(NOUN, WORD_TYPE, 1, ""));
+    verify(coldDelegate, never()).fetchRelatedWords(anyString(), any(), anyInt(), anyString());
+  }
+
+  /**
+   * Check that invalid arguments are still rejected before the cache is consulted.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void whitespaceInNoun() throws Exception {
+    CachingDatamuseRequestClient client =
+        new CachingDatamuseRequestClient(mockDelegate, 10, FETCH_CAP);
+
+    client.fetchRelatedWords("sandy beach", WORD_TYPE, 1, TOPIC);
+  }
+
+  /**
+   * Check that an exception is thrown for a cache with no room.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidMaxSize() {
+    new CachingDatamuseRequestClient(mockDelegate, 0, FETCH_CAP);
+  }
+}
@@ -33,6 +33,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
@@ -231,6 +233,33 @@ public final class DatamuseRequestClientTest {
     client.fetchRelatedWords(DEFAULT_NOUN, DEFAULT_WORD_TYPE, DEFAULT_MAX, DEFAULT_TOPIC);
   }   
 
+  /**
+   * Check that the rest of a response which can't be parsed is still read
+   * and closed, so that its connection can be reused.
+   */
+  @Test
+  public void malformedResponseIsReleased() throws Exception {
+    final String QUERIES = "rel_jjb=" + DEFAULT_NOUN + "&max=" + DEFAULT_MAX
+        + "&topics=" + DEFAULT_TOPIC;
+    final String RESPONSE = "[{\"word\": \"sandy\"}, not JSON, {\"word\": \"long\"}]";
+
+    DatamuseRequestClient client = new DatamuseRequestClient(DEFAULT_URL);
+    URLConnection urlConnection = stubURLConnection(DEFAULT_URL, QUERIES, RESPONSE);
+    InputStream inputStream = spy(new ByteArrayInputStream(
+        RESPONSE.getBytes(Charset.forName("UTF-8"))));
+    given(urlConnection.getInputStream()).willReturn(inputStream);
+
+    try {
+      client.fetchRelatedWords(DEFAULT_NOUN, DEFAULT_WORD_TYPE, DEFAULT_MAX, DEFAULT_TOPIC);
+      Assert.fail("The malformed response should not have been parsed.");
+    } catch (RuntimeException exception) {
+      // expected
+    }
+
+    Assert.assertEquals(0, inputStream.available());
+    verify(inputStream).close();
+  }
+
   /** 
    * Check that fetchRelatedWords() throws a RunTimeException
    * when the JSON array that it gets back from the server does not
@@ -352,6 +381,90 @@ public final class DatamuseRequestClientTest {
     Assert.assertEquals(EXPECTED_OUTPUT, actualOutput);
   }
 
+  /** 
+   * Check that fetchRelatedWordsAsync() completes with the same words
+   * fetchRelatedWords() returns.
+   */
+  @Test 
+  public void asyncExactNumberOfWords() throws Exception {
+    final String QUERIES = "rel_jjb=" + DEFAULT_NOUN + "&max=" + DEFAULT_MAX 
+        + "&topics=" + DEFAULT_TOPIC;
+    final String[] EXPECTED_OUTPUT = { "sandy", "long", "private", "white", "small"};
+
+    DatamuseRequestClient client = new DatamuseRequestClient(DEFAULT_URL);
+    JSONArray jsonOutput = buildJSONFromStringArray(EXPECTED_OUTPUT);
+
+    stubURLConnection(DEFAULT_URL, QUERIES, jsonOutput.toString());
+
+    CompletableFuture<String[]> actualOutput = client.fetchRelatedWordsAsync(DEFAULT_NOUN,
+        DEFAULT_WORD_TYPE, DEFAULT_MAX, DEFAULT_TOPIC);
+    Assert.assertArrayEquals(EXPECTED_OUTPUT, actualOutput.get());
+  }
+
+  /** 
+   * Check that fetchRelatedWordsAsync() completes exceptionally with an
+   * APINotAvailableException if it can't access the Datamuse API.
+   */
+  @Test 
+  public void asyncApiNotAvailable() throws Exception {
+    DatamuseRequestClient client = new DatamuseRequestClient(DEFAULT_URL);
+
+    CompletableFuture<String[]> actualOutput = client.fetchRelatedWordsAsync(DEFAULT_NOUN,
+        DEFAULT_WORD_TYPE, DEFAULT_MAX, DEFAULT_TOPIC);
+
+    try {
+      actualOutput.get();
+      Assert.fail("Expected the future to complete exceptionally.");
+    } catch (ExecutionException exception) {
+      Assert.assertTrue(exception.getCause() instanceof APINotAvailableException);
+    }
+  }
+
+  /** 
+   * Check that fetchRelatedWordsAsync() rejects invalid arguments right away
+   * instead of through the future.
+   */
+  @Test (expected = IllegalArgumentException.class)
+  public void asyncWhitespaceInNoun() throws Exception {
+    DatamuseRequestClient client = new DatamuseRequestClient(DEFAULT_URL);
+
+    client.fetchRelatedWordsAsync("sandy beach", DEFAULT_WORD_TYPE, DEFAULT_MAX, DEFAULT_TOPIC);
+  }
+
+  /** 
+   * Check that the configured timeouts are set on the connection.
+   */
+  @Test 
+  public void setsTimeouts() throws Exception {
+    final int CONNECT_TIMEOUT = 100;
+    final int READ_TIMEOUT = 200;
+    final String QUERIES = "rel_jjb=" + DEFAULT_NOUN + "&max=" + DEFAULT_MAX 
+        + "&topics=" + DEFAULT_TOPIC;
+    final String[] EXPECTED_OUTPUT = { "sandy", "long", "private", "white", "small"};
+
+    DatamuseRequestClient client = new DatamuseRequestClient(DEFAULT_URL);
+    client.setTimeouts(CONNECT_TIMEOUT, READ_TIMEOUT);
+    JSONArray jsonOutput = buildJSONFromStringArray(EXPECTED_OUTPUT);
+
+    URLConnection urlConnection =
+        stubURLConnection(DEFAULT_URL, QUERIES, jsonOutput.toString());
+
+    client.fetchRelatedWords(DEFAULT_NOUN, DEFAULT_WORD_TYPE, DEFAULT_MAX, DEFAULT_TOPIC);
+
+    verify(urlConnection).setConnectTimeout(CONNECT_TIMEOUT);
+    verify(urlConnection).setReadTimeout(READ_TIMEOUT);
+  }
+
+  /** 
+   * Check that an IllegalArgumentException is thrown for negative timeouts.
+   */
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeTimeout() {
+    DatamuseRequestClient client = new DatamuseRequestClient(DEFAULT_URL);
+
+    client.setTimeouts(-1, DatamuseRequestClient.DEFAULT_READ_TIMEOUT_MILLIS);
+  }
+
   /**
    * Stub a mock of the URLConnection for the given url and queries 
    * so that when a URL is created from the url + queries given,
@@ -364,7 +477,7 @@ public final class DatamuseRequestClientTest {
    * @param queries the quer(ies) to send to that url
    * @param response the response to return from that query
    */
-  private void stubURLConnection(String url, String queries, String response) {
+  private URLConnection stubURLConnection(String url, String queries, String response) {
     URLConnection urlConnection = mock(URLConnection.class);
 
     try {
@@ -381,6 +494,8 @@ public final class DatamuseRequestClientTest {
     } catch(IOException exception) { 
       exception.printStackTrace(); 
     };
+
+    return urlConnection;
   }
 
   /**
@@ -0,0 +1,71 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import static org.mockito.Mockito.*;
+
+import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.sps.story.data.LanguageServiceClientFactory;
+import com.google.sps.story.data.LanguageServiceClientHolder;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Benchmark of per-request latency with and without the LanguageServiceClientHolder, where
+ * each client takes a while to set up (as creating a channel does). Not part of the unit
+ * tests; run it with `mvn test -Pbenchmarks`.
+ */
+@RunWith(JUnit4.class)
+public final class LanguageServiceClientHolderBenchmark {
+  /** simulated time (in milliseconds) to set up a client's channel */
+  private static final long CLIENT_SETUP_MILLIS = 50;
+  /** the number of requests measured */
+  private static final int REQUEST_COUNT = 10;
+
+  /**
+   * Measures the latency of getting a client for each request, with a new client per request
+   * and with the holder.
+   */
+  @Test
+  public void perRequestLatency() throws IOException {
+    LanguageServiceClientFactory slowFactory = () -> {
+      try {
+        Thread.sleep(CLIENT_SETUP_MILLIS);
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+      }
+      return mock(LanguageServiceClient.class);
+    };
+
+    long start = System.nanoTime();
+    for (int i = 0; i < REQUEST_COUNT; i++) {
+      slowFactory.newInstance().close();
+    }
+    long withoutHolderMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    LanguageServiceClientHolder holder = new LanguageServiceClientHolder(slowFactory);
+    start = System.nanoTime();
+    for (int i = 0; i < REQUEST_COUNT; i++) {
+      holder.getClient();
+    }
+    long withHolderMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    System.out.println("per-request latency with holder: " + (withHolderMillis / REQUEST_COUNT)
+        + "ms, without: " + (withoutHolderMillis / REQUEST_COUNT) + "ms");
+  }
+}
@@ -0,0 +1,161 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import static org.mockito.Mockito.*;
+
+import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.sps.story.data.LanguageServiceClientFactory;
+import com.google.sps.story.data.LanguageServiceClientHolder;
+import com.google.sps.story.data.NLServiceClient;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Quality tests for the LanguageServiceClientHolder
+ */
+@RunWith(JUnit4.class)
+public final class LanguageServiceClientHolderTest {
+  /** the number of concurrent requests for a client */
+  private static final int REQUEST_COUNT = 10;
+
+  /** the number of clients created by the factory */
+  private AtomicInteger createdCount;
+  /** the factory used by the holders in these tests */
+  private LanguageServiceClientFactory clientFactory;
+
+  @Before
+  public void setUp() {
+    createdCount = new AtomicInteger(0);
+    clientFactory = () -> {
+      createdCount.incrementAndGet();
+      return mock(LanguageServiceClient.class);
+    };
+  }
+
+  /**
+   * Check that no client is created until one is asked for.
+   */
+  @Test
+  public void createsClientLazily() throws IOException {
+    LanguageServiceClientHolder holder = new LanguageServiceClientHolder(clientFactory);
+    Assert.assertEquals(0, createdCount.get());
+
+    holder.getClient();
+    Assert.assertEquals(1, createdCount.get());
+  }
+
+  /**
+   * Check that the same client is handed out on every call.
+   */
+  @Test
+  public void reusesClient() throws IOException {
+    LanguageServiceClientHolder holder = new LanguageServiceClientHolder(clientFactory);
+
+    LanguageServiceClient first = holder.getClient();
+    LanguageServiceClient second = holder.getClient();
+
+    Assert.assertSame(first, second);
+    Assert.assertEquals(1, createdCount.get());
+  }
+
+  /**
+   * Check that a client which has been shut down is replaced with a new one.
+   */
+  @Test
+  public void replacesUnhealthyClient() throws IOException {
+    LanguageServiceClientHolder holder = new LanguageServiceClientHolder(clientFactory);
+
+    LanguageServiceClient first = holder.getClient();
+    when(first.isShutdown()).thenReturn(true);
+    LanguageServiceClient second = holder.getClient();
+
+    Assert.assertNotSame(first, second);
+    Assert.assertEquals(2, createdCount.get());
+    verify(first, times(1)).close();
+  }
+
+  /**
+   * Check that shutting down the holder shuts down its client and
+   * that no more clients are handed out afterwards.
+   */
+  @Test(expected = IllegalStateException.class)
+  public void shutdownClosesClient() throws IOException, InterruptedException {
+    LanguageServiceClientHolder holder = new LanguageServiceClientHolder(clientFactory);
+    LanguageServiceClient client = holder.getClient();
+    when(client.awaitTermination(anyLong(), any(TimeUnit.class))).thenReturn(true);
+
+    holder.shutdown();
+
+    verify(client, times(1)).shutdown();
+    verify(client, never()).shutdownNow();
+    holder.getClient();
+  }
+
+  /**
+   * Check that closing an NLServiceClient built on its own client still
+   * closes that client (only the shared client is left open).
+   */
+  @Test
+  public void nlServiceClientClosesOwnedClient() {
+    LanguageServiceClient ownedClient = mock(LanguageServiceClient.class);
+    new NLServiceClient(ownedClient).close();
+
+    verify(ownedClient, times(1)).close();
+  }
+
+  /**
+   * Check that concurrent requests all share the one client, so its channel is only
+   * set up once.
+   */
+  @Test
+  public void concurrentRequestsShareOneClient() throws Exception {
+    LanguageServiceClientHolder holder = new LanguageServiceClientHolder(clientFactory);
+    ExecutorService executor = Executors.newFixedThreadPool(REQUEST_COUNT);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<LanguageServiceClient>> requests = new ArrayList<Future<LanguageServiceClient>>();
+
+    try {
+      for (int i = 0; i < REQUEST_COUNT; i++) {
+        requests.add(executor.submit(() -> {
+          start.await();
+          return holder.getClient();
+        }));
+      }
+      start.countDown();
+
+      LanguageServiceClient client = requests.get(0).get();
+      for (Future<LanguageServiceClient> request : requests) {
+        Assert.assertSame(client, request.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Assert.assertEquals(1, createdCount.get());
+  }
+}
@@ -18,11 +18,13 @@ import static org.mockito.Mockito.*;
 
 import com.google.cloud.language.v1.AnalyzeSyntaxResponse;
 import com.google.cloud.language.v1.Document;
+import com.google.cloud.language.v1.EncodingType;
 import com.google.cloud.language.v1.LanguageServiceClient;
 import com.google.cloud.language.v1.PartOfSpeech;
 import com.google.cloud.language.v1.PartOfSpeech.Form;
 import com.google.cloud.language.v1.PartOfSpeech.Proper;
 import com.google.cloud.language.v1.PartOfSpeech.Tag;
+import com.google.cloud.language.v1.TextSpan;
 import com.google.cloud.language.v1.Token;
 import com.google.sps.story.data.NLServiceClient;
 import com.google.sps.story.data.WordType;
@@ -34,6 +36,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -376,6 +382,273 @@ public final class NLServiceClientTest {
     Assert.assertEquals(unusableWords, groupedWords.get(WordType.UNUSABLE));
   }
 
+  /**
+   * Check that concurrent classification groups words exactly like
+   * sequential classification (same keys and same order within each list).
+   */
+  @Test
+  public void concurrentMatchesSequential() {
+    Map<String, PartOfSpeech> desiredReturns = new HashMap<String, PartOfSpeech>();
+    List<String> inputs = new ArrayList<String>();
+
+    inputs.addAll(Arrays.asList(MULTIWORD_INPUTS));
+
+    for (String noun: NOUNS) {
+      desiredReturns.put(noun, buildPartOfSpeech(WordType.NOUN));
+      inputs.add(noun);
+    }
+
+    for (String properNoun: PROPER_NOUNS) {
+      desiredReturns.put(properNoun, buildPartOfSpeech(WordType.PROPER_NOUN));
+      inputs.add(properNoun);
+    }
+
+    for (String adjective: ADJECTIVES) {
+      desiredReturns.put(adjective, buildPartOfSpeech(WordType.ADJECTIVE));
+      inputs.add(adjective);
+    }
+
+    for (String gerund: GERUNDS) {
+      addGerund(desiredReturns, gerund);
+      inputs.add(gerund);
+    }
+
+    NLServiceClient sequentialClient = new NLServiceClient(createMockLSClient(desiredReturns));
+    Map<WordType, List<String>> expected = sequentialClient.groupByWordType(inputs);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    NLServiceClient concurrentClient = new NLServiceClient(createMockLSClient(desiredReturns));
+    concurrentClient.enableConcurrentClassification(executor, 1000);
+    Map<WordType, List<String>> actual = concurrentClient.groupByWordType(inputs);
+    executor.shutdown();
+
+    Assert.assertEquals(expected, actual);
+  }
+
+  /**
+   * Check that with injected latency on every NL API call, concurrent classification
+   * of ten words takes close to the time of a single word's calls, not ten times it.
+   */
+  @Test
+  public void concurrentWallClockCloseToSingleCall() {
+    final long LATENCY_MILLIS = 200;
+    final int WORD_COUNT = 10;
+
+    Map<String, PartOfSpeech> desiredReturns = new HashMap<String, PartOfSpeech>();
+    List<String> inputs = new ArrayList<String>();
+
+    for (int i = 0; i < WORD_COUNT; i++) {
+      String noun = "noun" + i;
+      desiredReturns.put(noun, buildPartOfSpeech(WordType.NOUN));
+      inputs.add(noun);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(WORD_COUNT);
+    NLServiceClient client =
+        new NLServiceClient(createMockLSClient(desiredReturns, LATENCY_MILLIS));
+    client.enableConcurrentClassification(executor, 5000);
+
+    long start = System.currentTimeMillis();
+    Map<WordType, List<String>> groupedWords = client.groupByWordType(inputs);
+    long elapsed = System.currentTimeMillis() - start;
+    executor.shutdown();
+
+    Assert.assertEquals(inputs, groupedWords.get(WordType.NOUN));
+    // sequentially this would take WORD_COUNT * LATENCY_MILLIS
+    Assert.assertTrue("took " + elapsed + "ms", elapsed < 3 * LATENCY_MILLIS);
+  }
+
+  /**
+   * Check that a word whose classification misses the deadline is grouped
+   * as unusable instead of blocking the whole grouping.
+   */
+  @Test
+  public void concurrentDeadlineMarksUnusable() {
+    final String NOUN = "person";
+
+    Map<String, PartOfSpeech> desiredReturns = new HashMap<String, PartOfSpeech>();
+    desiredReturns.put(NOUN, buildPartOfSpeech(WordType.NOUN));
+
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    NLServiceClient client = new NLServiceClient(createMockLSClient(desiredReturns, 1000));
+    client.enableConcurrentClassification(executor, 50);
+
+    Map<WordType, List<String>> groupedWords = client.groupByWordType(Arrays.asList(NOUN));
+    executor.shutdownNow();
+
+    Assert.assertEquals(1, groupedWords.keySet().size());
+    Assert.assertEquals(Arrays.asList(NOUN), groupedWords.get(WordType.UNUSABLE));
+  }
+
+  /**
+   * Check that the deadline bounds the wait for all of the words together,
+   * rather than starting over for each word.
+   */
+  @Test
+  public void concurrentDeadlineCoversAllWords() {
+    final long DEADLINE_MILLIS = 100;
+    final int WORD_COUNT = 5;
+
+    Map<String, PartOfSpeech> desiredReturns = new HashMap<String, PartOfSpeech>();
+    List<String> inputs = new ArrayList<String>();
+
+    for (int i = 0; i < WORD_COUNT; i++) {
+      String noun = "noun" + i;
+      desiredReturns.put(noun, buildPartOfSpeech(WordType.NOUN));
+      inputs.add(noun);
+    }
+
+    // one slow word at a time, so none of them is classified by the deadline
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    NLServiceClient client = new NLServiceClient(createMockLSClient(desiredReturns, 1000));
+    client.enableConcurrentClassification(executor, DEADLINE_MILLIS);
+
+    long start = System.currentTimeMillis();
+    Map<WordType, List<String>> groupedWords = client.groupByWordType(inputs);
+    long elapsed = System.currentTimeMillis() - start;
+    executor.shutdownNow();
+
+    Assert.assertEquals(inputs, groupedWords.get(WordType.UNUSABLE));
+    // a deadline for each word would wait WORD_COUNT * DEADLINE_MILLIS
+    Assert.assertTrue("took " + elapsed + "ms", elapsed < (WORD_COUNT - 1) * DEADLINE_MILLIS);
+  }
+
+  /**
+   * Check that an exception thrown if concurrent classification
+   * is enabled with a null executor.
+   */
+  @Test (expected = IllegalArgumentException.class)
+  public void concurrentNullExecutor() {
+    NLServiceClient client = new NLServiceClient(createMockLSClient(new HashMap<>()));
+    client.enableConcurrentClassification(null, 1000);
+  }
+
+  /**
+   * Check that batch classification groups words exactly like
+   * sequential classification.
+   */
+  @Test
+  public void batchMatchesSequential() {
+    Map<String, PartOfSpeech> desiredReturns = new HashMap<String, PartOfSpeech>();
+    List<String> inputs = new ArrayList<String>();
+
+    inputs.addAll(Arrays.asList(MULTIWORD_INPUTS));
+    inputs.addAll(Arrays.asList(WHITESPACE_INPUTS));
+
+    for (String noun: NOUNS) {
+      desiredReturns.put(noun, buildPartOfSpeech(WordType.NOUN));
+      inputs.add(noun);
+    }
+
+    for (String properNoun: PROPER_NOUNS) {
+      desiredReturns.put(properNoun, buildPartOfSpeech(WordType.PROPER_NOUN));
+      inputs.add(properNoun);
+    }
+
+    for (String adjective: ADJECTIVES) {
+      desiredReturns.put(adjective, buildPartOfSpeech(WordType.ADJECTIVE));
+      inputs.add(adjective);
+    }
+
+    for (String gerund: GERUNDS) {
+      addGerund(desiredReturns, gerund);
+      inputs.add(gerund);
+    }
+
+    // ends in "ing" but isn't a verb when paired with "is"
+    desiredReturns.put("swing", buildPartOfSpeech(WordType.NOUN));
+    inputs.add("swing");
+
+    NLServiceClient sequentialClient = new NLServiceClient(createMockLSClient(desiredReturns));
+    Map<WordType, List<String>> expected = sequentialClient.groupByWordType(inputs);
+
+    NLServiceClient batchClient = new NLServiceClient(createMockBatchLSClient(desiredReturns));
+    batchClient.enableBatchClassification();
+    Map<WordType, List<String>> actual = batchClient.groupByWordType(inputs);
+
+    Assert.assertEquals(expected, actual);
+  }
+
+  /**
+   * Check that batch classification makes one call for all words when none
+   * of them could be gerunds, and no calls per word.
+   */
+  @Test
+  public void batchMakesOneCall() {
+    Map<String, PartOfSpeech> desiredReturns = new HashMap<String, PartOfSpeech>();
+    List<String> inputs = new ArrayList<String>();
+
+    for (String noun: NOUNS) {
+      desiredReturns.put(noun, buildPartOfSpeech(WordType.NOUN));
+      inputs.add(noun);
+    }
+
+    for (String adjective: ADJECTIVES) {
+      desiredReturns.put(adjective, buildPartOfSpeech(WordType.ADJECTIVE));
+      inputs.add(adjective);
+    }
+
+    LanguageServiceClient mockClient = createMockBatchLSClient(desiredReturns);
+    NLServiceClient client = new NLServiceClient(mockClient);
+    client.enableBatchClassification();
+    client.groupByWordType(inputs);
+
+    verify(mockClient, times(1)).analyzeSyntax(any(Document.class), any(EncodingType.class));
+    verify(mockClient, never()).analyzeSyntax(any(Document.class));
+  }
+
+  /**
+   * Check that batch classification checks all gerunds together
+   * in one extra call.
+   */
+  @Test
+  public void batchGerundsMakeTwoCalls() {
+    Map<String, PartOfSpeech> desiredReturns = new HashMap<String, PartOfSpeech>();
+
+    for (String gerund: GERUNDS) {
+      addGerund(desiredReturns, gerund);
+    }
+
+    LanguageServiceClient mockClient = createMockBatchLSClient(desiredReturns);
+    NLServiceClient client = new NLServiceClient(mockClient);
+    client.enableBatchClassification();
+    Map<WordType, List<String>> groupedWords = client.groupByWordType(Arrays.asList(GERUNDS));
+
+    verify(mockClient, times(2)).analyzeSyntax(any(Document.class), any(EncodingType.class));
+    verify(mockClient, never()).analyzeSyntax(any(Document.class));
+    Assert.assertEquals(Arrays.asList(GERUNDS), groupedWords.get(WordType.GERUND));
+  }
+
+  /**
+   * Check that a word which is split into several tokens in the batch document
+   * is classified with its own call, and the other words aren't.
+   */
+  @Test
+  public void batchAmbiguousWordFallsBack() {
+    final String SPLIT_WORD = "t-shirt";
+
+    Map<String, PartOfSpeech> desiredReturns = new HashMap<String, PartOfSpeech>();
+    List<String> inputs = new ArrayList<String>();
+
+    for (String noun: NOUNS) {
+      desiredReturns.put(noun, buildPartOfSpeech(WordType.NOUN));
+      inputs.add(noun);
+    }
+
+    desiredReturns.put(SPLIT_WORD, buildPartOfSpeech(WordType.NOUN));
+    inputs.add(1, SPLIT_WORD);
+
+    LanguageServiceClient mockClient = createMockBatchLSClient(desiredReturns);
+    NLServiceClient client = new NLServiceClient(mockClient);
+    client.enableBatchClassification();
+    Map<WordType, List<String>> groupedWords = client.groupByWordType(inputs);
+
+    ArgumentCaptor<Document> documentCaptor = ArgumentCaptor.forClass(Document.class);
+    verify(mockClient, times(1)).analyzeSyntax(documentCaptor.capture());
+    Assert.assertEquals(SPLIT_WORD, documentCaptor.getValue().getContent());
+    Assert.assertEquals(inputs, groupedWords.get(WordType.NOUN));
+  }
+
   /** 
    * Add the word as a gerund to the given map.
    * 
@@ -427,10 +700,28 @@ public final class NLServiceClientTest {
    * @return the mocked version of LanguageServiceClient
    */
   private LanguageServiceClient createMockLSClient(Map<String, PartOfSpeech> desiredReturns) {
+    return createMockLSClient(desiredReturns, 0);
+  }
+
+  /**
+   * Sets up a mock version of the LanguageServiceClient that will return
+   * canned PartOfSpeech values for words passed in as keys in the
+   * desiredReturns map, after sleeping for the given latency on every call.
+   *
+   * @param desiredReturns the canned values we want the mock client to return
+   * @param latencyMillis how long each call to analyzeSyntax should take
+   * @return the mocked version of LanguageServiceClient
+   */
+  private LanguageServiceClient createMockLSClient(
+      Map<String, PartOfSpeech> desiredReturns, long latencyMillis) {
     LanguageServiceClient mockClient = mock(LanguageServiceClient.class);
 
     when(mockClient.analyzeSyntax(any(Document.class))).thenAnswer(new Answer() {
-      public Object answer(InvocationOnMock invocation) {
+      public Object answer(InvocationOnMock invocation) throws InterruptedException {
+        if (latencyMillis > 0) {
+          Thread.sleep(latencyMillis);
+        }
+
         Object[] args = invocation.getArguments();
 
         Document document = (Document) args[0];
@@ -462,4 +753,46 @@ public final class NLServiceClientTest {
 
     return mockClient;
   }
+
+  /**
+   * Sets up a mock version of the LanguageServiceClient that supports both
+   * single-word documents (as in createMockLSClient) and batch documents. For batch
+   * documents, the text is split into word and punctuation tokens with their offsets,
+   * so a word with a hyphen is split into several tokens like the real API would.
+   *
+   * @param desiredReturns the canned values we want the mock client to return
+   * @return the mocked version of LanguageServiceClient
+   */
+  private LanguageServiceClient createMockBatchLSClient(Map<String, PartOfSpeech> desiredReturns) {
+    LanguageServiceClient mockClient = createMockLSClient(desiredReturns);
+
+    when(mockClient.analyzeSyntax(any(Document.class), any(EncodingType.class)))
+        .thenAnswer(new Answer() {
+      public Object answer(InvocationOnMock invocation) {
+        Document document = (Document) invocation.getArguments()[0];
+        Matcher matcher = Pattern.compile("\\w+|[^\\w\\s]").matcher(document.getContent());
+
+        List<Token> tokens = new ArrayList<Token>();
+
+        while (matcher.find()) {
+          String word = matcher.group();
+          PartOfSpeech partOfSpeech = PartOfSpeech.newBuilder().setTag(Tag.UNKNOWN).build();
+
+          if (desiredReturns.containsKey(word)) {
+            partOfSpeech = desiredReturns.get(word);
+          } else if (word.equals(".")) {
+            partOfSpeech = PartOfSpeech.newBuilder().setTag(Tag.PUNCT).build();
+          }
+
+          TextSpan text =
+              TextSpan.newBuilder().setContent(word).setBeginOffset(matcher.start()).build();
+          tokens.add(Token.newBuilder().setText(text).setPartOfSpeech(partOfSpeech).build());
+        }
+
+        return AnalyzeSyntaxResponse.newBuilder().addAllTokens(tokens).build();
+      }
+    });
+
+    return mockClient;
+  }
 }
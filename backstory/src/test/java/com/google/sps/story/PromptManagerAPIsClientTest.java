@@ -26,6 +26,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -56,9 +57,10 @@ public final class PromptManagerAPIsClientTest {
 
     PromptManagerAPIsClient promptManagerAPIsClient = new PromptManagerAPIsClient();
 
-    // Inject mock API instance
+    // Inject mock API instance (without a cache, every call goes to the API)
     NLServiceClient mockNLServiceClient = mock(NLServiceClient.class);
     promptManagerAPIsClient.setNLServiceClient(mockNLServiceClient);
+    promptManagerAPIsClient.setWordTypeCache(null);
 
     // Stub API Call to return null map
     when(mockNLServiceClient.groupByWordType(anyList())).thenReturn(sampleOutputMap);
@@ -164,4 +166,75 @@ public final class PromptManagerAPIsClientTest {
     // Ensure canned API output is returned.
     Assert.assertTrue(containsCheck);
   }
+
+  @Test
+  /**
+   * Ensure groupByWordType() only classifies words missing from the cache, and
+   * gives the same groupings whether or not words came from the cache.
+   *
+   */
+  public void groupByWordTypeUsesCache() throws IOException {
+    WordTypeCache wordTypeCache =
+        new WordTypeCache(WordTypeCache.DEFAULT_MAX_SIZE, WordTypeCache.DEFAULT_TTL_MILLIS);
+    Map<String, WordType> cachedWordTypes = new HashMap<String, WordType>();
+    cachedWordTypes.put("Dog", WordType.NOUN);
+    wordTypeCache.putAll(cachedWordTypes);
+
+    PromptManagerAPIsClient promptManagerAPIsClient = new PromptManagerAPIsClient();
+    promptManagerAPIsClient.setWordTypeCache(wordTypeCache);
+
+    // Inject mock API instance which classifies the words that miss the cache
+    NLServiceClient mockNLServiceClient = mock(NLServiceClient.class);
+    promptManagerAPIsClient.setNLServiceClient(mockNLServiceClient);
+
+    Map<WordType, List<String>> classifiedMisses = new HashMap<WordType, List<String>>();
+    classifiedMisses.put(WordType.MULTIWORD_NOUN, new ArrayList<String>(Arrays.asList("blue sky")));
+    classifiedMisses.put(WordType.NOUN, new ArrayList<String>(Arrays.asList("Tree")));
+    when(mockNLServiceClient.groupByWordType(anyList())).thenReturn(classifiedMisses);
+
+    Map<WordType, List<String>> actualOutput =
+        promptManagerAPIsClient.groupByWordType(Arrays.asList("Dog", "blue sky", "Tree"));
+
+    // Only the multiword noun and the uncached word are sent to the API
+    verify(mockNLServiceClient).groupByWordType(Arrays.asList("blue sky", "Tree"));
+    Assert.assertEquals(Arrays.asList("Dog", "Tree"), actualOutput.get(WordType.NOUN));
+    Assert.assertEquals(Arrays.asList("blue sky"), actualOutput.get(WordType.MULTIWORD_NOUN));
+
+    // Now every single word is cached, so the API isn't needed
+    actualOutput = promptManagerAPIsClient.groupByWordType(Arrays.asList("Tree", "Dog"));
+
+    verify(mockNLServiceClient, times(1)).groupByWordType(anyList());
+    Assert.assertEquals(Arrays.asList("Tree", "Dog"), actualOutput.get(WordType.NOUN));
+  }
+
+  @Test
+  /**
+   * Ensure fetchRelatedAdjectivesAsync() calls the asynchronous DatamuseRequestClient method
+   * and completes with its output.
+   *
+   */
+  public void fetchRelatedAdjectivesAsyncCallsAPI() throws Exception {
+    String inputWord = "";
+    int inputCap = 1;
+    String[] sampleOutput = {"String One", "String two"};
+
+    PromptManagerAPIsClient promptManagerAPIsClient = new PromptManagerAPIsClient();
+
+    // Inject mock API instance
+    DatamuseRequestClient mockDatamuseRequestClient = mock(DatamuseRequestClient.class);
+    promptManagerAPIsClient.setDatamuseRequestClient(mockDatamuseRequestClient);
+
+    when(mockDatamuseRequestClient.fetchRelatedWordsAsync(anyString(), any(), anyInt(), anyString()))
+        .thenReturn(CompletableFuture.completedFuture(sampleOutput));
+
+    String[] actualOutput =
+        promptManagerAPIsClient.fetchRelatedAdjectivesAsync(inputWord, inputCap, false).get();
+
+    // Ensure proper API Call
+    verify(mockDatamuseRequestClient)
+        .fetchRelatedWordsAsync(
+            eq(inputWord), eq(DatamuseRelatedWordType.ADJECTIVE), eq(inputCap), anyString());
+    // Ensure canned API output is returned.
+    Assert.assertArrayEquals(sampleOutput, actualOutput);
+  }
 }
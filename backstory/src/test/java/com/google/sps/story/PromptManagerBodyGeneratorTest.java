@@ -17,8 +17,11 @@ import static org.mockito.Mockito.*;
 
 import com.google.sps.APINotAvailableException;
 import com.google.sps.story.data.*;
+import java.io.File;
 import java.io.IOException;
 import java.lang.Exception;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -26,9 +29,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.Mock;
@@ -48,6 +54,8 @@ public final class PromptManagerBodyGeneratorTest {
   private final String GERUND_WALKING = "walking";
   private final String[] SAMPLE_GENERATED_ADJECTIVES = {"happy", "large"};
 
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private List<String> inputList;
   private List<String> expectedList;
   @Before
@@ -93,8 +101,8 @@ public final class PromptManagerBodyGeneratorTest {
 
     // Stub API calls with canned classification and adjectives
     when(mockedAPIsClient.groupByWordType(anyList())).thenReturn(classifiedInput);
-    when(mockedAPIsClient.fetchRelatedAdjectives(anyString(), anyInt(), anyBoolean()))
-        .thenReturn(SAMPLE_GENERATED_ADJECTIVES);
+    when(mockedAPIsClient.fetchRelatedAdjectivesAsync(anyString(), anyInt(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(SAMPLE_GENERATED_ADJECTIVES));
     String outputPrompt = PromptManagerBodyGenerator.generateBody();
 
     // Expected to use first available nouns and gerund.
@@ -181,6 +189,168 @@ public final class PromptManagerBodyGeneratorTest {
     Assert.assertTrue(containsCheck);
   }
 
+  @Test
+  /**
+   * Verifies the exact non-random output of the template with gerunds: each noun gets
+   * the number of adjectives in front of its tag and every tag is filled in order.
+   */
+  public void descriptiveMethodFillsEverySlot() throws IOException {
+    inputList.add(NOUN_DOG);
+    inputList.add(NOUN_CAT);
+    inputList.add(NOUN_TREE);
+
+    PromptManagerBodyGenerator PromptManagerBodyGenerator =
+        new PromptManagerBodyGenerator(inputList, false);
+    PromptManagerAPIsClient mockedAPIsClient = mock(PromptManagerAPIsClient.class);
+    PromptManagerBodyGenerator.setAPIsClient(mockedAPIsClient);
+
+    Map<WordType, List<String>> classifiedInput = new HashMap<WordType, List<String>>();
+    classifiedInput.put(WordType.NOUN, inputList);
+    classifiedInput.put(WordType.GERUND, new ArrayList<String>(Arrays.asList(GERUND_RUNNING)));
+
+    when(mockedAPIsClient.groupByWordType(anyList())).thenReturn(classifiedInput);
+    when(mockedAPIsClient.fetchRelatedAdjectivesAsync(anyString(), anyInt(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(SAMPLE_GENERATED_ADJECTIVES));
+
+    String outputPrompt = PromptManagerBodyGenerator.generateBody();
+
+    verify(mockedAPIsClient).fetchRelatedAdjectivesAsync(NOUN_DOG, 2, false);
+    verify(mockedAPIsClient).fetchRelatedAdjectivesAsync(NOUN_CAT, 1, false);
+    verify(mockedAPIsClient).fetchRelatedAdjectivesAsync(NOUN_TREE, 1, false);
+    Assert.assertEquals("there was a happy large dog running alongside a happy cat. "
+            + "A happy tree was also present, quite an interesting scene.",
+        outputPrompt);
+  }
+
+  @Test
+  /**
+   * Verifies that adjectives for every noun in the template are requested
+   * before any of them are used, with two adjectives for the double-adjective noun.
+   */
+  public void descriptiveMethodRequestsAdjectivesUpFront() throws IOException {
+    inputList.add(NOUN_DOG);
+    inputList.add(NOUN_CAT);
+    inputList.add(NOUN_TREE);
+
+    PromptManagerBodyGenerator PromptManagerBodyGenerator =
+        new PromptManagerBodyGenerator(inputList, false);
+    PromptManagerAPIsClient mockedAPIsClient = mock(PromptManagerAPIsClient.class);
+    PromptManagerBodyGenerator.setAPIsClient(mockedAPIsClient);
+
+    Map<WordType, List<String>> classifiedInput = new HashMap<WordType, List<String>>();
+    classifiedInput.put(WordType.NOUN, inputList);
+
+    // Leave the adjectives incomplete until all of them have been requested.
+    CompletableFuture<String[]> adjectives = new CompletableFuture<String[]>();
+    when(mockedAPIsClient.groupByWordType(anyList())).thenReturn(classifiedInput);
+    when(mockedAPIsClient.fetchRelatedAdjectivesAsync(anyString(), anyInt(), anyBoolean()))
+        .thenAnswer(invocation -> {
+          if (NOUN_TREE.equals(invocation.getArgument(0))) {
+            adjectives.complete(SAMPLE_GENERATED_ADJECTIVES);
+          }
+          return adjectives;
+        });
+
+    String outputPrompt = PromptManagerBodyGenerator.generateBody();
+
+    // First intro template: "a <adj> <noun> as well as a <adj> <noun> ..." + second template
+    verify(mockedAPIsClient).fetchRelatedAdjectivesAsync(NOUN_DOG, 1, false);
+    verify(mockedAPIsClient).fetchRelatedAdjectivesAsync(NOUN_CAT, 1, false);
+    verify(mockedAPIsClient).fetchRelatedAdjectivesAsync(NOUN_TREE, 1, false);
+    verify(mockedAPIsClient, never()).fetchRelatedAdjectives(anyString(), anyInt(), anyBoolean());
+    Assert.assertTrue(outputPrompt.startsWith("a happy dog as well as a happy cat"));
+  }
+
+  @Test
+  /**
+   * Verifies that a noun slot without adjectives is filled with its noun
+   * without requesting adjectives for it.
+   */
+  public void descriptiveMethodFillsBareNoun() throws IOException {
+    inputList.add(NOUN_DOG);
+    inputList.add(NOUN_CAT);
+    inputList.add(NOUN_TREE);
+
+    PromptManagerBodyGenerator PromptManagerBodyGenerator =
+        new PromptManagerBodyGenerator(inputList, false);
+    PromptManagerAPIsClient mockedAPIsClient = mock(PromptManagerAPIsClient.class);
+    PromptManagerBodyGenerator.setAPIsClient(mockedAPIsClient);
+    PromptManagerBodyGenerator.setTemplateStore(
+        createTemplateStore("[intro]", "a <noun> met a <adj> <noun>.", "[second]", "<noun> too."));
+
+    Map<WordType, List<String>> classifiedInput = new HashMap<WordType, List<String>>();
+    classifiedInput.put(WordType.NOUN, inputList);
+
+    when(mockedAPIsClient.groupByWordType(anyList())).thenReturn(classifiedInput);
+    when(mockedAPIsClient.fetchRelatedAdjectivesAsync(anyString(), anyInt(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(SAMPLE_GENERATED_ADJECTIVES));
+
+    String outputPrompt = PromptManagerBodyGenerator.generateBody();
+
+    verify(mockedAPIsClient).fetchRelatedAdjectivesAsync(NOUN_CAT, 1, false);
+    verify(mockedAPIsClient, times(1))
+        .fetchRelatedAdjectivesAsync(anyString(), anyInt(), anyBoolean());
+    Assert.assertEquals("a dog met a happy cat. tree too.", outputPrompt);
+  }
+
+  @Test
+  /**
+   * Verifies that templates with more noun slots than there are nouns are skipped,
+   * so the introduction leaves a noun for the second sentence.
+   */
+  public void descriptiveMethodSkipsTemplatesWithTooManyNouns() throws IOException {
+    inputList.add(NOUN_DOG);
+    inputList.add(NOUN_CAT);
+    inputList.add(NOUN_TREE);
+
+    PromptManagerBodyGenerator PromptManagerBodyGenerator =
+        new PromptManagerBodyGenerator(inputList, false);
+    PromptManagerAPIsClient mockedAPIsClient = mock(PromptManagerAPIsClient.class);
+    PromptManagerBodyGenerator.setAPIsClient(mockedAPIsClient);
+    PromptManagerBodyGenerator.setTemplateStore(createTemplateStore("[intro]",
+        "<adj> <noun>, <adj> <noun> and <adj> <noun>.", "<adj> <noun> and <adj> <noun>.",
+        "[second]", "<adj> <noun> and <adj> <noun> too.", "<adj> <noun> too."));
+
+    Map<WordType, List<String>> classifiedInput = new HashMap<WordType, List<String>>();
+    classifiedInput.put(WordType.NOUN, inputList);
+
+    when(mockedAPIsClient.groupByWordType(anyList())).thenReturn(classifiedInput);
+    when(mockedAPIsClient.fetchRelatedAdjectivesAsync(anyString(), anyInt(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(SAMPLE_GENERATED_ADJECTIVES));
+
+    String outputPrompt = PromptManagerBodyGenerator.generateBody();
+
+    Assert.assertEquals("happy dog and happy cat. happy tree too.", outputPrompt);
+  }
+
+  @Test
+  /**
+   * Verifies that the list method is used when Datamuse can't be reached.
+   */
+  public void descriptiveMethodFallsBackToListOnNetworkFailure() throws IOException {
+    inputList.add(NOUN_DOG);
+    inputList.add(NOUN_CAT);
+    inputList.add(NOUN_TREE);
+
+    PromptManagerBodyGenerator PromptManagerBodyGenerator =
+        new PromptManagerBodyGenerator(inputList, false);
+    PromptManagerAPIsClient mockedAPIsClient = mock(PromptManagerAPIsClient.class);
+    PromptManagerBodyGenerator.setAPIsClient(mockedAPIsClient);
+
+    Map<WordType, List<String>> classifiedInput = new HashMap<WordType, List<String>>();
+    classifiedInput.put(WordType.NOUN, inputList);
+
+    CompletableFuture<String[]> failed = new CompletableFuture<String[]>();
+    failed.completeExceptionally(new APINotAvailableException("Datamuse is down."));
+    when(mockedAPIsClient.groupByWordType(anyList())).thenReturn(classifiedInput);
+    when(mockedAPIsClient.fetchRelatedAdjectivesAsync(anyString(), anyInt(), anyBoolean()))
+        .thenReturn(failed);
+
+    String outputPrompt = PromptManagerBodyGenerator.generateBody();
+
+    Assert.assertTrue(outputPrompt.startsWith("dog, cat, as well as a tree "));
+  }
+
   @Test
   /**
    * Verifies the full input method of prompt generation using
@@ -218,8 +388,8 @@ public final class PromptManagerBodyGeneratorTest {
 
     // Stub API calls to output canned classification and adjectives
     when(mockedAPIsClient.groupByWordType(anyList())).thenReturn(classifiedInput);
-    when(mockedAPIsClient.fetchRelatedAdjectives(anyString(), anyInt(), anyBoolean()))
-        .thenReturn(SAMPLE_GENERATED_ADJECTIVES);
+    when(mockedAPIsClient.fetchRelatedAdjectivesAsync(anyString(), anyInt(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(SAMPLE_GENERATED_ADJECTIVES));
 
     String outputPrompt = PromptManagerBodyGenerator.generateBody();
 
@@ -258,4 +428,16 @@ public final class PromptManagerBodyGeneratorTest {
     // Ensure real string returned.
     Assert.assertNotNull(actual);
   }
+
+  /**
+   * Creates a template store from the given lines.
+   *
+   * @param lines Lines of the template file.
+   * @return StoryTemplateStore with the given templates.
+   */
+  private StoryTemplateStore createTemplateStore(String... lines) throws IOException {
+    File templateFile = temporaryFolder.newFile();
+    Files.write(templateFile.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    return new StoryTemplateStore(templateFile.toURI().toURL());
+  }
 }
@@ -0,0 +1,276 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import com.google.sps.story.data.StoryEndpoint;
+import com.google.sps.story.data.StoryEndpointPool;
+import com.google.sps.story.data.StoryEndpointSelectors;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Quality tests for StoryEndpointPool, its endpoints and selectors.
+ */
+@RunWith(JUnit4.class)
+public final class StoryEndpointPoolTest {
+  /** the URLs of the endpoints to use for tests */
+  private static final List<String> URLS =
+      Arrays.asList("https://gen-1.example", "https://gen-2.example", "https://gen-3.example");
+  /** the number of consecutive failures which eject an endpoint in tests */
+  private static final int FAILURE_THRESHOLD = 2;
+  /** the cooldown to use for tests */
+  private static final long COOLDOWN_MILLIS = 1000;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  /** the fake current time in milliseconds */
+  private AtomicLong now;
+
+  @Before
+  public void setUp() {
+    now = new AtomicLong(1000);
+  }
+
+  /**
+   * Check that the least outstanding selector avoids busy endpoints.
+   */
+  @Test
+  public void leastOutstandingPicksIdleEndpoint() {
+    StoryEndpointPool pool = newPool(StoryEndpointSelectors.LEAST_OUTSTANDING);
+    List<StoryEndpoint> endpoints = pool.getEndpoints();
+    endpoints.get(0).recordStart();
+    endpoints.get(2).recordStart();
+    endpoints.get(2).recordStart();
+
+    for (int i = 0; i < 20; i++) {
+      Assert.assertSame(endpoints.get(1), pool.select(null));
+    }
+  }
+
+  /**
+   * Check that the EWMA selector prefers the faster endpoint, and tries
+   * endpoints with no measured latency first.
+   */
+  @Test
+  public void ewmaPicksFastestEndpoint() {
+    StoryEndpointPool pool = newPool(StoryEndpointSelectors.EWMA_LATENCY);
+    List<StoryEndpoint> endpoints = pool.getEndpoints();
+    succeed(endpoints.get(0), 300);
+    succeed(endpoints.get(1), 100);
+
+    Assert.assertSame(endpoints.get(2), pool.select(null));
+
+    succeed(endpoints.get(2), 500);
+
+    Assert.assertSame(endpoints.get(1), pool.select(null));
+    Assert.assertEquals(100, endpoints.get(1).getEwmaLatencyMillis(), 1e-6);
+  }
+
+  /**
+   * Check that the average moves towards new latencies.
+   */
+  @Test
+  public void ewmaTracksLatency() {
+    StoryEndpoint endpoint = newPool(StoryEndpointSelectors.EWMA_LATENCY).getEndpoints().get(0);
+
+    succeed(endpoint, 100);
+    succeed(endpoint, 600);
+
+    Assert.assertEquals(200, endpoint.getEwmaLatencyMillis(), 1e-6);
+    Assert.assertEquals(350, endpoint.getMeanLatencyMillis(), 1e-6);
+  }
+
+  /**
+   * Check that an endpoint is ejected after consecutive failures and
+   * comes back once its cooldown is over.
+   */
+  @Test
+  public void circuitBreakerEjectsAndRestores() {
+    StoryEndpointPool pool = newPool(StoryEndpointSelectors.LEAST_OUTSTANDING);
+    StoryEndpoint failing = pool.getEndpoints().get(0);
+
+    fail(failing);
+    Assert.assertTrue(failing.isAvailable());
+    fail(failing);
+    Assert.assertFalse(failing.isAvailable());
+    Assert.assertEquals(1, failing.getEjectionCount());
+
+    for (int i = 0; i < 20; i++) {
+      Assert.assertNotSame(failing, pool.select(null));
+    }
+
+    now.addAndGet(COOLDOWN_MILLIS);
+    Assert.assertTrue(failing.isAvailable());
+
+    // a single failure after the cooldown ejects it again
+    fail(failing);
+    Assert.assertFalse(failing.isAvailable());
+    Assert.assertEquals(2, failing.getEjectionCount());
+    Assert.assertEquals(1.0, failing.getErrorRate(), 1e-9);
+  }
+
+  /**
+   * Check that a success resets the count of consecutive failures.
+   */
+  @Test
+  public void successClosesCircuitBreaker() {
+    StoryEndpoint endpoint =
+        newPool(StoryEndpointSelectors.LEAST_OUTSTANDING).getEndpoints().get(0);
+
+    fail(endpoint);
+    succeed(endpoint, 10);
+    fail(endpoint);
+
+    Assert.assertTrue(endpoint.isAvailable());
+    Assert.assertEquals(2, endpoint.getErrorCount());
+    Assert.assertEquals(3, endpoint.getRequestCount());
+  }
+
+  /**
+   * Check that a retry avoids the endpoint which just failed, unless it's the only one left.
+   */
+  @Test
+  public void selectAvoidsEndpoint() {
+    StoryEndpointPool pool = newPool(StoryEndpointSelectors.LEAST_OUTSTANDING);
+    List<StoryEndpoint> endpoints = pool.getEndpoints();
+
+    for (int i = 0; i < 20; i++) {
+      Assert.assertNotSame(endpoints.get(0), pool.select(endpoints.get(0)));
+    }
+
+    eject(endpoints.get(1));
+    eject(endpoints.get(2));
+
+    Assert.assertSame(endpoints.get(0), pool.select(endpoints.get(0)));
+  }
+
+  /**
+   * Check that the endpoint which recovers first is used when every endpoint is ejected.
+   */
+  @Test
+  public void allEjectedPicksSoonestRecovery() {
+    StoryEndpointPool pool = newPool(StoryEndpointSelectors.LEAST_OUTSTANDING);
+    List<StoryEndpoint> endpoints = pool.getEndpoints();
+
+    eject(endpoints.get(1));
+    now.addAndGet(10);
+    eject(endpoints.get(0));
+    eject(endpoints.get(2));
+
+    Assert.assertSame(endpoints.get(1), pool.select(null));
+  }
+
+  /**
+   * Check that the URL provider cycles between endpoints of its pool.
+   */
+  @Test
+  public void providerCyclesToAnotherEndpoint() {
+    StoryManagerURLProvider provider =
+        new StoryManagerURLProvider(newPool(StoryEndpointSelectors.LEAST_OUTSTANDING));
+    String firstURL = provider.getCurrentURL();
+
+    provider.cycleURL();
+
+    Assert.assertNotEquals(firstURL, provider.getCurrentURL());
+    Assert.assertTrue(URLS.contains(provider.getCurrentURL()));
+  }
+
+  /**
+   * Check that endpoint files skip comments and empty lines.
+   */
+  @Test
+  public void readsURLsFromFile() throws Exception {
+    Path file = temporaryFolder.newFile("endpoints.txt").toPath();
+    Files.write(file,
+        Arrays.asList("# containers", "", "https://gen-1.example", "  https://gen-2.example  "),
+        StandardCharsets.UTF_8);
+
+    Assert.assertEquals(Arrays.asList("https://gen-1.example", "https://gen-2.example"),
+        StoryEndpointPool.readURLs(file.toUri().toURL()));
+  }
+
+  /**
+   * Check that selectors can be named in configuration.
+   */
+  @Test
+  public void selectorFromName() {
+    Assert.assertEquals(
+        StoryEndpointSelectors.EWMA_LATENCY, StoryEndpointSelectors.fromName("ewma-latency"));
+    Assert.assertEquals(StoryEndpointSelectors.LEAST_OUTSTANDING,
+        StoryEndpointSelectors.fromName("LEAST_OUTSTANDING"));
+  }
+
+  /**
+   * Check that an exception is thrown for a pool with no endpoints.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void emptyPool() {
+    new StoryEndpointPool(Arrays.asList(), StoryEndpointSelectors.LEAST_OUTSTANDING);
+  }
+
+  /**
+   * Creates a pool of the test endpoints using the fake clock.
+   *
+   * @param selector the selector to use
+   * @return the pool
+   */
+  private StoryEndpointPool newPool(StoryEndpointSelectors selector) {
+    return new StoryEndpointPool(URLS, selector, FAILURE_THRESHOLD, COOLDOWN_MILLIS, now::get);
+  }
+
+  /**
+   * Records a successful request to an endpoint.
+   *
+   * @param endpoint the endpoint
+   * @param latencyMillis the latency of the request
+   */
+  private static void succeed(StoryEndpoint endpoint, long latencyMillis) {
+    endpoint.recordStart();
+    endpoint.recordSuccess(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+  }
+
+  /**
+   * Records a failed request to an endpoint.
+   *
+   * @param endpoint the endpoint
+   */
+  private static void fail(StoryEndpoint endpoint) {
+    endpoint.recordStart();
+    endpoint.recordFailure(TimeUnit.MILLISECONDS.toNanos(10));
+  }
+
+  /**
+   * Fails an endpoint until it's ejected.
+   *
+   * @param endpoint the endpoint
+   */
+  private static void eject(StoryEndpoint endpoint) {
+    for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+      fail(endpoint);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import com.google.sps.story.data.StoryHedgingPolicy;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Quality tests for StoryHedgingPolicy
+ */
+@RunWith(JUnit4.class)
+public final class StoryHedgingPolicyTest {
+  /**
+   * Check that the initial delay is used until enough latencies are recorded.
+   */
+  @Test
+  public void initialDelayWithoutSamples() {
+    StoryHedgingPolicy policy = new StoryHedgingPolicy(0.9, 1234, 5000);
+
+    for (int i = 0; i < StoryHedgingPolicy.MIN_SAMPLES - 1; i++) {
+      policy.record(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    Assert.assertEquals(1234, policy.getHedgeDelayMillis());
+  }
+
+  /**
+   * Check that the delay is the configured percentile of recorded latencies.
+   */
+  @Test
+  public void delayIsPercentile() {
+    StoryHedgingPolicy policy = new StoryHedgingPolicy(0.9, 1234, 5000);
+
+    for (int latency = 1; latency <= 100; latency++) {
+      policy.record(TimeUnit.MILLISECONDS.toNanos(latency));
+    }
+
+    Assert.assertEquals(90, policy.getHedgeDelayMillis());
+  }
+
+  /**
+   * Check that only the most recent latencies are kept, and that the delay never
+   * exceeds the deadline.
+   */
+  @Test
+  public void windowKeepsRecentLatencies() {
+    StoryHedgingPolicy policy = new StoryHedgingPolicy(0.5, 0, 5000);
+
+    for (int i = 0; i < StoryHedgingPolicy.WINDOW_SIZE; i++) {
+      policy.record(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    for (int i = 0; i < StoryHedgingPolicy.WINDOW_SIZE; i++) {
+      policy.record(TimeUnit.MILLISECONDS.toNanos(9000));
+    }
+
+    Assert.assertEquals(StoryHedgingPolicy.WINDOW_SIZE, policy.getSampleCount());
+    Assert.assertEquals(5000, policy.getHedgeDelayMillis());
+  }
+
+  /**
+   * Check that an exception is thrown for an invalid percentile.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidPercentile() {
+    new StoryHedgingPolicy(1.5, 0, 5000);
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import static org.mockito.Mockito.*;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.auth.oauth2.IdToken;
+import com.google.auth.oauth2.IdTokenProvider;
+import com.google.common.io.BaseEncoding;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Benchmark of sending requests through a new StoryManagerRequestFactoryImpl each time
+ * (discovering credentials, minting a token and opening a transport per request, as every
+ * story used to) and through one shared factory, using a local stub server in place of the
+ * GPT-2 container. Not part of the unit tests; run it with `mvn test -Pbenchmarks`.
+ */
+@RunWith(JUnit4.class)
+public final class StoryManagerRequestFactoryImplBenchmark {
+  /** the simulated time (in milliseconds) to discover credentials or mint a token */
+  private static final long SIMULATED_SETUP_MILLIS = 20;
+  /** the number of requests sent through each kind of factory */
+  private static final int REQUEST_COUNT = 20;
+  /** the body sent with each request */
+  private static final String REQUEST_BODY = "{\"prefix\":\"HELLO_WORLD\"}";
+
+  /** the stub GPT-2 server */
+  private HttpServer server;
+  /** the URL of the stub server */
+  private String serviceUrl;
+  /** the mocked application credentials */
+  private GoogleCredentials mockCredentials;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      byte[] response = "{\"text\":\"Once upon a time\"}".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, response.length);
+
+      try (OutputStream body = exchange.getResponseBody()) {
+        body.write(response);
+      }
+    });
+    server.start();
+    serviceUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+
+    mockCredentials =
+        mock(GoogleCredentials.class, withSettings().extraInterfaces(IdTokenProvider.class));
+    when(((IdTokenProvider) mockCredentials).idTokenWithAudience(anyString(), any()))
+        .thenAnswer(invocation -> {
+          Thread.sleep(SIMULATED_SETUP_MILLIS);
+          return newIdToken(TimeUnit.HOURS.toMillis(1));
+        });
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  /**
+   * Measures the time to send the requests with a factory per request and with a shared
+   * factory.
+   */
+  @Test
+  public void sharedFactory() throws Exception {
+    long startTime = System.nanoTime();
+
+    for (int i = 0; i < REQUEST_COUNT; i++) {
+      send(new StoryManagerRequestFactoryImpl(this::discoverCredentials, 0));
+    }
+
+    long perRequestNanos = System.nanoTime() - startTime;
+
+    StoryManagerRequestFactoryImpl sharedFactory =
+        new StoryManagerRequestFactoryImpl(this::discoverCredentials, 0);
+    startTime = System.nanoTime();
+
+    for (int i = 0; i < REQUEST_COUNT; i++) {
+      send(sharedFactory);
+    }
+
+    long sharedNanos = System.nanoTime() - startTime;
+
+    System.out.println(String.format("%d requests: %d ms with a factory per request, "
+            + "%d ms with a shared factory",
+        REQUEST_COUNT, TimeUnit.NANOSECONDS.toMillis(perRequestNanos),
+        TimeUnit.NANOSECONDS.toMillis(sharedNanos)));
+  }
+
+  /**
+   * Sends a request to the stub server and reads its response.
+   *
+   * @param factory the factory to build the request with
+   */
+  private void send(StoryManagerRequestFactory factory) throws IOException {
+    HttpResponse response = factory.newInstance(REQUEST_BODY, serviceUrl).execute();
+
+    try {
+      response.parseAsString();
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  /**
+   * Discovers the mocked credentials, taking as long as a lookup would.
+   *
+   * @return the mocked credentials
+   */
+  private GoogleCredentials discoverCredentials() throws IOException {
+    try {
+      Thread.sleep(SIMULATED_SETUP_MILLIS);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+
+    return mockCredentials;
+  }
+
+  /**
+   * Creates an (unsigned) ID token which expires after the given time.
+   *
+   * @param expiresInMillis the time in milliseconds until the token expires
+   * @return the ID token
+   */
+  private static IdToken newIdToken(long expiresInMillis) throws IOException {
+    BaseEncoding base64 = BaseEncoding.base64Url().omitPadding();
+    long expirationSeconds =
+        TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() + expiresInMillis);
+    String header =
+        base64.encode("{\"alg\":\"RS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8));
+    String payload = base64.encode(
+        ("{\"exp\":" + expirationSeconds + "}").getBytes(StandardCharsets.UTF_8));
+
+    return IdToken.create(header + "." + payload + ".c2lnbmF0dXJl");
+  }
+}
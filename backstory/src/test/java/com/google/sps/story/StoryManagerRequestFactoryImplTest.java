@@ -0,0 +1,245 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import static org.mockito.Mockito.*;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.auth.http.HttpTransportFactory;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.auth.oauth2.IdToken;
+import com.google.auth.oauth2.IdTokenProvider;
+import com.google.common.io.BaseEncoding;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for StoryManagerRequestFactoryImpl, using a local stub server in place of the
+ * GPT-2 container.
+ */
+@RunWith(JUnit4.class)
+public final class StoryManagerRequestFactoryImplTest {
+  /** the number of requests sent through each kind of factory */
+  private static final int REQUEST_COUNT = 5;
+  /** the body sent with each request */
+  private static final String REQUEST_BODY = "{\"prefix\":\"HELLO_WORLD\"}";
+
+  /** the stub GPT-2 server */
+  private HttpServer server;
+  /** the URL of the stub server */
+  private String serviceUrl;
+  /** the number of requests the stub server answered with a bearer token */
+  private AtomicInteger authorizedRequests;
+
+  /** the mocked application credentials */
+  private GoogleCredentials mockCredentials;
+  /** the number of times credentials were discovered */
+  private AtomicInteger credentialDiscoveries;
+
+  @Before
+  public void setUp() throws Exception {
+    authorizedRequests = new AtomicInteger();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+
+      if (authorization != null && authorization.startsWith("Bearer ")) {
+        authorizedRequests.incrementAndGet();
+      }
+
+      byte[] response = "{\"text\":\"Once upon a time\"}".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, response.length);
+
+      try (OutputStream body = exchange.getResponseBody()) {
+        body.write(response);
+      }
+    });
+    server.start();
+    serviceUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+
+    credentialDiscoveries = new AtomicInteger();
+    mockCredentials =
+        mock(GoogleCredentials.class, withSettings().extraInterfaces(IdTokenProvider.class));
+    when(((IdTokenProvider) mockCredentials).idTokenWithAudience(anyString(), any()))
+        .thenAnswer(invocation -> newIdToken(TimeUnit.HOURS.toMillis(1)));
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  /**
+   * Check that credentials are discovered once and a token is minted once
+   * for any number of requests to the same service.
+   */
+  @Test
+  public void reusesCredentialsAndToken() throws Exception {
+    StoryManagerRequestFactoryImpl factory =
+        new StoryManagerRequestFactoryImpl(this::discoverCredentials, 0);
+
+    for (int i = 0; i < 3; i++) {
+      send(factory);
+    }
+
+    Assert.assertEquals(1, credentialDiscoveries.get());
+    Assert.assertEquals(3, authorizedRequests.get());
+    verify((IdTokenProvider) mockCredentials, times(1)).idTokenWithAudience(eq(serviceUrl), any());
+  }
+
+  /**
+   * Check that each service URL gets a token for its own audience.
+   */
+  @Test
+  public void tokenPerAudience() throws Exception {
+    StoryManagerRequestFactoryImpl factory =
+        new StoryManagerRequestFactoryImpl(this::discoverCredentials, 0);
+    String otherServiceUrl = serviceUrl + "?replica=2";
+
+    send(factory);
+    factory.newInstance(REQUEST_BODY, otherServiceUrl).execute().disconnect();
+
+    Assert.assertEquals(1, credentialDiscoveries.get());
+    verify((IdTokenProvider) mockCredentials, times(1)).idTokenWithAudience(eq(serviceUrl), any());
+    verify((IdTokenProvider) mockCredentials, times(1))
+        .idTokenWithAudience(eq(otherServiceUrl), any());
+  }
+
+  /**
+   * Check that a token which expires within the refresh-ahead window
+   * is refreshed in the background.
+   */
+  @Test
+  public void refreshesAheadOfExpiry() throws Exception {
+    when(((IdTokenProvider) mockCredentials).idTokenWithAudience(anyString(), any()))
+        .thenReturn(newIdToken(TimeUnit.MINUTES.toMillis(8)));
+    StoryManagerRequestFactoryImpl factory = new StoryManagerRequestFactoryImpl(
+        this::discoverCredentials, StoryManagerRequestFactoryImpl.DEFAULT_REFRESH_AHEAD_MILLIS);
+
+    send(factory); // mints the first token
+    send(factory); // sees it expires within ten minutes
+
+    verify((IdTokenProvider) mockCredentials, timeout(1000).times(2))
+        .idTokenWithAudience(eq(serviceUrl), any());
+  }
+
+  /**
+   * Check that credentials which can't provide ID tokens are rejected.
+   */
+  @Test(expected = IllegalStateException.class)
+  public void credentialsWithoutIdTokens() throws Exception {
+    StoryManagerRequestFactoryImpl factory =
+        new StoryManagerRequestFactoryImpl(() -> mock(GoogleCredentials.class), 0);
+
+    factory.newInstance(REQUEST_BODY, serviceUrl);
+  }
+
+  /**
+   * Check that an exception is thrown for a negative refresh-ahead window.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeRefreshAhead() {
+    new StoryManagerRequestFactoryImpl(this::discoverCredentials, -1);
+  }
+
+  /**
+   * Check that a shared factory discovers credentials, mints a token and creates a
+   * transport once for any number of requests to the same service, while a factory
+   * per request sets all of them up again for every request.
+   */
+  @Test
+  public void sharedFactorySetsUpOnce() throws Exception {
+    AtomicInteger transportsCreated = new AtomicInteger();
+    HttpTransportFactory transportFactory = () -> {
+      transportsCreated.incrementAndGet();
+      return new NetHttpTransport();
+    };
+
+    StoryManagerRequestFactoryImpl sharedFactory =
+        new StoryManagerRequestFactoryImpl(this::discoverCredentials, transportFactory, 0);
+    for (int i = 0; i < REQUEST_COUNT; i++) {
+      send(sharedFactory);
+    }
+
+    Assert.assertEquals(REQUEST_COUNT, authorizedRequests.get());
+    Assert.assertEquals(1, credentialDiscoveries.get());
+    Assert.assertEquals(1, transportsCreated.get());
+    verify((IdTokenProvider) mockCredentials, times(1)).idTokenWithAudience(eq(serviceUrl), any());
+
+    for (int i = 0; i < REQUEST_COUNT; i++) {
+      send(new StoryManagerRequestFactoryImpl(this::discoverCredentials, transportFactory, 0));
+    }
+
+    Assert.assertEquals(1 + REQUEST_COUNT, credentialDiscoveries.get());
+    Assert.assertEquals(1 + REQUEST_COUNT, transportsCreated.get());
+  }
+
+  /**
+   * Sends a request to the stub server and reads its response.
+   *
+   * @param factory the factory to build the request with
+   */
+  private void send(StoryManagerRequestFactory factory) throws IOException {
+    HttpRequest request = factory.newInstance(REQUEST_BODY, serviceUrl);
+    HttpResponse response = request.execute();
+
+    try {
+      Assert.assertEquals("{\"text\":\"Once upon a time\"}", response.parseAsString());
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  /**
+   * Discovers the mocked credentials, counting each discovery.
+   *
+   * @return the mocked credentials
+   */
+  private GoogleCredentials discoverCredentials() throws IOException {
+    credentialDiscoveries.incrementAndGet();
+    return mockCredentials;
+  }
+
+  /**
+   * Creates an (unsigned) ID token which expires after the given time.
+   *
+   * @param expiresInMillis the time in milliseconds until the token expires
+   * @return the ID token
+   */
+  private static IdToken newIdToken(long expiresInMillis) throws IOException {
+    BaseEncoding base64 = BaseEncoding.base64Url().omitPadding();
+    long expirationSeconds =
+        TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() + expiresInMillis);
+    String header =
+        base64.encode("{\"alg\":\"RS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8));
+    String payload = base64.encode(
+        ("{\"exp\":" + expirationSeconds + "}").getBytes(StandardCharsets.UTF_8));
+
+    return IdToken.create(header + "." + payload + ".c2lnbmF0dXJl");
+  }
+}
@@ -20,12 +20,21 @@ import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.gson.Gson;
+import com.google.sps.story.data.StoryEndpointPool;
+import com.google.sps.story.data.StoryEndpointSelectors;
+import com.google.sps.story.data.StoryHedgingPolicy;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -33,6 +42,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Before;
@@ -40,6 +52,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.Mock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 
 /**
@@ -168,4 +181,196 @@ public final class StoryManagerTest {
       Assert.fail("cycleURL went out of bounds.");
     }
   }
+
+  /**
+   * Ensures a slow container is hedged to another one, the first answer is used,
+   * and the late answer is discarded.
+   */
+  @Test
+  public void hedgesSlowPrimary() throws Exception {
+    StoryManagerURLProvider provider = newTwoEndpointProvider();
+    String primaryURL = provider.getCurrentURL();
+    CountDownLatch releasePrimary = new CountDownLatch(1);
+    HttpResponse lateResponse = mock(HttpResponse.class);
+    HttpRequest slowRequest = newRequest(invocation -> {
+      releasePrimary.await(5, TimeUnit.SECONDS);
+      return lateResponse;
+    });
+    HttpResponse hedgedResponse = mock(HttpResponse.class);
+    when(hedgedResponse.parseAsString()).thenReturn("{\"text\":\"hedged\"}");
+    HttpRequest fastRequest = newRequest(invocation -> hedgedResponse);
+
+    StoryManagerImpl hedgedManager =
+        new StoryManagerImpl(PREFIX_SAMPLE, SIZE_SAMPLE, TEMPERATURE_SAMPLE, provider);
+    hedgedManager.setRequestFactory(
+        (String body, String url) -> url.equals(primaryURL) ? slowRequest : fastRequest);
+    hedgedManager.setHedgingPolicy(new StoryHedgingPolicy(0.95, 50, 5000));
+
+    try {
+      Assert.assertEquals("hedged", hedgedManager.generateText());
+      Assert.assertNotEquals(primaryURL, provider.getCurrentURL());
+    } finally {
+      releasePrimary.countDown();
+    }
+
+    verify(lateResponse, timeout(1000)).disconnect();
+  }
+
+  /**
+   * Ensures a container which answers within the hedge delay isn't hedged.
+   */
+  @Test
+  public void fastPrimaryIsNotHedged() throws Exception {
+    StoryManagerURLProvider provider = newTwoEndpointProvider();
+    HttpResponse response = mock(HttpResponse.class);
+    when(response.parseAsString()).thenReturn("{\"text\":\"foo\"}");
+    HttpRequest request = newRequest(invocation -> response);
+    AtomicInteger requestCount = new AtomicInteger();
+
+    StoryManagerImpl hedgedManager =
+        new StoryManagerImpl(PREFIX_SAMPLE, SIZE_SAMPLE, TEMPERATURE_SAMPLE, provider);
+    hedgedManager.setRequestFactory((String body, String url) -> {
+      requestCount.incrementAndGet();
+      return request;
+    });
+    hedgedManager.setHedgingPolicy(new StoryHedgingPolicy(0.95, 1000, 5000));
+
+    Assert.assertEquals("foo", hedgedManager.generateText());
+    Assert.assertEquals(1, requestCount.get());
+  }
+
+  /**
+   * Ensures hedged generation gives up at the deadline instead of blocking.
+   */
+  @Test(expected = RuntimeException.class)
+  public void hedgedGenerationTimesOut() throws Exception {
+    CountDownLatch releaseRequests = new CountDownLatch(1);
+    HttpRequest slowRequest = newRequest(invocation -> {
+      releaseRequests.await(5, TimeUnit.SECONDS);
+      return mock(HttpResponse.class);
+    });
+
+    StoryManagerImpl hedgedManager = new StoryManagerImpl(
+        PREFIX_SAMPLE, SIZE_SAMPLE, TEMPERATURE_SAMPLE, newTwoEndpointProvider());
+    hedgedManager.setRequestFactory((String body, String url) -> slowRequest);
+    hedgedManager.setHedgingPolicy(new StoryHedgingPolicy(0.95, 50, 200));
+
+    try {
+      hedgedManager.generateText();
+    } finally {
+      releaseRequests.countDown();
+    }
+  }
+
+  /**
+   * Ensures the request which loses a hedge is aborted, closing its connection, rather
+   * than holding it until the read timeout.
+   */
+  @Test
+  public void abortsLosingHedgedRequest() throws Exception {
+    try (ServerSocket silentServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      StoryManagerURLProvider provider = newTwoEndpointProvider();
+      String primaryURL = provider.getCurrentURL();
+      GenericUrl silentURL = new GenericUrl("http://localhost:" + silentServer.getLocalPort());
+      HttpRequestFactory silentFactory =
+          new NetHttpTransport.Builder()
+              .setConnectionFactory(StoryRequestAbortHandle.CONNECTION_FACTORY)
+              .build()
+              .createRequestFactory();
+      HttpResponse hedgedResponse = mock(HttpResponse.class);
+      when(hedgedResponse.parseAsString()).thenReturn("{\"text\":\"hedged\"}");
+      HttpRequest fastRequest = newRequest(invocation -> hedgedResponse);
+
+      StoryManagerImpl hedgedManager =
+          new StoryManagerImpl(PREFIX_SAMPLE, SIZE_SAMPLE, TEMPERATURE_SAMPLE, provider);
+      hedgedManager.setRequestFactory((String body, String url) -> url.equals(primaryURL)
+              ? silentFactory.buildPostRequest(
+                  silentURL, ByteArrayContent.fromString("application/json", body))
+              : fastRequest);
+      hedgedManager.setHedgingPolicy(new StoryHedgingPolicy(0.95, 200, 10000));
+
+      Assert.assertEquals("hedged", hedgedManager.generateText());
+
+      // The server never answers, so the stream only ends if the primary was aborted
+      silentServer.setSoTimeout(2000);
+      try (Socket primaryConnection = silentServer.accept()) {
+        primaryConnection.setSoTimeout(2000);
+        InputStream requestStream = primaryConnection.getInputStream();
+        byte[] buffer = new byte[1024];
+        while (requestStream.read(buffer) != -1) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Ensures a streamed response is passed on chunk by chunk, and the request asks
+   * the container to stream.
+   */
+  @Test
+  public void streamsChunks() throws Exception {
+    HttpResponse response = mock(HttpResponse.class);
+    when(response.getContentType()).thenReturn("application/x-ndjson");
+    String streamedBody = "{\"text\":\"Once upon\"}\n\n{\"text\":\" a time\"}\n";
+    when(response.getContent())
+        .thenReturn(new ByteArrayInputStream(streamedBody.getBytes(StandardCharsets.UTF_8)));
+    HttpRequest request = newRequest(invocation -> response);
+
+    StoryManagerImpl streamingManager =
+        new StoryManagerImpl(PREFIX_SAMPLE, SIZE_SAMPLE, TEMPERATURE_SAMPLE, URLProvider);
+    StoryManagerRequestFactoryFakeImpl factoryFake = new StoryManagerRequestFactoryFakeImpl();
+    factoryFake.setRequest(request);
+    streamingManager.setRequestFactory(factoryFake);
+
+    List<String> chunks = new ArrayList<>();
+    String text = streamingManager.streamText(chunks::add);
+
+    Assert.assertEquals(Arrays.asList("Once upon", " a time"), chunks);
+    Assert.assertEquals("Once upon a time", text);
+    Assert.assertTrue(factoryFake.getLastRequestBody().contains("\"stream\":true"));
+    verify(response).disconnect();
+  }
+
+  /**
+   * Ensures the whole text of a container which doesn't stream is passed on as one chunk.
+   */
+  @Test
+  public void streamFallsBackToWholeResponse() throws Exception {
+    HttpResponse response = mock(HttpResponse.class);
+    when(response.getContentType()).thenReturn("application/json");
+    when(response.parseAsString()).thenReturn("{\"text\":\"foo\"}");
+    HttpRequest request = newRequest(invocation -> response);
+
+    StoryManagerImpl streamingManager =
+        new StoryManagerImpl(PREFIX_SAMPLE, SIZE_SAMPLE, TEMPERATURE_SAMPLE, URLProvider);
+    streamingManager.setRequestFactory((String body, String url) -> request);
+
+    List<String> chunks = new ArrayList<>();
+    Assert.assertEquals("foo", streamingManager.streamText(chunks::add));
+    Assert.assertEquals(Arrays.asList("foo"), chunks);
+  }
+
+  /**
+   * Creates a URL provider with two endpoints of its own.
+   *
+   * @return the provider
+   */
+  private static StoryManagerURLProvider newTwoEndpointProvider() {
+    return new StoryManagerURLProvider(new StoryEndpointPool(
+        Arrays.asList("https://gen-1.example", "https://gen-2.example"),
+        StoryEndpointSelectors.LEAST_OUTSTANDING));
+  }
+
+  /**
+   * Creates a mock request which answers with the given answer when executed.
+   *
+   * @param execution the answer to executing the request
+   * @return the mock request
+   */
+  private static HttpRequest newRequest(Answer<HttpResponse> execution) throws IOException {
+    HttpRequest request = mock(HttpRequest.class);
+    when(request.getHeaders()).thenReturn(mock(HttpHeaders.class));
+    when(request.execute()).thenAnswer(execution);
+    return request;
+  }
 }
@@ -0,0 +1,270 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import com.google.sps.story.data.StoryTemplate;
+import com.google.sps.story.data.StoryTemplateStore;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Quality tests for StoryTemplateStore
+ */
+@RunWith(JUnit4.class)
+public final class StoryTemplateStoreTest {
+  /** the check interval to use for tests */
+  private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  /** the template file used by the stores in these tests */
+  private File templateFile;
+  /** the fake current time used by the stores in these tests */
+  private AtomicLong currentTime;
+
+  @Before
+  public void setUp() throws Exception {
+    templateFile = temporaryFolder.newFile("templates.txt");
+    currentTime = new AtomicLong(0);
+  }
+
+  /**
+   * Check that every section the prompt and story endings use is in the default templates.
+   */
+  @Test
+  public void defaultTemplatesHaveEverySection() {
+    StoryTemplateStore store = StoryTemplateStore.getDefault();
+
+    Assert.assertFalse(store.getTemplates(StoryTemplateStore.INTRO).isEmpty());
+    Assert.assertFalse(store.getTemplates(StoryTemplateStore.INTRO_WITH_GERUNDS).isEmpty());
+    Assert.assertFalse(store.getTemplates(StoryTemplateStore.SECOND).isEmpty());
+    Assert.assertFalse(store.getTemplates(StoryTemplateStore.SIMPLE_ENDING).isEmpty());
+    Assert.assertFalse(store.getTemplates(StoryTemplateStore.EMPTY_ENDING).isEmpty());
+    Assert.assertFalse(store.getTemplates(StoryTemplateStore.STORY_ENDING).isEmpty());
+  }
+
+  /**
+   * Check that sections, comments and blank lines are read properly.
+   */
+  @Test
+  public void readsSections() throws Exception {
+    writeTemplates("# comment", "[first]", "  a <adj> <noun>.  ", "", "b.", "[second]", "c.");
+
+    StoryTemplateStore store = createStore();
+    List<StoryTemplate> first = store.getTemplates("first");
+
+    Assert.assertEquals(2, first.size());
+    Assert.assertEquals("a <adj> <noun>.", first.get(0).getSource());
+    Assert.assertEquals(1, first.get(0).getNounSlotCount());
+    Assert.assertEquals("c.", store.getTemplates("second").get(0).render());
+  }
+
+  /**
+   * Check that an exception is thrown for a section that doesn't exist.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void missingSection() throws Exception {
+    writeTemplates("[first]", "a.");
+
+    createStore().getTemplates("second");
+  }
+
+  /**
+   * Check that a modified file is reloaded once the check interval has passed.
+   */
+  @Test
+  public void reloadsModifiedFile() throws Exception {
+    writeTemplates("[first]", "a.");
+    StoryTemplateStore store = createStore();
+
+    writeTemplates("[first]", "b.");
+    templateFile.setLastModified(templateFile.lastModified() + 10000);
+
+    // not due for a check yet
+    Assert.assertEquals("a.", store.getTemplates("first").get(0).render());
+
+    currentTime.set(CHECK_INTERVAL_MILLIS);
+    Assert.assertEquals("b.", store.getTemplates("first").get(0).render());
+  }
+
+  /**
+   * Check that the loaded templates are kept if a reload fails.
+   */
+  @Test
+  public void failedReloadKeepsTemplates() throws Exception {
+    writeTemplates("[first]", "a.");
+    StoryTemplateStore store = createStore();
+
+    Assert.assertTrue(templateFile.delete());
+
+    Assert.assertFalse(store.reload());
+    Assert.assertEquals("a.", store.getTemplates("first").get(0).render());
+  }
+
+  /**
+   * Check that a reload which is missing a required section keeps the loaded templates.
+   */
+  @Test
+  public void reloadMissingRequiredSectionKeepsTemplates() throws Exception {
+    writeTemplates("[first]", "a.", "[second]", "b.");
+    StoryTemplateStore store = new StoryTemplateStore(templateFile.toURI().toURL(),
+        CHECK_INTERVAL_MILLIS, currentTime::get, Arrays.asList("first", "second"));
+
+    writeTemplates("[first]", "c.", "[second]");
+    templateFile.setLastModified(templateFile.lastModified() + 10000);
+    currentTime.set(CHECK_INTERVAL_MILLIS);
+
+    Assert.assertEquals("a.", store.getTemplates("first").get(0).render());
+    Assert.assertEquals("b.", store.getTemplates("second").get(0).render());
+  }
+
+  /**
+   * Check that a reload with a repeated section keeps the loaded templates
+   * instead of failing the request which triggered it.
+   */
+  @Test
+  public void reloadRepeatedSectionKeepsTemplates() throws Exception {
+    writeTemplates("[first]", "a.");
+    StoryTemplateStore store = createStore();
+
+    writeTemplates("[first]", "b.", "[first]", "c.");
+    templateFile.setLastModified(templateFile.lastModified() + 10000);
+    currentTime.set(CHECK_INTERVAL_MILLIS);
+
+    Assert.assertEquals("a.", store.getTemplates("first").get(0).render());
+    Assert.assertFalse(store.reload());
+  }
+
+  /**
+   * Check that a file which failed to reload isn't read again until it's modified again.
+   */
+  @Test
+  public void failedReloadWaitsForModification() throws Exception {
+    writeTemplates("[first]", "a.");
+    StoryTemplateStore store = createStore();
+
+    writeTemplates("[first]", "b.", "[first]", "c.");
+    long failedLastModified = templateFile.lastModified() + 10000;
+    templateFile.setLastModified(failedLastModified);
+    currentTime.set(CHECK_INTERVAL_MILLIS);
+    Assert.assertEquals("a.", store.getTemplates("first").get(0).render());
+
+    // fixed, but with the same modified time as the file which failed
+    writeTemplates("[first]", "b.");
+    templateFile.setLastModified(failedLastModified);
+    currentTime.set(2 * CHECK_INTERVAL_MILLIS);
+    Assert.assertEquals("a.", store.getTemplates("first").get(0).render());
+
+    templateFile.setLastModified(failedLastModified + 10000);
+    currentTime.set(3 * CHECK_INTERVAL_MILLIS);
+    Assert.assertEquals("b.", store.getTemplates("first").get(0).render());
+  }
+
+  /**
+   * Check that the default sections can be loaded from a file which prompts can be built from.
+   */
+  @Test
+  public void loadsFillableDefaultSections() throws Exception {
+    writeDefaultSections("a <adj> <noun> and a <adj> <noun>.", "a <adj> <noun>.");
+
+    Assert.assertEquals(1, createDefaultStore().getTemplates(StoryTemplateStore.SECOND).size());
+  }
+
+  /**
+   * Check that a prompt template with a noun that has no adjective is rejected.
+   */
+  @Test(expected = RuntimeException.class)
+  public void nounWithoutAdjective() throws Exception {
+    writeDefaultSections("a <noun> and a <adj> <noun>.", "a <adj> <noun>.");
+
+    createDefaultStore();
+  }
+
+  /**
+   * Check that prompt templates with more nouns than a prompt is built from are rejected.
+   */
+  @Test(expected = RuntimeException.class)
+  public void tooManyNouns() throws Exception {
+    writeDefaultSections("a <adj> <noun> and a <adj> <noun>.", "a <adj> <noun> and <adj> <noun>.");
+
+    createDefaultStore();
+  }
+
+  /**
+   * Check that a store can't be created from a file which is missing a required section.
+   */
+  @Test(expected = RuntimeException.class)
+  public void missingRequiredSection() throws Exception {
+    writeTemplates("[first]", "a.");
+
+    new StoryTemplateStore(templateFile.toURI().toURL(), CHECK_INTERVAL_MILLIS,
+        currentTime::get, StoryTemplateStore.DEFAULT_SECTIONS);
+  }
+
+  /**
+   * Creates a store of the template file which uses the fake clock.
+   *
+   * @return the store
+   */
+  private StoryTemplateStore createStore() throws Exception {
+    return new StoryTemplateStore(
+        templateFile.toURI().toURL(), CHECK_INTERVAL_MILLIS, currentTime::get);
+  }
+
+  /**
+   * Creates a store of the template file which requires the default sections.
+   *
+   * @return the store
+   */
+  private StoryTemplateStore createDefaultStore() throws Exception {
+    return new StoryTemplateStore(templateFile.toURI().toURL(), CHECK_INTERVAL_MILLIS,
+        currentTime::get, StoryTemplateStore.DEFAULT_SECTIONS);
+  }
+
+  /**
+   * Writes every default section to the template file.
+   *
+   * @param intro the introductory sentence (with and without gerunds)
+   * @param second the second sentence
+   */
+  private void writeDefaultSections(String intro, String second) throws Exception {
+    writeTemplates("[" + StoryTemplateStore.INTRO + "]", intro,
+        "[" + StoryTemplateStore.INTRO_WITH_GERUNDS + "]", "<gerund> " + intro,
+        "[" + StoryTemplateStore.SECOND + "]", second,
+        "[" + StoryTemplateStore.SIMPLE_ENDING + "]", "met.",
+        "[" + StoryTemplateStore.EMPTY_ENDING + "]", "nothing happened.",
+        "[" + StoryTemplateStore.STORY_ENDING + "]", "The End.");
+  }
+
+  /**
+   * Writes lines to the template file.
+   *
+   * @param lines the lines to write
+   */
+  private void writeTemplates(String... lines) throws Exception {
+    Files.write(templateFile.toPath(), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+  }
+}
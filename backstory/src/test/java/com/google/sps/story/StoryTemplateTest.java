@@ -0,0 +1,119 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import com.google.sps.story.data.StoryTemplate;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Quality tests for StoryTemplate
+ */
+@RunWith(JUnit4.class)
+public final class StoryTemplateTest {
+  /**
+   * Fills noun slots with "noun<i>" (after "adj" repeated for each adjective)
+   * and gerund slots with "gerund<i>".
+   */
+  private static final class CountingSlotValues implements StoryTemplate.SlotValues {
+    private int nounCount = 0;
+    private int gerundCount = 0;
+
+    @Override
+    public void appendNoun(StringBuilder out, int adjectiveCount) {
+      for (int i = 0; i < adjectiveCount; i++) {
+        out.append("adj ");
+      }
+      out.append("noun").append(nounCount++);
+    }
+
+    @Override
+    public void appendGerund(StringBuilder out) {
+      out.append("gerund").append(gerundCount++);
+    }
+  }
+
+  /**
+   * Check that noun and gerund slots are found along with the
+   * number of adjectives in front of each noun.
+   */
+  @Test
+  public void countsSlots() {
+    StoryTemplate template =
+        StoryTemplate.compile("there was a <adj> <adj> <noun> <gerund> alongside a <adj> <noun>.");
+
+    Assert.assertEquals(2, template.getNounSlotCount());
+    Assert.assertEquals(2, template.getAdjectiveCount(0));
+    Assert.assertEquals(1, template.getAdjectiveCount(1));
+    Assert.assertEquals(1, template.getGerundSlotCount());
+  }
+
+  /**
+   * Check that rendering fills every slot in order and keeps the text around them.
+   */
+  @Test
+  public void rendersSlotsInOrder() {
+    StoryTemplate template =
+        StoryTemplate.compile("a <adj> <noun> as well as a <gerund> <adj> <noun> were together.");
+    StringBuilder out = new StringBuilder();
+
+    template.renderTo(out, new CountingSlotValues());
+
+    Assert.assertEquals("a adj noun0 as well as a gerund0 adj noun1 were together.",
+        out.toString());
+  }
+
+  /**
+   * Check that tags which don't form a slot are kept as text.
+   */
+  @Test
+  public void keepsUnknownTags() {
+    StoryTemplate template = StoryTemplate.compile("<b> <adj> <noun> <adj> end");
+    StringBuilder out = new StringBuilder();
+
+    template.renderTo(out, new CountingSlotValues());
+
+    Assert.assertEquals(1, template.getNounSlotCount());
+    Assert.assertEquals("<b> adj noun0 <adj> end", out.toString());
+  }
+
+  /**
+   * Check that a template without slots renders as itself.
+   */
+  @Test
+  public void rendersWithoutSlots() {
+    final String ENDING = "were all together at once.";
+
+    Assert.assertEquals(ENDING, StoryTemplate.compile(ENDING).render());
+  }
+
+  /**
+   * Check that rendering a template with slots requires values.
+   */
+  @Test(expected = IllegalStateException.class)
+  public void slotsNeedValues() {
+    StoryTemplate.compile("a <adj> <noun>").render();
+  }
+
+  /**
+   * Check that an exception is thrown for a null template.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void nullTemplate() {
+    StoryTemplate.compile(null);
+  }
+}
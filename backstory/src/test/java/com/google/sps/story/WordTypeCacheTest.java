@@ -0,0 +1,189 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.story;
+
+import static org.mockito.Mockito.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.sps.story.data.WordType;
+import com.google.sps.story.data.WordTypeCache;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Quality tests for the WordTypeCache
+ */
+@RunWith(JUnit4.class)
+public final class WordTypeCacheTest {
+  /** the time to live to use for tests */
+  private static final long TTL_MILLIS = 1000;
+
+  /** the fake current time used by the caches in these tests */
+  private AtomicLong currentTime;
+
+  @Before
+  public void setUp() {
+    currentTime = new AtomicLong(0);
+  }
+
+  /**
+   * Check that a word put into the cache is found, and that
+   * hits and misses are counted.
+   */
+  @Test
+  public void hitAndMissCounters() {
+    WordTypeCache cache = new WordTypeCache(10, TTL_MILLIS, currentTime::get);
+    cache.putAll(singleWordType("Dog", WordType.NOUN));
+
+    Map<String, WordType> found = cache.getAll(Arrays.asList("Dog", "Sky"));
+
+    Assert.assertEquals(1, found.size());
+    Assert.assertEquals(WordType.NOUN, found.get("Dog"));
+    Assert.assertEquals(1, cache.getHitCount());
+    Assert.assertEquals(1, cache.getMissCount());
+  }
+
+  /**
+   * Check that the least recently used word is evicted once the cache is full.
+   */
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    WordTypeCache cache = new WordTypeCache(2, TTL_MILLIS, currentTime::get);
+    cache.putAll(singleWordType("Dog", WordType.NOUN));
+    cache.putAll(singleWordType("Sky", WordType.NOUN));
+
+    // use "Dog" so that "Sky" is the least recently used
+    cache.getAll(Arrays.asList("Dog"));
+    cache.putAll(singleWordType("Tree", WordType.NOUN));
+
+    Map<String, WordType> found = cache.getAll(Arrays.asList("Dog", "Sky", "Tree"));
+
+    Assert.assertEquals(2, cache.size());
+    Assert.assertTrue(found.containsKey("Dog"));
+    Assert.assertFalse(found.containsKey("Sky"));
+    Assert.assertTrue(found.containsKey("Tree"));
+  }
+
+  /**
+   * Check that a word is no longer found once its time to live has passed.
+   */
+  @Test
+  public void expiresAfterTimeToLive() {
+    WordTypeCache cache = new WordTypeCache(10, TTL_MILLIS, currentTime::get);
+    cache.putAll(singleWordType("Dog", WordType.NOUN));
+
+    currentTime.set(TTL_MILLIS);
+    Assert.assertTrue(cache.getAll(Arrays.asList("Dog")).containsKey("Dog"));
+
+    currentTime.set(TTL_MILLIS + 1);
+    Assert.assertFalse(cache.getAll(Arrays.asList("Dog")).containsKey("Dog"));
+  }
+
+  /**
+   * Check that words are keyed by their normalized form, so a word written with
+   * a combining accent is found under its precomposed form.
+   */
+  @Test
+  public void keysAreNormalized() {
+    WordTypeCache cache = new WordTypeCache(10, TTL_MILLIS, currentTime::get);
+    final String DECOMPOSED = "cafe\u0301";
+    final String PRECOMPOSED = "caf\u00e9";
+    cache.putAll(singleWordType(DECOMPOSED, WordType.NOUN));
+
+    Map<String, WordType> found = cache.getAll(Arrays.asList(PRECOMPOSED));
+
+    Assert.assertEquals(WordType.NOUN, found.get(PRECOMPOSED));
+  }
+
+  /**
+   * Check that words missing in memory are looked up in Datastore with one batch get,
+   * and that they're in memory afterwards.
+   */
+  @Test
+  public void readsThroughToDatastore() {
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+
+    Key mockKey = mock(Key.class);
+    when(mockKey.getName()).thenReturn("Dog");
+    Entity mockEntity = mock(Entity.class);
+    when(mockEntity.getKey()).thenReturn(mockKey);
+    when(mockEntity.getProperty("wordType")).thenReturn(WordType.NOUN.name());
+    when(mockEntity.getProperty("expiration")).thenReturn(TTL_MILLIS);
+
+    Map<Key, Entity> entities = new HashMap<Key, Entity>();
+    entities.put(mockKey, mockEntity);
+    when(mockDatastoreService.get(anyIterable())).thenReturn(entities);
+
+    WordTypeCache cache = new WordTypeCache(10, TTL_MILLIS, currentTime::get);
+    cache.setDatastoreService(mockDatastoreService);
+
+    Map<String, WordType> found = cache.getAll(Arrays.asList("Dog", "Sky"));
+
+    Assert.assertEquals(WordType.NOUN, found.get("Dog"));
+    Assert.assertEquals(1, cache.getDatastoreHitCount());
+    Assert.assertEquals(1, cache.getMissCount());
+    verify(mockDatastoreService, times(1)).get(anyIterable());
+
+    // second lookup is served from memory
+    cache.getAll(Arrays.asList("Dog"));
+    Assert.assertEquals(1, cache.getHitCount());
+    verify(mockDatastoreService, times(1)).get(anyIterable());
+  }
+
+  /**
+   * Check that a failing Datastore tier is treated as a miss instead of an error.
+   */
+  @Test
+  public void datastoreFailureIsMiss() {
+    DatastoreService mockDatastoreService = mock(DatastoreService.class);
+    when(mockDatastoreService.get(anyIterable())).thenThrow(new RuntimeException("down"));
+
+    WordTypeCache cache = new WordTypeCache(10, TTL_MILLIS, currentTime::get);
+    cache.setDatastoreService(mockDatastoreService);
+
+    Assert.assertTrue(cache.getAll(Arrays.asList("Dog")).isEmpty());
+    Assert.assertEquals(1, cache.getMissCount());
+  }
+
+  /**
+   * Check that an exception is thrown for a cache with no room.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidMaxSize() {
+    new WordTypeCache(0, TTL_MILLIS);
+  }
+
+  /**
+   * Create a map holding a single word and its word type.
+   *
+   * @param word the word
+   * @param wordType the word type of the word
+   * @return a map from the word to its word type
+   */
+  private Map<String, WordType> singleWordType(String word, WordType wordType) {
+    Map<String, WordType> wordTypes = new HashMap<String, WordType>();
+    wordTypes.put(word, wordType);
+    return wordTypes;
+  }
+}